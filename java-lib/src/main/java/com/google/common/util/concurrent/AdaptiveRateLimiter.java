@@ -0,0 +1,216 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.data.ReportableEntityType;
+
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A decorator for {@link RecyclableRateLimiter} that adjusts the rate AIMD-style (additive
+ * increase, multiplicative decrease) based on feedback from the backend, i.e. response codes
+ * and latency of {@link com.wavefront.api.ProxyV2API#proxyReport} calls.
+ *
+ * Successful responses increase the rate by a fixed fraction of the ceiling, pushback (406, 429),
+ * server errors (5xx) and connectivity failures cut it in half, and successful responses that
+ * took longer than the latency threshold reduce it more gently. The rate always stays within
+ * [floor; ceiling]: the ceiling is the locally configured rate, which can be overridden
+ * from {@link AgentConfiguration} (see {@link #updateBounds}), and the floor is a fixed fraction
+ * of the ceiling. To avoid overreacting to a burst of responses to requests that were already
+ * in flight, the rate is decreased at most once, and increased at most once, per adjustment
+ * interval. Decreases always take priority: increases are suppressed for a hold-off period
+ * after a decrease, so under partial pushback (e.g. some of the requests getting 429s) the rate
+ * keeps going down even though other requests succeed.
+ *
+ * Wrap a {@link RecyclableRateLimiterWithMetrics} to get the current rate and adjustments
+ * reported as metrics.
+ */
+public class AdaptiveRateLimiter implements RecyclableRateLimiter {
+  static final double ADDITIVE_INCREASE_RATIO = 0.05;
+  static final double PUSHBACK_DECREASE_FACTOR = 0.5;
+  static final double LATENCY_DECREASE_FACTOR = 0.9;
+  static final long ADJUSTMENT_INTERVAL_MILLIS = 1000;
+  static final long INCREASE_HOLD_OFF_MILLIS = 3000;
+
+  private final RecyclableRateLimiter delegate;
+  private final ReportableEntityType entityType;
+  private final double defaultCeiling;
+  private final double minRateRatio;
+  private final long latencyThresholdMillis;
+  private final Supplier<Long> clock;
+  private volatile long lastIncreaseMillis = Long.MIN_VALUE;
+  private volatile long lastDecreaseMillis = Long.MIN_VALUE;
+  private volatile double floor;
+  private volatile double ceiling;
+
+  /**
+   * @param delegate               rate limiter to control. its current rate is used
+   *                               as the ceiling, unless overridden by the server.
+   * @param entityType             entity type to look up limits in {@link AgentConfiguration}.
+   * @param minRateRatio           floor, as a fraction of the ceiling (0 to 1).
+   * @param latencyThresholdMillis responses slower than that are treated as a sign of
+   *                               backend congestion.
+   */
+  public AdaptiveRateLimiter(RecyclableRateLimiter delegate, ReportableEntityType entityType,
+                             double minRateRatio, long latencyThresholdMillis) {
+    this(delegate, entityType, minRateRatio, latencyThresholdMillis, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  AdaptiveRateLimiter(RecyclableRateLimiter delegate, ReportableEntityType entityType,
+                      double minRateRatio, long latencyThresholdMillis, Supplier<Long> clock) {
+    checkArgument(minRateRatio > 0 && minRateRatio <= 1, "minRateRatio must be in (0; 1]");
+    this.delegate = delegate;
+    this.entityType = entityType;
+    this.defaultCeiling = delegate.getRate();
+    this.minRateRatio = minRateRatio;
+    this.latencyThresholdMillis = latencyThresholdMillis;
+    this.clock = clock;
+    this.ceiling = defaultCeiling;
+    this.floor = defaultCeiling * minRateRatio;
+  }
+
+  /**
+   * Record a response from the backend.
+   *
+   * @param statusCode    HTTP status code.
+   * @param latencyMillis request latency in milliseconds.
+   */
+  public void onResponse(int statusCode, long latencyMillis) {
+    if (statusCode == 406 || statusCode == 429 || statusCode >= 500) {
+      decrease(PUSHBACK_DECREASE_FACTOR);
+    } else if (statusCode >= 200 && statusCode < 300) {
+      if (latencyMillis > latencyThresholdMillis) {
+        decrease(LATENCY_DECREASE_FACTOR);
+      } else {
+        increase();
+      }
+    }
+    // other 4xx codes don't say anything about backend capacity
+  }
+
+  /**
+   * Record a failure to get a response from the backend (i.e. a timeout).
+   */
+  public void onFailure() {
+    decrease(PUSHBACK_DECREASE_FACTOR);
+  }
+
+  /**
+   * Update floor and ceiling from the server-side configuration: if the server sets rate
+   * limits, the ceiling is the per-proxy limit for the entity type (or the global one, if it's
+   * lower), otherwise the locally configured rate. The current rate is clamped to new bounds.
+   *
+   * @param config agent configuration
+   */
+  public void updateBounds(AgentConfiguration config) {
+    Double newCeiling = config.getCollectorSetsRateLimit() ?
+        EntityRateLimiters.toRate(EntityRateLimiters.rateLimitOf(entityType, config)) : null;
+    if (newCeiling == null) newCeiling = defaultCeiling;
+    Double globalRate = EntityRateLimiters.toRate(
+        EntityRateLimiters.globalRateLimitOf(entityType, config));
+    if (globalRate != null) newCeiling = Math.min(newCeiling, globalRate);
+    setBounds(newCeiling * minRateRatio, newCeiling);
+  }
+
+  /**
+   * Set floor and ceiling explicitly, the current rate is clamped to new bounds.
+   *
+   * @param floor   min rate, in permits per second.
+   * @param ceiling max rate, in permits per second.
+   */
+  public void setBounds(double floor, double ceiling) {
+    checkArgument(floor > 0 && floor <= ceiling, "floor must be positive and not exceed ceiling");
+    this.floor = floor;
+    this.ceiling = ceiling;
+    double rate = delegate.getRate();
+    double clamped = clamp(rate);
+    if (clamped != rate) {
+      delegate.setRate(clamped);
+    }
+  }
+
+  public double getFloor() {
+    return floor;
+  }
+
+  public double getCeiling() {
+    return ceiling;
+  }
+
+  private void decrease(double factor) {
+    long now = clock.get();
+    if (elapsed(lastDecreaseMillis, now) < ADJUSTMENT_INTERVAL_MILLIS) return;
+    synchronized (this) {
+      if (elapsed(lastDecreaseMillis, now) < ADJUSTMENT_INTERVAL_MILLIS) return;
+      lastDecreaseMillis = now;
+      adjustTo(delegate.getRate() * factor);
+    }
+  }
+
+  private void increase() {
+    long now = clock.get();
+    if (elapsed(lastIncreaseMillis, now) < ADJUSTMENT_INTERVAL_MILLIS ||
+        elapsed(lastDecreaseMillis, now) < INCREASE_HOLD_OFF_MILLIS) return;
+    // adjustments are rare, so the lock is only taken a couple of times per interval,
+    // and ensures that an increase can't overwrite a concurrent decrease
+    synchronized (this) {
+      if (elapsed(lastIncreaseMillis, now) < ADJUSTMENT_INTERVAL_MILLIS ||
+          elapsed(lastDecreaseMillis, now) < INCREASE_HOLD_OFF_MILLIS) return;
+      lastIncreaseMillis = now;
+      adjustTo(delegate.getRate() + ceiling * ADDITIVE_INCREASE_RATIO);
+    }
+  }
+
+  private void adjustTo(double rate) {
+    double newRate = clamp(rate);
+    if (newRate != delegate.getRate()) {
+      delegate.setRate(newRate);
+    }
+  }
+
+  private static long elapsed(long sinceMillis, long now) {
+    return sinceMillis == Long.MIN_VALUE ? Long.MAX_VALUE : now - sinceMillis;
+  }
+
+  private double clamp(double rate) {
+    return Math.max(floor, Math.min(ceiling, rate));
+  }
+
+  @Override
+  public double getRate() {
+    return delegate.getRate();
+  }
+
+  /**
+   * Sets the rate, clamped to [floor; ceiling].
+   *
+   * @param rate rate, in permits per second.
+   */
+  @Override
+  public void setRate(double rate) {
+    delegate.setRate(clamp(rate));
+  }
+
+  @Override
+  public double acquire(int permits) {
+    return delegate.acquire(permits);
+  }
+
+  @Override
+  public boolean tryAcquire(int permits) {
+    return delegate.tryAcquire(permits);
+  }
+
+  @Override
+  public void recyclePermits(int permits) {
+    delegate.recyclePermits(permits);
+  }
+
+  @Override
+  public boolean immediatelyAvailable(int permits) {
+    return delegate.immediatelyAvailable(permits);
+  }
+}
@@ -0,0 +1,165 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter.SleepingStopwatch;
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.data.ReportableEntityType;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * Per-entity type rate limiters, each nested under the global limit for its entity type,
+ * reconfigurable from {@link AgentConfiguration} received from the server.
+ *
+ * Per-type limits (i.e. {@link AgentConfiguration#getCollectorRateLimit()}) are only applied
+ * when {@link AgentConfiguration#getCollectorSetsRateLimit()} is true, otherwise the locally
+ * configured rates are used. Global limits (i.e.
+ * {@link AgentConfiguration#getGlobalCollectorRateLimit()}) cap the corresponding per-type
+ * buckets whenever they are set. Points and delta counters share the same global limit.
+ */
+public class EntityRateLimiters {
+  private static final String GLOBAL_PREFIX = "global.";
+
+  private final Map<ReportableEntityType, Double> defaultRates;
+  private final HierarchicalRateLimiter<String> limiter;
+
+  /**
+   * @param defaultRates    locally configured rates, in permits per second (entity types
+   *                        without a configured rate are not limited).
+   * @param maxBurstSeconds time window (in seconds) to accumulate unused permits for.
+   */
+  public EntityRateLimiters(Map<ReportableEntityType, Double> defaultRates,
+                            double maxBurstSeconds) {
+    this(HierarchicalRateLimiter.newBuilder(maxBurstSeconds), defaultRates);
+  }
+
+  @VisibleForTesting
+  EntityRateLimiters(SleepingStopwatch stopwatch,
+                     Map<ReportableEntityType, Double> defaultRates, double maxBurstSeconds) {
+    this(HierarchicalRateLimiter.newBuilder(stopwatch, maxBurstSeconds), defaultRates);
+  }
+
+  private EntityRateLimiters(HierarchicalRateLimiter.Builder<String> builder,
+                             Map<ReportableEntityType, Double> defaultRates) {
+    this.defaultRates = new EnumMap<>(ReportableEntityType.class);
+    for (ReportableEntityType entityType : ReportableEntityType.values()) {
+      String global = globalKey(entityType);
+      if (entityType == globalOf(entityType)) {
+        builder.addBucket(global, Double.POSITIVE_INFINITY);
+      }
+      Double rate = defaultRates.get(entityType);
+      this.defaultRates.put(entityType, rate == null ? Double.POSITIVE_INFINITY : rate);
+      builder.addBucket(entityType.toString(), global, this.defaultRates.get(entityType));
+    }
+    this.limiter = builder.build();
+  }
+
+  /**
+   * Returns the rate limiter for the specified entity type. Permits acquired through it also
+   * count towards the global limit for the entity type.
+   *
+   * @param entityType entity type
+   * @return rate limiter
+   */
+  public RecyclableRateLimiter get(ReportableEntityType entityType) {
+    return limiter.get(entityType.toString());
+  }
+
+  /**
+   * Returns the currently effective global limit for the entity type.
+   *
+   * @param entityType entity type
+   * @return rate, in permits per second ({@link Double#POSITIVE_INFINITY} if not limited).
+   */
+  public double getGlobalRate(ReportableEntityType entityType) {
+    return limiter.getRate(globalKey(entityType));
+  }
+
+  /**
+   * Applies rate limits from the server-side configuration. All rates are updated atomically.
+   *
+   * @param config agent configuration
+   */
+  public void update(AgentConfiguration config) {
+    Map<String, Double> rates = new HashMap<>();
+    for (ReportableEntityType entityType : ReportableEntityType.values()) {
+      Double rate = config.getCollectorSetsRateLimit() ?
+          toRate(rateLimitOf(entityType, config)) : null;
+      rates.put(entityType.toString(), rate == null ? defaultRates.get(entityType) : rate);
+      Double globalRate = toRate(globalRateLimitOf(entityType, config));
+      rates.put(globalKey(entityType), globalRate == null ? Double.POSITIVE_INFINITY :
+          globalRate);
+    }
+    limiter.setRates(rates);
+  }
+
+  @Nullable
+  static Number rateLimitOf(ReportableEntityType entityType, AgentConfiguration config) {
+    return select(entityType, AgentConfiguration::getCollectorRateLimit,
+        AgentConfiguration::getHistogramRateLimit, AgentConfiguration::getSourceTagsRateLimit,
+        AgentConfiguration::getSpanRateLimit, AgentConfiguration::getSpanLogsRateLimit,
+        AgentConfiguration::getEventsRateLimit, AgentConfiguration::getLogsRateLimit).
+        apply(config);
+  }
+
+  @Nullable
+  static Number globalRateLimitOf(ReportableEntityType entityType,
+                                  AgentConfiguration config) {
+    return select(entityType, AgentConfiguration::getGlobalCollectorRateLimit,
+        AgentConfiguration::getGlobalHistogramRateLimit,
+        AgentConfiguration::getGlobalSourceTagRateLimit,
+        AgentConfiguration::getGlobalSpanRateLimit,
+        AgentConfiguration::getGlobalSpanLogsRateLimit,
+        AgentConfiguration::getGlobalEventRateLimit,
+        AgentConfiguration::getGlobalLogsRateLimit).apply(config);
+  }
+
+  private static Function<AgentConfiguration, Number> select(
+      ReportableEntityType entityType,
+      Function<AgentConfiguration, Number> points,
+      Function<AgentConfiguration, Number> histograms,
+      Function<AgentConfiguration, Number> sourceTags,
+      Function<AgentConfiguration, Number> spans,
+      Function<AgentConfiguration, Number> spanLogs,
+      Function<AgentConfiguration, Number> events,
+      Function<AgentConfiguration, Number> logs) {
+    switch (entityType) {
+      case POINT:
+      case DELTA_COUNTER:
+        return points;
+      case HISTOGRAM:
+        return histograms;
+      case SOURCE_TAG:
+        return sourceTags;
+      case TRACE:
+        return spans;
+      case TRACE_SPAN_LOGS:
+        return spanLogs;
+      case EVENT:
+        return events;
+      case LOGS:
+        return logs;
+      default:
+        throw new IllegalArgumentException("Unexpected entity type: " + entityType);
+    }
+  }
+
+  @Nullable
+  static Double toRate(@Nullable Number value) {
+    return value == null || value.doubleValue() <= 0 ? null : value.doubleValue();
+  }
+
+  private static ReportableEntityType globalOf(ReportableEntityType entityType) {
+    return entityType == ReportableEntityType.DELTA_COUNTER ? ReportableEntityType.POINT :
+        entityType;
+  }
+
+  private static String globalKey(ReportableEntityType entityType) {
+    return GLOBAL_PREFIX + globalOf(entityType);
+  }
+}
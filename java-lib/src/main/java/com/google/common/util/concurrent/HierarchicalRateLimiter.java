@@ -0,0 +1,302 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter.SleepingStopwatch;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A tree of token buckets (i.e. per-entity type limits under a global limit), where permits are
+ * always acquired from a bucket and all of its ancestors at once, so a burst in one bucket can't
+ * exceed the limit of its parent.
+ *
+ * State of all buckets is kept in a single immutable snapshot that is replaced with a CAS
+ * (see {@link LockFreeRecyclableRateLimiter}), so checking and reserving permits at several
+ * levels is atomic without taking a lock per level, and rates of multiple buckets can be
+ * reconfigured at once (see {@link #setRates(Map)}). Each bucket has the same semantics as
+ * {@link RecyclableRateLimiterImpl}: {@link #acquire} waits for the most restrictive level,
+ * {@link #tryAcquire} only succeeds if all levels can grant permits right away, and recycled
+ * permits are returned to all levels.
+ *
+ * Use {@link Double#POSITIVE_INFINITY} as the rate for buckets that shouldn't limit anything.
+ *
+ * @param <K> bucket key type
+ */
+public class HierarchicalRateLimiter<K> {
+
+  private final SleepingStopwatch stopwatch;
+  private final double maxBurstSeconds;
+  private final Map<K, Integer> indexes;
+  /**
+   * Indexes of the bucket itself and all of its ancestors, by bucket index.
+   */
+  private final int[][] paths;
+  private final Map<K, RecyclableRateLimiter> views;
+  private final AtomicReference<TokenBucket[]> state;
+
+  private HierarchicalRateLimiter(SleepingStopwatch stopwatch, double maxBurstSeconds,
+                                  Map<K, K> parents, Map<K, Double> rates) {
+    this.stopwatch = stopwatch;
+    this.maxBurstSeconds = maxBurstSeconds;
+    ImmutableMap.Builder<K, Integer> indexes = ImmutableMap.builder();
+    int index = 0;
+    for (K key : rates.keySet()) {
+      indexes.put(key, index++);
+    }
+    this.indexes = indexes.build();
+    this.paths = new int[index][];
+    ImmutableMap.Builder<K, RecyclableRateLimiter> views = ImmutableMap.builder();
+    for (Map.Entry<K, Integer> entry : this.indexes.entrySet()) {
+      int[] path = new int[] {entry.getValue()};
+      for (K parent = parents.get(entry.getKey()); parent != null; parent = parents.get(parent)) {
+        path = Arrays.copyOf(path, path.length + 1);
+        path[path.length - 1] = this.indexes.get(parent);
+      }
+      paths[entry.getValue()] = path;
+      views.put(entry.getKey(), new BucketRateLimiter(entry.getValue()));
+    }
+    this.views = views.build();
+    TokenBucket[] buckets = new TokenBucket[index];
+    Arrays.fill(buckets, TokenBucket.INITIAL);
+    this.state = new AtomicReference<>(buckets);
+    setRates(rates);
+  }
+
+  /**
+   * Create a builder for a new rate limiter.
+   *
+   * @param maxBurstSeconds time window (in seconds) to accumulate unused permits for.
+   * @param <K>             bucket key type.
+   * @return builder
+   */
+  public static <K> Builder<K> newBuilder(double maxBurstSeconds) {
+    return new Builder<>(SleepingStopwatch.createFromSystemTimer(), maxBurstSeconds);
+  }
+
+  @VisibleForTesting
+  static <K> Builder<K> newBuilder(SleepingStopwatch stopwatch, double maxBurstSeconds) {
+    return new Builder<>(stopwatch, maxBurstSeconds);
+  }
+
+  /**
+   * Returns a {@link RecyclableRateLimiter} view of the specified bucket: permits acquired
+   * or recycled through it are also acquired from or recycled to all of its ancestors.
+   *
+   * @param key bucket key
+   * @return rate limiter for the bucket
+   */
+  public RecyclableRateLimiter get(K key) {
+    RecyclableRateLimiter view = views.get(key);
+    checkArgument(view != null, "Unknown bucket: %s", key);
+    return view;
+  }
+
+  /**
+   * Returns the configured rate of the specified bucket, in permits per second.
+   *
+   * @param key bucket key
+   * @return rate
+   */
+  public double getRate(K key) {
+    return state.get()[indexOf(key)].getRate();
+  }
+
+  /**
+   * Updates rates for the specified buckets atomically, other buckets retain their rates.
+   *
+   * @param rates new rates by bucket key, in permits per second.
+   */
+  public void setRates(Map<K, Double> rates) {
+    int[] bucketIndexes = new int[rates.size()];
+    double[] bucketRates = new double[rates.size()];
+    int i = 0;
+    for (Map.Entry<K, Double> entry : rates.entrySet()) {
+      checkArgument(entry.getValue() != null && entry.getValue() > 0.0,
+          "rate must be positive");
+      bucketIndexes[i] = indexOf(entry.getKey());
+      bucketRates[i++] = entry.getValue();
+    }
+    long nowMicros = stopwatch.readMicros();
+    while (true) {
+      TokenBucket[] current = state.get();
+      TokenBucket[] updated = current.clone();
+      for (int j = 0; j < bucketIndexes.length; j++) {
+        int index = bucketIndexes[j];
+        updated[index] = updated[index].withRate(bucketRates[j], maxBurstSeconds, nowMicros);
+      }
+      if (state.compareAndSet(current, updated)) return;
+    }
+  }
+
+  private int indexOf(K key) {
+    Integer index = indexes.get(key);
+    checkArgument(index != null, "Unknown bucket: %s", key);
+    return index;
+  }
+
+  /**
+   * Reserve permits at all levels, see {@link LockFreeRecyclableRateLimiter}.
+   *
+   * @return the moment when permits become available, or {@code Long.MIN_VALUE} if
+   *         {@code onlyIfAvailable} is true and permits can't be reserved without waiting.
+   */
+  private long reserveEarliestAvailable(int[] path, int permits, long nowMicros,
+                                        boolean onlyIfAvailable) {
+    while (true) {
+      TokenBucket[] current = state.get();
+      long momentAvailable = nowMicros;
+      for (int index : path) {
+        if (onlyIfAvailable && !current[index].canAcquire(nowMicros)) {
+          return Long.MIN_VALUE;
+        }
+        momentAvailable = max(momentAvailable, current[index].earliestAvailable(nowMicros));
+      }
+      TokenBucket[] updated = current.clone();
+      for (int index : path) {
+        updated[index] = updated[index].reserve(permits, nowMicros);
+      }
+      if (state.compareAndSet(current, updated)) {
+        return momentAvailable;
+      }
+    }
+  }
+
+  private void recyclePermits(int[] path, int permits) {
+    long nowMicros = stopwatch.readMicros();
+    while (true) {
+      TokenBucket[] current = state.get();
+      TokenBucket[] updated = current.clone();
+      for (int index : path) {
+        updated[index] = updated[index].recycle(permits, nowMicros);
+      }
+      if (state.compareAndSet(current, updated)) return;
+    }
+  }
+
+  private boolean immediatelyAvailable(int[] path, int permits) {
+    long nowMicros = stopwatch.readMicros();
+    TokenBucket[] current = state.get();
+    for (int index : path) {
+      if (current[index].resync(nowMicros).storedPermits < permits) return false;
+    }
+    return true;
+  }
+
+  private class BucketRateLimiter implements RecyclableRateLimiter {
+    private final int index;
+
+    BucketRateLimiter(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public double getRate() {
+      return state.get()[index].getRate();
+    }
+
+    @Override
+    public void setRate(double rate) {
+      checkArgument(rate > 0.0 && !Double.isNaN(rate), "rate must be positive");
+      long nowMicros = stopwatch.readMicros();
+      while (true) {
+        TokenBucket[] current = state.get();
+        TokenBucket[] updated = current.clone();
+        updated[index] = updated[index].withRate(rate, maxBurstSeconds, nowMicros);
+        if (state.compareAndSet(current, updated)) return;
+      }
+    }
+
+    @Override
+    public double acquire(int permits) {
+      checkPermits(permits);
+      long nowMicros = stopwatch.readMicros();
+      long momentAvailable = reserveEarliestAvailable(paths[index], permits, nowMicros, false);
+      long microsToWait = max(momentAvailable - nowMicros, 0);
+      stopwatch.sleepMicrosUninterruptibly(microsToWait);
+      return 1.0 * microsToWait / SECONDS.toMicros(1L);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+      checkPermits(permits);
+      return reserveEarliestAvailable(paths[index], permits, stopwatch.readMicros(), true) !=
+          Long.MIN_VALUE;
+    }
+
+    @Override
+    public void recyclePermits(int permits) {
+      HierarchicalRateLimiter.this.recyclePermits(paths[index], permits);
+    }
+
+    @Override
+    public boolean immediatelyAvailable(int permits) {
+      return HierarchicalRateLimiter.this.immediatelyAvailable(paths[index], permits);
+    }
+
+    private void checkPermits(int permits) {
+      checkArgument(permits > 0, "Requested permits (%s) must be positive", permits);
+    }
+  }
+
+  /**
+   * Builder for {@link HierarchicalRateLimiter}. Parent buckets must be added before
+   * their children.
+   *
+   * @param <K> bucket key type
+   */
+  public static class Builder<K> {
+    private final SleepingStopwatch stopwatch;
+    private final double maxBurstSeconds;
+    private final Map<K, K> parents = new LinkedHashMap<>();
+    private final Map<K, Double> rates = new LinkedHashMap<>();
+
+    private Builder(SleepingStopwatch stopwatch, double maxBurstSeconds) {
+      this.stopwatch = stopwatch;
+      this.maxBurstSeconds = maxBurstSeconds;
+    }
+
+    /**
+     * Add a top-level bucket.
+     *
+     * @param key  bucket key
+     * @param rate rate, in permits per second.
+     * @return this builder
+     */
+    public Builder<K> addBucket(K key, double rate) {
+      return addBucket(key, null, rate);
+    }
+
+    /**
+     * Add a bucket.
+     *
+     * @param key    bucket key
+     * @param parent key of the parent bucket, or null for a top-level bucket.
+     * @param rate   rate, in permits per second.
+     * @return this builder
+     */
+    public Builder<K> addBucket(K key, @Nullable K parent, double rate) {
+      checkNotNull(key);
+      checkState(!rates.containsKey(key), "Duplicate bucket: %s", key);
+      checkArgument(parent == null || rates.containsKey(parent), "Unknown parent: %s", parent);
+      if (parent != null) parents.put(key, parent);
+      rates.put(key, rate);
+      return this;
+    }
+
+    public HierarchicalRateLimiter<K> build() {
+      return new HierarchicalRateLimiter<>(stopwatch, maxBurstSeconds, parents, rates);
+    }
+  }
+}
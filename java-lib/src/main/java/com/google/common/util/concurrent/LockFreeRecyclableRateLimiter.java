@@ -0,0 +1,252 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter.SleepingStopwatch;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A lock-free {@link RecyclableRateLimiter} that behaves exactly like
+ * {@link RecyclableRateLimiterImpl}, for limiters shared by many threads.
+ *
+ * All token bucket state (next free ticket, stored permits and the rate configuration) is kept
+ * in an immutable {@link TokenBucket} snapshot that is replaced with a CAS, so threads never block on a monitor,
+ * and a rate change is always applied atomically with respect to permit accounting.
+ *
+ * Optionally, threads can lease blocks of permits: when {@code leaseSize} is greater than 1,
+ * a thread that needs permits reserves a whole block from the shared bucket and serves
+ * subsequent requests from its local lease, without touching shared state. Leased permits count
+ * as acquired, so the overall rate doesn't change; unused leased permits are returned to the
+ * bucket with {@link #returnLeasedPermits()}, which has the same semantics as
+ * {@link #recyclePermits}. Leases expire {@link #LEASE_TTL_MICROS} after they were taken: the
+ * next call on the same thread returns what's left to the bucket (where it counts towards the
+ * {@code maxBurstSeconds} cap) instead of using it, so old leases can't be spent as a burst.
+ * A thread that stops calling the rate limiter still holds up to {@code leaseSize - 1} permits
+ * until it calls {@link #returnLeasedPermits()}.
+ *
+ * Contains portions of Guava library source code.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class LockFreeRecyclableRateLimiter implements RecyclableRateLimiter {
+  /**
+   * How long leased permits can be used for.
+   */
+  static final long LEASE_TTL_MICROS = SECONDS.toMicros(1);
+
+  private final SleepingStopwatch stopwatch;
+  /**
+   * The work (permits) of how many seconds can be saved up if this RateLimiter is unused?
+   */
+  private final double maxBurstSeconds;
+  private final int leaseSize;
+  private final ThreadLocal<Lease> leases = ThreadLocal.withInitial(Lease::new);
+  private final AtomicReference<TokenBucket> state;
+
+  /**
+   * Create a new rate limiter instance with specified burst window.
+   *
+   * @param permitsPerSecond the rate of the returned rate limiter, in permits per second.
+   * @param maxBurstSeconds  time window (in seconds) to accumulate unused permits for.
+   * @return rate limiter
+   */
+  public static LockFreeRecyclableRateLimiter create(double permitsPerSecond,
+                                                     double maxBurstSeconds) {
+    return create(permitsPerSecond, maxBurstSeconds, 1);
+  }
+
+  /**
+   * Create a new rate limiter instance with specified burst window and per-thread leases.
+   *
+   * @param permitsPerSecond the rate of the returned rate limiter, in permits per second.
+   * @param maxBurstSeconds  time window (in seconds) to accumulate unused permits for.
+   * @param leaseSize        number of permits a thread reserves at once (1 disables leasing).
+   * @return rate limiter
+   */
+  public static LockFreeRecyclableRateLimiter create(double permitsPerSecond,
+                                                     double maxBurstSeconds,
+                                                     int leaseSize) {
+    return new LockFreeRecyclableRateLimiter(SleepingStopwatch.createFromSystemTimer(),
+        permitsPerSecond, maxBurstSeconds, leaseSize);
+  }
+
+  @VisibleForTesting
+  LockFreeRecyclableRateLimiter(SleepingStopwatch stopwatch, double permitsPerSecond,
+                                double maxBurstSeconds, int leaseSize) {
+    checkArgument(leaseSize > 0, "leaseSize must be positive");
+    this.stopwatch = stopwatch;
+    this.maxBurstSeconds = maxBurstSeconds;
+    this.leaseSize = leaseSize;
+    this.state = new AtomicReference<>(TokenBucket.INITIAL);
+    setRate(permitsPerSecond);
+  }
+
+  @Override
+  public double getRate() {
+    return state.get().getRate();
+  }
+
+  @Override
+  public void setRate(double permitsPerSecond) {
+    checkArgument(permitsPerSecond > 0.0 && !Double.isNaN(permitsPerSecond),
+        "rate must be positive");
+    long nowMicros = stopwatch.readMicros();
+    while (true) {
+      TokenBucket current = state.get();
+      if (state.compareAndSet(current,
+          current.withRate(permitsPerSecond, maxBurstSeconds, nowMicros))) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public double acquire(int permits) {
+    checkPermits(permits);
+    if (leaseSize > 1) {
+      long nowMicros = stopwatch.readMicros();
+      Lease lease = currentLease(nowMicros);
+      if (lease.permits >= permits) {
+        lease.permits -= permits;
+        return 0.0;
+      }
+      int block = max(permits, leaseSize);
+      double result = acquireShared(block);
+      lease.renew(block - permits, nowMicros);
+      return result;
+    }
+    return acquireShared(permits);
+  }
+
+  private double acquireShared(int permits) {
+    long nowMicros = stopwatch.readMicros();
+    long momentAvailable = reserveEarliestAvailable(permits, nowMicros, false);
+    long microsToWait = max(momentAvailable - nowMicros, 0);
+    stopwatch.sleepMicrosUninterruptibly(microsToWait);
+    return 1.0 * microsToWait / SECONDS.toMicros(1L);
+  }
+
+  @Override
+  public boolean tryAcquire(int permits) {
+    checkPermits(permits);
+    if (leaseSize > 1) {
+      long nowMicros = stopwatch.readMicros();
+      Lease lease = currentLease(nowMicros);
+      if (lease.permits >= permits) {
+        lease.permits -= permits;
+        return true;
+      }
+      int block = max(permits, leaseSize);
+      if (reserveEarliestAvailable(block, nowMicros, true) == Long.MIN_VALUE) {
+        return false;
+      }
+      lease.renew(block - permits, nowMicros);
+      return true;
+    }
+    return reserveEarliestAvailable(permits, stopwatch.readMicros(), true) != Long.MIN_VALUE;
+  }
+
+  /**
+   * Reserve permits. If {@code onlyIfAvailable} is true, permits are only reserved if they
+   * can be granted without waiting (same as {@link RateLimiter#tryAcquire(int)}).
+   *
+   * @return the moment when permits become available, or {@code Long.MIN_VALUE} if
+   *         {@code onlyIfAvailable} is true and permits can't be reserved without waiting.
+   */
+  private long reserveEarliestAvailable(int requiredPermits, long nowMicros,
+                                        boolean onlyIfAvailable) {
+    while (true) {
+      TokenBucket current = state.get();
+      if (onlyIfAvailable && !current.canAcquire(nowMicros)) {
+        return Long.MIN_VALUE;
+      }
+      if (state.compareAndSet(current, current.reserve(requiredPermits, nowMicros))) {
+        return current.earliestAvailable(nowMicros);
+      }
+    }
+  }
+
+  @Override
+  public void recyclePermits(int permits) {
+    long nowMicros = stopwatch.readMicros();
+    while (true) {
+      TokenBucket current = state.get();
+      if (state.compareAndSet(current, current.recycle(permits, nowMicros))) return;
+    }
+  }
+
+  /**
+   * Return permits leased by the current thread and not used yet back to the pool
+   * (see {@link #recyclePermits}).
+   */
+  public void returnLeasedPermits() {
+    returnLeasedPermits(leases.get());
+  }
+
+  /**
+   * @return number of permits leased by the current thread and not used yet.
+   */
+  public int getLeasedPermits() {
+    return currentLease(stopwatch.readMicros()).permits;
+  }
+
+  @Override
+  public boolean immediatelyAvailable(int permits) {
+    if (leaseSize > 1 && currentLease(stopwatch.readMicros()).permits >= permits) {
+      return true;
+    }
+    return getAvailablePermits() >= permits;
+  }
+
+  double getAvailablePermits() {
+    long nowMicros = stopwatch.readMicros();
+    while (true) {
+      TokenBucket current = state.get();
+      TokenBucket synced = current.resync(nowMicros);
+      // resync is persisted, so that rounding is exactly the same as in RecyclableRateLimiterImpl
+      if (synced == current || state.compareAndSet(current, synced)) {
+        return synced.storedPermits;
+      }
+    }
+  }
+
+  /**
+   * Returns the current thread's lease, returning its permits to the bucket first if it has
+   * expired.
+   */
+  private Lease currentLease(long nowMicros) {
+    Lease lease = leases.get();
+    if (lease.permits > 0 && nowMicros - lease.takenAtMicros >= LEASE_TTL_MICROS) {
+      returnLeasedPermits(lease);
+    }
+    return lease;
+  }
+
+  private void returnLeasedPermits(Lease lease) {
+    if (lease.permits > 0) {
+      int permits = lease.permits;
+      lease.permits = 0;
+      recyclePermits(permits);
+    }
+  }
+
+  private static void checkPermits(int permits) {
+    checkArgument(permits > 0, "Requested permits (%s) must be positive", permits);
+  }
+
+  private static final class Lease {
+    int permits = 0;
+    long takenAtMicros;
+
+    void renew(int permits, long nowMicros) {
+      // permits left from an earlier block keep its (earlier) expiry
+      if (this.permits == 0) {
+        this.takenAtMicros = nowMicros;
+      }
+      this.permits += permits;
+    }
+  }
+}
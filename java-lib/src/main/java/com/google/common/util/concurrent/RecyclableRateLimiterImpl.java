@@ -1,5 +1,6 @@
 package com.google.common.util.concurrent;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.math.LongMath;
 
 import static java.lang.Math.max;
@@ -58,8 +59,9 @@ public class RecyclableRateLimiterImpl extends RateLimiter implements Recyclable
         maxBurstSeconds);
   }
 
-  private RecyclableRateLimiterImpl(SleepingStopwatch stopwatch, double permitsPerSecond,
-                                    double maxBurstSeconds) {
+  @VisibleForTesting
+  RecyclableRateLimiterImpl(SleepingStopwatch stopwatch, double permitsPerSecond,
+                            double maxBurstSeconds) {
     super(stopwatch);
     this.mutex = new Object();
     this.stopwatch = stopwatch;
@@ -4,6 +4,7 @@ import com.wavefront.common.LazySupplier;
 import com.wavefront.common.TaggedMetricName;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 
 import javax.annotation.Nullable;
 import java.util.function.Supplier;
@@ -27,7 +28,15 @@ public class RecyclableRateLimiterWithMetrics implements RecyclableRateLimiter {
     this(delegate, LazySupplier.of(() -> new RateLimiterMetricsContainer(
         Metrics.newCounter(new TaggedMetricName(prefix, "permits-granted")),
         Metrics.newCounter(new TaggedMetricName(prefix, "permits-denied")),
-        Metrics.newCounter(new TaggedMetricName(prefix, "permits-retried"))
+        Metrics.newCounter(new TaggedMetricName(prefix, "permits-retried")),
+        Metrics.newCounter(new TaggedMetricName(prefix, "rate-increased")),
+        Metrics.newCounter(new TaggedMetricName(prefix, "rate-decreased")),
+        Metrics.newGauge(new TaggedMetricName(prefix, "rate"), new Gauge<Double>() {
+          @Override
+          public Double value() {
+            return delegate.getRate();
+          }
+        })
     )));
   }
 
@@ -48,7 +57,11 @@ public class RecyclableRateLimiterWithMetrics implements RecyclableRateLimiter {
 
   @Override
   public void setRate(double rate) {
+    double previousRate = delegate.getRate();
     delegate.setRate(rate);
+    Counter adjusted = rate > previousRate ? metrics.get().rateIncreasedCounter :
+        rate < previousRate ? metrics.get().rateDecreasedCounter : null;
+    if (adjusted != null) adjusted.inc();
   }
 
   @Override
@@ -88,12 +101,21 @@ public class RecyclableRateLimiterWithMetrics implements RecyclableRateLimiter {
     private Counter permitsGrantedCounter;
     private Counter permitsDeniedCounter;
     private Counter permitsRecycledCounter;
+    private Counter rateIncreasedCounter;
+    private Counter rateDecreasedCounter;
+    private Gauge<Double> rateGauge;
     private RateLimiterMetricsContainer(@Nullable Counter permitsGrantedCounter,
                                         @Nullable Counter permitsDeniedCounter,
-                                        @Nullable Counter permitsRecycledCounter) {
+                                        @Nullable Counter permitsRecycledCounter,
+                                        @Nullable Counter rateIncreasedCounter,
+                                        @Nullable Counter rateDecreasedCounter,
+                                        @Nullable Gauge<Double> rateGauge) {
       this.permitsGrantedCounter = permitsGrantedCounter;
       this.permitsDeniedCounter = permitsDeniedCounter;
       this.permitsRecycledCounter = permitsRecycledCounter;
+      this.rateIncreasedCounter = rateIncreasedCounter;
+      this.rateDecreasedCounter = rateDecreasedCounter;
+      this.rateGauge = rateGauge;
     }
   }
 }
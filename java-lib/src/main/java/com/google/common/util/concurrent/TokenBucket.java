@@ -0,0 +1,109 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.math.LongMath;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Immutable snapshot of a token bucket, with the same math as {@link RecyclableRateLimiterImpl}.
+ * Every operation returns a new snapshot, so lock-free rate limiters can swap it with a CAS.
+ *
+ * Contains portions of Guava library source code.
+ */
+final class TokenBucket {
+  static final TokenBucket INITIAL = new TokenBucket(0L, 0.0, 0.0, 0.0);
+
+  /**
+   * The time when the next request (no matter its size) will be granted.
+   */
+  final long nextFreeTicketMicros;
+  /**
+   * The currently stored permits.
+   */
+  final double storedPermits;
+  /**
+   * The interval between two unit requests, at our stable rate.
+   */
+  final double stableIntervalMicros;
+  /**
+   * The maximum number of stored permits.
+   */
+  final double maxPermits;
+
+  private TokenBucket(long nextFreeTicketMicros, double storedPermits,
+                      double stableIntervalMicros, double maxPermits) {
+    this.nextFreeTicketMicros = nextFreeTicketMicros;
+    this.storedPermits = storedPermits;
+    this.stableIntervalMicros = stableIntervalMicros;
+    this.maxPermits = maxPermits;
+  }
+
+  double getRate() {
+    return SECONDS.toMicros(1L) / stableIntervalMicros;
+  }
+
+  /**
+   * @return true if a request (no matter its size) would be granted without waiting.
+   */
+  boolean canAcquire(long nowMicros) {
+    return nextFreeTicketMicros <= nowMicros;
+  }
+
+  /**
+   * @return the moment when the next request would be granted.
+   */
+  long earliestAvailable(long nowMicros) {
+    return max(nextFreeTicketMicros, nowMicros);
+  }
+
+  TokenBucket resync(long nowMicros) {
+    // if nextFreeTicket is in the past, resync to now
+    if (nowMicros > nextFreeTicketMicros) {
+      return new TokenBucket(nowMicros, min(maxPermits,
+          storedPermits + (nowMicros - nextFreeTicketMicros) / stableIntervalMicros),
+          stableIntervalMicros, maxPermits);
+    }
+    return this;
+  }
+
+  TokenBucket withRate(double permitsPerSecond, double maxBurstSeconds, long nowMicros) {
+    TokenBucket synced = resync(nowMicros);
+    double newMaxPermits = maxBurstSeconds * permitsPerSecond;
+    double newStoredPermits = (maxPermits == Double.POSITIVE_INFINITY)
+        ? newMaxPermits
+        : (maxPermits == 0.0)
+        ? 0.0 // initial state
+        : synced.storedPermits * newMaxPermits / maxPermits;
+    return new TokenBucket(synced.nextFreeTicketMicros, newStoredPermits,
+        SECONDS.toMicros(1L) / permitsPerSecond, newMaxPermits);
+  }
+
+  TokenBucket reserve(int requiredPermits, long nowMicros) {
+    TokenBucket synced = resync(nowMicros);
+    double storedPermitsToSpend = min(requiredPermits, synced.storedPermits);
+    double freshPermits = requiredPermits - storedPermitsToSpend;
+    long waitMicros = (long) (freshPermits * stableIntervalMicros);
+    return new TokenBucket(saturatedAdd(synced.nextFreeTicketMicros, waitMicros),
+        synced.storedPermits - storedPermitsToSpend, stableIntervalMicros, maxPermits);
+  }
+
+  TokenBucket recycle(int permits, long nowMicros) {
+    TokenBucket synced = resync(nowMicros);
+    long surplusPermits = permits - (long) ((synced.nextFreeTicketMicros - nowMicros) /
+        stableIntervalMicros);
+    long waitMicros = -min((long) (surplusPermits * stableIntervalMicros), 0L);
+    return new TokenBucket(saturatedAdd(nowMicros, waitMicros),
+        min(maxPermits, synced.storedPermits + max(surplusPermits, 0L)),
+        stableIntervalMicros, maxPermits);
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    try {
+      return LongMath.checkedAdd(a, b);
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+}
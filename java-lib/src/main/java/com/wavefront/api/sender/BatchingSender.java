@@ -0,0 +1,408 @@
+package com.wavefront.api.sender;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AdaptiveRateLimiter;
+import com.google.common.util.concurrent.RecyclableRateLimiter;
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.common.NamedThreadFactory;
+import com.wavefront.common.TaggedMetricName;
+import com.wavefront.data.ReportableEntityType;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Queues items (points, spans, logs, etc) by entity type and sends them to the backend in
+ * batches, limited both by the number of items and by size in bytes.
+ *
+ * Each entity type has its own bounded queue ({@link #offer} returns false when it's full) and
+ * its own flush task, which sends batches until the queue is drained or the rate limit is hit.
+ * By default, each flush task gets its own thread, so a backlog or a slow endpoint for one type
+ * doesn't delay others; with fewer threads (see {@link Builder#flushThreads}), flush tasks that
+ * share a thread wait for each other. Batches are only sent when
+ * the entity type's {@link RecyclableRateLimiter} (if any) grants permits for the whole batch.
+ * Batches rejected with pushback (406, 429), server errors (5xx) or failed with an exception are
+ * retried with jittered exponential backoff, other failures are dropped right away, and permits
+ * are recycled for batches that are dropped. If the rate limiter is an
+ * {@link AdaptiveRateLimiter}, it also receives feedback about every attempt.
+ *
+ * Batch size and retry backoff can be reconfigured from {@link AgentConfiguration}
+ * (see {@link #updateConfiguration}).
+ *
+ * @param <T> type of items
+ */
+public class BatchingSender<T> implements Closeable {
+  private static final Logger logger = Logger.getLogger(BatchingSender.class.getCanonicalName());
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+  private final SenderTransport<T> transport;
+  private final ToIntFunction<T> sizeOf;
+  private final int maxBatchBytes;
+  private final int maxRetries;
+  private final Supplier<Long> clock;
+  private final Map<ReportableEntityType, EntityQueue> queues;
+  private final ScheduledExecutorService scheduler;
+  private volatile int itemsPerBatch;
+  private volatile double retryBackoffBaseSeconds;
+
+  private BatchingSender(Builder<T> builder) {
+    this.transport = builder.transport;
+    this.sizeOf = builder.sizeOf;
+    this.maxBatchBytes = builder.maxBatchBytes;
+    this.maxRetries = builder.maxRetries;
+    this.clock = builder.clock;
+    this.itemsPerBatch = builder.itemsPerBatch;
+    this.retryBackoffBaseSeconds = builder.retryBackoffBaseSeconds;
+    this.queues = new EnumMap<>(ReportableEntityType.class);
+    for (ReportableEntityType entityType : ReportableEntityType.values()) {
+      queues.put(entityType, new EntityQueue(entityType, builder.queueCapacity,
+          builder.rateLimiters.get(entityType)));
+    }
+    this.scheduler = Executors.newScheduledThreadPool(builder.flushThreads,
+        new NamedThreadFactory("batching-sender"));
+    for (EntityQueue queue : queues.values()) {
+      scheduler.scheduleWithFixedDelay(() -> {
+        try {
+          queue.flush();
+        } catch (Throwable t) {
+          logger.log(Level.SEVERE, "Unexpected error while flushing " + queue.entityType, t);
+        }
+      }, builder.flushIntervalMillis, builder.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Create a builder for a new sender.
+   *
+   * @param transport transport to send batches with.
+   * @param sizeOf    function to estimate the size of an item in bytes.
+   * @param <T>       type of items.
+   * @return builder
+   */
+  public static <T> Builder<T> newBuilder(SenderTransport<T> transport, ToIntFunction<T> sizeOf) {
+    return new Builder<>(transport, sizeOf);
+  }
+
+  /**
+   * Queue an item to be sent.
+   *
+   * @param entityType entity type of the item.
+   * @param item       item to send.
+   * @return true if the item was queued, false if the queue for this entity type is full.
+   */
+  public boolean offer(ReportableEntityType entityType, T item) {
+    EntityQueue queue = queues.get(entityType);
+    if (queue.queue.offer(item)) return true;
+    queue.itemsDropped.inc();
+    return false;
+  }
+
+  /**
+   * Returns the number of items queued for the entity type, including the batch being sent.
+   *
+   * @param entityType entity type.
+   * @return number of items
+   */
+  public int getQueuedCount(ReportableEntityType entityType) {
+    EntityQueue queue = queues.get(entityType);
+    return queue.queue.size() + queue.pendingCount;
+  }
+
+  /**
+   * Apply batch size and retry backoff settings from the server-side configuration.
+   *
+   * @param config agent configuration.
+   */
+  public void updateConfiguration(AgentConfiguration config) {
+    if (config.getCollectorSetsPointsPerBatch() && config.getPointsPerBatch() != null &&
+        config.getPointsPerBatch() > 0) {
+      itemsPerBatch = (int) Math.min(Integer.MAX_VALUE, config.getPointsPerBatch());
+    }
+    if (config.getCollectorSetsRetryBackoff() && config.getRetryBackoffBaseSeconds() != null &&
+        config.getRetryBackoffBaseSeconds() > 0) {
+      retryBackoffBaseSeconds = config.getRetryBackoffBaseSeconds();
+    }
+  }
+
+  public int getItemsPerBatch() {
+    return itemsPerBatch;
+  }
+
+  public double getRetryBackoffBaseSeconds() {
+    return retryBackoffBaseSeconds;
+  }
+
+  /**
+   * Send everything that can be sent right now (subject to rate limits and retry backoff).
+   */
+  @VisibleForTesting
+  void flush() {
+    for (EntityQueue queue : queues.values()) {
+      queue.flush();
+    }
+  }
+
+  /**
+   * Stop flush tasks and make a final attempt to send what's queued.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  private long backoffMillis(int attempt) {
+    double backoff = Math.min(MAX_BACKOFF_MILLIS,
+        Math.pow(retryBackoffBaseSeconds, attempt) * 1000);
+    // "equal jitter": at least half of the backoff, to avoid synchronized retries
+    return (long) (backoff / 2 + ThreadLocalRandom.current().nextDouble() * backoff / 2);
+  }
+
+  private static boolean isRetryable(int status) {
+    return status == 406 || status == 429 || status >= 500;
+  }
+
+  private class EntityQueue {
+    private final ReportableEntityType entityType;
+    private final BlockingQueue<T> queue;
+    @Nullable
+    private final RecyclableRateLimiter rateLimiter;
+    private final Counter batchesSent;
+    private final Counter itemsSent;
+    private final Counter itemsDropped;
+    private final Counter itemsFailed;
+    private final Counter retries;
+    private final List<T> pending = new ArrayList<>();
+    private volatile int pendingCount = 0;
+    private int pendingBytes = 0;
+    private int attempts = 0;
+    private long retryAtMillis = 0;
+
+    EntityQueue(ReportableEntityType entityType, int capacity,
+                @Nullable RecyclableRateLimiter rateLimiter) {
+      this.entityType = entityType;
+      this.queue = new LinkedBlockingQueue<>(capacity);
+      this.rateLimiter = rateLimiter;
+      String type = entityType.toString();
+      this.batchesSent = Metrics.newCounter(new TaggedMetricName("sender", "batches-sent",
+          "type", type));
+      this.itemsSent = Metrics.newCounter(new TaggedMetricName("sender", "items-sent",
+          "type", type));
+      this.itemsDropped = Metrics.newCounter(new TaggedMetricName("sender", "items-dropped",
+          "type", type));
+      this.itemsFailed = Metrics.newCounter(new TaggedMetricName("sender", "items-failed",
+          "type", type));
+      this.retries = Metrics.newCounter(new TaggedMetricName("sender", "retries",
+          "type", type));
+    }
+
+    synchronized void flush() {
+      while (true) {
+        if (clock.get() < retryAtMillis) return;
+        fillBatch();
+        if (pending.isEmpty()) return;
+        // permits are acquired once per batch and retained across retries
+        if (attempts == 0 && rateLimiter != null && !rateLimiter.tryAcquire(pending.size())) {
+          return;
+        }
+        long start = clock.get();
+        int status;
+        try {
+          status = transport.send(entityType, pending);
+        } catch (Exception e) {
+          logger.log(Level.FINE, "Failed to send " + entityType, e);
+          status = -1;
+        }
+        long latency = clock.get() - start;
+        if (rateLimiter instanceof AdaptiveRateLimiter) {
+          if (status < 0) {
+            ((AdaptiveRateLimiter) rateLimiter).onFailure();
+          } else {
+            ((AdaptiveRateLimiter) rateLimiter).onResponse(status, latency);
+          }
+        }
+        if (status >= 200 && status < 300) {
+          batchesSent.inc();
+          itemsSent.inc(pending.size());
+          clearBatch();
+        } else if ((status < 0 || isRetryable(status)) && attempts < maxRetries) {
+          attempts++;
+          retries.inc();
+          retryAtMillis = clock.get() + backoffMillis(attempts);
+          return;
+        } else {
+          logger.warning("Dropping batch of " + pending.size() + " " + entityType + " after " +
+              (attempts + 1) + " attempt(s), last status: " + status);
+          itemsFailed.inc(pending.size());
+          if (rateLimiter != null) rateLimiter.recyclePermits(pending.size());
+          clearBatch();
+        }
+      }
+    }
+
+    private void fillBatch() {
+      int maxItems = itemsPerBatch;
+      while (pending.size() < maxItems) {
+        T item = queue.peek();
+        if (item == null) break;
+        int size = sizeOf.applyAsInt(item);
+        // always send at least one item, even if it exceeds the limit
+        if (!pending.isEmpty() && pendingBytes + size > maxBatchBytes) break;
+        pending.add(queue.poll());
+        pendingBytes += size;
+      }
+      pendingCount = pending.size();
+    }
+
+    private void clearBatch() {
+      pending.clear();
+      pendingCount = 0;
+      pendingBytes = 0;
+      attempts = 0;
+    }
+  }
+
+  /**
+   * Builder for {@link BatchingSender}.
+   *
+   * @param <T> type of items
+   */
+  public static class Builder<T> {
+    private final SenderTransport<T> transport;
+    private final ToIntFunction<T> sizeOf;
+    private final Map<ReportableEntityType, RecyclableRateLimiter> rateLimiters =
+        new EnumMap<>(ReportableEntityType.class);
+    private int queueCapacity = 100_000;
+    private int itemsPerBatch = 40_000;
+    private int maxBatchBytes = 4 * 1024 * 1024;
+    private double retryBackoffBaseSeconds = 2.0;
+    private int maxRetries = 5;
+    private long flushIntervalMillis = 1000;
+    private int flushThreads = ReportableEntityType.values().length;
+    private Supplier<Long> clock = System::currentTimeMillis;
+
+    private Builder(SenderTransport<T> transport, ToIntFunction<T> sizeOf) {
+      this.transport = transport;
+      this.sizeOf = sizeOf;
+    }
+
+    /**
+     * @param queueCapacity max number of queued items per entity type. Default: 100000.
+     * @return this builder
+     */
+    public Builder<T> queueCapacity(int queueCapacity) {
+      checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * @param itemsPerBatch max number of items per batch, can be overridden by
+     *                      {@link AgentConfiguration#getPointsPerBatch()}. Default: 40000.
+     * @return this builder
+     */
+    public Builder<T> itemsPerBatch(int itemsPerBatch) {
+      checkArgument(itemsPerBatch > 0, "itemsPerBatch must be positive");
+      this.itemsPerBatch = itemsPerBatch;
+      return this;
+    }
+
+    /**
+     * @param maxBatchBytes max estimated size of a batch in bytes (uncompressed).
+     *                      Default: 4MB.
+     * @return this builder
+     */
+    public Builder<T> maxBatchBytes(int maxBatchBytes) {
+      checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /**
+     * @param retryBackoffBaseSeconds base for exponential backoff, can be overridden by
+     *                                {@link AgentConfiguration#getRetryBackoffBaseSeconds()}.
+     *                                Default: 2.0.
+     * @return this builder
+     */
+    public Builder<T> retryBackoffBaseSeconds(double retryBackoffBaseSeconds) {
+      checkArgument(retryBackoffBaseSeconds > 0, "retryBackoffBaseSeconds must be positive");
+      this.retryBackoffBaseSeconds = retryBackoffBaseSeconds;
+      return this;
+    }
+
+    /**
+     * @param maxRetries max number of retries before a batch is dropped. Default: 5.
+     * @return this builder
+     */
+    public Builder<T> maxRetries(int maxRetries) {
+      checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * @param flushIntervalMillis delay between flush attempts. Default: 1000.
+     * @return this builder
+     */
+    public Builder<T> flushIntervalMillis(long flushIntervalMillis) {
+      checkArgument(flushIntervalMillis > 0, "flushIntervalMillis must be positive");
+      this.flushIntervalMillis = flushIntervalMillis;
+      return this;
+    }
+
+    /**
+     * @param flushThreads number of threads to send batches. Default: one per entity type.
+     * @return this builder
+     */
+    public Builder<T> flushThreads(int flushThreads) {
+      checkArgument(flushThreads > 0, "flushThreads must be positive");
+      this.flushThreads = flushThreads;
+      return this;
+    }
+
+    /**
+     * @param entityType  entity type.
+     * @param rateLimiter rate limiter for the entity type.
+     * @return this builder
+     */
+    public Builder<T> rateLimiter(ReportableEntityType entityType,
+                                  RecyclableRateLimiter rateLimiter) {
+      this.rateLimiters.put(entityType, rateLimiter);
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder<T> clock(Supplier<Long> clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public BatchingSender<T> build() {
+      return new BatchingSender<>(this);
+    }
+  }
+}
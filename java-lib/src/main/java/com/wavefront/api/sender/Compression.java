@@ -0,0 +1,49 @@
+package com.wavefront.api.sender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Request body compression supported by {@link SenderTransports#http}.
+ */
+public enum Compression {
+  NONE(null),
+  GZIP("gzip"),
+  DEFLATE("deflate");
+
+  private final String contentEncoding;
+
+  Compression(@Nullable String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * @return value for the Content-Encoding header, or null if not compressed.
+   */
+  @Nullable
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * Wrap a stream to compress everything written to it. Closing the returned stream
+   * closes the underlying one.
+   *
+   * @param output stream to write compressed data to.
+   * @return compressing stream
+   */
+  public OutputStream wrap(OutputStream output) throws IOException {
+    switch (this) {
+      case GZIP:
+        return new GZIPOutputStream(output, 8192);
+      case DEFLATE:
+        return new DeflaterOutputStream(output);
+      default:
+        return output;
+    }
+  }
+}
@@ -0,0 +1,459 @@
+package com.wavefront.api.sender;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.wavefront.metrics.ExpectedAgentMetric;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A persistent FIFO queue of byte array records (i.e. serialized batches that couldn't be sent
+ * yet), stored off-heap in memory-mapped segment files, so buffering doesn't grow the heap.
+ *
+ * Records are appended to the last segment; each record has a length and a CRC32 checksum, and
+ * is always followed by an end marker that is written before the record itself, so a record
+ * becomes visible only once its length is written. Lengths are stored off by one, so that an
+ * empty record can't be mistaken for the end marker. The position of the oldest record is stored
+ * in a separate memory-mapped checkpoint file. On startup, segments are scanned and records are
+ * validated with their checksum, the first corrupted record (i.e. a torn write after a crash)
+ * and everything after it in the same segment are discarded. Delivery is at-least-once: records
+ * consumed after the last checkpoint was persisted can be returned again after a crash.
+ *
+ * Total size is bounded by {@code maxSegments * segmentSize}: {@link #add} returns false when
+ * the queue is full. Fully consumed segments are kept mapped and recycled (renamed) for new
+ * segments rather than deleted: Java has no supported way to unmap a file, and a file that is
+ * still mapped can't be deleted on some platforms and doesn't free up disk space on others until
+ * the mapping is garbage collected. As a result, segment files are never deleted while the queue
+ * is open, so the disk footprint doesn't shrink after a backlog is drained (it is still bounded
+ * by {@code maxSegments * segmentSize}); files of consumed segments are deleted the next time
+ * the queue is opened, before they are mapped. Likewise, {@link #close} doesn't unmap files.
+ */
+@ThreadSafe
+public class MappedSpillQueue implements Closeable {
+  private static final Logger logger = Logger.getLogger(MappedSpillQueue.class.getCanonicalName());
+
+  private static final int MAGIC = 0x57465351; // "WFSQ"
+  private static final int VERSION = 2;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  /**
+   * length + 1 (4 bytes) + CRC32 (4 bytes).
+   */
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int END_MARKER_SIZE = 4;
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d{19})\\.dat");
+
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final Deque<Segment> spares = new ArrayDeque<>();
+  private final MappedByteBuffer checkpoint;
+  private final RandomAccessFile checkpointFile;
+  private long nextSequence = 1;
+  private volatile int size = 0;
+
+  /**
+   * Open a queue, recovering its contents if the directory already has segment files.
+   *
+   * @param directory   directory to store segment files in (created if doesn't exist).
+   * @param segmentSize size of each segment file in bytes (max record size is a bit smaller).
+   * @param maxSegments max number of segment files.
+   * @throws IOException if files can't be created or mapped.
+   */
+  public MappedSpillQueue(File directory, int segmentSize, int maxSegments) throws IOException {
+    if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + END_MARKER_SIZE + 1) {
+      throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+    }
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException("maxSegments must be positive");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    this.checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+    this.checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+    recover();
+  }
+
+  /**
+   * Register {@link ExpectedAgentMetric#BUFFER_BYTES_LEFT} and
+   * {@link ExpectedAgentMetric#CURRENT_QUEUE_SIZE} gauges for this queue (replacing existing
+   * ones, if any).
+   */
+  public void registerMetrics() {
+    Metrics.defaultRegistry().removeMetric(ExpectedAgentMetric.BUFFER_BYTES_LEFT.metricName);
+    Metrics.newGauge(ExpectedAgentMetric.BUFFER_BYTES_LEFT.metricName, new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return getBytesLeft();
+      }
+    });
+    Metrics.defaultRegistry().removeMetric(ExpectedAgentMetric.CURRENT_QUEUE_SIZE.metricName);
+    Metrics.newGauge(ExpectedAgentMetric.CURRENT_QUEUE_SIZE.metricName, new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return size();
+      }
+    });
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param record record to append.
+   * @return true if the record was added, false if the queue is full.
+   * @throws IOException if a new segment file can't be created.
+   */
+  public synchronized boolean add(byte[] record) throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + record.length;
+    if (SEGMENT_HEADER_SIZE + recordSize + END_MARKER_SIZE > segmentSize) {
+      throw new IllegalArgumentException("Record too large: " + record.length + " bytes");
+    }
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writePos + recordSize + END_MARKER_SIZE > segmentSize) {
+      if (segments.size() >= maxSegments) return false;
+      tail = newSegment();
+      segments.addLast(tail);
+    }
+    MappedByteBuffer buffer = tail.buffer;
+    int pos = tail.writePos;
+    buffer.putInt(pos + recordSize, 0);
+    buffer.putInt(pos + 4, (int) crc32(record));
+    ByteBuffer payload = buffer.duplicate();
+    payload.position(pos + RECORD_HEADER_SIZE);
+    payload.put(record);
+    // the record becomes visible once its length is written
+    buffer.putInt(pos, record.length + 1);
+    tail.writePos = pos + recordSize;
+    size++;
+    return true;
+  }
+
+  /**
+   * Retrieves, but does not remove, the oldest record.
+   *
+   * @return the oldest record or null if the queue is empty.
+   */
+  @Nullable
+  public synchronized byte[] peek() {
+    Segment head = advanceHead();
+    return head == null ? null : readRecord(head, head.readPos);
+  }
+
+  /**
+   * Retrieves and removes the oldest record.
+   *
+   * @return the oldest record or null if the queue is empty.
+   */
+  @Nullable
+  public synchronized byte[] poll() {
+    Segment head = advanceHead();
+    if (head == null) return null;
+    byte[] record = readRecord(head, head.readPos);
+    head.readPos += RECORD_HEADER_SIZE + record.length;
+    size--;
+    saveCheckpoint(head.sequence, head.readPos);
+    // reclaim the segment as soon as it's fully consumed
+    advanceHead();
+    return record;
+  }
+
+  /**
+   * @return number of records in the queue.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return number of bytes that can still be appended before the queue is full.
+   */
+  public synchronized long getBytesLeft() {
+    Segment tail = segments.peekLast();
+    long tailBytesLeft = tail == null ? 0 : segmentSize - END_MARKER_SIZE - tail.writePos;
+    long freeSegments = maxSegments - segments.size();
+    return tailBytesLeft + freeSegments * (segmentSize - SEGMENT_HEADER_SIZE - END_MARKER_SIZE);
+  }
+
+  @VisibleForTesting
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Force all changes to disk.
+   */
+  public synchronized void flush() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+    checkpoint.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    for (Segment segment : segments) {
+      segment.file.close();
+    }
+    for (Segment segment : spares) {
+      segment.file.close();
+    }
+    segments.clear();
+    spares.clear();
+    checkpointFile.close();
+  }
+
+  /**
+   * Returns the segment with the oldest record, retiring fully consumed segments.
+   */
+  @Nullable
+  private Segment advanceHead() {
+    while (true) {
+      Segment head = segments.peekFirst();
+      if (head == null) return null;
+      if (head.readPos < head.writePos) return head;
+      if (segments.size() == 1) {
+        // keep the tail segment, but start over if it's fully consumed
+        if (head.writePos > SEGMENT_HEADER_SIZE) {
+          head.reset();
+          saveCheckpoint(head.sequence, head.readPos);
+        }
+        return null;
+      }
+      segments.pollFirst();
+      Segment next = segments.peekFirst();
+      saveCheckpoint(next.sequence, next.readPos);
+      retire(head);
+    }
+  }
+
+  private byte[] readRecord(Segment segment, int pos) {
+    int length = recordLength(segment.buffer, pos);
+    byte[] record = new byte[length];
+    ByteBuffer payload = segment.buffer.duplicate();
+    payload.position(pos + RECORD_HEADER_SIZE);
+    payload.get(record);
+    return record;
+  }
+
+  private Segment newSegment() throws IOException {
+    long sequence = nextSequence++;
+    File file = segmentFile(sequence);
+    Segment segment = spares.pollFirst();
+    if (segment != null) {
+      // reuse the existing mapping, the file stays mapped as long as the queue is open
+      if (!segment.path.renameTo(file)) {
+        spares.addFirst(segment);
+        throw new IOException("Unable to rename " + segment.path + " to " + file);
+      }
+      segment.sequence = sequence;
+      segment.path = file;
+    } else {
+      segment = openSegment(file, sequence);
+    }
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putInt(4, VERSION);
+    segment.reset();
+    return segment;
+  }
+
+  /**
+   * Keep a fully consumed segment for reuse. Since new segments are only created when there
+   * are no spares, segments and spares together never exceed {@code maxSegments}.
+   */
+  private void retire(Segment segment) {
+    spares.addLast(segment);
+  }
+
+  private Segment openSegment(File file, long sequence) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(segmentSize);
+    MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+        segmentSize);
+    return new Segment(sequence, file, raf, buffer);
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory, String.format("segment-%019d.dat", sequence));
+  }
+
+  private void saveCheckpoint(long sequence, int pos) {
+    checkpoint.putLong(0, sequence);
+    checkpoint.putInt(8, pos);
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < 12; i++) {
+      crc.update(checkpoint.get(i));
+    }
+    checkpoint.putInt(12, (int) crc.getValue());
+  }
+
+  private void recover() throws IOException {
+    long headSequence = -1;
+    int headPos = SEGMENT_HEADER_SIZE;
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < 12; i++) {
+      crc.update(checkpoint.get(i));
+    }
+    if (checkpoint.getInt(12) == (int) crc.getValue() && checkpoint.getLong(0) != 0) {
+      headSequence = checkpoint.getLong(0);
+      headPos = checkpoint.getInt(8);
+    }
+    List<Long> sequences = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = SEGMENT_FILE.matcher(file.getName());
+        if (matcher.matches()) sequences.add(Long.parseLong(matcher.group(1)));
+      }
+    }
+    sequences.sort(Long::compare);
+    for (long sequence : sequences) {
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      File file = segmentFile(sequence);
+      if (sequence < headSequence) {
+        // fully consumed before shutdown
+        if (!file.delete()) logger.warning("Unable to delete " + file);
+        continue;
+      }
+      // check everything that can get the file discarded before it's mapped
+      if (!hasValidHeader(file)) {
+        logger.warning("Discarding " + file + ": invalid segment header");
+        if (!file.delete()) logger.warning("Unable to delete " + file);
+        continue;
+      }
+      if (segments.size() >= maxSegments) {
+        logger.warning("Discarding " + file + ": too many segments");
+        if (!file.delete()) logger.warning("Unable to delete " + file);
+        continue;
+      }
+      Segment segment = openSegment(file, sequence);
+      int records = scan(segment);
+      if (sequence == headSequence && headPos >= SEGMENT_HEADER_SIZE &&
+          headPos <= segment.writePos) {
+        records -= countRecords(segment, SEGMENT_HEADER_SIZE, headPos);
+        segment.readPos = headPos;
+      }
+      segments.addLast(segment);
+      size += records;
+    }
+    Segment head = segments.peekFirst();
+    if (head != null) saveCheckpoint(head.sequence, head.readPos);
+    if (size > 0) {
+      logger.info("Recovered " + size + " records from " + directory);
+    }
+  }
+
+  private static boolean hasValidHeader(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return raf.length() >= SEGMENT_HEADER_SIZE && raf.readInt() == MAGIC &&
+          raf.readInt() == VERSION;
+    }
+  }
+
+  /**
+   * Validate records in a segment and set its write position after the last valid one.
+   *
+   * @return number of valid records
+   */
+  private int scan(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    int pos = SEGMENT_HEADER_SIZE;
+    int records = 0;
+    while (pos + RECORD_HEADER_SIZE + END_MARKER_SIZE <= segmentSize) {
+      if (buffer.getInt(pos) == 0) break;
+      int length = recordLength(buffer, pos);
+      if (length < 0 || pos + RECORD_HEADER_SIZE + length + END_MARKER_SIZE > segmentSize) {
+        logger.warning("Discarding the rest of " + segment.path + " at offset " + pos +
+            ": invalid record length");
+        break;
+      }
+      ByteBuffer payload = buffer.duplicate();
+      payload.position(pos + RECORD_HEADER_SIZE);
+      payload.limit(pos + RECORD_HEADER_SIZE + length);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (buffer.getInt(pos + 4) != (int) crc.getValue()) {
+        logger.warning("Discarding the rest of " + segment.path + " at offset " + pos +
+            ": checksum mismatch");
+        break;
+      }
+      pos += RECORD_HEADER_SIZE + length;
+      records++;
+    }
+    buffer.putInt(pos, 0);
+    segment.writePos = pos;
+    return records;
+  }
+
+  private static int countRecords(Segment segment, int from, int to) {
+    int records = 0;
+    int pos = from;
+    while (pos < to) {
+      pos += RECORD_HEADER_SIZE + recordLength(segment.buffer, pos);
+      records++;
+    }
+    return records;
+  }
+
+  /**
+   * Returns the length of the record at the specified position, or -1 for the end marker.
+   */
+  private static int recordLength(ByteBuffer buffer, int pos) {
+    return buffer.getInt(pos) - 1;
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    return crc.getValue();
+  }
+
+  private static class Segment {
+    long sequence;
+    File path;
+    final RandomAccessFile file;
+    final MappedByteBuffer buffer;
+    int readPos = SEGMENT_HEADER_SIZE;
+    int writePos = SEGMENT_HEADER_SIZE;
+
+    Segment(long sequence, File path, RandomAccessFile file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.path = path;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    void reset() {
+      readPos = SEGMENT_HEADER_SIZE;
+      writePos = SEGMENT_HEADER_SIZE;
+      buffer.putInt(SEGMENT_HEADER_SIZE, 0);
+    }
+  }
+}
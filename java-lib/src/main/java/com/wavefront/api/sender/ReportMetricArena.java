@@ -0,0 +1,390 @@
+package com.wavefront.api.sender;
+
+import com.google.common.base.Utf8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportMetric;
+
+/**
+ * An off-heap FIFO buffer for pending {@link ReportMetric} entities: instead of keeping millions
+ * of Avro objects (each with its own strings and {@link Annotation} objects) on the heap,
+ * entities are encoded into a compact binary layout in fixed-size direct {@link ByteBuffer}
+ * slabs, so the heap footprint and GC pauses don't depend on how much data is queued.
+ *
+ * Entities are read back through a flyweight {@link ReportMetricView} that decodes fields on
+ * demand, and can be serialized to the wire format straight from the slab, without
+ * materializing any objects (see {@link ReportMetricView#writeTo}).
+ *
+ * Entity layout (all strings are UTF-8, prefixed with a 2-byte length):
+ * <pre>
+ *   int    total length of the entity in bytes
+ *   long   timestamp
+ *   double value
+ *   string metric
+ *   string host
+ *   string customer
+ *   short  number of annotations, followed by key and value strings for each annotation
+ * </pre>
+ *
+ * Slabs are allocated on demand, up to the configured maximum, and reused once all entities
+ * in them are consumed.
+ */
+@ThreadSafe
+public class ReportMetricArena {
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+  private static final int MAX_ANNOTATIONS = 0xFFFF;
+  private static final int OFFSET_TIMESTAMP = 4;
+  private static final int OFFSET_VALUE = 12;
+  private static final int OFFSET_METRIC = 20;
+
+  private final int slabSize;
+  private final int maxSlabs;
+  private final Deque<Slab> slabs = new ArrayDeque<>();
+  private final Deque<ByteBuffer> freeSlabs = new ArrayDeque<>();
+  private final ReportMetricView view = new ReportMetricView();
+  private int allocatedSlabs = 0;
+  private volatile int size = 0;
+  private volatile long usedBytes = 0;
+
+  /**
+   * @param slabSize size of each slab in bytes (also the max encoded size of an entity).
+   * @param maxSlabs max number of slabs to allocate.
+   */
+  public ReportMetricArena(int slabSize, int maxSlabs) {
+    if (slabSize < OFFSET_METRIC + 8) {
+      throw new IllegalArgumentException("Slab size too small: " + slabSize);
+    }
+    if (maxSlabs < 1) {
+      throw new IllegalArgumentException("maxSlabs must be positive");
+    }
+    this.slabSize = slabSize;
+    this.maxSlabs = maxSlabs;
+  }
+
+  /**
+   * Encode and append an entity.
+   *
+   * @param metric entity to append.
+   * @return true if the entity was added, false if the arena is full.
+   * @throws IllegalArgumentException if the entity is too large.
+   */
+  public synchronized boolean add(ReportMetric metric) {
+    List<Annotation> annotations = metric.getAnnotations();
+    int annotationCount = annotations == null ? 0 : annotations.size();
+    if (annotationCount > MAX_ANNOTATIONS) {
+      throw new IllegalArgumentException("Too many annotations: " + annotationCount);
+    }
+    int length = OFFSET_METRIC + encodedLength(metric.getMetric()) +
+        encodedLength(metric.getHost()) + encodedLength(metric.getCustomer()) + 2;
+    for (int i = 0; i < annotationCount; i++) {
+      Annotation annotation = annotations.get(i);
+      length += encodedLength(annotation.getKey()) + encodedLength(annotation.getValue());
+    }
+    if (length > slabSize) {
+      throw new IllegalArgumentException("Entity too large: " + length + " bytes");
+    }
+    Slab tail = slabs.peekLast();
+    if (tail == null || tail.writePos + length > slabSize) {
+      ByteBuffer buffer = freeSlabs.pollFirst();
+      if (buffer == null) {
+        if (allocatedSlabs >= maxSlabs) return false;
+        buffer = ByteBuffer.allocateDirect(slabSize);
+        allocatedSlabs++;
+      }
+      tail = new Slab(buffer);
+      slabs.addLast(tail);
+    }
+    ByteBuffer buffer = tail.buffer;
+    int start = tail.writePos;
+    buffer.putInt(start, length);
+    buffer.putLong(start + OFFSET_TIMESTAMP, metric.getTimestamp());
+    buffer.putDouble(start + OFFSET_VALUE, metric.getValue());
+    int pos = putString(buffer, start + OFFSET_METRIC, metric.getMetric());
+    pos = putString(buffer, pos, metric.getHost());
+    pos = putString(buffer, pos, metric.getCustomer());
+    buffer.putChar(pos, (char) annotationCount);
+    pos += 2;
+    for (int i = 0; i < annotationCount; i++) {
+      Annotation annotation = annotations.get(i);
+      pos = putString(buffer, pos, annotation.getKey());
+      pos = putString(buffer, pos, annotation.getValue());
+    }
+    tail.writePos = pos;
+    size++;
+    usedBytes += length;
+    return true;
+  }
+
+  /**
+   * Consume up to {@code maxCount} oldest entities. The view passed to the consumer is only
+   * valid until the consumer returns, and the arena is locked while the consumer runs,
+   * so it should not block.
+   *
+   * @param maxCount max number of entities to consume.
+   * @param consumer consumer for entities.
+   * @return number of entities consumed
+   */
+  public synchronized int drain(int maxCount, Consumer<ReportMetricView> consumer) {
+    int count = 0;
+    while (count < maxCount && size > 0) {
+      Slab head = slabs.peekFirst();
+      if (head.readPos == head.writePos) {
+        recycleHead();
+        continue;
+      }
+      int length = head.buffer.getInt(head.readPos);
+      view.wrap(head.buffer, head.readPos);
+      try {
+        consumer.accept(view);
+      } finally {
+        view.wrap(null, 0);
+      }
+      head.readPos += length;
+      size--;
+      usedBytes -= length;
+      count++;
+    }
+    Slab head = slabs.peekFirst();
+    if (head != null && head.readPos == head.writePos) {
+      recycleHead();
+    }
+    return count;
+  }
+
+  /**
+   * @return number of entities in the arena.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return total encoded size of entities in the arena, in bytes.
+   */
+  public long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return off-heap memory currently allocated for slabs, in bytes.
+   */
+  public synchronized long getAllocatedBytes() {
+    return (long) allocatedSlabs * slabSize;
+  }
+
+  private void recycleHead() {
+    Slab slab = slabs.pollFirst();
+    freeSlabs.addLast(slab.buffer);
+  }
+
+  private static int encodedLength(String s) {
+    int length = Utf8.encodedLength(s);
+    if (length > MAX_STRING_LENGTH) {
+      throw new IllegalArgumentException("String too long: " + length + " bytes");
+    }
+    return 2 + length;
+  }
+
+  private static int putString(ByteBuffer buffer, int pos, String s) {
+    int start = pos;
+    pos += 2;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buffer.put(pos++, (byte) c);
+      } else if (c < 0x800) {
+        buffer.put(pos++, (byte) (0xC0 | (c >>> 6)));
+        buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length() &&
+          Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        buffer.put(pos++, (byte) (0xF0 | (codePoint >>> 18)));
+        buffer.put(pos++, (byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+        buffer.put(pos++, (byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+        buffer.put(pos++, (byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        buffer.put(pos++, (byte) (0xE0 | (c >>> 12)));
+        buffer.put(pos++, (byte) (0x80 | ((c >>> 6) & 0x3F)));
+        buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    buffer.putChar(start, (char) (pos - start - 2));
+    return pos;
+  }
+
+  private static class Slab {
+    final ByteBuffer buffer;
+    int readPos = 0;
+    int writePos = 0;
+
+    Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * A flyweight view of an entity stored in the arena. Fields are decoded on demand.
+   */
+  public static class ReportMetricView {
+    private static final byte[] SOURCE = " source=".getBytes(StandardCharsets.UTF_8);
+
+    private ByteBuffer buffer;
+    private int start;
+
+    private ReportMetricView() {
+    }
+
+    private void wrap(ByteBuffer buffer, int start) {
+      this.buffer = buffer;
+      this.start = start;
+    }
+
+    public long getTimestamp() {
+      return buffer.getLong(start + OFFSET_TIMESTAMP);
+    }
+
+    public double getValue() {
+      return buffer.getDouble(start + OFFSET_VALUE);
+    }
+
+    public String getMetric() {
+      return getString(start + OFFSET_METRIC);
+    }
+
+    public String getHost() {
+      return getString(skip(start + OFFSET_METRIC, 1));
+    }
+
+    public String getCustomer() {
+      return getString(skip(start + OFFSET_METRIC, 2));
+    }
+
+    public int getAnnotationCount() {
+      return buffer.getChar(skip(start + OFFSET_METRIC, 3));
+    }
+
+    public String getAnnotationKey(int index) {
+      return getString(annotationOffset(index));
+    }
+
+    public String getAnnotationValue(int index) {
+      return getString(skip(annotationOffset(index), 1));
+    }
+
+    /**
+     * Materialize the entity as a {@link ReportMetric}.
+     *
+     * @return a new {@link ReportMetric} instance
+     */
+    public ReportMetric toReportMetric() {
+      int count = getAnnotationCount();
+      List<Annotation> annotations = new ArrayList<>(count);
+      int pos = skip(start + OFFSET_METRIC, 3) + 2;
+      for (int i = 0; i < count; i++) {
+        String key = getString(pos);
+        pos = skip(pos, 1);
+        annotations.add(new Annotation(key, getString(pos)));
+        pos = skip(pos, 1);
+      }
+      return ReportMetric.newBuilder().
+          setMetric(getMetric()).
+          setTimestamp(getTimestamp()).
+          setValue(getValue()).
+          setHost(getHost()).
+          setCustomer(getCustomer()).
+          setAnnotations(annotations).
+          build();
+    }
+
+    /**
+     * Write the entity in the same format as
+     * {@link com.wavefront.ingester.ReportMetricSerializer}, copying strings straight
+     * from the arena.
+     *
+     * @param out stream to write to.
+     * @throws IOException if the stream throws
+     */
+    public void writeTo(OutputStream out) throws IOException {
+      int pos = start + OFFSET_METRIC;
+      writeQuoted(out, pos);
+      out.write(' ');
+      writeAscii(out, Double.toString(getValue()));
+      out.write(' ');
+      writeAscii(out, Long.toString(getTimestamp() / 1000));
+      out.write(SOURCE);
+      pos = skip(pos, 1);
+      writeQuoted(out, pos);
+      pos = skip(pos, 2);
+      int count = buffer.getChar(pos);
+      pos += 2;
+      for (int i = 0; i < count; i++) {
+        out.write(' ');
+        writeQuoted(out, pos);
+        out.write('=');
+        pos = skip(pos, 1);
+        writeQuoted(out, pos);
+        pos = skip(pos, 1);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return buffer == null ? "ReportMetricView{}" : toReportMetric().toString();
+    }
+
+    private void writeQuoted(OutputStream out, int pos) throws IOException {
+      int length = buffer.getChar(pos);
+      out.write('"');
+      for (int i = pos + 2; i < pos + 2 + length; i++) {
+        byte b = buffer.get(i);
+        // multi-byte UTF-8 sequences never contain ASCII bytes, so escaping bytewise is safe
+        if (b == '"') out.write('\\');
+        out.write(b);
+      }
+      out.write('"');
+    }
+
+    private int annotationOffset(int index) {
+      int count = getAnnotationCount();
+      if (index < 0 || index >= count) {
+        throw new IndexOutOfBoundsException("Index out of bounds: " + index +
+            ", expected: [0; " + count + ")");
+      }
+      return skip(skip(start + OFFSET_METRIC, 3) + 2, index * 2);
+    }
+
+    private int skip(int pos, int strings) {
+      for (int i = 0; i < strings; i++) {
+        pos += 2 + buffer.getChar(pos);
+      }
+      return pos;
+    }
+
+    private String getString(int pos) {
+      int length = buffer.getChar(pos);
+      byte[] bytes = new byte[length];
+      ByteBuffer source = buffer.duplicate();
+      source.position(pos + 2);
+      source.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+      for (int i = 0; i < s.length(); i++) {
+        out.write(s.charAt(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.wavefront.api.sender;
+
+import com.wavefront.data.ReportableEntityType;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Delivers a batch of items of a specific entity type to the backend.
+ *
+ * @param <T> type of items
+ */
+@FunctionalInterface
+public interface SenderTransport<T> {
+
+  /**
+   * Send a batch.
+   *
+   * @param entityType entity type of items in the batch.
+   * @param batch      items to send.
+   * @return HTTP status code returned by the backend.
+   * @throws IOException if the batch couldn't be delivered.
+   */
+  int send(ReportableEntityType entityType, List<T> batch) throws IOException;
+}
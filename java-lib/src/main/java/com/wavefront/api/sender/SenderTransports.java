@@ -0,0 +1,195 @@
+package com.wavefront.api.sender;
+
+import com.wavefront.api.LogAPI;
+import com.wavefront.api.ProxyV2API;
+import com.wavefront.data.ReportableEntityType;
+import com.wavefront.dto.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_EVENTS;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_HISTOGRAM;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_LOGS_JSON_LINES;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_SOURCETAGS;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_TRACING;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_TRACING_SPAN_LOGS;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_WAVEFRONT;
+
+/**
+ * {@link SenderTransport} implementations for Wavefront APIs.
+ */
+public abstract class SenderTransports {
+  private static final Logger logger = Logger.getLogger(SenderTransports.class.getCanonicalName());
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+  private static final int READ_TIMEOUT_MILLIS = 60_000;
+
+  private SenderTransports() {
+  }
+
+  /**
+   * Sends newline-delimited batches through {@link ProxyV2API#proxyReport}. Request compression,
+   * if any, is up to the JAX-RS client behind the API proxy.
+   *
+   * @param api     API client.
+   * @param proxyId proxy id to report data as.
+   * @return transport
+   */
+  public static SenderTransport<String> proxyV2(ProxyV2API api, UUID proxyId) {
+    return (entityType, batch) -> {
+      Response response = api.proxyReport(proxyId, formatOf(entityType),
+          String.join("\n", batch));
+      try {
+        return response.getStatus();
+      } finally {
+        response.close();
+      }
+    };
+  }
+
+  /**
+   * Sends batches of logs through {@link LogAPI#proxyLogs}.
+   *
+   * @param api          API client.
+   * @param agentProxyId proxy id to report logs as.
+   * @return transport
+   */
+  public static SenderTransport<Log> logs(LogAPI api, String agentProxyId) {
+    return (entityType, batch) -> {
+      Response response = api.proxyLogs(agentProxyId, batch);
+      try {
+        return response.getStatus();
+      } finally {
+        response.close();
+      }
+    };
+  }
+
+  /**
+   * Posts newline-delimited batches directly to the {@link ProxyV2API#proxyReport} endpoint,
+   * optionally compressing request bodies.
+   *
+   * Connections are kept alive and reused between requests. Since the JDK doesn't retry
+   * streaming requests, a request that fails before getting any response (i.e. because the
+   * server has already closed the pooled connection it was sent on) is retried once. The failed
+   * connection is discarded, so the retry goes out on another pooled connection or a new one.
+   *
+   * @param server      server URL, i.e. https://example.wavefront.com/api/
+   * @param proxyId     proxy id to report data as.
+   * @param token       supplier of the API token to authenticate with, sent as a bearer token.
+   *                    Called for every request, so the token can be refreshed. Requests are
+   *                    sent without the Authorization header if it returns null.
+   * @param compression request body compression.
+   * @return transport
+   */
+  public static SenderTransport<String> http(String server, UUID proxyId,
+                                             Supplier<String> token, Compression compression) {
+    String baseUrl = (server.endsWith("/") ? server : server + "/") + "v2/wfproxy/report?format=";
+    return (entityType, batch) -> {
+      URL url = new URL(baseUrl + URLEncoder.encode(formatOf(entityType), "UTF-8"));
+      try {
+        return post(url, proxyId, token, compression, batch);
+      } catch (SocketException e) {
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException) throw e;
+        logger.log(Level.FINE, "Request to " + url + " failed, retrying", e);
+        return post(url, proxyId, token, compression, batch);
+      }
+    };
+  }
+
+  /**
+   * Posts a batch and returns the response status. Any {@link IOException} thrown means that
+   * no response has been received.
+   */
+  private static int post(URL url, UUID proxyId, Supplier<String> token, Compression compression,
+                          List<String> batch) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    int status;
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setChunkedStreamingMode(0);
+      connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+      connection.setRequestProperty("X-WF-PROXY-ID", proxyId.toString());
+      String authToken = token.get();
+      if (authToken != null) {
+        connection.setRequestProperty("Authorization", "Bearer " + authToken);
+      }
+      if (compression.getContentEncoding() != null) {
+        connection.setRequestProperty("Content-Encoding", compression.getContentEncoding());
+      }
+      try (OutputStream output = compression.wrap(connection.getOutputStream())) {
+        boolean first = true;
+        for (String line : batch) {
+          if (!first) output.write('\n');
+          output.write(line.getBytes(StandardCharsets.UTF_8));
+          first = false;
+        }
+      }
+      status = connection.getResponseCode();
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+    // drain the response, so the connection can be reused
+    try (InputStream input = status < 400 ? connection.getInputStream() :
+        connection.getErrorStream()) {
+      if (input != null) {
+        byte[] buffer = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while (input.read(buffer) != -1) {
+        }
+      }
+    } catch (IOException e) {
+      // the status is all we need
+      connection.disconnect();
+    }
+    return status;
+  }
+
+  /**
+   * Returns the push format for the entity type, as expected by {@link ProxyV2API#proxyReport}.
+   *
+   * @param entityType entity type.
+   * @return push format
+   */
+  public static String formatOf(ReportableEntityType entityType) {
+    switch (entityType) {
+      case POINT:
+      case DELTA_COUNTER:
+        return PUSH_FORMAT_WAVEFRONT;
+      case HISTOGRAM:
+        return PUSH_FORMAT_HISTOGRAM;
+      case SOURCE_TAG:
+        return PUSH_FORMAT_SOURCETAGS;
+      case TRACE:
+        return PUSH_FORMAT_TRACING;
+      case TRACE_SPAN_LOGS:
+        return PUSH_FORMAT_TRACING_SPAN_LOGS;
+      case EVENT:
+        return PUSH_FORMAT_EVENTS;
+      case LOGS:
+        return PUSH_FORMAT_LOGS_JSON_LINES;
+      default:
+        throw new IllegalArgumentException("Unexpected entity type: " + entityType);
+    }
+  }
+}
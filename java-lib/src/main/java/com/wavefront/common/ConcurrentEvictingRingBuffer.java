@@ -0,0 +1,127 @@
+package com.wavefront.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A lock-free alternative to {@link SynchronizedEvictingRingBuffer} for the common case of many
+ * threads appending values and a reporting thread periodically reading the most recent ones.
+ *
+ * Producers claim a sequence number with a single atomic increment and always evict the oldest
+ * value. Each slot has a stamp derived from the sequence number of the value it holds, which
+ * is marked as "being written" while a producer updates the slot. Readers validate the stamp
+ * before and after reading a value (similar to a seqlock), so they never block producers, and
+ * values that are still being written (or have just been overwritten) are skipped.
+ *
+ * A producer only waits if the previous producer for the same slot (one full lap behind)
+ * hasn't finished writing yet.
+ *
+ * @param <T> type of objects stored
+ */
+@ThreadSafe
+public class ConcurrentEvictingRingBuffer<T> {
+  private final int capacity;
+  private final AtomicReferenceArray<T> values;
+  /**
+   * 2 * seq for a published value, 2 * seq + 1 while a value is being written.
+   */
+  private final AtomicLongArray stamps;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param capacity desired capacity.
+   */
+  public ConcurrentEvictingRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.values = new AtomicReferenceArray<>(capacity);
+    this.stamps = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      // as if the slot was written one lap before the first value
+      stamps.set(i, 2L * (i - capacity));
+    }
+  }
+
+  /**
+   * Returns buffer capacity (i.e. max number of elements this buffer can hold).
+   *
+   * @return buffer capacity
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns number of elements in the buffer (including ones that are still being written).
+   *
+   * @return number of elements
+   */
+  public int size() {
+    return (int) Math.min(capacity, sequence.get());
+  }
+
+  /**
+   * Returns the total number of elements added so far (including evicted ones).
+   *
+   * @return number of elements added
+   */
+  public long getAddedCount() {
+    return sequence.get();
+  }
+
+  /**
+   * Add a value at the end of the ring buffer, evicting the oldest value if the buffer is full.
+   *
+   * @param value element to be appended to the end of the buffer
+   */
+  public void add(T value) {
+    long seq = sequence.getAndIncrement();
+    int slot = (int) (seq % capacity);
+    long previous = 2 * (seq - capacity);
+    // wait for the producer one lap behind to finish writing this slot
+    while (stamps.get(slot) != previous) {
+      Thread.yield();
+    }
+    stamps.set(slot, 2 * seq + 1);
+    values.lazySet(slot, value);
+    stamps.set(slot, 2 * seq);
+  }
+
+  /**
+   * Performs the given action for the most recent elements, first to last, skipping elements
+   * that are being written concurrently.
+   *
+   * @param action action to perform
+   */
+  public void forEach(Consumer<? super T> action) {
+    long end = sequence.get();
+    for (long seq = Math.max(0, end - capacity); seq < end; seq++) {
+      int slot = (int) (seq % capacity);
+      long stamp = stamps.get(slot);
+      if (stamp != 2 * seq) continue;
+      T value = values.get(slot);
+      if (stamps.get(slot) == stamp) {
+        action.accept(value);
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the most recent elements, first to last (see {@link #forEach}).
+   *
+   * @return a list of elements
+   */
+  public List<T> toList() {
+    List<T> result = new ArrayList<>(size());
+    forEach(result::add);
+    return result;
+  }
+}
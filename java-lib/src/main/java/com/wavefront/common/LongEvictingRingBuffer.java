@@ -0,0 +1,249 @@
+package com.wavefront.common;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.LongConsumer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A {@code long}-specialized version of {@link EvictingRingBuffer}: values are stored in
+ * a primitive array, iteration and range sums don't copy or box anything.
+ */
+@NotThreadSafe
+public class LongEvictingRingBuffer {
+  private final long[] buffer;
+  private final boolean throwOnOverflow;
+  private int head = 0;
+  private int size = 0;
+
+  /**
+   * @param capacity desired capacity.
+   */
+  public LongEvictingRingBuffer(int capacity) {
+    this(capacity, false);
+  }
+
+  /**
+   * @param capacity         desired capacity.
+   * @param throwOnOverflow  disables auto-eviction on overflow. When full capacity is
+   *                         reached, all subsequent add() operations would throw
+   *                         {@link IllegalStateException} if this parameter is true,
+   *                         or evict the oldest value if this parameter is false.
+   */
+  public LongEvictingRingBuffer(int capacity, boolean throwOnOverflow) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.buffer = new long[capacity];
+    this.throwOnOverflow = throwOnOverflow;
+  }
+
+  /**
+   * @param capacity         desired capacity.
+   * @param throwOnOverflow  disables auto-eviction on overflow (see above).
+   * @param defaultValue     pre-fill the buffer with this default value.
+   */
+  public LongEvictingRingBuffer(int capacity, boolean throwOnOverflow, long defaultValue) {
+    this(capacity, throwOnOverflow);
+    Arrays.fill(buffer, defaultValue);
+    this.size = capacity;
+  }
+
+  /**
+   * Returns buffer capacity (i.e. max number of elements this buffer can hold).
+   *
+   * @return buffer capacity
+   */
+  public int capacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Returns number of elements in the buffer.
+   *
+   * @return number of elements
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Return the element at the specified position in the buffer.
+   *
+   * @param index index of the element to return
+   * @return the element at the specified position in the buffer
+   * @throws IndexOutOfBoundsException if the index is out of range
+   *         ({@code index < 0 || index >= size()})
+   */
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index out of bounds: " + index +
+          ", expected: [0; " + size + ")");
+    }
+    return buffer[wrap(head + index)];
+  }
+
+  /**
+   * Add a value at the end of the ring buffer.
+   *
+   * @param value element to be appended to the end of the buffer
+   * @throws IllegalStateException if the element cannot be added at this
+   *         time due to capacity restrictions
+   */
+  public void add(long value) {
+    if (!offer(value)) {
+      throw new IllegalStateException("Buffer capacity exceeded: " + buffer.length);
+    }
+  }
+
+  /**
+   * Inserts the specified element if it is possible to do so immediately without violating
+   * capacity restrictions.
+   *
+   * @param value element to insert
+   * @return true if the element was added, else false
+   */
+  public boolean offer(long value) {
+    if (size == buffer.length) {
+      if (throwOnOverflow) {
+        return false;
+      }
+      // evict oldest value
+      buffer[head] = value;
+      head = wrap(head + 1);
+      return true;
+    }
+    buffer[wrap(head + size)] = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * Retrieves and removes the head of this buffer.
+   *
+   * @return removed element
+   * @throws NoSuchElementException if buffer is empty
+   */
+  public long remove() {
+    if (size == 0) throw new NoSuchElementException("No elements available");
+    long value = buffer[head];
+    head = wrap(head + 1);
+    size--;
+    return value;
+  }
+
+  /**
+   * Removes all elements.
+   */
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  /**
+   * Performs the given action for each element, first to last.
+   *
+   * @param action action to perform
+   */
+  public void forEach(LongConsumer action) {
+    for (int i = 0; i < size; i++) {
+      action.accept(buffer[wrap(head + i)]);
+    }
+  }
+
+  /**
+   * Returns an iterator over elements, first to last. The iterator reads directly from
+   * the buffer, so the buffer must not be modified while iterating.
+   *
+   * @return iterator
+   */
+  public PrimitiveIterator.OfLong iterator() {
+    return new PrimitiveIterator.OfLong() {
+      private int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        return index < size;
+      }
+
+      @Override
+      public long nextLong() {
+        if (index >= size) throw new NoSuchElementException();
+        return buffer[wrap(head + index++)];
+      }
+    };
+  }
+
+  /**
+   * Returns the sum of all elements.
+   *
+   * @return sum of all elements
+   */
+  public long sum() {
+    return sum(0, size);
+  }
+
+  /**
+   * Returns the sum of elements in the specified range.
+   *
+   * @param fromIndex index of the first element (inclusive)
+   * @param toIndex   index of the last element (exclusive)
+   * @return sum of elements
+   * @throws IndexOutOfBoundsException if the range is out of bounds
+   */
+  public long sum(int fromIndex, int toIndex) {
+    checkRange(fromIndex, toIndex);
+    long sum = 0;
+    int start = wrap(head + fromIndex);
+    int count = toIndex - fromIndex;
+    // at most two contiguous segments
+    int firstSegment = Math.min(count, buffer.length - start);
+    for (int i = start; i < start + firstSegment; i++) {
+      sum += buffer[i];
+    }
+    for (int i = 0; i < count - firstSegment; i++) {
+      sum += buffer[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the sum of the last {@code count} elements.
+   *
+   * @param count number of most recent elements
+   * @return sum of elements
+   */
+  public long sumOfLast(int count) {
+    return sum(size - count, size);
+  }
+
+  /**
+   * Returns an array containing all the elements in the buffer, first to last.
+   *
+   * @return array of elements
+   */
+  public long[] toArray() {
+    long[] result = new long[size];
+    int firstSegment = Math.min(size, buffer.length - head);
+    System.arraycopy(buffer, head, result, 0, firstSegment);
+    System.arraycopy(buffer, 0, result, firstSegment, size - firstSegment);
+    return result;
+  }
+
+  private void checkRange(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("Range out of bounds: [" + fromIndex + "; " +
+          toIndex + "), expected within: [0; " + size + ")");
+    }
+  }
+
+  private int wrap(int index) {
+    return index >= buffer.length ? index - buffer.length : index;
+  }
+}
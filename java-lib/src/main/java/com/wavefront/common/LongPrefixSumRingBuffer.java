@@ -0,0 +1,106 @@
+package com.wavefront.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A fixed-capacity ring of {@code long} values that maintains running prefix sums, so the sum
+ * of the last N values can be computed in O(1), without copying or boxing.
+ *
+ * Designed for a single writer (e.g. a periodic sampling task) and any number of concurrent
+ * readers. Readers never block: they read the latest sequence number, then the two prefix sums
+ * they need, and retry if the writer has overwritten any of them in the meantime. Values that
+ * haven't been added yet (before the buffer fills up) are treated as zeros.
+ */
+@ThreadSafe
+public class LongPrefixSumRingBuffer {
+  private final int capacity;
+  private final int mask;
+  /**
+   * prefixSums[seq & mask] holds the sum of all values added up to and including seq.
+   */
+  private final AtomicLongArray prefixSums;
+  private volatile long sequence = -1;
+  private long total = 0;
+
+  /**
+   * @param capacity max number of most recent values to retain.
+   */
+  public LongPrefixSumRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    // extra slots for the prefix sum preceding the oldest retained value and for the one
+    // the writer may be writing to
+    int size = Integer.highestOneBit(capacity + 1) << 1;
+    this.mask = size - 1;
+    this.prefixSums = new AtomicLongArray(size);
+  }
+
+  /**
+   * Returns buffer capacity (i.e. max number of values this buffer can hold).
+   *
+   * @return buffer capacity
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Append a value, evicting the oldest one if the buffer is full. Must be called from
+   * a single thread.
+   *
+   * @param value value to append.
+   */
+  public void add(long value) {
+    long next = sequence + 1;
+    total += value;
+    prefixSums.lazySet((int) (next & mask), total);
+    sequence = next;
+  }
+
+  /**
+   * Returns the most recently added value, or 0 if the buffer is empty.
+   *
+   * @return last value
+   */
+  public long getLast() {
+    return sum(1);
+  }
+
+  /**
+   * Returns the sum of all retained values.
+   *
+   * @return sum of all values
+   */
+  public long sum() {
+    return sum(capacity);
+  }
+
+  /**
+   * Returns the sum of the last {@code count} values.
+   *
+   * @param count number of most recent values to sum up, must not exceed capacity.
+   * @return sum of the last {@code count} values
+   */
+  public long sum(int count) {
+    if (count < 0 || count > capacity) {
+      throw new IndexOutOfBoundsException("Count out of bounds: " + count +
+          ", expected: [0; " + capacity + "]");
+    }
+    while (true) {
+      long seq = sequence;
+      if (seq < 0 || count == 0) return 0;
+      long end = prefixSums.get((int) (seq & mask));
+      long startSeq = seq - count;
+      long start = startSeq < 0 ? 0 : prefixSums.get((int) (startSeq & mask));
+      // slot for startSeq gets overwritten once the writer reaches startSeq + mask + 1, and
+      // the slot is written before the sequence is published
+      if (sequence < startSeq + mask) {
+        return end - start;
+      }
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package com.wavefront.common;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Matches a string against many glob patterns (that can only contain *, same as
+ * {@link PatternMatchPredicate}) in a single pass over the input.
+ *
+ * All patterns are compiled into one NFA, which is lazily converted into a DFA as inputs are
+ * matched: each DFA state is a set of NFA positions and carries the list of patterns it accepts,
+ * so that all patterns are tested at once, no matter how many of them there are. Case folding
+ * is compiled into the transitions, so case-insensitive patterns don't require lower-casing the
+ * input. The number of cached DFA states is bounded; once the limit is reached, transitions
+ * out of known states are computed on the fly.
+ *
+ * Instances are thread-safe.
+ */
+public class PatternSet implements Predicate<String> {
+  private static final int DEFAULT_MAX_STATES = 10_000;
+  private static final int ASCII = 128;
+
+  private final ImmutableList<String> patterns;
+  private final boolean caseInsensitive;
+  private final int maxStates;
+  // NFA, one entry per position in each pattern (including the one after the last character)
+  private final int[] patternOf;
+  private final char[] symbol;
+  private final boolean[] star;
+  private final boolean[] end;
+
+  private final Map<StateKey, State> states = new ConcurrentHashMap<>();
+  private final State initial;
+
+  /**
+   * Create a new pattern set.
+   *
+   * @param patterns        glob patterns.
+   * @param caseInsensitive whether all patterns should be matched case-insensitively.
+   */
+  public PatternSet(Collection<String> patterns, boolean caseInsensitive) {
+    this(patterns, caseInsensitive, DEFAULT_MAX_STATES);
+  }
+
+  /**
+   * Create a new pattern set.
+   *
+   * @param patterns        glob patterns.
+   * @param caseInsensitive whether all patterns should be matched case-insensitively.
+   * @param maxStates       maximum number of DFA states to cache.
+   */
+  public PatternSet(Collection<String> patterns, boolean caseInsensitive, int maxStates) {
+    Preconditions.checkArgument(maxStates > 0, "maxStates must be positive");
+    this.patterns = ImmutableList.copyOf(patterns);
+    this.caseInsensitive = caseInsensitive;
+    this.maxStates = maxStates;
+    int size = 0;
+    for (String pattern : this.patterns) {
+      size += pattern.trim().length() + 1;
+    }
+    this.patternOf = new int[size];
+    this.symbol = new char[size];
+    this.star = new boolean[size];
+    this.end = new boolean[size];
+    int id = 0;
+    for (int p = 0; p < this.patterns.size(); p++) {
+      String pattern = this.patterns.get(p).trim();
+      if (caseInsensitive) pattern = pattern.toLowerCase();
+      for (int i = 0; i <= pattern.length(); i++, id++) {
+        patternOf[id] = p;
+        if (i == pattern.length()) {
+          end[id] = true;
+        } else {
+          symbol[id] = pattern.charAt(i);
+          star[id] = symbol[id] == '*';
+        }
+      }
+    }
+    BitSet start = new BitSet(size);
+    id = 0;
+    for (String pattern : this.patterns) {
+      addWithClosure(start, id);
+      id += pattern.trim().length() + 1;
+    }
+    this.initial = intern(start);
+  }
+
+  /**
+   * @return patterns in this set, in the order they were provided.
+   */
+  public ImmutableList<String> getPatterns() {
+    return patterns;
+  }
+
+  /**
+   * Checks whether the input matches any of the patterns.
+   *
+   * @param input string to match.
+   * @return true if at least one pattern matches.
+   */
+  @Override
+  public boolean test(@Nullable String input) {
+    State state = run(input);
+    return state != null && state.accepts.length > 0;
+  }
+
+  /**
+   * Finds the first (in the order patterns were provided) pattern that matches the input.
+   *
+   * @param input string to match.
+   * @return index of the pattern or -1 if no pattern matches.
+   */
+  public int firstMatch(@Nullable String input) {
+    State state = run(input);
+    return state == null || state.accepts.length == 0 ? -1 : state.accepts[0];
+  }
+
+  /**
+   * Finds all patterns that match the input.
+   *
+   * @param input string to match.
+   * @return indexes of matching patterns, in ascending order.
+   */
+  public int[] allMatches(@Nullable String input) {
+    State state = run(input);
+    return state == null ? new int[0] : state.accepts.clone();
+  }
+
+  /**
+   * @return number of currently cached DFA states.
+   */
+  int getStateCount() {
+    return states.size();
+  }
+
+  @Nullable
+  private State run(@Nullable String input) {
+    if (input == null) return null;
+    State state = initial;
+    for (int i = 0; i < input.length(); i++) {
+      if (state.positions.length == 0) return null;
+      state = state.next(input.charAt(i));
+    }
+    return state;
+  }
+
+  private void addWithClosure(BitSet set, int id) {
+    set.set(id);
+    // * matches an empty string, so the next position is reachable without consuming input
+    while (star[id]) {
+      id++;
+      set.set(id);
+    }
+  }
+
+  private State step(State from, char c) {
+    BitSet next = new BitSet(patternOf.length);
+    char folded = caseInsensitive ? Character.toLowerCase(c) : c;
+    for (int id : from.positions) {
+      if (star[id]) {
+        addWithClosure(next, id);
+      } else if (!end[id] && (symbol[id] == c || (caseInsensitive && symbol[id] == folded))) {
+        addWithClosure(next, id + 1);
+      }
+    }
+    return intern(next);
+  }
+
+  private State intern(BitSet set) {
+    StateKey key = new StateKey(set.stream().toArray());
+    State state = states.get(key);
+    if (state != null) return state;
+    BitSet accepted = new BitSet(patterns.size());
+    for (int id : key.positions) {
+      if (end[id]) accepted.set(patternOf[id]);
+    }
+    state = new State(key.positions, accepted.stream().toArray(), states.size() < maxStates);
+    if (state.cached) {
+      State existing = states.putIfAbsent(key, state);
+      if (existing != null) return existing;
+    }
+    return state;
+  }
+
+  private static final class StateKey {
+    private final int[] positions;
+    private final int hashCode;
+
+    StateKey(int[] positions) {
+      this.positions = positions;
+      this.hashCode = Arrays.hashCode(positions);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof StateKey && Arrays.equals(positions, ((StateKey) o).positions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  private final class State {
+    private final int[] positions;
+    private final int[] accepts;
+    private final boolean cached;
+    // transitions are filled lazily; a racy read may miss a transition and recompute it,
+    // which yields the same (interned) state
+    private final State[] ascii;
+    private final Map<Character, State> other;
+
+    State(int[] positions, int[] accepts, boolean cached) {
+      this.positions = positions;
+      this.accepts = accepts;
+      this.cached = cached;
+      this.ascii = cached ? new State[ASCII] : null;
+      this.other = cached ? new ConcurrentHashMap<>(4) : null;
+    }
+
+    State next(char c) {
+      if (!cached) {
+        return step(this, c);
+      }
+      State next;
+      if (c < ASCII) {
+        next = ascii[c];
+        if (next == null) {
+          next = step(this, c);
+          if (next.cached) ascii[c] = next;
+        }
+      } else {
+        next = other.get(c);
+        if (next == null) {
+          next = step(this, c);
+          if (next.cached) other.put(c, next);
+        }
+      }
+      return next;
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package com.wavefront.data;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.wavefront.common.MetricConstants;
+import com.wavefront.common.NamedThreadFactory;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import wavefront.report.ReportPoint;
+import wavefront.report.TimeSeries;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Streaming pre-aggregation stage for points: points that belong to the same
+ * {@link TimeSeries} (metric, host, table and tags) and fall into the same time window are
+ * folded into a single point, which is emitted once the window closes. Delta counters
+ * (metrics prefixed with {@link MetricConstants#DELTA_PREFIX} or
+ * {@link MetricConstants#DELTA_PREFIX_2}) are summed, gauges are aggregated with the configured
+ * {@link GaugeAggregation}. Emitted points carry the timestamp of the latest point in the window.
+ *
+ * Points with non-numeric values (histograms, strings) are passed through as is, as well as
+ * all points that would create new series once the max number of pending series is reached.
+ * Points are also passed through if their window has already closed (i.e. it's older than
+ * {@code windowMillis + allowedLatenessMillis}), or if they are more than {@code windowMillis}
+ * in the future, so that future timestamps don't hold pending slots. A late point is therefore
+ * emitted in addition to the point aggregated for its window (or the window's pending point,
+ * if it hasn't been flushed yet): gauges can have more than one value per window, and delta
+ * counters are still summed up correctly by the backend.
+ *
+ * Pending windows are stored in a concurrent map keyed by a 64-bit fingerprint of the series
+ * and the window, with the (rare) fingerprint collisions chained within the map entry.
+ */
+public class PointAggregator implements Closeable {
+  private static final Logger logger = Logger.getLogger(PointAggregator.class.getCanonicalName());
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  /**
+   * How values of gauges within a window are combined.
+   */
+  public enum GaugeAggregation {
+    LAST, MIN, MAX, AVG, COUNT
+  }
+
+  private final Consumer<ReportPoint> output;
+  private final long windowMillis;
+  private final long allowedLatenessMillis;
+  private final int maxPendingSeries;
+  private final GaugeAggregation gaugeAggregation;
+  private final LongSupplier clock;
+  private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingSeries = new AtomicInteger();
+  private final ScheduledExecutorService scheduler;
+
+  private final Counter pointsReceived;
+  private final Counter pointsEmitted;
+  private final Counter pointsPassedThrough;
+
+  private PointAggregator(Builder builder) {
+    this.output = builder.output;
+    this.windowMillis = builder.windowMillis;
+    this.allowedLatenessMillis = builder.allowedLatenessMillis;
+    this.maxPendingSeries = builder.maxPendingSeries;
+    this.gaugeAggregation = builder.gaugeAggregation;
+    this.clock = builder.clock;
+    this.pointsReceived = Metrics.newCounter(new TaggedMetricName("aggregator",
+        "points-received"));
+    this.pointsEmitted = Metrics.newCounter(new TaggedMetricName("aggregator", "points-emitted"));
+    this.pointsPassedThrough = Metrics.newCounter(new TaggedMetricName("aggregator",
+        "points-passed-through"));
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("point-aggregator"));
+    long flushIntervalMillis = Math.min(windowMillis, 1000);
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        flush(false);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Unexpected error while flushing aggregated points", t);
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Create a builder for a new aggregator.
+   *
+   * @param output consumer for aggregated (and passed through) points.
+   * @return builder
+   */
+  public static Builder newBuilder(Consumer<ReportPoint> output) {
+    return new Builder(output);
+  }
+
+  /**
+   * Fold a point into its window, or pass it through if it can't be aggregated.
+   *
+   * @param point point to aggregate.
+   */
+  public void report(ReportPoint point) {
+    pointsReceived.inc();
+    Object value = point.getValue();
+    if (!(value instanceof Double || value instanceof Long)) {
+      passThrough(point);
+      return;
+    }
+    long nowMillis = clock.getAsLong();
+    long windowStart = point.getTimestamp() - Math.floorMod(point.getTimestamp(), windowMillis);
+    if (windowStart <= nowMillis - windowMillis - allowedLatenessMillis ||
+        point.getTimestamp() > nowMillis + windowMillis) {
+      passThrough(point);
+      return;
+    }
+    double doubleValue = ((Number) value).doubleValue();
+    long key = fingerprint(point) ^ (windowStart * 0x9E3779B97F4A7C15L);
+    boolean[] folded = new boolean[1];
+    windows.compute(key, (k, head) -> {
+      for (Window window = head; window != null; window = window.next) {
+        if (window.matches(point, windowStart)) {
+          window.add(point.getTimestamp(), doubleValue);
+          folded[0] = true;
+          return head;
+        }
+      }
+      if (pendingSeries.incrementAndGet() > maxPendingSeries) {
+        pendingSeries.decrementAndGet();
+        return head;
+      }
+      Window window = new Window(point, windowStart, head);
+      window.add(point.getTimestamp(), doubleValue);
+      folded[0] = true;
+      return window;
+    });
+    if (!folded[0]) {
+      passThrough(point);
+    }
+  }
+
+  /**
+   * @return number of series/window combinations waiting for their window to close.
+   */
+  public int getPendingCount() {
+    return pendingSeries.get();
+  }
+
+  /**
+   * Emit aggregated points for all windows that are closed at this point.
+   */
+  @VisibleForTesting
+  void flush() {
+    flush(false);
+  }
+
+  /**
+   * Stop the flush task and emit all pending points, regardless of whether their windows
+   * are closed or not.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush(true);
+  }
+
+  private void flush(boolean all) {
+    long cutoff = clock.getAsLong() - windowMillis - allowedLatenessMillis;
+    List<Window> closed = new ArrayList<>();
+    for (Long key : windows.keySet()) {
+      windows.computeIfPresent(key, (k, head) -> {
+        Window newHead = null;
+        Window next;
+        for (Window window = head; window != null; window = next) {
+          next = window.next;
+          if (all || window.windowStart <= cutoff) {
+            closed.add(window);
+          } else {
+            window.next = newHead;
+            newHead = window;
+          }
+        }
+        return newHead;
+      });
+    }
+    for (Window window : closed) {
+      pendingSeries.decrementAndGet();
+      pointsEmitted.inc();
+      output.accept(window.toPoint());
+    }
+  }
+
+  private void passThrough(ReportPoint point) {
+    pointsPassedThrough.inc();
+    output.accept(point);
+  }
+
+  private static long fingerprint(ReportPoint point) {
+    long hash = HASH_FUNCTION.newHasher().
+        putUnencodedChars(point.getMetric()).putInt(point.getMetric().length()).
+        putUnencodedChars(point.getHost()).putInt(point.getHost().length()).
+        putUnencodedChars(point.getTable()).
+        hash().asLong();
+    if (point.getAnnotations() != null) {
+      // combine tag hashes in an order-independent way, so we don't have to sort them
+      for (Map.Entry<String, String> tag : point.getAnnotations().entrySet()) {
+        hash += HASH_FUNCTION.newHasher().
+            putUnencodedChars(tag.getKey()).putInt(tag.getKey().length()).
+            putUnencodedChars(tag.getValue()).
+            hash().asLong();
+      }
+    }
+    return hash;
+  }
+
+  private static boolean isDelta(String metric) {
+    return metric.startsWith(MetricConstants.DELTA_PREFIX) ||
+        metric.startsWith(MetricConstants.DELTA_PREFIX_2);
+  }
+
+  /**
+   * Aggregation state for a series within a window. Only accessed within the map's
+   * compute methods, which serialize access to entries with the same key.
+   */
+  private class Window {
+    final TimeSeries series;
+    final long windowStart;
+    final boolean delta;
+    Window next;
+    long count = 0;
+    long lastTimestamp = Long.MIN_VALUE;
+    double last;
+    double sum = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    Window(ReportPoint point, long windowStart, @Nullable Window next) {
+      this.series = new TimeSeries(point.getMetric(), point.getHost(), point.getTable(),
+          point.getAnnotations() == null ? new TreeMap<>() :
+              new TreeMap<>(point.getAnnotations()));
+      this.windowStart = windowStart;
+      this.delta = isDelta(point.getMetric());
+      this.next = next;
+    }
+
+    boolean matches(ReportPoint point, long windowStart) {
+      return this.windowStart == windowStart &&
+          series.getMetric().equals(point.getMetric()) &&
+          series.getHost().equals(point.getHost()) &&
+          series.getTable().equals(point.getTable()) &&
+          series.getAnnotations().equals(point.getAnnotations() == null ?
+              new TreeMap<>() : point.getAnnotations());
+    }
+
+    void add(long timestamp, double value) {
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      if (timestamp >= lastTimestamp) {
+        lastTimestamp = timestamp;
+        last = value;
+      }
+    }
+
+    ReportPoint toPoint() {
+      double value;
+      if (delta) {
+        value = sum;
+      } else {
+        switch (gaugeAggregation) {
+          case MIN:
+            value = min;
+            break;
+          case MAX:
+            value = max;
+            break;
+          case AVG:
+            value = sum / count;
+            break;
+          case COUNT:
+            value = count;
+            break;
+          default:
+            value = last;
+        }
+      }
+      return ReportPoint.newBuilder().
+          setMetric(series.getMetric()).
+          setHost(series.getHost()).
+          setTable(series.getTable()).
+          setAnnotations(series.getAnnotations()).
+          setTimestamp(lastTimestamp).
+          setValue(value).
+          build();
+    }
+  }
+
+  public static class Builder {
+    private final Consumer<ReportPoint> output;
+    private long windowMillis = 1000;
+    private long allowedLatenessMillis = 0;
+    private int maxPendingSeries = 1_000_000;
+    private GaugeAggregation gaugeAggregation = GaugeAggregation.LAST;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private Builder(Consumer<ReportPoint> output) {
+      this.output = checkNotNull(output);
+    }
+
+    /**
+     * @param windowMillis size of aggregation windows. Default: 1000.
+     * @return this builder
+     */
+    public Builder windowMillis(long windowMillis) {
+      checkArgument(windowMillis > 0, "windowMillis must be positive");
+      this.windowMillis = windowMillis;
+      return this;
+    }
+
+    /**
+     * @param allowedLatenessMillis how long to keep a window open after its end to accommodate
+     *                              late points. Default: 0.
+     * @return this builder
+     */
+    public Builder allowedLatenessMillis(long allowedLatenessMillis) {
+      checkArgument(allowedLatenessMillis >= 0, "allowedLatenessMillis must not be negative");
+      this.allowedLatenessMillis = allowedLatenessMillis;
+      return this;
+    }
+
+    /**
+     * @param maxPendingSeries max number of series/window combinations to aggregate at a time,
+     *                         points for new series are passed through once it's reached.
+     *                         Default: 1000000.
+     * @return this builder
+     */
+    public Builder maxPendingSeries(int maxPendingSeries) {
+      checkArgument(maxPendingSeries > 0, "maxPendingSeries must be positive");
+      this.maxPendingSeries = maxPendingSeries;
+      return this;
+    }
+
+    /**
+     * @param gaugeAggregation how to aggregate non-delta metrics. Default: LAST.
+     * @return this builder
+     */
+    public Builder gaugeAggregation(GaugeAggregation gaugeAggregation) {
+      this.gaugeAggregation = checkNotNull(gaugeAggregation);
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder clock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public PointAggregator build() {
+      return new PointAggregator(this);
+    }
+  }
+}
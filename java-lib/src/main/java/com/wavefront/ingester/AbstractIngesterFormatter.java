@@ -157,9 +157,40 @@ public abstract class AbstractIngesterFormatter<T extends SpecificRecordBase> {
       return this;
     }
 
+    /**
+     * Marks the point where the name is known, so an {@link EarlyFilter} can reject the line
+     * before parsing the rest of it.
+     *
+     * @param nameProvider extracts the name from the partially parsed entity.
+     */
+    public IngesterFormatBuilder<T> nameFilterCheckpoint(Function<T, String> nameProvider) {
+      elements.add(new NameFilterCheckpoint<>(nameProvider));
+      return this;
+    }
+
     public abstract AbstractIngesterFormatter<T> build();
   }
 
+  /**
+   * Consume all elements, checking the name against the filter at the checkpoint (if any).
+   *
+   * @return false if the line has been rejected by the filter.
+   */
+  protected boolean consumeElements(StringParser parser, T target,
+                                    @Nullable EarlyFilter earlyFilter) {
+    for (FormatterElement<T> element : elements) {
+      if (element instanceof NameFilterCheckpoint) {
+        if (earlyFilter != null && !earlyFilter.acceptName(
+            ((NameFilterCheckpoint<T>) element).nameProvider.apply(target))) {
+          return false;
+        }
+      } else {
+        element.consume(parser, target);
+      }
+    }
+    return true;
+  }
+
   public static class Text<T extends SpecificRecordBase> implements FormatterElement<T> {
     final List<String> literals;
     final BiConsumer<T, String> textConsumer;
@@ -195,6 +226,20 @@ public abstract class AbstractIngesterFormatter<T extends SpecificRecordBase> {
     }
   }
 
+  public static class NameFilterCheckpoint<T extends SpecificRecordBase>
+      implements FormatterElement<T> {
+    final Function<T, String> nameProvider;
+
+    NameFilterCheckpoint(Function<T, String> nameProvider) {
+      this.nameProvider = nameProvider;
+    }
+
+    @Override
+    public void consume(StringParser parser, T target) {
+      // nothing to consume, the name is checked in consumeElements()
+    }
+  }
+
   public static class Value<T extends SpecificRecordBase> implements FormatterElement<T> {
     final BiConsumer<T, Double> valueConsumer;
 
@@ -404,7 +449,7 @@ public abstract class AbstractIngesterFormatter<T extends SpecificRecordBase> {
     }
   }
 
-  private static Long parseTimestamp(StringParser parser, boolean optional, boolean raw) {
+  static Long parseTimestamp(StringParser parser, boolean optional, boolean raw) {
     String peek = parser.peek();
     if (peek == null || !Character.isDigit(peek.charAt(0))) {
       if (optional) {
@@ -757,6 +802,26 @@ public abstract class AbstractIngesterFormatter<T extends SpecificRecordBase> {
     return drive(input, defaultHostNameSupplier, customerId, null, null, null, null, null, null, null, null);
   }
 
+  /**
+   * Parse a line, applying an optional early filter. Formats that support early filtering
+   * override this method; by default, only a null filter is accepted.
+   *
+   * @return parsed entity or null if the line has been rejected by the filter.
+   * @throws UnsupportedOperationException if a filter is specified, but the format doesn't
+   *                                       support early filtering.
+   */
+  @Nullable
+  public T drive(String input, @Nullable Supplier<String> defaultHostNameSupplier,
+                 String customerId, @Nullable List<String> customSourceTags,
+                 @Nullable EarlyFilter earlyFilter) {
+    if (earlyFilter != null) {
+      throw new UnsupportedOperationException("Early filtering is not supported by " +
+          getClass().getSimpleName());
+    }
+    return drive(input, defaultHostNameSupplier, customerId, customSourceTags, null, null, null,
+        null, null, null, null);
+  }
+
   public abstract T drive(String input, @Nullable Supplier<String> defaultHostNameSupplier,
                           String customerId, @Nullable List<String> customSourceTags, @Nullable List<String> customLogTimestampTags,
                           @Nullable List<String> customLogMessageTags, List<String> customLogApplicationTags, List<String> customLogServiceTags,
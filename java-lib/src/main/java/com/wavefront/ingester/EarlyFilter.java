@@ -0,0 +1,87 @@
+package com.wavefront.ingester;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Filter applied by decoders while parsing, before the entity is fully decoded. The name
+ * (metric name or span name) is checked as soon as it's parsed, so lines rejected by name
+ * skip tag parsing altogether. The source is checked as soon as it's resolved, which requires
+ * parsing tags, but still skips the rest of decoding and post-processing.
+ */
+public class EarlyFilter {
+  @Nullable
+  private final Predicate<String> nameFilter;
+  @Nullable
+  private final Predicate<String> sourceFilter;
+  @Nullable
+  private final Counter rejectedCounter;
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * @param nameFilter   predicate for metric/span names, lines that don't match are rejected.
+   * @param sourceFilter predicate for source names, lines that don't match are rejected.
+   */
+  public EarlyFilter(@Nullable Predicate<String> nameFilter,
+                     @Nullable Predicate<String> sourceFilter) {
+    this(nameFilter, sourceFilter, null);
+  }
+
+  /**
+   * @param nameFilter      predicate for metric/span names, lines that don't match are rejected.
+   * @param sourceFilter    predicate for source names, lines that don't match are rejected.
+   * @param rejectedCounter optional counter to increment for every rejected line.
+   */
+  public EarlyFilter(@Nullable Predicate<String> nameFilter,
+                     @Nullable Predicate<String> sourceFilter,
+                     @Nullable Counter rejectedCounter) {
+    this.nameFilter = nameFilter;
+    this.sourceFilter = sourceFilter;
+    this.rejectedCounter = rejectedCounter;
+  }
+
+  /**
+   * @param name metric or span name.
+   * @return true if the line should be decoded further.
+   */
+  public boolean acceptName(@Nullable String name) {
+    return accept(nameFilter, name);
+  }
+
+  /**
+   * @param source source name.
+   * @return true if the line should be decoded further.
+   */
+  public boolean acceptSource(@Nullable String source) {
+    return accept(sourceFilter, source);
+  }
+
+  /**
+   * @return true if this filter checks sources.
+   */
+  boolean filtersSource() {
+    return sourceFilter != null;
+  }
+
+  /**
+   * @return number of lines rejected by this filter.
+   */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  private boolean accept(@Nullable Predicate<String> filter, @Nullable String value) {
+    if (filter == null || value == null || filter.test(value)) {
+      return true;
+    }
+    rejected.increment();
+    if (rejectedCounter != null) {
+      rejectedCounter.inc();
+    }
+    return false;
+  }
+}
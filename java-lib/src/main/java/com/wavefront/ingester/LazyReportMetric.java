@@ -0,0 +1,267 @@
+package com.wavefront.ingester;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.wavefront.common.Clock;
+import com.wavefront.data.ParseException;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportMetric;
+
+/**
+ * A partially decoded {@link ReportMetric}, for pipeline stages that only need the metric name,
+ * value, timestamp or source (sharding, rate limiting, dedup, etc).
+ *
+ * Only the header (metric name, value and optional timestamp) is parsed upfront. The source is
+ * resolved on first access by scanning tag tokens, without building the annotation list. Tags
+ * are fully parsed into a {@link ReportMetric} only when annotations are accessed or the full
+ * entity is requested with {@link #toReportMetric()}, so malformed tags are only reported at
+ * that point.
+ *
+ * If the entity has not been modified, {@link #toLine()} returns the original line as-is,
+ * as long as it's self-contained (has both an explicit timestamp and an explicit source).
+ *
+ * Not thread-safe.
+ */
+public class LazyReportMetric {
+  private final String line;
+  private final String customer;
+  @Nullable
+  private final Supplier<String> defaultHostNameSupplier;
+  @Nullable
+  private final List<String> customSourceTags;
+
+  private String metric;
+  private double value;
+  private long timestamp;
+  private final boolean hasTimestamp;
+  @Nullable
+  private String host = null;
+  private boolean explicitSource;
+  @Nullable
+  private ReportMetric materialized = null;
+  private boolean modified = false;
+
+  LazyReportMetric(String line, String customer,
+                   @Nullable Supplier<String> defaultHostNameSupplier,
+                   @Nullable List<String> customSourceTags) {
+    this.line = line;
+    this.customer = customer;
+    this.defaultHostNameSupplier = defaultHostNameSupplier;
+    this.customSourceTags = customSourceTags;
+    StringParser parser = new StringParser(line);
+    this.metric = parser.next();
+    if (this.metric == null) {
+      throw new ParseException("Metric name is missing");
+    }
+    String token = parser.next();
+    if (token == null) {
+      throw new ParseException("Value is missing");
+    }
+    try {
+      this.value = Double.parseDouble(token);
+    } catch (NumberFormatException e) {
+      throw new ParseException("Invalid value: " + token);
+    }
+    Long timestamp = AbstractIngesterFormatter.parseTimestamp(parser, true, false);
+    this.hasTimestamp = timestamp != null;
+    this.timestamp = hasTimestamp ? timestamp : Clock.now();
+  }
+
+  public String getMetric() {
+    return materialized == null ? metric : materialized.getMetric();
+  }
+
+  public void setMetric(String metric) {
+    modified = true;
+    if (materialized == null) {
+      this.metric = metric;
+    } else {
+      materialized.setMetric(metric);
+    }
+  }
+
+  public double getValue() {
+    return materialized == null ? value : materialized.getValue();
+  }
+
+  public void setValue(double value) {
+    modified = true;
+    if (materialized == null) {
+      this.value = value;
+    } else {
+      materialized.setValue(value);
+    }
+  }
+
+  public long getTimestamp() {
+    return materialized == null ? timestamp : materialized.getTimestamp();
+  }
+
+  public void setTimestamp(long timestamp) {
+    modified = true;
+    if (materialized == null) {
+      this.timestamp = timestamp;
+    } else {
+      materialized.setTimestamp(timestamp);
+    }
+  }
+
+  public String getCustomer() {
+    return customer;
+  }
+
+  /**
+   * @return source name. Resolved by scanning tags on first access.
+   */
+  public String getHost() {
+    if (materialized != null) {
+      return materialized.getHost();
+    }
+    if (host == null) {
+      resolveHost();
+    }
+    return host;
+  }
+
+  public void setHost(String host) {
+    modified = true;
+    if (materialized == null) {
+      this.host = host;
+    } else {
+      materialized.setHost(host);
+    }
+  }
+
+  /**
+   * Parses tags if they haven't been parsed yet. Since the returned list is mutable, the
+   * entity is considered modified from this point on.
+   *
+   * @return annotations.
+   */
+  public List<Annotation> getAnnotations() {
+    return toReportMetric().getAnnotations();
+  }
+
+  /**
+   * @return the original line.
+   */
+  public String getRawLine() {
+    return line;
+  }
+
+  /**
+   * @return true if tags have been parsed.
+   */
+  public boolean isMaterialized() {
+    return materialized != null;
+  }
+
+  /**
+   * @return true if the entity may have been modified since it was parsed.
+   */
+  public boolean isModified() {
+    return modified;
+  }
+
+  /**
+   * Returns a fully decoded {@link ReportMetric} (parsing tags if necessary). Changes made to
+   * the returned object are visible through this view and vice versa, so the entity is
+   * considered modified from this point on.
+   *
+   * @return full entity.
+   */
+  public ReportMetric toReportMetric() {
+    modified = true;
+    return materialize();
+  }
+
+  private ReportMetric materialize() {
+    if (materialized == null) {
+      ReportMetric point = ReportMetricDecoder.decodeFully(line, defaultHostNameSupplier,
+          customer, customSourceTags);
+      // header fields may have been modified, and timestamp must stay the same if it had to
+      // be assigned
+      point.setMetric(metric);
+      point.setValue(value);
+      point.setTimestamp(timestamp);
+      if (host != null) {
+        point.setHost(host);
+      }
+      materialized = point;
+    }
+    return materialized;
+  }
+
+  /**
+   * Returns the entity serialized in the canonical format. Returns the original line when
+   * possible, i.e. when the entity has not been modified and the line has an explicit timestamp
+   * and source.
+   *
+   * @return serialized entity.
+   */
+  public String toLine() {
+    if (!modified && hasTimestamp && getHost() != null && explicitSource) {
+      return line;
+    }
+    return ReportMetricSerializer.metricToString(materialize());
+  }
+
+  /**
+   * Finds the source the same way {@link AbstractIngesterFormatter#getHostAndNormalizeTags}
+   * does, but without parsing tags into annotations.
+   */
+  private void resolveHost() {
+    StringParser parser = new StringParser(line);
+    // skip header: metric name, value and optional timestamp (already validated)
+    parser.next();
+    parser.next();
+    String peek = parser.peek();
+    if (peek != null && Character.isDigit(peek.charAt(0))) {
+      parser.next();
+    }
+    String source = null;
+    String hostTag = null;
+    String[] customValues = customSourceTags == null ? null :
+        new String[customSourceTags.size()];
+    while (parser.hasNext()) {
+      String key = parser.next();
+      String op = parser.next();
+      String tagValue = parser.next();
+      if (!"=".equals(op) || tagValue == null) {
+        // malformed tags, let the full parser report the error
+        host = materialize().getHost();
+        return;
+      }
+      if (key.equals("source")) {
+        source = tagValue;
+      } else if (key.equals("host")) {
+        hostTag = tagValue;
+      } else if (customValues != null) {
+        int index = customSourceTags.indexOf(key);
+        if (index >= 0 && customValues[index] == null) {
+          customValues[index] = tagValue;
+        }
+      }
+    }
+    if (source == null) {
+      source = hostTag;
+    }
+    explicitSource = source != null;
+    if (source == null && customValues != null) {
+      for (String customValue : customValues) {
+        if (customValue != null) {
+          source = customValue;
+          break;
+        }
+      }
+    }
+    if (source == null) {
+      source = defaultHostNameSupplier == null ? "unknown" : defaultHostNameSupplier.get();
+    }
+    host = source;
+  }
+}
@@ -34,10 +34,13 @@ public class ReportHistogramDecoder implements ReportableEntityDecoder<String, R
           optionalTimestamp(ReportHistogram::setTimestamp).
           centroids().
           text(ReportHistogram::setMetric).
+          nameFilterCheckpoint(ReportHistogram::getMetric).
           annotationList(ReportHistogram::setAnnotations).
           build();
 
   private final Supplier<String> defaultHostNameSupplier;
+  @Nullable
+  private final EarlyFilter earlyFilter;
 
   public ReportHistogramDecoder() {
     this("unknown");
@@ -48,13 +51,26 @@ public class ReportHistogramDecoder implements ReportableEntityDecoder<String, R
   }
 
   public ReportHistogramDecoder(Supplier<String> defaultHostNameSupplier) {
+    this(defaultHostNameSupplier, null);
+  }
+
+  /**
+   * @param defaultHostNameSupplier default host name supplier.
+   * @param earlyFilter             optional filter to skip lines by metric name or source
+   *                                without decoding them fully. Rejected lines are not added
+   *                                to the output.
+   */
+  public ReportHistogramDecoder(Supplier<String> defaultHostNameSupplier,
+                                @Nullable EarlyFilter earlyFilter) {
     this.defaultHostNameSupplier = defaultHostNameSupplier;
+    this.earlyFilter = earlyFilter;
   }
 
   @Override
   public void decode(String msg, List<ReportHistogram> out, String customerId,
                      @Nullable IngesterContext ctx) {
-    ReportHistogram histogram = FORMAT.drive(msg, defaultHostNameSupplier, customerId, null,null, null, null, null, null, null, ctx);
+    ReportHistogram histogram = FORMAT.drive(msg, defaultHostNameSupplier, customerId, null,
+        earlyFilter);
     if (histogram != null) {
       Histogram value = histogram.getValue();
       if (ctx != null) {
@@ -40,14 +40,27 @@ public class ReportHistogramIngesterFormatter extends AbstractIngesterFormatter<
                                @Nullable List<String> customLogMessageTags,
                                List<String> customLogApplicationTags, List<String> customLogServiceTags,
                                @Nullable List<String> customLogLevelTags,@Nullable List<String> customLogExceptionTags, @Nullable IngesterContext ingesterContext) {
+    return drive(input, defaultHostNameSupplier, customerId, customSourceTags, null);
+  }
+
+  /**
+   * Parse a line, applying an optional early filter.
+   *
+   * @return parsed histogram or null if the line has been rejected by the filter.
+   */
+  @Override
+  @Nullable
+  public ReportHistogram drive(String input, Supplier<String> defaultHostNameSupplier,
+                               String customerId, @Nullable List<String> customSourceTags,
+                               @Nullable EarlyFilter earlyFilter) {
     ReportHistogram histogram = new ReportHistogram();
     histogram.setCustomer(customerId);
     // if the point has a timestamp, this would be overriden
     histogram.setTimestamp(Clock.now());
     final StringParser parser = new StringParser(input);
 
-    for (FormatterElement<ReportHistogram> element : elements) {
-      element.consume(parser, histogram);
+    if (!consumeElements(parser, histogram, earlyFilter)) {
+      return null;
     }
     if (parser.hasNext()) {
       throw new ParseException("Unexpected extra input: " + parser.next());
@@ -57,6 +70,9 @@ public class ReportHistogramIngesterFormatter extends AbstractIngesterFormatter<
     if (host == null) {
       host = defaultHostNameSupplier.get();
     }
+    if (earlyFilter != null && !earlyFilter.acceptSource(host)) {
+      return null;
+    }
     histogram.setHost(host);
     return histogram;
   }
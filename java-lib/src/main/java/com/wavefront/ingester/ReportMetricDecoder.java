@@ -17,24 +17,66 @@ public class ReportMetricDecoder implements ReportableEntityDecoder<String, Repo
   private static final AbstractIngesterFormatter<ReportMetric> FORMAT =
       ReportMetricIngesterFormatter.newBuilder().
           text(ReportMetric::setMetric).
+          nameFilterCheckpoint(ReportMetric::getMetric).
           value(ReportMetric::setValue).
           optionalTimestamp(ReportMetric::setTimestamp).
           annotationList(ReportMetric::setAnnotations).
           build();
   private final Supplier<String> hostNameSupplier;
   private List<String> customSourceTags;
+  @Nullable
+  private final EarlyFilter earlyFilter;
 
   public ReportMetricDecoder(@Nullable Supplier<String> hostNameSupplier,
                              List<String> customSourceTags) {
+    this(hostNameSupplier, customSourceTags, null);
+  }
+
+  /**
+   * @param hostNameSupplier default host name supplier.
+   * @param customSourceTags tags to use as source, in the order of preference.
+   * @param earlyFilter      optional filter to skip lines by metric name or source without
+   *                         decoding them fully. Rejected lines are not added to the output.
+   */
+  public ReportMetricDecoder(@Nullable Supplier<String> hostNameSupplier,
+                             List<String> customSourceTags,
+                             @Nullable EarlyFilter earlyFilter) {
     this.hostNameSupplier = hostNameSupplier;
     this.customSourceTags = customSourceTags;
+    this.earlyFilter = earlyFilter;
   }
 
   @Override
   public void decode(String msg, List<ReportMetric> out, String customerId, IngesterContext ctx) {
-    ReportMetric point = FORMAT.drive(msg, hostNameSupplier, customerId, customSourceTags, null, null, null, null, null, null, null);
-    if (out != null) {
+    ReportMetric point = FORMAT.drive(msg, hostNameSupplier, customerId, customSourceTags,
+        earlyFilter);
+    if (out != null && point != null) {
       out.add(point);
     }
   }
+
+  /**
+   * Decode only the metric name, value and timestamp, leaving tags unparsed until they are
+   * needed. If an early filter is set, the line is checked against it (the source is resolved
+   * only when the filter checks it).
+   *
+   * @param msg        line to decode.
+   * @param customerId customer id.
+   * @return partially decoded metric or null if the line has been rejected by the filter.
+   */
+  @Nullable
+  public LazyReportMetric decodeLazy(String msg, String customerId) {
+    LazyReportMetric point = new LazyReportMetric(msg, customerId, hostNameSupplier,
+        customSourceTags);
+    if (earlyFilter != null && (!earlyFilter.acceptName(point.getMetric()) ||
+        (earlyFilter.filtersSource() && !earlyFilter.acceptSource(point.getHost())))) {
+      return null;
+    }
+    return point;
+  }
+
+  static ReportMetric decodeFully(String msg, @Nullable Supplier<String> hostNameSupplier,
+                                  String customerId, @Nullable List<String> customSourceTags) {
+    return FORMAT.drive(msg, hostNameSupplier, customerId, customSourceTags, null);
+  }
 }
@@ -39,14 +39,27 @@ public class ReportMetricIngesterFormatter extends AbstractIngesterFormatter<Rep
                             @Nullable List<String> customLogTimestampTags, @Nullable List<String> customLogMessageTags,
                             List<String> customLogApplicationTags, List<String> customLogServiceTags,
                             @Nullable List<String> customLogLevelTags, @Nullable List<String> customLogExceptionTags, @Nullable IngesterContext ingesterContext) {
+    return drive(input, defaultHostNameSupplier, customerId, customSourceTags, null);
+  }
+
+  /**
+   * Parse a line, applying an optional early filter.
+   *
+   * @return parsed metric or null if the line has been rejected by the filter.
+   */
+  @Override
+  @Nullable
+  public ReportMetric drive(String input, Supplier<String> defaultHostNameSupplier,
+                            String customerId, @Nullable List<String> customSourceTags,
+                            @Nullable EarlyFilter earlyFilter) {
     ReportMetric point = new ReportMetric();
     point.setCustomer(customerId);
     // if the point has a timestamp, this would be overriden
     point.setTimestamp(Clock.now());
     final StringParser parser = new StringParser(input);
 
-    for (FormatterElement<ReportMetric> element : elements) {
-      element.consume(parser, point);
+    if (!consumeElements(parser, point, earlyFilter)) {
+      return null;
     }
     if (parser.hasNext()) {
       throw new ParseException("Unexpected extra input: " + parser.next());
@@ -60,6 +73,9 @@ public class ReportMetricIngesterFormatter extends AbstractIngesterFormatter<Rep
         host = defaultHostNameSupplier.get();
       }
     }
+    if (earlyFilter != null && !earlyFilter.acceptSource(host)) {
+      return null;
+    }
     point.setHost(host);
     return point;
   }
@@ -5,6 +5,8 @@ import com.google.common.base.Preconditions;
 import java.util.List;
 import java.util.function.Supplier;
 
+import javax.annotation.Nullable;
+
 import org.apache.commons.lang.StringUtils;
 
 import wavefront.report.Span;
@@ -20,26 +22,39 @@ public class SpanDecoder implements ReportableEntityDecoder<String, Span> {
 
   private static final AbstractIngesterFormatter<Span> FORMAT = SpanIngesterFormatter.newBuilder().
       text(Span::setName).
+      nameFilterCheckpoint(Span::getName).
       annotationList(Span::setAnnotations, x -> !StringUtils.isNumeric(x)).
       rawTimestamp(Span::setStartMillis).
       rawTimestamp(SpanDecoder::setDuration).
       build();
 
   private final Supplier<String> hostNameSupplier;
+  @Nullable
+  private final EarlyFilter earlyFilter;
 
   public SpanDecoder(String hostName) {
     this(() -> hostName);
   }
 
   public SpanDecoder(Supplier<String> hostNameSupplier) {
+    this(hostNameSupplier, null);
+  }
+
+  /**
+   * @param hostNameSupplier default host name supplier.
+   * @param earlyFilter      optional filter to skip lines by span name or source without
+   *                         decoding them fully. Rejected lines are not added to the output.
+   */
+  public SpanDecoder(Supplier<String> hostNameSupplier, @Nullable EarlyFilter earlyFilter) {
     Preconditions.checkNotNull(hostNameSupplier);
     this.hostNameSupplier = hostNameSupplier;
+    this.earlyFilter = earlyFilter;
   }
 
   @Override
   public void decode(String msg, List<Span> out, String customerId, IngesterContext ctx) {
-    Span span = FORMAT.drive(msg, hostNameSupplier, customerId, null, null, null, null, null, null, null, ctx);
-    if (out != null) {
+    Span span = FORMAT.drive(msg, hostNameSupplier, customerId, null, earlyFilter);
+    if (out != null && span != null) {
       out.add(span);
     }
   }
@@ -39,11 +39,24 @@ public class SpanIngesterFormatter extends AbstractIngesterFormatter<Span> {
                     @Nullable List<String> customLogMessageTags,
                     List<String> customLogApplicationTags, List<String> customLogServiceTags,
                     @Nullable List<String> customLogLevelTags,@Nullable List<String> customLogExceptionTags, @Nullable IngesterContext ingesterContext) {
+    return drive(input, defaultHostNameSupplier, customerId, customSourceTags, null);
+  }
+
+  /**
+   * Parse a line, applying an optional early filter.
+   *
+   * @return parsed span or null if the line has been rejected by the filter.
+   */
+  @Override
+  @Nullable
+  public Span drive(String input, @Nullable Supplier<String> defaultHostNameSupplier,
+                    String customerId, @Nullable List<String> customSourceTags,
+                    @Nullable EarlyFilter earlyFilter) {
     Span span = new Span();
     span.setCustomer(customerId);
     StringParser parser = new StringParser(input);
-    for (FormatterElement<Span> element : elements) {
-      element.consume(parser, span);
+    if (!consumeElements(parser, span, earlyFilter)) {
+      return null;
     }
     if (parser.hasNext()) {
       throw new ParseException("Unexpected extra input: " + parser.next());
@@ -90,6 +103,9 @@ public class SpanIngesterFormatter extends AbstractIngesterFormatter<Span> {
     if (span.getTraceId() == null) {
       throw new IllegalArgumentException("traceId can't be null: " + input);
     }
+    if (earlyFilter != null && !earlyFilter.acceptSource(span.getSource())) {
+      return null;
+    }
     return span;
   }
 }
@@ -15,6 +15,7 @@ import com.yammer.metrics.core.Clock;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.LogLinearHistogram;
 import com.yammer.metrics.core.Metered;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
@@ -34,6 +35,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
@@ -360,11 +362,12 @@ public abstract class JsonMetricsGenerator {
       json.writeEndObject();
     }
 
-    private void internalProcessWavefrontHistogram(WavefrontHistogram hist, Context context) throws Exception {
+    private void internalProcessWavefrontHistogram(List<WavefrontHistogram.MinuteBin> bins, Context context)
+        throws Exception {
       final JsonGenerator json = context.json;
       json.writeStartObject();
       json.writeArrayFieldStart("bins");
-      for (WavefrontHistogram.MinuteBin bin : hist.bins(clear)) {
+      for (WavefrontHistogram.MinuteBin bin : bins) {
 
         final Collection<Centroid> centroids = bin.getDist().centroids();
 
@@ -374,7 +377,7 @@ public abstract class JsonMetricsGenerator {
         // Start
         json.writeNumberField("startMillis", bin.getMinMillis());
         // Duration
-        json.writeNumberField("durationMillis", 60 * 1000);
+        json.writeNumberField("durationMillis", bin.getDurationMillis());
         // Means
         json.writeArrayFieldStart("means");
         for (Centroid c : centroids) {
@@ -397,7 +400,9 @@ public abstract class JsonMetricsGenerator {
     @Override
     public void processHistogram(MetricName name, Histogram histogram, Context context) throws Exception {
       if (histogram instanceof WavefrontHistogram) {
-        internalProcessWavefrontHistogram((WavefrontHistogram) histogram, context);
+        internalProcessWavefrontHistogram(((WavefrontHistogram) histogram).bins(clear), context);
+      } else if (histogram instanceof LogLinearHistogram) {
+        internalProcessWavefrontHistogram(((LogLinearHistogram) histogram).bins(clear), context);
       } else /*Treat as standard yammer histogram */ {
         internalProcessYammerHistogram(histogram, context);
       }
@@ -0,0 +1,140 @@
+package com.wavefront.predicates;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import wavefront.report.Annotation;
+
+/**
+ * Key-value lookup over a list of annotations. The first lookup is a linear scan, which is the
+ * cheapest option when only one key is needed; a hash map is built lazily on the second lookup
+ * and reused for all subsequent ones. If there are duplicate keys, the first value wins.
+ *
+ * While an expression is evaluated within a scope (see {@link #evaluate}), all lookups for the
+ * scope's entity share the same index, so an expression that references several tags (i.e.
+ * {@code {{a}} = 'x' and {{b}} = 'y'}) indexes the entity's annotations at most once. Outside
+ * of a scope, each caller gets its own index.
+ *
+ * Not thread-safe, meant to be scoped to a single evaluation.
+ */
+class AnnotationIndex {
+  private static final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+  private final List<Annotation> annotations;
+  private boolean scanned = false;
+  private Map<String, String> index;
+
+  AnnotationIndex(List<Annotation> annotations) {
+    this.annotations = annotations;
+  }
+
+  /**
+   * Returns the index for an entity's annotations, shared with all other lookups for the same
+   * entity if called within a scope for that entity.
+   *
+   * @param entity      entity the annotations belong to.
+   * @param annotations entity's annotations.
+   * @return index
+   */
+  static AnnotationIndex of(Object entity, List<Annotation> annotations) {
+    Scope scope = currentScope.get();
+    if (scope == null || scope.entity != entity) {
+      return new AnnotationIndex(annotations);
+    }
+    if (scope.index == null || scope.index.annotations != annotations) {
+      scope.index = new AnnotationIndex(annotations);
+    }
+    return scope.index;
+  }
+
+  /**
+   * Evaluates an expression within a scope for the entity.
+   *
+   * @param expression expression to evaluate.
+   * @param entity     entity to evaluate the expression for.
+   * @return expression value
+   */
+  static double evaluate(PredicateEvalExpression expression, @Nullable Object entity) {
+    Scope previous = openScope(entity);
+    try {
+      return expression.getValue(entity);
+    } finally {
+      closeScope(previous);
+    }
+  }
+
+  /**
+   * Starts sharing the index for lookups for the entity on the current thread. The entity
+   * must not be modified until the scope is closed.
+   *
+   * @param entity entity.
+   * @return previous scope, to pass to {@link #closeScope}.
+   */
+  @Nullable
+  static Scope openScope(@Nullable Object entity) {
+    Scope previous = currentScope.get();
+    if (previous == null || previous.entity != entity) {
+      currentScope.set(new Scope(entity));
+    }
+    return previous;
+  }
+
+  /**
+   * Restores the scope that was current before the matching {@link #openScope} call.
+   *
+   * @param previous scope returned by {@link #openScope}.
+   */
+  static void closeScope(@Nullable Scope previous) {
+    if (previous == null) {
+      currentScope.remove();
+    } else {
+      currentScope.set(previous);
+    }
+  }
+
+  /**
+   * Returns the value of the first annotation with the specified key.
+   *
+   * @param key annotation key.
+   * @return annotation value or null if there is no annotation with this key.
+   */
+  @Nullable
+  String get(String key) {
+    if (index == null) {
+      if (!scanned) {
+        scanned = true;
+        for (Annotation annotation : annotations) {
+          if (annotation.getKey().equals(key)) {
+            return annotation.getValue();
+          }
+        }
+        return null;
+      }
+      index = new HashMap<>(annotations.size() * 2);
+      for (Annotation annotation : annotations) {
+        index.putIfAbsent(annotation.getKey(), annotation.getValue());
+      }
+    }
+    return index.get(key);
+  }
+
+  @VisibleForTesting
+  boolean isIndexed() {
+    return index != null;
+  }
+
+  static final class Scope {
+    @Nullable
+    private final Object entity;
+    private AnnotationIndex index;
+
+    private Scope(@Nullable Object entity) {
+      this.entity = entity;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package com.wavefront.predicates;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+import javax.annotation.Nullable;
+
+import static com.wavefront.predicates.PredicateEvalExpression.asDouble;
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * Evaluates an expression over a batch of entities at once and returns a selection bitmap,
+ * as a batch counterpart of {@link ExpressionPredicate}.
+ *
+ * Instead of walking the whole tree once per entity, the tree is walked once per batch and
+ * each node is evaluated over all remaining candidates in a loop:
+ * <ul>
+ *   <li>{@code and} operands only see entities that passed all previous operands, {@code or}
+ *   operands only see entities that haven't matched yet.</li>
+ *   <li>Numeric comparisons and arithmetic are evaluated column-wise: both sides are
+ *   evaluated into value arrays for all candidates, then combined in a single loop.</li>
+ *   <li>{@code not} evaluates its operand over the candidates and keeps the ones that didn't
+ *   match.</li>
+ *   <li>Constant operands are evaluated once per batch.</li>
+ *   <li>Any other node (string comparisons, functions, etc) is evaluated per entity, but
+ *   only for candidates that are still alive at that point.</li>
+ * </ul>
+ * Results are identical to evaluating {@link ExpressionPredicate#test} on every entity.
+ * Instances are thread-safe, use {@link Predicates#fromPredicateEvalExpressionBatch} to
+ * create one.
+ */
+public class BatchExpressionPredicate<T> {
+  private final PredicateEvalExpression expression;
+
+  public BatchExpressionPredicate(PredicateEvalExpression expression) {
+    this.expression = expression;
+  }
+
+  /**
+   * Evaluate the expression over a batch.
+   *
+   * @param batch entities to evaluate.
+   * @return bitmap of entities (by their position in the batch) that satisfy the expression.
+   */
+  public BitSet test(List<? extends T> batch) {
+    BitSet all = new BitSet(batch.size());
+    all.set(0, batch.size());
+    return test(batch, all);
+  }
+
+  /**
+   * Evaluate the expression over a subset of a batch.
+   *
+   * @param batch     entities to evaluate.
+   * @param selection positions of entities to evaluate, not modified.
+   * @return bitmap of selected entities that satisfy the expression.
+   */
+  public BitSet test(List<? extends T> batch, BitSet selection) {
+    if (selection.isEmpty()) return new BitSet();
+    return select(expression, batch, (BitSet) selection.clone());
+  }
+
+  /**
+   * Narrows down candidates to entities that satisfy the expression. May modify and return
+   * the candidates bitmap.
+   */
+  private static BitSet select(PredicateEvalExpression expression, List<?> batch,
+                               BitSet candidates) {
+    if (expression instanceof ConstantExpression) {
+      if (!isTrue(expression.getValue(null))) {
+        candidates.clear();
+      }
+      return candidates;
+    } else if (expression instanceof LogicalExpression) {
+      LogicalExpression logical = (LogicalExpression) expression;
+      return logical.isConjunction() ?
+          selectAll(logical.getOperands(), batch, candidates) :
+          selectAny(logical.getOperands(), batch, candidates);
+    } else if (expression instanceof NotExpression) {
+      BitSet matched = select(((NotExpression) expression).getOperand(), batch,
+          (BitSet) candidates.clone());
+      candidates.andNot(matched);
+      return candidates;
+    } else if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      PredicateEvalExpression[] operands = {math.getLeft(), math.getRight()};
+      switch (math.getOp()) {
+        case "and":
+          return selectAll(operands, batch, candidates);
+        case "or":
+          return selectAny(operands, batch, candidates);
+        case "=":
+        case ">":
+        case "<":
+        case "<=":
+        case ">=":
+        case "!=":
+          return compare(math, batch, candidates);
+      }
+    }
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      if (!isTrue(AnnotationIndex.evaluate(expression, batch.get(i)))) {
+        candidates.clear(i);
+      }
+    }
+    return candidates;
+  }
+
+  private static BitSet selectAll(PredicateEvalExpression[] operands, List<?> batch,
+                                  BitSet candidates) {
+    for (PredicateEvalExpression operand : operands) {
+      candidates = select(operand, batch, candidates);
+      if (candidates.isEmpty()) break;
+    }
+    return candidates;
+  }
+
+  private static BitSet selectAny(PredicateEvalExpression[] operands, List<?> batch,
+                                  BitSet candidates) {
+    BitSet result = new BitSet(batch.size());
+    for (PredicateEvalExpression operand : operands) {
+      BitSet matched = select(operand, batch, (BitSet) candidates.clone());
+      result.or(matched);
+      candidates.andNot(matched);
+      if (candidates.isEmpty()) break;
+    }
+    return result;
+  }
+
+  private static BitSet compare(MathExpression math, List<?> batch, BitSet candidates) {
+    Column left = evaluate(math.getLeft(), batch, candidates);
+    Column right = evaluate(math.getRight(), batch, candidates);
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      double l = left.get(i);
+      double r = right.get(i);
+      boolean result;
+      switch (math.getOp()) {
+        case "=":
+          result = l == r;
+          break;
+        case ">":
+          result = l > r;
+          break;
+        case "<":
+          result = l < r;
+          break;
+        case "<=":
+          result = l <= r;
+          break;
+        case ">=":
+          result = l >= r;
+          break;
+        default:
+          result = l != r;
+      }
+      if (!result) {
+        candidates.clear(i);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Evaluates a numeric expression for all candidates.
+   */
+  private static Column evaluate(PredicateEvalExpression expression, List<?> batch,
+                                 BitSet candidates) {
+    if (expression instanceof ConstantExpression) {
+      return new Column(expression.getValue(null), null);
+    }
+    if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      DoubleBinaryOperator operator = arithmetic(math.getOp());
+      if (operator != null) {
+        Column left = evaluate(math.getLeft(), batch, candidates);
+        Column right = evaluate(math.getRight(), batch, candidates);
+        if (left.values == null && right.values == null) {
+          return new Column(operator.applyAsDouble(left.constant, right.constant), null);
+        }
+        double[] values = new double[batch.size()];
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+          values[i] = operator.applyAsDouble(left.get(i), right.get(i));
+        }
+        return new Column(0, values);
+      }
+    }
+    double[] values = new double[batch.size()];
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      values[i] = AnnotationIndex.evaluate(expression, batch.get(i));
+    }
+    return new Column(0, values);
+  }
+
+  /**
+   * Same semantics as {@link MathExpression#getValue}.
+   */
+  @Nullable
+  private static DoubleBinaryOperator arithmetic(String op) {
+    switch (op) {
+      case "+":
+        return (l, r) -> l + r;
+      case "-":
+        return (l, r) -> l - r;
+      case "*":
+        return (l, r) -> l * r;
+      case "/":
+        return (l, r) -> l / r;
+      case "%":
+        return (l, r) -> l % r;
+      case "=":
+        return (l, r) -> asDouble(l == r);
+      case ">":
+        return (l, r) -> asDouble(l > r);
+      case "<":
+        return (l, r) -> asDouble(l < r);
+      case "<=":
+        return (l, r) -> asDouble(l <= r);
+      case ">=":
+        return (l, r) -> asDouble(l >= r);
+      case "!=":
+        return (l, r) -> asDouble(l != r);
+      case "&":
+        return (l, r) -> (long) l & (long) r;
+      case "|":
+        return (l, r) -> (long) l | (long) r;
+      case "^":
+        return (l, r) -> (long) l ^ (long) r;
+      case ">>":
+        return (l, r) -> (long) l >> (long) r;
+      case ">>>":
+        return (l, r) -> (long) l >>> (long) r;
+      case "<<":
+      case "<<<":
+        return (l, r) -> (long) l << (long) r;
+      default:
+        // "and"/"or" short-circuit, so they are evaluated per entity
+        return null;
+    }
+  }
+
+  /**
+   * Evaluated values of a numeric expression, either a single constant or one value per
+   * batch position.
+   */
+  private static class Column {
+    final double constant;
+    @Nullable
+    final double[] values;
+
+    Column(double constant, @Nullable double[] values) {
+      this.constant = constant;
+      this.values = values;
+    }
+
+    double get(int index) {
+      return values == null ? constant : values[index];
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.wavefront.predicates;
 
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
@@ -13,21 +14,35 @@ import com.github.benmanes.caffeine.cache.LoadingCache;
  * @author vasily@wavefront.com.
  */
 public class CachingRegexMatcher implements BiFunction<String, String, Boolean> {
-  private final LoadingCache<String, Pattern> patternCache;
+  private final LoadingCache<String, Predicate<String>> patternCache;
 
   public CachingRegexMatcher() {
     this(0);
   }
 
   public CachingRegexMatcher(int flags) {
-     this.patternCache = Caffeine.newBuilder().
+    this.patternCache = Caffeine.newBuilder().
         maximumSize(10000).
         expireAfterAccess(1, TimeUnit.MINUTES).
-        build(regex -> Pattern.compile(regex, flags));
+        build(regex -> {
+          Pattern pattern = Pattern.compile(regex, flags);
+          return s -> pattern.matcher(s).matches();
+        });
+  }
+
+  /**
+   * @param caseInsensitive whether matching should be case-insensitive.
+   * @param linearTime      whether to use the linear-time (re2j) engine.
+   */
+  public CachingRegexMatcher(boolean caseInsensitive, boolean linearTime) {
+    this.patternCache = Caffeine.newBuilder().
+        maximumSize(10000).
+        expireAfterAccess(1, TimeUnit.MINUTES).
+        build(regex -> RegexCompiler.compile(regex, caseInsensitive, linearTime));
   }
 
   @Override
   public Boolean apply(String s, String s2) {
-    return patternCache.get(s2).matcher(s).matches();
+    return patternCache.get(s2).test(s);
   }
 }
@@ -0,0 +1,126 @@
+package com.wavefront.predicates;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.wavefront.api.agent.SpanSamplingPolicy;
+
+import wavefront.report.Span;
+
+/**
+ * Holds compiled predicates for the currently active span sampling policies
+ * ({@link com.wavefront.api.agent.AgentConfiguration#getActiveSpanSamplingPolicies()}).
+ * On every {@link #update}, the new policy list is diffed against the current one, and only
+ * new or changed policies are compiled; compiled predicates for unchanged policies are reused.
+ * Policies with invalid expressions are logged and skipped.
+ */
+public class CompiledSpanSamplingPolicies {
+  private static final Logger logger =
+      Logger.getLogger(CompiledSpanSamplingPolicies.class.getCanonicalName());
+
+  private volatile List<CompiledPolicy> policies = ImmutableList.of();
+  private volatile SpanSamplingPolicyEvaluator evaluator =
+      new SpanSamplingPolicyEvaluator(ImmutableList.of());
+  @Nullable
+  private List<SpanSamplingPolicy> lastUpdate = null;
+
+  /**
+   * Replace active policies.
+   *
+   * @param newPolicies new list of active policies, null means no policies.
+   * @return true if the list of active policies has changed.
+   */
+  public synchronized boolean update(@Nullable List<SpanSamplingPolicy> newPolicies) {
+    List<SpanSamplingPolicy> update = newPolicies == null ? ImmutableList.of() : newPolicies;
+    if (update.equals(lastUpdate)) {
+      return false;
+    }
+    Map<SpanSamplingPolicy, CompiledPolicy> existing = new HashMap<>();
+    for (CompiledPolicy policy : policies) {
+      existing.put(policy.getPolicy(), policy);
+    }
+    ImmutableList.Builder<CompiledPolicy> result = ImmutableList.builder();
+    for (SpanSamplingPolicy policy : update) {
+      CompiledPolicy compiled = existing.get(policy);
+      if (compiled == null) {
+        try {
+          compiled = new CompiledPolicy(policy,
+              Predicates.parsePredicateEvalExpression(policy.getExpression()));
+        } catch (ExpressionSyntaxException | IllegalArgumentException e) {
+          logger.warning("Policy " + policy.getPolicyId() + " has invalid expression '" +
+              policy.getExpression() + "', ignoring: " + e.getMessage());
+          continue;
+        }
+      }
+      result.add(compiled);
+    }
+    lastUpdate = ImmutableList.copyOf(update);
+    policies = result.build();
+    evaluator = new SpanSamplingPolicyEvaluator(policies);
+    return true;
+  }
+
+  /**
+   * @return currently active policies, in the order they were provided.
+   */
+  public List<CompiledPolicy> getPolicies() {
+    return policies;
+  }
+
+  /**
+   * @return evaluator for currently active policies, that finds the applicable policy for a
+   * span without evaluating every policy independently.
+   */
+  public SpanSamplingPolicyEvaluator getEvaluator() {
+    return evaluator;
+  }
+
+  /**
+   * A span sampling policy with its expression compiled into a predicate.
+   */
+  public static class CompiledPolicy {
+    private final SpanSamplingPolicy policy;
+    private final PredicateEvalExpression expression;
+    private final Predicate<Span> predicate;
+
+    CompiledPolicy(SpanSamplingPolicy policy, PredicateEvalExpression expression) {
+      this.policy = policy;
+      this.expression = expression;
+      this.predicate = new ExpressionPredicate<>(expression);
+    }
+
+    @Nonnull
+    public SpanSamplingPolicy getPolicy() {
+      return policy;
+    }
+
+    @Nonnull
+    public Predicate<Span> getPredicate() {
+      return predicate;
+    }
+
+    PredicateEvalExpression getExpression() {
+      return expression;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      return Objects.equals(policy, ((CompiledPolicy) o).policy);
+    }
+
+    @Override
+    public int hashCode() {
+      return policy.hashCode();
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package com.wavefront.predicates;
+
+/**
+ * An expression that always evaluates to the same numeric value.
+ */
+public class ConstantExpression implements PredicateEvalExpression {
+  private final double value;
+
+  public ConstantExpression(double value) {
+    this.value = value;
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    return value;
+  }
+}
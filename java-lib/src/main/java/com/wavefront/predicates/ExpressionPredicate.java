@@ -5,7 +5,8 @@ import java.util.function.Predicate;
 import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
 
 /**
- * {@link PredicateEvalExpression} to {@link Predicate<T>} adapter.
+ * {@link PredicateEvalExpression} to {@link Predicate<T>} adapter. Each entity is evaluated
+ * within an {@link AnnotationIndex} scope, so its annotations are indexed at most once.
  *
  * @author vasily@wavefront.com.
  */
@@ -18,6 +19,6 @@ public class ExpressionPredicate<T> implements Predicate<T> {
 
   @Override
   public boolean test(T t) {
-    return isTrue(wrapped.getValue(t));
+    return isTrue(AnnotationIndex.evaluate(wrapped, t));
   }
 }
@@ -0,0 +1,39 @@
+package com.wavefront.predicates;
+
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * Conditional expression ({@code if(cond, then, else)} or {@code cond ? then : else}): only
+ * one of the branches is evaluated.
+ */
+public class IffExpression implements PredicateEvalExpression {
+  private final PredicateEvalExpression condition;
+  private final PredicateEvalExpression thenExpression;
+  private final PredicateEvalExpression elseExpression;
+
+  public IffExpression(PredicateEvalExpression condition, PredicateEvalExpression thenExpression,
+                       PredicateEvalExpression elseExpression) {
+    this.condition = condition;
+    this.thenExpression = thenExpression;
+    this.elseExpression = elseExpression;
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    return isTrue(condition.getValue(entity)) ?
+        thenExpression.getValue(entity) :
+        elseExpression.getValue(entity);
+  }
+
+  PredicateEvalExpression getCondition() {
+    return condition;
+  }
+
+  PredicateEvalExpression getThen() {
+    return thenExpression;
+  }
+
+  PredicateEvalExpression getElse() {
+    return elseExpression;
+  }
+}
@@ -0,0 +1,130 @@
+package com.wavefront.predicates;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * A flattened chain of {@code and} or {@code or} operands, evaluated left to right with
+ * short-circuiting. Operands are expected to be ordered by {@link PredicateExpressionOptimizer}
+ * so that cheap and selective ones run first. When selectivity tracking is enabled, the
+ * expression counts how often each operand short-circuits the chain and periodically re-sorts
+ * operands by cost per short-circuit probability. Operands that may throw keep their position,
+ * and other operands are only re-sorted between them (see {@link #sortReorderable}).
+ */
+public class LogicalExpression implements PredicateEvalExpression {
+  /**
+   * On average, operands are re-sorted once per this many evaluations.
+   */
+  static final int REORDER_INTERVAL = 4096;
+
+  private final boolean conjunction;
+  private final boolean trackSelectivity;
+  private volatile Operand[] operands;
+
+  LogicalExpression(boolean conjunction, List<PredicateEvalExpression> operands,
+                    List<Double> costs, boolean trackSelectivity) {
+    this.conjunction = conjunction;
+    this.trackSelectivity = trackSelectivity;
+    this.operands = new Operand[operands.size()];
+    for (int i = 0; i < operands.size(); i++) {
+      this.operands[i] = new Operand(operands.get(i), costs.get(i),
+          PredicateExpressionOptimizer.isReorderable(operands.get(i)));
+    }
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    Operand[] current = operands;
+    if (trackSelectivity) {
+      if (ThreadLocalRandom.current().nextInt(REORDER_INTERVAL) == 0) {
+        reorder();
+      }
+      for (Operand operand : current) {
+        boolean result = isTrue(operand.expression.getValue(entity));
+        operand.evaluated.increment();
+        if (result != conjunction) {
+          operand.shortCircuited.increment();
+          return conjunction ? 0 : 1;
+        }
+      }
+    } else {
+      for (Operand operand : current) {
+        if (isTrue(operand.expression.getValue(entity)) != conjunction) {
+          return conjunction ? 0 : 1;
+        }
+      }
+    }
+    return conjunction ? 1 : 0;
+  }
+
+  /**
+   * @return true for {@code and}, false for {@code or}.
+   */
+  boolean isConjunction() {
+    return conjunction;
+  }
+
+  /**
+   * @return operands in their current evaluation order.
+   */
+  PredicateEvalExpression[] getOperands() {
+    return Arrays.stream(operands).map(x -> x.expression).toArray(PredicateEvalExpression[]::new);
+  }
+
+  void reorder() {
+    Operand[] sorted = operands.clone();
+    sortReorderable(sorted, x -> x.reorderable, Comparator.comparingDouble(Operand::rank));
+    operands = sorted;
+  }
+
+  /**
+   * Stable-sort runs of reorderable items between items that are not reorderable, which stay
+   * in place, so that items that depend on the ones before them to be safe to evaluate (or that
+   * may throw) are still evaluated after all of them.
+   *
+   * @param items       items to sort in place.
+   * @param reorderable whether an item can be moved.
+   * @param comparator  order of items within a run.
+   * @param <T>         type of items.
+   */
+  static <T> void sortReorderable(T[] items, Predicate<T> reorderable,
+                                  Comparator<? super T> comparator) {
+    int start = 0;
+    for (int i = 0; i <= items.length; i++) {
+      if (i == items.length || !reorderable.test(items[i])) {
+        Arrays.sort(items, start, i, comparator);
+        start = i + 1;
+      }
+    }
+  }
+
+  private static class Operand {
+    final PredicateEvalExpression expression;
+    final double cost;
+    final boolean reorderable;
+    final LongAdder evaluated = new LongAdder();
+    final LongAdder shortCircuited = new LongAdder();
+
+    Operand(PredicateEvalExpression expression, double cost, boolean reorderable) {
+      this.expression = expression;
+      this.cost = cost;
+      this.reorderable = reorderable;
+    }
+
+    /**
+     * Expected cost of evaluating this operand per short-circuit, lower is better. Until there
+     * are any statistics, the operand is assumed to short-circuit half of the time.
+     */
+    double rank() {
+      long total = evaluated.sum();
+      double probability = total == 0 ? 0.5 : (double) shortCircuited.sum() / total;
+      return (cost + 1) / Math.max(probability, 0.001);
+    }
+  }
+}
@@ -65,4 +65,16 @@ public class MathExpression implements PredicateEvalExpression {
         throw new IllegalArgumentException("Unknown operator: " + op);
     }
   }
+
+  PredicateEvalExpression getLeft() {
+    return left;
+  }
+
+  PredicateEvalExpression getRight() {
+    return right;
+  }
+
+  String getOp() {
+    return op;
+  }
 }
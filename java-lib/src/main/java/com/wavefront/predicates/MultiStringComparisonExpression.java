@@ -3,7 +3,6 @@ package com.wavefront.predicates;
 import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
@@ -29,14 +28,16 @@ public class MultiStringComparisonExpression implements PredicateEvalExpression
   private final String scope;
   private final StringExpression arg;
   private final PredicateMatchOp matchOp;
+  private final String op;
   private final BiFunction<String, String, Boolean> cmp;
 
   private MultiStringComparisonExpression(String scope, StringExpression arg,
-                                          PredicateMatchOp matchOp,
+                                          PredicateMatchOp matchOp, String op,
                                           BiFunction<String, String, Boolean> cmp) {
     this.scope = scope;
     this.arg = arg;
     this.matchOp = matchOp;
+    this.op = op;
     this.cmp = cmp;
   }
 
@@ -90,13 +91,14 @@ public class MultiStringComparisonExpression implements PredicateEvalExpression
           " is not supported!");
     }
 
+    String argValue = arg.getString(entity);
     switch (matchOp) {
       case ALL:
-        return asDouble(annotations.stream().allMatch(x -> cmp.apply(x, arg.getString(entity))));
+        return asDouble(annotations.stream().allMatch(x -> cmp.apply(x, argValue)));
       case ANY:
-        return asDouble(annotations.stream().anyMatch(x -> cmp.apply(x, arg.getString(entity))));
+        return asDouble(annotations.stream().anyMatch(x -> cmp.apply(x, argValue)));
       case NONE:
-        return asDouble(annotations.stream().noneMatch(x -> cmp.apply(x, arg.getString(entity))));
+        return asDouble(annotations.stream().noneMatch(x -> cmp.apply(x, argValue)));
       default :
         throw new IllegalArgumentException("Unknown matchOp type: " + matchOp);
     }
@@ -104,44 +106,92 @@ public class MultiStringComparisonExpression implements PredicateEvalExpression
 
   public static PredicateEvalExpression of(String scope, StringExpression argument,
                                            PredicateMatchOp matchOp, String op) {
+    return of(scope, argument, matchOp, op, false);
+  }
+
+  /**
+   * Create a multi-string comparison expression.
+   *
+   * @param scope           name of the annotation to compare.
+   * @param argument        value to compare with.
+   * @param matchOp         aggregation method.
+   * @param op              comparison operator.
+   * @param linearTimeRegex whether to use the linear-time (re2j) engine for regex operators.
+   * @return expression
+   */
+  public static PredicateEvalExpression of(String scope, StringExpression argument,
+                                           PredicateMatchOp matchOp, String op,
+                                           boolean linearTimeRegex) {
     switch (op) {
       case "=":
       case "equals":
-        return new MultiStringComparisonExpression(scope, argument, matchOp, String::equals);
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            String::equals);
       case "startsWith":
-        return new MultiStringComparisonExpression(scope, argument, matchOp, String::startsWith);
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            String::startsWith);
       case "endsWith":
-        return new MultiStringComparisonExpression(scope, argument, matchOp, String::endsWith);
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            String::endsWith);
       case "contains":
-        return new MultiStringComparisonExpression(scope, argument, matchOp, String::contains);
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            String::contains);
       case "matches":
         Predicate<String> match = PatternMatchPredicate.buildPredicate(argument.getString(null), false);
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             (s1, s2) -> match.test(s1));
       case "regexMatch":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
-            new CachingRegexMatcher());
+        if (PredicateExpressionOptimizer.isConstant(argument)) {
+          Predicate<String> regex = RegexCompiler.compile(argument.getString(null), false,
+              linearTimeRegex);
+          return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+              (s1, s2) -> regex.test(s1));
+        }
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            new CachingRegexMatcher(false, linearTimeRegex));
       case "equalsIgnoreCase":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             String::equalsIgnoreCase);
       case "startsWithIgnoreCase":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             StringUtils::startsWithIgnoreCase);
       case "endsWithIgnoreCase":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             StringUtils::endsWithIgnoreCase);
       case "containsIgnoreCase":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             StringUtils::containsIgnoreCase);
       case "matchesIgnoreCase":
         Predicate<String> matchCI = PatternMatchPredicate.buildPredicate(argument.getString(null), true);
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
             (s1, s2) -> matchCI.test(s1));
       case "regexMatchIgnoreCase":
-        return new MultiStringComparisonExpression(scope, argument, matchOp,
-            new CachingRegexMatcher(Pattern.CASE_INSENSITIVE));
+        if (PredicateExpressionOptimizer.isConstant(argument)) {
+          Predicate<String> regex = RegexCompiler.compile(argument.getString(null), true,
+              linearTimeRegex);
+          return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+              (s1, s2) -> regex.test(s1));
+        }
+        return new MultiStringComparisonExpression(scope, argument, matchOp, op,
+            new CachingRegexMatcher(true, linearTimeRegex));
       default:
         throw new IllegalArgumentException(op + " is not handled");
     }
   }
+
+  String getScope() {
+    return scope;
+  }
+
+  StringExpression getArgument() {
+    return arg;
+  }
+
+  PredicateMatchOp getMatchOp() {
+    return matchOp;
+  }
+
+  String getOp() {
+    return op;
+  }
 }
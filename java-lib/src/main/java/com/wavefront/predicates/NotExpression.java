@@ -0,0 +1,24 @@
+package com.wavefront.predicates;
+
+import static com.wavefront.predicates.PredicateEvalExpression.asDouble;
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * Logical negation ({@code not}) of an expression.
+ */
+public class NotExpression implements PredicateEvalExpression {
+  private final PredicateEvalExpression operand;
+
+  public NotExpression(PredicateEvalExpression operand) {
+    this.operand = operand;
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    return asDouble(!isTrue(operand.getValue(entity)));
+  }
+
+  PredicateEvalExpression getOperand() {
+    return operand;
+  }
+}
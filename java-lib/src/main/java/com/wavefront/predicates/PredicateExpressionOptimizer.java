@@ -0,0 +1,306 @@
+package com.wavefront.predicates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Optimization pass for expression trees produced by {@link PredicateExpressionVisitorImpl}.
+ * <ul>
+ *   <li>Folds sub-trees that only depend on literals into {@link ConstantExpression}.</li>
+ *   <li>Converts {@code in (...)} lists of literals into hash set lookups.</li>
+ *   <li>Flattens nested {@code and}/{@code or} chains into a {@link LogicalExpression}, drops
+ *   operands that can't affect the result and orders the rest by estimated cost, so that the
+ *   cheapest operands run first. Optionally, the order can be adjusted at runtime based on
+ *   observed selectivity of each operand. Only operands that can't throw (see
+ *   {@link #isReorderable}) are moved, and never across an operand that can, since an earlier
+ *   operand may be guarding it, i.e. {@code "{{x}}".length() >= 3 and "{{x}}".left(3) = "abc"}.
+ *   </li>
+ * </ul>
+ * The optimizer recurses into arithmetic, {@code and}/{@code or}, {@code not} and conditional
+ * ({@code if()} and {@code ?:}) nodes; a conditional with a constant condition is replaced with
+ * the branch it selects. Nodes that the optimizer doesn't recognize are left as is.
+ */
+public abstract class PredicateExpressionOptimizer {
+  static final double COST_CONSTANT = 0;
+  static final double COST_SIMPLE = 1;
+  static final double COST_PLACEHOLDER = 4;
+  static final double COST_PATTERN = 5;
+  static final double COST_REGEX = 20;
+  static final double COST_UNKNOWN = 10;
+
+  private PredicateExpressionOptimizer() {
+  }
+
+  /**
+   * Optimize an expression tree, ordering boolean operands by their static cost estimates.
+   *
+   * @param expression expression to optimize.
+   * @return optimized expression.
+   */
+  public static PredicateEvalExpression optimize(PredicateEvalExpression expression) {
+    return optimize(expression, false);
+  }
+
+  /**
+   * Optimize an expression tree.
+   *
+   * @param expression       expression to optimize.
+   * @param trackSelectivity if true, boolean operands are periodically re-ordered based on
+   *                         statistics gathered at runtime, at the cost of slightly more
+   *                         expensive evaluation.
+   * @return optimized expression.
+   */
+  public static PredicateEvalExpression optimize(PredicateEvalExpression expression,
+                                                 boolean trackSelectivity) {
+    if (expression instanceof MathExpression) {
+      return optimizeMath((MathExpression) expression, trackSelectivity);
+    } else if (expression instanceof LogicalExpression) {
+      LogicalExpression logical = (LogicalExpression) expression;
+      return optimizeLogical(Arrays.asList(logical.getOperands()), logical.isConjunction(),
+          trackSelectivity);
+    } else if (expression instanceof NotExpression) {
+      PredicateEvalExpression operand = ((NotExpression) expression).getOperand();
+      PredicateEvalExpression optimized = optimize(operand, trackSelectivity);
+      NotExpression result = optimized == operand ? (NotExpression) expression :
+          new NotExpression(optimized);
+      return optimized instanceof ConstantExpression ?
+          new ConstantExpression(result.getValue(null)) : result;
+    } else if (expression instanceof IffExpression) {
+      return optimizeIff((IffExpression) expression, trackSelectivity);
+    } else if (expression instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) expression;
+      boolean rightConstant = comparison.isPrecompiled() || isConstant(comparison.getRight());
+      if (isConstant(comparison.getLeft()) && rightConstant) {
+        return new ConstantExpression(expression.getValue(null));
+      }
+    } else if (expression instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) expression;
+      if (!in.isHashed() && in.getCandidates().stream().
+          allMatch(PredicateExpressionOptimizer::isConstant)) {
+        Set<String> constants = in.getCandidates().stream().map(x -> x.getString(null)).
+            collect(ImmutableSet.toImmutableSet());
+        if (isConstant(in.getLeft())) {
+          return new ConstantExpression(
+              PredicateEvalExpression.asDouble(constants.contains(in.getLeft().getString(null))));
+        }
+        return new StringInExpression(in.getLeft(), in.getCandidates(), constants);
+      }
+    }
+    return expression;
+  }
+
+  /**
+   * Estimate relative cost of evaluating an expression. Only meant to be used for ordering
+   * operands, the absolute value is meaningless.
+   *
+   * @param expression expression to estimate.
+   * @return cost estimate.
+   */
+  static double estimateCost(PredicateEvalExpression expression) {
+    if (expression instanceof ConstantExpression) {
+      return COST_CONSTANT;
+    } else if (expression instanceof PropertyAccessorExpression) {
+      return COST_SIMPLE;
+    } else if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      return COST_SIMPLE + estimateCost(math.getLeft()) + estimateCost(math.getRight());
+    } else if (expression instanceof LogicalExpression) {
+      double cost = COST_SIMPLE;
+      for (PredicateEvalExpression operand : ((LogicalExpression) expression).getOperands()) {
+        cost += estimateCost(operand);
+      }
+      return cost;
+    } else if (expression instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) expression;
+      double cost = estimateStringCost(comparison.getLeft());
+      if (!comparison.isPrecompiled()) {
+        cost += estimateStringCost(comparison.getRight());
+      }
+      return cost + estimateOpCost(comparison.getOp());
+    } else if (expression instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) expression;
+      double cost = COST_SIMPLE + estimateStringCost(in.getLeft());
+      if (!in.isHashed()) {
+        for (StringExpression candidate : in.getCandidates()) {
+          cost += COST_SIMPLE + estimateStringCost(candidate);
+        }
+      }
+      return cost;
+    } else if (expression instanceof MultiStringComparisonExpression) {
+      return COST_PLACEHOLDER * 2;
+    } else if (expression instanceof NotExpression) {
+      return COST_SIMPLE + estimateCost(((NotExpression) expression).getOperand());
+    } else if (expression instanceof IffExpression) {
+      IffExpression iff = (IffExpression) expression;
+      return COST_SIMPLE + estimateCost(iff.getCondition()) +
+          Math.max(estimateCost(iff.getThen()), estimateCost(iff.getElse()));
+    }
+    return COST_UNKNOWN;
+  }
+
+  /**
+   * Estimate relative cost of evaluating a string expression (see {@link #estimateCost}).
+   *
+   * @param expression expression to estimate.
+   * @return cost estimate.
+   */
+  static double estimateStringCost(StringExpression expression) {
+    if (expression instanceof TemplateStringExpression) {
+      return COST_PLACEHOLDER * ((TemplateStringExpression) expression).getPlaceholderCount();
+    }
+    return COST_UNKNOWN;
+  }
+
+  /**
+   * Whether an expression can be evaluated in any order relative to its siblings, i.e. it can't
+   * throw and has no side effects. Only recognizes literals, property accessors, arithmetic and
+   * comparisons of plain (template) strings; everything else, including string functions and
+   * regexes compiled at runtime, is assumed to throw.
+   *
+   * @param expression expression to check.
+   * @return true if the expression can be reordered.
+   */
+  static boolean isReorderable(PredicateEvalExpression expression) {
+    if (expression instanceof ConstantExpression ||
+        expression instanceof PropertyAccessorExpression) {
+      return true;
+    } else if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      return isReorderable(math.getLeft()) && isReorderable(math.getRight());
+    } else if (expression instanceof LogicalExpression) {
+      return Arrays.stream(((LogicalExpression) expression).getOperands()).
+          allMatch(PredicateExpressionOptimizer::isReorderable);
+    } else if (expression instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) expression;
+      return isTemplate(comparison.getLeft()) && (comparison.isPrecompiled() ||
+          (isTemplate(comparison.getRight()) && !comparison.getOp().startsWith("regexMatch")));
+    } else if (expression instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) expression;
+      return isTemplate(in.getLeft()) &&
+          in.getCandidates().stream().allMatch(PredicateExpressionOptimizer::isTemplate);
+    } else if (expression instanceof MultiStringComparisonExpression) {
+      MultiStringComparisonExpression multi = (MultiStringComparisonExpression) expression;
+      return isTemplate(multi.getArgument()) &&
+          (!multi.getOp().startsWith("regexMatch") || isConstant(multi.getArgument()));
+    } else if (expression instanceof NotExpression) {
+      return isReorderable(((NotExpression) expression).getOperand());
+    } else if (expression instanceof IffExpression) {
+      IffExpression iff = (IffExpression) expression;
+      return isReorderable(iff.getCondition()) && isReorderable(iff.getThen()) &&
+          isReorderable(iff.getElse());
+    }
+    return false;
+  }
+
+  private static boolean isTemplate(StringExpression expression) {
+    return expression instanceof TemplateStringExpression;
+  }
+
+  static boolean isConstant(StringExpression expression) {
+    return expression instanceof TemplateStringExpression &&
+        ((TemplateStringExpression) expression).isConstant();
+  }
+
+  private static double estimateOpCost(String op) {
+    switch (op) {
+      case "=":
+      case "equals":
+      case "startsWith":
+      case "endsWith":
+        return COST_SIMPLE;
+      case "matches":
+      case "matchesIgnoreCase":
+        return COST_PATTERN;
+      case "regexMatch":
+      case "regexMatchIgnoreCase":
+        return COST_REGEX;
+      default:
+        return COST_SIMPLE * 2;
+    }
+  }
+
+  private static PredicateEvalExpression optimizeMath(MathExpression expression,
+                                                      boolean trackSelectivity) {
+    String op = expression.getOp();
+    if (op.equals("and") || op.equals("or")) {
+      List<PredicateEvalExpression> flattened = new ArrayList<>();
+      flatten(expression, op, flattened);
+      return optimizeLogical(flattened, op.equals("and"), trackSelectivity);
+    }
+    PredicateEvalExpression left = optimize(expression.getLeft(), trackSelectivity);
+    PredicateEvalExpression right = optimize(expression.getRight(), trackSelectivity);
+    MathExpression result = left == expression.getLeft() && right == expression.getRight() ?
+        expression : new MathExpression(left, right, op);
+    if (left instanceof ConstantExpression && right instanceof ConstantExpression) {
+      return new ConstantExpression(result.getValue(null));
+    }
+    return result;
+  }
+
+  private static PredicateEvalExpression optimizeIff(IffExpression expression,
+                                                     boolean trackSelectivity) {
+    PredicateEvalExpression condition = optimize(expression.getCondition(), trackSelectivity);
+    if (condition instanceof ConstantExpression) {
+      return optimize(PredicateEvalExpression.isTrue(condition.getValue(null)) ?
+          expression.getThen() : expression.getElse(), trackSelectivity);
+    }
+    PredicateEvalExpression thenExpression = optimize(expression.getThen(), trackSelectivity);
+    PredicateEvalExpression elseExpression = optimize(expression.getElse(), trackSelectivity);
+    if (condition == expression.getCondition() && thenExpression == expression.getThen() &&
+        elseExpression == expression.getElse()) {
+      return expression;
+    }
+    return new IffExpression(condition, thenExpression, elseExpression);
+  }
+
+  private static PredicateEvalExpression optimizeLogical(List<PredicateEvalExpression> flattened,
+                                                         boolean conjunction,
+                                                         boolean trackSelectivity) {
+    List<PredicateEvalExpression> operands = new ArrayList<>(flattened.size());
+    for (PredicateEvalExpression operand : flattened) {
+      PredicateEvalExpression optimized = optimize(operand, trackSelectivity);
+      if (optimized instanceof ConstantExpression) {
+        boolean value = PredicateEvalExpression.isTrue(optimized.getValue(null));
+        if (value != conjunction) {
+          // "false and ..." or "true or ..." - the rest doesn't matter
+          return new ConstantExpression(conjunction ? 0 : 1);
+        }
+        // "true and x" or "false or x" - operand doesn't affect the result
+        continue;
+      }
+      if (optimized instanceof LogicalExpression &&
+          ((LogicalExpression) optimized).isConjunction() == conjunction) {
+        for (PredicateEvalExpression nested : ((LogicalExpression) optimized).getOperands()) {
+          operands.add(nested);
+        }
+      } else {
+        operands.add(optimized);
+      }
+    }
+    if (operands.isEmpty()) {
+      return new ConstantExpression(conjunction ? 1 : 0);
+    }
+    PredicateEvalExpression[] sorted = operands.toArray(new PredicateEvalExpression[0]);
+    LogicalExpression.sortReorderable(sorted, PredicateExpressionOptimizer::isReorderable,
+        Comparator.comparingDouble(PredicateExpressionOptimizer::estimateCost));
+    return new LogicalExpression(conjunction, Arrays.asList(sorted), Arrays.stream(sorted).
+        map(PredicateExpressionOptimizer::estimateCost).collect(Collectors.toList()),
+        trackSelectivity);
+  }
+
+  private static void flatten(PredicateEvalExpression expression, String op,
+                              List<PredicateEvalExpression> result) {
+    if (expression instanceof MathExpression && ((MathExpression) expression).getOp().equals(op)) {
+      flatten(((MathExpression) expression).getLeft(), op, result);
+      flatten(((MathExpression) expression).getRight(), op, result);
+    } else {
+      result.add(expression);
+    }
+  }
+}
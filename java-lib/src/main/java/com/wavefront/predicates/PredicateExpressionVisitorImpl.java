@@ -30,9 +30,19 @@ import static com.wavefront.ingester.AbstractIngesterFormatter.unquote;
 public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisitor<BaseExpression> {
   private static final Random RANDOM = new Random();
   private final TimeProvider timeProvider;
+  private final boolean linearTimeRegex;
 
   public PredicateExpressionVisitorImpl(TimeProvider timeProvider) {
+    this(timeProvider, false);
+  }
+
+  /**
+   * @param timeProvider    time provider for time() functions.
+   * @param linearTimeRegex whether to use the linear-time (re2j) engine for regex operators.
+   */
+  public PredicateExpressionVisitorImpl(TimeProvider timeProvider, boolean linearTimeRegex) {
     this.timeProvider = timeProvider;
+    this.linearTimeRegex = linearTimeRegex;
   }
 
   @Override
@@ -40,7 +50,7 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
     if (ctx == null) {
       throw new ExpressionSyntaxException("Syntax error");
     } else if (ctx.ternary != null) {
-      return iff(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
+      return new IffExpression(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
           eval(ctx.evalExpression(2)));
     } else if (ctx.op != null) {
       return new MathExpression(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
@@ -49,8 +59,7 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
       return new MathExpression(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
           ctx.comparisonOperator().getText().replace(" ", ""));
     } else if (ctx.not != null) {
-      PredicateEvalExpression expression = eval(ctx.evalExpression(0));
-      return (PredicateEvalExpression) entity -> asDouble(!isTrue(expression.getValue(entity)));
+      return new NotExpression(eval(ctx.evalExpression(0)));
     } else if (ctx.complement != null) {
       PredicateEvalExpression expression = eval(ctx.evalExpression(0));
       return (PredicateEvalExpression) entity -> ~ (long) expression.getValue(entity);
@@ -59,20 +68,20 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
       StringExpression argument = stringExpression(ctx.stringExpression(0));
       String op = ctx.stringComparisonOp().getText();
       return MultiStringComparisonExpression.of(scope, argument,
-          PredicateMatchOp.fromString(ctx.multiModifier.getText()), op);
+          PredicateMatchOp.fromString(ctx.multiModifier.getText()), op, linearTimeRegex);
     } else if (ctx.stringComparisonOp() != null) {
       StringExpression left = stringExpression(ctx.stringExpression(0));
       StringExpression right = stringExpression(ctx.stringExpression(1));
-      return StringComparisonExpression.of(left, right, ctx.stringComparisonOp().getText());
+      return StringComparisonExpression.of(left, right, ctx.stringComparisonOp().getText(),
+          linearTimeRegex);
     } else if (ctx.in != null && ctx.stringExpression().size() > 1) {
       StringExpression left = stringExpression(ctx.stringExpression(0));
-      List<PredicateEvalExpression> branches = ctx.stringExpression().
+      List<StringExpression> candidates = ctx.stringExpression().
           subList(1, ctx.stringExpression().size()).
           stream().
-          map(exp -> StringComparisonExpression.of(left, stringExpression(exp), "=")).
+          map(this::stringExpression).
           collect(Collectors.toList());
-      return (PredicateEvalExpression) entity ->
-          asDouble(branches.stream().anyMatch(x -> isTrue(x.getValue(entity))));
+      return new StringInExpression(left, candidates);
     } else if (ctx.stringEvalFunc() != null) {
       StringExpression input = stringExpression(ctx.stringExpression(0));
       if (ctx.stringEvalFunc().strLength() != null) {
@@ -107,9 +116,10 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
         throw new ExpressionSyntaxException("Unknown string eval function");
       }
     } else if (ctx.propertyAccessor() != null) {
-      return getPropertyAccessor(ctx.propertyAccessor().getText());
+      String property = ctx.propertyAccessor().getText();
+      return new PropertyAccessorExpression(property, getPropertyAccessor(property));
     } else if (ctx.number() != null) {
-      return (PredicateEvalExpression) entity -> getNumber(ctx.number());
+      return new ConstantExpression(getNumber(ctx.number()));
     } else if (ctx.evalExpression(0) != null) {
       return eval(ctx.evalExpression(0));
     } else {
@@ -183,7 +193,7 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
     if (ctx == null) {
       throw new ExpressionSyntaxException("Syntax error for if()");
     }
-    return iff(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
+    return new IffExpression(eval(ctx.evalExpression(0)), eval(ctx.evalExpression(1)),
         eval(ctx.evalExpression(2)));
   }
 
@@ -306,11 +316,6 @@ public class PredicateExpressionVisitorImpl extends PredicateExpressionBaseVisit
     return (StringExpression) visitStringExpression(ctx);
   }
 
-  private PredicateEvalExpression iff(PredicateEvalExpression cond, PredicateEvalExpression thenExp,
-                                      PredicateEvalExpression elseExp) {
-    return x -> isTrue(cond.getValue(x)) ? thenExp.getValue(x) : elseExp.getValue(x);
-  }
-
   private PredicateEvalExpression getPropertyAccessor(String property) {
     switch (property) {
       case "value":
@@ -1,12 +1,22 @@
 package com.wavefront.predicates;
 
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
+import com.wavefront.common.TaggedMetricName;
 import com.wavefront.common.TimeProvider;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
 
 import condition.parser.PredicateExpressionLexer;
 import condition.parser.PredicateExpressionParser;
@@ -14,9 +24,45 @@ import condition.parser.PredicateExpressionParser;
 /**
  * Utility class for parsing expressions.
  *
+ * Parsed expressions are kept in a process-wide bounded cache, keyed by the expression string
+ * and parsing options, so that re-applying unchanged rules or policies (e.g. on every
+ * check-in) does not re-run the parser. Parsed expressions are immutable and safe to share.
+ * Only expressions that use the system clock are cached: ones parsed with a custom
+ * {@link TimeProvider} are compiled on every call, so callers don't have to reuse the same
+ * provider instance, and the cache doesn't keep providers (and whatever they capture) alive.
+ *
  * @author vasily@wavefront.com
  */
 public abstract class Predicates {
+  private static final int CACHE_SIZE = 10_000;
+  @VisibleForTesting
+  static final TimeProvider SYSTEM_TIME = System::currentTimeMillis;
+
+  private static final Counter cacheHits = Metrics.newCounter(
+      new TaggedMetricName("predicates", "cache.hits"));
+  private static final Counter cacheMisses = Metrics.newCounter(
+      new TaggedMetricName("predicates", "cache.misses"));
+  private static final Timer compileTime = Metrics.newTimer(
+      new TaggedMetricName("predicates", "compile.time"), TimeUnit.MICROSECONDS, TimeUnit.MINUTES);
+  private static final Cache<CacheKey, PredicateEvalExpression> expressionCache =
+      Caffeine.newBuilder().maximumSize(CACHE_SIZE).build();
+
+  static {
+    Metrics.newGauge(new TaggedMetricName("predicates", "cache.hit-rate"), new Gauge<Double>() {
+      @Override
+      public Double value() {
+        long hits = cacheHits.count();
+        long total = hits + cacheMisses.count();
+        return total == 0 ? 0 : (double) hits / total;
+      }
+    });
+    Metrics.newGauge(new TaggedMetricName("predicates", "cache.size"), new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return expressionCache.estimatedSize();
+      }
+    });
+  }
 
   private Predicates() {
   }
@@ -31,14 +77,139 @@ public abstract class Predicates {
     return new ExpressionPredicate<>(parsePredicateEvalExpression(predicateString));
   }
 
+  /**
+   * Parses an expression string into a {@link Predicate<T>}.
+   *
+   * @param predicateString expression string to parse.
+   * @param linearTimeRegex whether to use the linear-time (re2j) engine for regex operators,
+   *                        which bounds matching time but doesn't support backreferences and
+   *                        lookaround.
+   * @return predicate
+   */
+  public static <T> Predicate<T> fromPredicateEvalExpression(String predicateString,
+                                                             boolean linearTimeRegex) {
+    return new ExpressionPredicate<>(parsePredicateEvalExpression(predicateString,
+        SYSTEM_TIME, linearTimeRegex));
+  }
+
+  /**
+   * Parses an expression string into a {@link Predicate<T>}.
+   *
+   * @param predicateString  expression string to parse.
+   * @param linearTimeRegex  whether to use the linear-time (re2j) engine for regex operators,
+   *                         which bounds matching time but doesn't support backreferences and
+   *                         lookaround.
+   * @param trackSelectivity whether to periodically re-order {@code and}/{@code or} operands
+   *                         based on how often they short-circuit at runtime (see
+   *                         {@link PredicateExpressionOptimizer#optimize(PredicateEvalExpression,
+   *                         boolean)}).
+   * @return predicate
+   */
+  public static <T> Predicate<T> fromPredicateEvalExpression(String predicateString,
+                                                             boolean linearTimeRegex,
+                                                             boolean trackSelectivity) {
+    return new ExpressionPredicate<>(parsePredicateEvalExpression(predicateString,
+        SYSTEM_TIME, linearTimeRegex, trackSelectivity));
+  }
+
+  /**
+   * Parses an expression string into a {@link BatchExpressionPredicate<T>}, to evaluate it over
+   * batches of entities at once.
+   *
+   * @param predicateString expression string to parse.
+   * @return batch predicate
+   */
+  public static <T> BatchExpressionPredicate<T> fromPredicateEvalExpressionBatch(
+      String predicateString) {
+    return new BatchExpressionPredicate<>(parsePredicateEvalExpression(predicateString));
+  }
+
+  /**
+   * Parses an expression string into a {@link BatchExpressionPredicate<T>}, to evaluate it over
+   * batches of entities at once.
+   *
+   * @param predicateString expression string to parse.
+   * @param linearTimeRegex whether to use the linear-time (re2j) engine for regex operators,
+   *                        which bounds matching time but doesn't support backreferences and
+   *                        lookaround.
+   * @return batch predicate
+   */
+  public static <T> BatchExpressionPredicate<T> fromPredicateEvalExpressionBatch(
+      String predicateString, boolean linearTimeRegex) {
+    return new BatchExpressionPredicate<>(parsePredicateEvalExpression(predicateString,
+        SYSTEM_TIME, linearTimeRegex));
+  }
+
+  /**
+   * Parses an expression string into a {@link BatchExpressionPredicate<T>}, to evaluate it over
+   * batches of entities at once.
+   *
+   * @param predicateString  expression string to parse.
+   * @param linearTimeRegex  whether to use the linear-time (re2j) engine for regex operators,
+   *                         which bounds matching time but doesn't support backreferences and
+   *                         lookaround.
+   * @param trackSelectivity whether to periodically re-order {@code and}/{@code or} operands
+   *                         based on how often they short-circuit at runtime.
+   * @return batch predicate
+   */
+  public static <T> BatchExpressionPredicate<T> fromPredicateEvalExpressionBatch(
+      String predicateString, boolean linearTimeRegex, boolean trackSelectivity) {
+    return new BatchExpressionPredicate<>(parsePredicateEvalExpression(predicateString,
+        SYSTEM_TIME, linearTimeRegex, trackSelectivity));
+  }
+
   @VisibleForTesting
   static PredicateEvalExpression parsePredicateEvalExpression(String predicateString) {
-    return parsePredicateEvalExpression(predicateString, System::currentTimeMillis);
+    return parsePredicateEvalExpression(predicateString, SYSTEM_TIME);
   }
 
   @VisibleForTesting
   static PredicateEvalExpression parsePredicateEvalExpression(String predicateString,
                                                               TimeProvider timeProvider) {
+    return parsePredicateEvalExpression(predicateString, timeProvider, false);
+  }
+
+  @VisibleForTesting
+  static PredicateEvalExpression parsePredicateEvalExpression(String predicateString,
+                                                              TimeProvider timeProvider,
+                                                              boolean linearTimeRegex) {
+    return parsePredicateEvalExpression(predicateString, timeProvider, linearTimeRegex, false);
+  }
+
+  @VisibleForTesting
+  static PredicateEvalExpression parsePredicateEvalExpression(String predicateString,
+                                                              TimeProvider timeProvider,
+                                                              boolean linearTimeRegex,
+                                                              boolean trackSelectivity) {
+    if (timeProvider != SYSTEM_TIME) {
+      return compile(predicateString, timeProvider, linearTimeRegex, trackSelectivity);
+    }
+    CacheKey key = new CacheKey(predicateString, linearTimeRegex, trackSelectivity);
+    PredicateEvalExpression result = expressionCache.getIfPresent(key);
+    if (result != null) {
+      cacheHits.inc();
+      return result;
+    }
+    cacheMisses.inc();
+    TimerContext timer = compileTime.time();
+    try {
+      result = compile(predicateString, timeProvider, linearTimeRegex, trackSelectivity);
+    } finally {
+      timer.stop();
+    }
+    expressionCache.put(key, result);
+    return result;
+  }
+
+  @VisibleForTesting
+  static void invalidateCache() {
+    expressionCache.invalidateAll();
+  }
+
+  private static PredicateEvalExpression compile(String predicateString,
+                                                 TimeProvider timeProvider,
+                                                 boolean linearTimeRegex,
+                                                 boolean trackSelectivity) {
     PredicateExpressionLexer lexer =
         new PredicateExpressionLexer(CharStreams.fromString(predicateString));
     lexer.removeErrorListeners();
@@ -48,14 +219,42 @@ public abstract class Predicates {
     PredicateExpressionParser parser = new PredicateExpressionParser(tokens);
     parser.removeErrorListeners();
     parser.addErrorListener(errorListener);
-    PredicateExpressionVisitorImpl visitor = new PredicateExpressionVisitorImpl(timeProvider);
+    PredicateExpressionVisitorImpl visitor = new PredicateExpressionVisitorImpl(timeProvider,
+        linearTimeRegex);
     PredicateExpressionParser.ProgramContext context = parser.program();
     PredicateEvalExpression result =
         (PredicateEvalExpression) context.evalExpression().accept(visitor);
     if (errorListener.getErrors().length() == 0) {
-      return result;
+      return PredicateExpressionOptimizer.optimize(result, trackSelectivity);
     } else {
       throw new ExpressionSyntaxException(errorListener.getErrors().toString());
     }
   }
+
+  private static final class CacheKey {
+    private final String expression;
+    private final boolean linearTimeRegex;
+    private final boolean trackSelectivity;
+
+    CacheKey(String expression, boolean linearTimeRegex, boolean trackSelectivity) {
+      this.expression = expression;
+      this.linearTimeRegex = linearTimeRegex;
+      this.trackSelectivity = trackSelectivity;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      CacheKey that = (CacheKey) o;
+      return linearTimeRegex == that.linearTimeRegex &&
+          trackSelectivity == that.trackSelectivity &&
+          expression.equals(that.expression);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(expression, linearTimeRegex, trackSelectivity);
+    }
+  }
 }
@@ -0,0 +1,291 @@
+package com.wavefront.predicates;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * Instrumented version of an expression tree, for finding out which parts of an expression are
+ * expensive. Every recognized node of the tree (math and boolean operators and their operands)
+ * is wrapped to record invocation count, cumulative time (including children) and how often it
+ * evaluates to true. Opaque nodes are profiled as a whole.
+ *
+ * Stats can be rendered as an indented tree with {@link #dump()} and/or published as gauges
+ * with {@link #publishMetrics(String)}. Instrumentation adds two {@link System#nanoTime()} calls
+ * per node, so it's meant to be enabled selectively.
+ */
+public class ProfiledExpression implements PredicateEvalExpression {
+  /**
+   * Expression names with published metrics, and the instance that published them.
+   */
+  private static final ConcurrentMap<String, ProfiledExpression> publishedNames =
+      new ConcurrentHashMap<>();
+
+  private final Node root;
+  private final List<MetricName> publishedMetrics = new ArrayList<>();
+  @Nullable
+  private String publishedName;
+
+  private ProfiledExpression(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Parse an expression and instrument it.
+   *
+   * @param predicateString expression string to parse.
+   * @return instrumented expression.
+   */
+  public static ProfiledExpression parse(String predicateString) {
+    return instrument(Predicates.parsePredicateEvalExpression(predicateString));
+  }
+
+  /**
+   * Instrument an existing expression tree. The original tree is not modified.
+   *
+   * @param expression expression to instrument.
+   * @return instrumented expression.
+   */
+  public static ProfiledExpression instrument(PredicateEvalExpression expression) {
+    return new ProfiledExpression(wrap(expression, "0"));
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    return root.getValue(entity);
+  }
+
+  /**
+   * Register gauges for every node of the tree, tagged with the expression name and node path
+   * (e.g. "0.1.0" is the first operand of the second operand of the root node). Replaces
+   * metrics previously published by this instance, if any.
+   *
+   * @param name name of the expression (e.g. rule id), used as a tag value.
+   * @throws IllegalStateException if another instance has published metrics under this name.
+   */
+  public synchronized void publishMetrics(String name) {
+    unpublishMetrics();
+    ProfiledExpression owner = publishedNames.putIfAbsent(name, this);
+    if (owner != null) {
+      throw new IllegalStateException("Metrics for expression " + name +
+          " are already published by another instance");
+    }
+    publishedName = name;
+    for (Node node : root.flatten()) {
+      MetricName invocations = new TaggedMetricName("predicates", "profile.invocations",
+          "expression", name, "node", node.path);
+      MetricName time = new TaggedMetricName("predicates", "profile.time-nanos",
+          "expression", name, "node", node.path);
+      MetricName trueRatio = new TaggedMetricName("predicates", "profile.true-ratio",
+          "expression", name, "node", node.path);
+      register(invocations, new Gauge<Long>() {
+        @Override
+        public Long value() {
+          return node.invocations.sum();
+        }
+      });
+      register(time, new Gauge<Long>() {
+        @Override
+        public Long value() {
+          return node.nanos.sum();
+        }
+      });
+      register(trueRatio, new Gauge<Double>() {
+        @Override
+        public Double value() {
+          return node.trueRatio();
+        }
+      });
+    }
+  }
+
+  /**
+   * Remove gauges registered by {@link #publishMetrics(String)}.
+   */
+  public synchronized void unpublishMetrics() {
+    publishedMetrics.forEach(Metrics.defaultRegistry()::removeMetric);
+    publishedMetrics.clear();
+    if (publishedName != null) {
+      publishedNames.remove(publishedName, this);
+      publishedName = null;
+    }
+  }
+
+  /**
+   * Registers a gauge, and keeps track of it only if it's actually ours, so that we never
+   * remove gauges that were already registered under the same name by someone else.
+   */
+  private <T> void register(MetricName metricName, Gauge<T> gauge) {
+    if (Metrics.newGauge(metricName, gauge) == gauge) {
+      publishedMetrics.add(metricName);
+    }
+  }
+
+  /**
+   * Reset all stats.
+   */
+  public void reset() {
+    for (Node node : root.flatten()) {
+      node.invocations.reset();
+      node.nanos.reset();
+      node.trueCount.reset();
+    }
+  }
+
+  /**
+   * Render the tree with current stats, one node per line, children indented under their
+   * parent.
+   *
+   * @return tree dump.
+   */
+  public String dump() {
+    StringBuilder result = new StringBuilder();
+    root.dump(result, 0);
+    return result.toString();
+  }
+
+  private static Node wrap(PredicateEvalExpression expression, String path) {
+    List<Node> children = ImmutableList.of();
+    PredicateEvalExpression instrumented = expression;
+    if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      Node left = wrap(math.getLeft(), path + ".0");
+      Node right = wrap(math.getRight(), path + ".1");
+      children = ImmutableList.of(left, right);
+      instrumented = new MathExpression(left, right, math.getOp());
+    } else if (expression instanceof NotExpression) {
+      Node operand = wrap(((NotExpression) expression).getOperand(), path + ".0");
+      children = ImmutableList.of(operand);
+      instrumented = new NotExpression(operand);
+    } else if (expression instanceof IffExpression) {
+      IffExpression iff = (IffExpression) expression;
+      Node condition = wrap(iff.getCondition(), path + ".0");
+      Node thenNode = wrap(iff.getThen(), path + ".1");
+      Node elseNode = wrap(iff.getElse(), path + ".2");
+      children = ImmutableList.of(condition, thenNode, elseNode);
+      instrumented = new IffExpression(condition, thenNode, elseNode);
+    } else if (expression instanceof LogicalExpression) {
+      LogicalExpression logical = (LogicalExpression) expression;
+      PredicateEvalExpression[] operands = logical.getOperands();
+      List<Node> wrapped = new ArrayList<>(operands.length);
+      for (int i = 0; i < operands.length; i++) {
+        wrapped.add(wrap(operands[i], path + "." + i));
+      }
+      children = ImmutableList.copyOf(wrapped);
+      instrumented = new LogicalExpression(logical.isConjunction(), children.stream().
+          map(x -> (PredicateEvalExpression) x).collect(Collectors.toList()),
+          children.stream().map(x -> PredicateExpressionOptimizer.estimateCost(x.wrapped)).
+              collect(Collectors.toList()), false);
+    }
+    return new Node(instrumented, describe(expression), path, children);
+  }
+
+  static String describe(PredicateEvalExpression expression) {
+    if (expression instanceof ConstantExpression) {
+      return String.valueOf(expression.getValue(null));
+    } else if (expression instanceof PropertyAccessorExpression) {
+      return "$" + ((PropertyAccessorExpression) expression).getProperty();
+    } else if (expression instanceof MathExpression) {
+      return ((MathExpression) expression).getOp();
+    } else if (expression instanceof LogicalExpression) {
+      return ((LogicalExpression) expression).isConjunction() ? "and" : "or";
+    } else if (expression instanceof NotExpression) {
+      return "not";
+    } else if (expression instanceof IffExpression) {
+      return "if";
+    } else if (expression instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) expression;
+      return describeString(comparison.getLeft()) + " " + comparison.getOp() + " " +
+          describeString(comparison.getRight());
+    } else if (expression instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) expression;
+      return describeString(in.getLeft()) + " in (" + in.getCandidates().stream().
+          map(ProfiledExpression::describeString).collect(Collectors.joining(", ")) + ")";
+    } else if (expression instanceof MultiStringComparisonExpression) {
+      MultiStringComparisonExpression multi = (MultiStringComparisonExpression) expression;
+      return "{{" + multi.getScope() + "}} " + multi.getMatchOp().name().toLowerCase() + " " +
+          multi.getOp() + " " + describeString(multi.getArgument());
+    }
+    return "<expression>";
+  }
+
+  private static String describeString(StringExpression expression) {
+    if (expression instanceof TemplateStringExpression) {
+      return "\"" + ((TemplateStringExpression) expression).getTemplate() + "\"";
+    }
+    return "<string expression>";
+  }
+
+  private static class Node implements PredicateEvalExpression {
+    private final PredicateEvalExpression wrapped;
+    private final String description;
+    private final String path;
+    private final List<Node> children;
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder trueCount = new LongAdder();
+
+    Node(PredicateEvalExpression wrapped, String description, String path,
+         List<Node> children) {
+      this.wrapped = wrapped;
+      this.description = description;
+      this.path = path;
+      this.children = children;
+    }
+
+    @Override
+    public double getValue(@Nullable Object entity) {
+      long start = System.nanoTime();
+      try {
+        double value = wrapped.getValue(entity);
+        if (isTrue(value)) trueCount.increment();
+        return value;
+      } finally {
+        nanos.add(System.nanoTime() - start);
+        invocations.increment();
+      }
+    }
+
+    double trueRatio() {
+      long total = invocations.sum();
+      return total == 0 ? 0 : (double) trueCount.sum() / total;
+    }
+
+    List<Node> flatten() {
+      List<Node> result = new ArrayList<>();
+      result.add(this);
+      for (Node child : children) {
+        result.addAll(child.flatten());
+      }
+      return result;
+    }
+
+    void dump(StringBuilder result, int depth) {
+      long total = invocations.sum();
+      long time = nanos.sum();
+      for (int i = 0; i < depth; i++) {
+        result.append("  ");
+      }
+      result.append(description).append(" [invocations=").append(total).
+          append(", totalNanos=").append(time).
+          append(", avgNanos=").append(total == 0 ? 0 : time / total).
+          append(", trueRatio=").append(String.format("%.3f", trueRatio())).append("]\n");
+      for (Node child : children) {
+        child.dump(result, depth + 1);
+      }
+    }
+  }
+}
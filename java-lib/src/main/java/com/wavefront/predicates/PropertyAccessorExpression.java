@@ -0,0 +1,23 @@
+package com.wavefront.predicates;
+
+/**
+ * Accessor for a numeric property of an entity ($value, $timestamp, etc).
+ */
+public class PropertyAccessorExpression implements PredicateEvalExpression {
+  private final String property;
+  private final PredicateEvalExpression accessor;
+
+  PropertyAccessorExpression(String property, PredicateEvalExpression accessor) {
+    this.property = property;
+    this.accessor = accessor;
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    return accessor.getValue(entity);
+  }
+
+  String getProperty() {
+    return property;
+  }
+}
@@ -0,0 +1,40 @@
+package com.wavefront.predicates;
+
+import java.util.function.Predicate;
+
+/**
+ * Compiles regular expressions into full-match predicates, using either the backtracking
+ * {@link java.util.regex.Pattern} engine or the linear-time {@link com.google.re2j.Pattern}
+ * engine. The latter bounds worst-case matching time for adversarial inputs, but does not
+ * support backreferences and lookaround.
+ */
+abstract class RegexCompiler {
+
+  private RegexCompiler() {
+  }
+
+  /**
+   * Compile a regex.
+   *
+   * @param regex           regular expression.
+   * @param caseInsensitive whether matching should be case-insensitive.
+   * @param linearTime      whether to use the linear-time (re2j) engine.
+   * @return predicate that returns true if the whole input matches the regex.
+   * @throws ExpressionSyntaxException if the regex is not valid for the selected engine.
+   */
+  static Predicate<String> compile(String regex, boolean caseInsensitive, boolean linearTime) {
+    try {
+      if (linearTime) {
+        com.google.re2j.Pattern pattern = com.google.re2j.Pattern.compile(regex,
+            caseInsensitive ? com.google.re2j.Pattern.CASE_INSENSITIVE : 0);
+        return s -> pattern.matcher(s).matches();
+      } else {
+        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(regex,
+            caseInsensitive ? java.util.regex.Pattern.CASE_INSENSITIVE : 0);
+        return s -> pattern.matcher(s).matches();
+      }
+    } catch (java.util.regex.PatternSyntaxException | com.google.re2j.PatternSyntaxException e) {
+      throw new ExpressionSyntaxException("Invalid regex '" + regex + "': " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.wavefront.predicates;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.wavefront.api.agent.SpanSamplingPolicy;
+
+import wavefront.report.Span;
+
+import static com.wavefront.predicates.PredicateEvalExpression.isTrue;
+
+/**
+ * Evaluates a set of span sampling policies against a span as a single decision structure,
+ * rather than as N independent expressions.
+ * <ul>
+ *   <li>Policies are tried in descending order of their sampling percent, so the first match
+ *   is the applicable policy and the rest don't need to be evaluated.</li>
+ *   <li>Top-level {@code and} operands of all policies are de-duplicated by their structure,
+ *   and each distinct condition is evaluated at most once per span.</li>
+ *   <li>{@code {{tag}} = 'literal'} and {@code {{tag}} in (...)} conditions share a single
+ *   annotation lookup per tag per span.</li>
+ *   <li>All conditions share a single {@link AnnotationIndex} per span.</li>
+ * </ul>
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class SpanSamplingPolicyEvaluator {
+  private static final byte UNKNOWN = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+
+  private final SpanSamplingPolicy[] policies;
+  private final int[][] policyConditions;
+  private final Condition[] conditions;
+  private final String[] tagKeys;
+
+  SpanSamplingPolicyEvaluator(List<CompiledSpanSamplingPolicies.CompiledPolicy> compiledPolicies) {
+    List<CompiledSpanSamplingPolicies.CompiledPolicy> sorted = new ArrayList<>(compiledPolicies);
+    // stable sort, so among policies with the same sampling percent the first one wins
+    sorted.sort(Comparator.comparingInt((CompiledSpanSamplingPolicies.CompiledPolicy x) ->
+        x.getPolicy().getSamplingPercent()).reversed());
+    Map<Object, Integer> conditionIndex = new HashMap<>();
+    List<Condition> conditions = new ArrayList<>();
+    Map<String, Integer> tagIndex = new HashMap<>();
+    List<SpanSamplingPolicy> policies = new ArrayList<>();
+    List<int[]> policyConditions = new ArrayList<>();
+    for (CompiledSpanSamplingPolicies.CompiledPolicy compiled : sorted) {
+      PredicateEvalExpression expression = compiled.getExpression();
+      if (expression instanceof ConstantExpression && !isTrue(expression.getValue(null))) {
+        continue;
+      }
+      PredicateEvalExpression[] operands;
+      if (expression instanceof LogicalExpression &&
+          ((LogicalExpression) expression).isConjunction()) {
+        operands = ((LogicalExpression) expression).getOperands();
+      } else {
+        operands = new PredicateEvalExpression[] {expression};
+      }
+      int[] indexes = new int[operands.length];
+      for (int i = 0; i < operands.length; i++) {
+        PredicateEvalExpression operand = operands[i];
+        String key = structuralKey(operand);
+        Object dedupKey = key == null ? operand : key;
+        Integer index = conditionIndex.get(dedupKey);
+        if (index == null) {
+          index = conditions.size();
+          conditions.add(toCondition(operand, tagIndex));
+          conditionIndex.put(dedupKey, index);
+        }
+        indexes[i] = index;
+      }
+      policies.add(compiled.getPolicy());
+      policyConditions.add(indexes);
+    }
+    this.policies = policies.toArray(new SpanSamplingPolicy[0]);
+    this.policyConditions = policyConditions.toArray(new int[0][]);
+    this.conditions = conditions.toArray(new Condition[0]);
+    this.tagKeys = new String[tagIndex.size()];
+    tagIndex.forEach((k, v) -> tagKeys[v] = k);
+  }
+
+  /**
+   * Find the applicable policy for a span, i.e. the matching policy with the highest sampling
+   * percent. If there are several, the first one (in the original order) is returned.
+   *
+   * @param span span to evaluate.
+   * @return applicable policy or null if no policy matches.
+   */
+  @Nullable
+  public SpanSamplingPolicy evaluate(Span span) {
+    if (policies.length == 0) return null;
+    State state = new State(span, conditions.length, tagKeys.length);
+    AnnotationIndex.Scope previous = AnnotationIndex.openScope(span);
+    try {
+      for (int p = 0; p < policies.length; p++) {
+        if (matches(policyConditions[p], state)) {
+          return policies[p];
+        }
+      }
+      return null;
+    } finally {
+      AnnotationIndex.closeScope(previous);
+    }
+  }
+
+  /**
+   * @return number of distinct conditions across all policies.
+   */
+  int getConditionCount() {
+    return conditions.length;
+  }
+
+  /**
+   * @return number of distinct tags looked up by tag conditions.
+   */
+  int getTagCount() {
+    return tagKeys.length;
+  }
+
+  private boolean matches(int[] indexes, State state) {
+    for (int index : indexes) {
+      byte result = state.results[index];
+      if (result == UNKNOWN) {
+        result = conditions[index].test(state) ? TRUE : FALSE;
+        state.results[index] = result;
+      }
+      if (result == FALSE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Condition toCondition(PredicateEvalExpression operand,
+                                       Map<String, Integer> tagIndex) {
+    if (operand instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) operand;
+      String tag = singlePlaceholder(comparison.getLeft());
+      if (tag != null && !comparison.isPrecompiled() &&
+          (comparison.getOp().equals("=") || comparison.getOp().equals("equals")) &&
+          PredicateExpressionOptimizer.isConstant(comparison.getRight())) {
+        int slot = tagIndex.computeIfAbsent(tag, k -> tagIndex.size());
+        String value = comparison.getRight().getString(null);
+        return state -> value.equals(state.tagValue(slot));
+      }
+    } else if (operand instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) operand;
+      String tag = singlePlaceholder(in.getLeft());
+      Set<String> constants = in.getConstants();
+      if (tag != null && constants != null) {
+        int slot = tagIndex.computeIfAbsent(tag, k -> tagIndex.size());
+        return state -> constants.contains(state.tagValue(slot));
+      }
+    }
+    return state -> isTrue(operand.getValue(state.span));
+  }
+
+  @Nullable
+  private static String singlePlaceholder(StringExpression expression) {
+    return expression instanceof TemplateStringExpression ?
+        ((TemplateStringExpression) expression).getSinglePlaceholder() : null;
+  }
+
+  /**
+   * Builds a key that is equal for structurally identical expressions, so that the same
+   * condition used in several policies can be evaluated once. Returns null for expressions
+   * that can't be compared structurally (including non-deterministic ones, like random()).
+   */
+  @Nullable
+  static String structuralKey(PredicateEvalExpression expression) {
+    if (expression instanceof ConstantExpression) {
+      return "c(" + expression.getValue(null) + ")";
+    } else if (expression instanceof PropertyAccessorExpression) {
+      return "$" + ((PropertyAccessorExpression) expression).getProperty();
+    } else if (expression instanceof MathExpression) {
+      MathExpression math = (MathExpression) expression;
+      return compose("m" + math.getOp(), structuralKey(math.getLeft()),
+          structuralKey(math.getRight()));
+    } else if (expression instanceof StringComparisonExpression) {
+      StringComparisonExpression comparison = (StringComparisonExpression) expression;
+      return compose("s" + comparison.getOp(), stringStructuralKey(comparison.getLeft()),
+          stringStructuralKey(comparison.getRight()));
+    } else if (expression instanceof StringInExpression) {
+      StringInExpression in = (StringInExpression) expression;
+      String[] keys = new String[in.getCandidates().size() + 1];
+      keys[0] = stringStructuralKey(in.getLeft());
+      for (int i = 0; i < in.getCandidates().size(); i++) {
+        keys[i + 1] = stringStructuralKey(in.getCandidates().get(i));
+      }
+      return compose("in", keys);
+    } else if (expression instanceof LogicalExpression) {
+      LogicalExpression logical = (LogicalExpression) expression;
+      PredicateEvalExpression[] operands = logical.getOperands();
+      String[] keys = new String[operands.length];
+      for (int i = 0; i < operands.length; i++) {
+        keys[i] = structuralKey(operands[i]);
+      }
+      return compose(logical.isConjunction() ? "and" : "or", keys);
+    } else if (expression instanceof NotExpression) {
+      return compose("not", structuralKey(((NotExpression) expression).getOperand()));
+    } else if (expression instanceof IffExpression) {
+      IffExpression iff = (IffExpression) expression;
+      return compose("if", structuralKey(iff.getCondition()), structuralKey(iff.getThen()),
+          structuralKey(iff.getElse()));
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String stringStructuralKey(StringExpression expression) {
+    if (expression instanceof TemplateStringExpression) {
+      String template = ((TemplateStringExpression) expression).getTemplate();
+      // length prefix keeps keys unambiguous regardless of the template's contents
+      return "t" + template.length() + ":" + template;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String compose(String op, String... keys) {
+    StringBuilder result = new StringBuilder(op).append('(');
+    for (String key : keys) {
+      if (key == null) return null;
+      result.append(key.length()).append(':').append(key);
+    }
+    return result.append(')').toString();
+  }
+
+  @FunctionalInterface
+  private interface Condition {
+    boolean test(State state);
+  }
+
+  /**
+   * Per-span evaluation state: memoized condition results and tag values.
+   */
+  private class State {
+    final Span span;
+    final byte[] results;
+    final String[] tagValues;
+
+    State(Span span, int conditionCount, int tagCount) {
+      this.span = span;
+      this.results = new byte[conditionCount];
+      this.tagValues = new String[tagCount];
+    }
+
+    String tagValue(int slot) {
+      String value = tagValues[slot];
+      if (value == null) {
+        String key = tagKeys[slot];
+        switch (key) {
+          case "spanName":
+            value = span.getName();
+            break;
+          case "sourceName":
+            value = span.getSource();
+            break;
+          default:
+            value = AnnotationIndex.of(span, span.getAnnotations()).get(key);
+        }
+        // same as rendering a template with a missing value
+        if (value == null) value = "";
+        tagValues[slot] = value;
+      }
+      return value;
+    }
+  }
+}
@@ -2,7 +2,8 @@ package com.wavefront.predicates;
 
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -19,54 +20,120 @@ public class StringComparisonExpression implements PredicateEvalExpression {
 
   private final StringExpression left;
   private final StringExpression right;
+  private final String op;
+  @Nullable
   private final BiFunction<String, String, Boolean> func;
+  /**
+   * Matcher for the left side that has been compiled from a constant right side at build time.
+   */
+  @Nullable
+  private final Predicate<String> precompiled;
 
   private StringComparisonExpression(StringExpression left,
                                      StringExpression right,
+                                     String op,
                                      BiFunction<String, String, Boolean> func) {
     this.left = left;
     this.right = right;
+    this.op = op;
     this.func = func;
+    this.precompiled = null;
+  }
+
+  private StringComparisonExpression(StringExpression left,
+                                     StringExpression right,
+                                     String op,
+                                     Predicate<String> precompiled) {
+    this.left = left;
+    this.right = right;
+    this.op = op;
+    this.func = null;
+    this.precompiled = precompiled;
   }
 
   @Override
   public double getValue(Object entity) {
+    if (precompiled != null) {
+      return asDouble(precompiled.test(left.getString(entity)));
+    }
     return asDouble(func.apply(left.getString(entity), right.getString(entity)));
   }
 
   public static PredicateEvalExpression of(StringExpression left, StringExpression right,
                                            String op) {
+    return of(left, right, op, false);
+  }
+
+  /**
+   * Create a string comparison expression.
+   *
+   * @param left            left side.
+   * @param right           right side.
+   * @param op              comparison operator.
+   * @param linearTimeRegex whether to use the linear-time (re2j) engine for regex operators.
+   * @return expression
+   */
+  public static PredicateEvalExpression of(StringExpression left, StringExpression right,
+                                           String op, boolean linearTimeRegex) {
     switch (op) {
       case "=":
       case "equals":
-        return new StringComparisonExpression(left, right, String::equals);
+        return new StringComparisonExpression(left, right, op, String::equals);
       case "startsWith":
-        return new StringComparisonExpression(left, right, String::startsWith);
+        return new StringComparisonExpression(left, right, op, String::startsWith);
       case "endsWith":
-        return new StringComparisonExpression(left, right, String::endsWith);
+        return new StringComparisonExpression(left, right, op, String::endsWith);
       case "contains":
-        return new StringComparisonExpression(left, right, String::contains);
+        return new StringComparisonExpression(left, right, op, String::contains);
       case "matches":
-        Predicate<String> patternMatch = PatternMatchPredicate.buildPredicate(right.getString(null), false);
-        return entity -> asDouble(patternMatch.test(left.getString(entity)));
+        return new StringComparisonExpression(left, right, op,
+            PatternMatchPredicate.buildPredicate(right.getString(null), false));
       case "regexMatch":
-        return new StringComparisonExpression(left, right, new CachingRegexMatcher());
+        if (PredicateExpressionOptimizer.isConstant(right)) {
+          return new StringComparisonExpression(left, right, op,
+              RegexCompiler.compile(right.getString(null), false, linearTimeRegex));
+        }
+        return new StringComparisonExpression(left, right, op,
+            new CachingRegexMatcher(false, linearTimeRegex));
       case "equalsIgnoreCase":
-        return new StringComparisonExpression(left, right, String::equalsIgnoreCase);
+        return new StringComparisonExpression(left, right, op, String::equalsIgnoreCase);
       case "startsWithIgnoreCase":
-        return new StringComparisonExpression(left, right, StringUtils::startsWithIgnoreCase);
+        return new StringComparisonExpression(left, right, op, StringUtils::startsWithIgnoreCase);
       case "endsWithIgnoreCase":
-        return new StringComparisonExpression(left, right, StringUtils::endsWithIgnoreCase);
+        return new StringComparisonExpression(left, right, op, StringUtils::endsWithIgnoreCase);
       case "containsIgnoreCase":
-        return new StringComparisonExpression(left, right, StringUtils::containsIgnoreCase);
+        return new StringComparisonExpression(left, right, op, StringUtils::containsIgnoreCase);
       case "matchesIgnoreCase":
-        Predicate<String> patternMatchCI = PatternMatchPredicate.buildPredicate(right.getString(null), true);
-        return entity -> asDouble(patternMatchCI.test(left.getString(entity)));
+        return new StringComparisonExpression(left, right, op,
+            PatternMatchPredicate.buildPredicate(right.getString(null), true));
       case "regexMatchIgnoreCase":
-        return new StringComparisonExpression(left, right,
-            new CachingRegexMatcher(Pattern.CASE_INSENSITIVE));
+        if (PredicateExpressionOptimizer.isConstant(right)) {
+          return new StringComparisonExpression(left, right, op,
+              RegexCompiler.compile(right.getString(null), true, linearTimeRegex));
+        }
+        return new StringComparisonExpression(left, right, op,
+            new CachingRegexMatcher(true, linearTimeRegex));
       default:
         throw new IllegalArgumentException(op + " is not handled");
     }
   }
+
+  StringExpression getLeft() {
+    return left;
+  }
+
+  StringExpression getRight() {
+    return right;
+  }
+
+  String getOp() {
+    return op;
+  }
+
+  /**
+   * @return true if the right side has been compiled at build time and is not evaluated.
+   */
+  boolean isPrecompiled() {
+    return precompiled != null;
+  }
 }
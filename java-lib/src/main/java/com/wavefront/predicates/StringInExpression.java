@@ -0,0 +1,62 @@
+package com.wavefront.predicates;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import static com.wavefront.predicates.PredicateEvalExpression.asDouble;
+
+/**
+ * Tests whether a string is equal to any of the candidate values (the {@code in (...)}
+ * operator). When all candidates are literals, they are kept in a hash set, so the lookup
+ * does not depend on the number of candidates.
+ */
+public class StringInExpression implements PredicateEvalExpression {
+  private final StringExpression left;
+  private final List<StringExpression> candidates;
+  @Nullable
+  private final Set<String> constants;
+
+  public StringInExpression(StringExpression left, List<StringExpression> candidates) {
+    this(left, candidates, null);
+  }
+
+  StringInExpression(StringExpression left, List<StringExpression> candidates,
+                     @Nullable Set<String> constants) {
+    this.left = left;
+    this.candidates = candidates;
+    this.constants = constants;
+  }
+
+  @Override
+  public double getValue(Object entity) {
+    String value = left.getString(entity);
+    if (constants != null) {
+      return asDouble(constants.contains(value));
+    }
+    for (StringExpression candidate : candidates) {
+      if (value.equals(candidate.getString(entity))) {
+        return 1;
+      }
+    }
+    return 0;
+  }
+
+  StringExpression getLeft() {
+    return left;
+  }
+
+  List<StringExpression> getCandidates() {
+    return candidates;
+  }
+
+  boolean isHashed() {
+    return constants != null;
+  }
+
+  @Nullable
+  Set<String> getConstants() {
+    return constants;
+  }
+}
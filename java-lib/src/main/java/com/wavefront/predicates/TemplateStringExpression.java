@@ -1,8 +1,13 @@
 package com.wavefront.predicates;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import wavefront.report.Annotation;
 import wavefront.report.ReportHistogram;
 import wavefront.report.ReportMetric;
 import wavefront.report.ReportPoint;
@@ -13,13 +18,27 @@ import wavefront.report.ReportLog;
  * A string template rendered. Substitutes {{...}} placeholders with corresponding
  * components; string literals are returned as is.
  *
+ * The template is split into literal and placeholder segments once, at construction time.
+ * Tags of entities with list-based annotations are looked up through {@link AnnotationIndex},
+ * which is shared by all templates evaluated for the same entity within an evaluation scope.
+ *
  * @author vasily@wavefront.com
  */
 public class TemplateStringExpression implements StringExpression {
   private final String template;
+  /**
+   * Literal segments, always one more than there are placeholders.
+   */
+  private final String[] literals;
+  private final String[] placeholders;
 
   public TemplateStringExpression(String template) {
     this.template = template;
+    List<String> literals = new ArrayList<>();
+    List<String> placeholders = new ArrayList<>();
+    parse(template, literals, placeholders);
+    this.literals = literals.toArray(new String[0]);
+    this.placeholders = placeholders.toArray(new String[0]);
   }
 
   @Nonnull
@@ -27,19 +46,188 @@ public class TemplateStringExpression implements StringExpression {
   public String getString(@Nullable Object entity) {
     if (entity == null) {
       return template;
+    } else if (placeholders.length == 0 && isSupported(entity)) {
+      return template;
     } else if (entity instanceof ReportMetric) {
-      return Util.expandPlaceholders(template, (ReportMetric) entity);
+      ReportMetric metric = (ReportMetric) entity;
+      LazyTags tags = new LazyTags(entity, metric.getAnnotations());
+      return render(name -> {
+        switch (name) {
+          case "metricName":
+            return metric.getMetric();
+          case "sourceName":
+            return metric.getHost();
+          default:
+            return tags.get(name);
+        }
+      });
     } else if (entity instanceof ReportHistogram) {
-      return Util.expandPlaceholders(template, (ReportHistogram) entity);
+      ReportHistogram histogram = (ReportHistogram) entity;
+      LazyTags tags = new LazyTags(entity, histogram.getAnnotations());
+      return render(name -> {
+        switch (name) {
+          case "metricName":
+            return histogram.getMetric();
+          case "sourceName":
+            return histogram.getHost();
+          default:
+            return tags.get(name);
+        }
+      });
     } else if (entity instanceof ReportPoint) {
-      return Util.expandPlaceholders(template, (ReportPoint) entity);
+      ReportPoint point = (ReportPoint) entity;
+      return render(name -> {
+        switch (name) {
+          case "metricName":
+            return point.getMetric();
+          case "sourceName":
+            return point.getHost();
+          default:
+            return point.getAnnotations().get(name);
+        }
+      });
     } else if (entity instanceof Span) {
-      return Util.expandPlaceholders(template, (Span) entity);
+      Span span = (Span) entity;
+      LazyTags tags = new LazyTags(entity, span.getAnnotations());
+      return render(name -> {
+        switch (name) {
+          case "spanName":
+            return span.getName();
+          case "sourceName":
+            return span.getSource();
+          default:
+            return tags.get(name);
+        }
+      });
     } else if (entity instanceof ReportLog) {
-      return Util.expandPlaceholders(template, (ReportLog) entity);
+      ReportLog log = (ReportLog) entity;
+      LazyTags tags = new LazyTags(entity, log.getAnnotations());
+      return render(name -> {
+        switch (name) {
+          case "message":
+            return log.getMessage();
+          case "sourceName":
+            return log.getHost();
+          default:
+            return tags.get(name);
+        }
+      });
     } else {
       throw new IllegalArgumentException(entity.getClass().getCanonicalName() +
           " is not supported!");
     }
   }
+
+  /**
+   * @return true if the template has no placeholders, i.e. it renders the same for any entity.
+   */
+  boolean isConstant() {
+    return placeholders.length == 0;
+  }
+
+  /**
+   * @return number of placeholders in the template.
+   */
+  int getPlaceholderCount() {
+    return placeholders.length;
+  }
+
+  /**
+   * @return placeholder name if the template consists of exactly one placeholder and nothing
+   * else (e.g. "{{application}}"), null otherwise.
+   */
+  @Nullable
+  String getSinglePlaceholder() {
+    return placeholders.length == 1 && literals[0].isEmpty() && literals[1].isEmpty() ?
+        placeholders[0] : null;
+  }
+
+  String getTemplate() {
+    return template;
+  }
+
+  private static boolean isSupported(Object entity) {
+    return entity instanceof ReportMetric || entity instanceof ReportHistogram ||
+        entity instanceof ReportPoint || entity instanceof Span || entity instanceof ReportLog;
+  }
+
+  private String render(Function<String, String> resolver) {
+    StringBuilder result = new StringBuilder(template.length() + 16 * placeholders.length);
+    for (int i = 0; i < placeholders.length; i++) {
+      result.append(literals[i]);
+      String substitution = resolver.apply(placeholders[i]);
+      if (substitution != null) {
+        result.append(substitution);
+      }
+    }
+    result.append(literals[placeholders.length]);
+    return result.toString();
+  }
+
+  /**
+   * Split a template into literal segments and placeholder names. Matches the semantics of
+   * the {@code \{\{(.*?)}}} pattern used by {@link Util#expandPlaceholders}: placeholder names
+   * can't span multiple lines and empty placeholders ({{}}) are kept as literals.
+   */
+  private static void parse(String template, List<String> literals, List<String> placeholders) {
+    StringBuilder literal = new StringBuilder();
+    int pos = 0;
+    int start = template.indexOf("{{");
+    while (start >= 0) {
+      int end = template.indexOf("}}", start + 2);
+      if (end < 0) {
+        break;
+      }
+      String name = template.substring(start + 2, end);
+      if (hasLineTerminator(name)) {
+        // the pattern can't match at this position, retry from the next character
+        start = template.indexOf("{{", start + 1);
+        continue;
+      }
+      literal.append(template, pos, start);
+      if (name.isEmpty()) {
+        literal.append("{{}}");
+      } else {
+        literals.add(literal.toString());
+        literal.setLength(0);
+        placeholders.add(name);
+      }
+      pos = end + 2;
+      start = template.indexOf("{{", pos);
+    }
+    literal.append(template, pos, template.length());
+    literals.add(literal.toString());
+  }
+
+  private static boolean hasLineTerminator(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the annotation index only when a tag is actually looked up.
+   */
+  private static final class LazyTags {
+    private final Object entity;
+    private final List<Annotation> annotations;
+    private AnnotationIndex index;
+
+    LazyTags(Object entity, List<Annotation> annotations) {
+      this.entity = entity;
+      this.annotations = annotations;
+    }
+
+    @Nullable
+    String get(String name) {
+      if (index == null) {
+        index = AnnotationIndex.of(entity, annotations);
+      }
+      return index.get(name);
+    }
+  }
 }
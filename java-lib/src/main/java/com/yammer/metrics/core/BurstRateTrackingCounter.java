@@ -1,27 +1,43 @@
 package com.yammer.metrics.core;
 
-import com.wavefront.common.EvictingRingBuffer;
+import com.wavefront.common.LongPrefixSumRingBuffer;
 import com.wavefront.common.NamedThreadFactory;
-import com.wavefront.common.SynchronizedEvictingRingBuffer;
 import com.yammer.metrics.Metrics;
 
 import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A counter that accurately tracks burst rate, 1-minute rate and 5-minute rate, with
  * customizable precision (defined by {@code granularityMillis} parameter, which controls
  * sample collection interval).
  *
+ * All counters with the same granularity are sampled together by a single shared task, and
+ * samples are kept in a primitive ring with running prefix sums, so 1-minute and 5-minute counts
+ * are computed in constant time.
+ *
  * @author vasily@wavefront.com
  */
 public class BurstRateTrackingCounter extends Counter implements Metric {
   private static final MetricsRegistry LOCAL_REGISTRY = new MetricsRegistry();
   private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(1,
       new NamedThreadFactory("burst-tracking-counter"));
+  private static final Logger logger =
+      Logger.getLogger(BurstRateTrackingCounter.class.getCanonicalName());
+  /**
+   * Counters grouped by granularity, each group is sampled by one scheduled task.
+   */
+  private static final ConcurrentMap<Integer, List<BurstRateTrackingCounter>> TICK_GROUPS =
+      new ConcurrentHashMap<>();
 
   private final Counter delegate;
   private final int granularityMillis;
@@ -30,7 +46,7 @@ public class BurstRateTrackingCounter extends Counter implements Metric {
   private volatile long previousCount = 0;
   private volatile long currentRate = 0;
 
-  private final EvictingRingBuffer<Long> perPeriodStats;
+  private final LongPrefixSumRingBuffer perPeriodStats;
 
   /**
    * @param metricName        metric name for the counter.
@@ -46,11 +62,22 @@ public class BurstRateTrackingCounter extends Counter implements Metric {
     this.delegate = (metricsRegistry == null ? Metrics.defaultRegistry() : metricsRegistry).
         newCounter(metricName);
     this.granularityMillis = granularityMillis;
-    this.perPeriodStats = new SynchronizedEvictingRingBuffer<>(5 * 60 * 1000 / granularityMillis,
-        false, 0L);
+    this.perPeriodStats = new LongPrefixSumRingBuffer(5 * 60 * 1000 / granularityMillis);
     this.burstRateHistogram = LOCAL_REGISTRY.newHistogram(BurstRateTrackingCounter.class,
         metricName.getGroup() + "-max-burst-rate");
-    EXECUTOR.scheduleAtFixedRate(() -> {
+    TICK_GROUPS.computeIfAbsent(granularityMillis, x -> {
+      List<BurstRateTrackingCounter> group = new CopyOnWriteArrayList<>();
+      EXECUTOR.scheduleAtFixedRate(() -> group.forEach(BurstRateTrackingCounter::tick),
+          granularityMillis, granularityMillis, TimeUnit.MILLISECONDS);
+      return group;
+    }).add(this);
+  }
+
+  /**
+   * Take a sample. Invoked by the shared task every {@code granularityMillis}.
+   */
+  private void tick() {
+    try {
       long currentCount = this.delegate.count();
       this.currentRate = currentCount - this.previousCount;
       this.burstRateHistogram.update(this.currentRate);
@@ -59,7 +86,10 @@ public class BurstRateTrackingCounter extends Counter implements Metric {
       if (currentCount > 0) {
         validSampleCount.incrementAndGet();
       }
-    }, granularityMillis, granularityMillis, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      // don't let one counter stop sampling for the whole group
+      logger.log(Level.WARNING, "Unable to sample counter", e);
+    }
   }
 
   /**
@@ -115,8 +145,7 @@ public class BurstRateTrackingCounter extends Counter implements Metric {
    * @return 1-minute delta value
    */
   public long getOneMinuteCount() {
-    return perPeriodStats.toList().subList(4 * 60 * 1000 / granularityMillis,
-        5 * 60 * 1000 / granularityMillis).stream().mapToLong(i -> i).sum();
+    return perPeriodStats.sum(perPeriodStats.capacity() - 4 * 60 * 1000 / granularityMillis);
   }
 
   /**
@@ -125,7 +154,7 @@ public class BurstRateTrackingCounter extends Counter implements Metric {
    * @return 5-minute delta value
    */
   public long getFiveMinuteCount() {
-    return perPeriodStats.toList().stream().mapToLong(i -> i).sum();
+    return perPeriodStats.sum();
   }
 
   /**
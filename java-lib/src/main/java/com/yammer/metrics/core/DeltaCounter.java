@@ -5,6 +5,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.wavefront.common.MetricConstants;
 import com.yammer.metrics.Metrics;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * A counter for Wavefront delta metrics.
  *
@@ -12,9 +14,13 @@ import com.yammer.metrics.Metrics;
  *
  * (This is similar to how {@link com.yammer.metrics.core.WavefrontHistogram} is implemented)
  *
+ * The count is kept in a {@link LongAdder} instead of a single {@code AtomicLong}, so
+ * concurrent increments from many threads don't contend on the same memory location.
+ *
  * @author Suranjan Pramanik (suranjan@wavefront.com)
  */
 public class DeltaCounter extends Counter {
+  private final LongAdder count = new LongAdder();
 
   private DeltaCounter() {
     // nothing to do. keeping it private so that it can't be instantiated directly
@@ -57,9 +63,49 @@ public class DeltaCounter extends Counter {
    * @return        The current count of the DeltaCounter
    */
   public static long processDeltaCounter(DeltaCounter counter) {
-    long count = counter.count();
-    counter.dec(count);
-    return count;
+    return counter.sumThenReset();
+  }
+
+  /**
+   * Returns the current count and resets the counter. Only the returned amount is subtracted,
+   * so increments that happen concurrently are never lost, they are reported next time.
+   *
+   * @return the current count
+   */
+  public long sumThenReset() {
+    long sum = count.sum();
+    count.add(-sum);
+    return sum;
+  }
+
+  @Override
+  public void inc() {
+    count.increment();
+  }
+
+  @Override
+  public void inc(long n) {
+    count.add(n);
+  }
+
+  @Override
+  public void dec() {
+    count.decrement();
+  }
+
+  @Override
+  public void dec(long n) {
+    count.add(-n);
+  }
+
+  @Override
+  public long count() {
+    return count.sum();
+  }
+
+  @Override
+  public void clear() {
+    sumThenReset();
   }
 
   /**
@@ -0,0 +1,642 @@
+package com.yammer.metrics.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.Centroid;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.stats.Sample;
+import com.yammer.metrics.stats.Snapshot;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Histogram based on log-linear buckets (similar to DDSketch or HdrHistogram), as a cheaper
+ * alternative to {@link WavefrontHistogram}.
+ *
+ * Bucket boundaries are derived directly from the IEEE-754 representation of a value: the
+ * exponent and the top {@code precisionBits} bits of the mantissa select the bucket, so every
+ * bucket spans a fixed fraction of its magnitude, and any value reported for a bucket is within
+ * {@code 2^-(precisionBits + 1)} relative error of every value recorded into it (~0.4% with the
+ * default precision). Recording a value is a single atomic array increment (bucket pages are
+ * allocated lazily, one per binary order of magnitude, and the current minute's sketch is cached
+ * until the minute boundary), and histograms are merged by adding up bucket counts.
+ *
+ * Memory is only allocated for the orders of magnitude that are actually recorded: each one costs
+ * a page of {@code 2^precisionBits} counters (1 KB with the default precision) per sign, plus a
+ * reference in a per-minute directory sized to the observed range of exponents. For example,
+ * latencies between 1ms and 1 minute span 16 binary orders of magnitude, or about 16 KB per
+ * minute with up to {@value #MAX_BINS} minutes retained.
+ *
+ * Values are kept in per-minute bins, same as {@link WavefrontHistogram}, and {@link #bins}
+ * converts them to centroids (one per non-empty bucket), so this histogram is reported through
+ * the same code path (as "!M" histogram lines or distributions). Non-finite values are ignored,
+ * and values smaller than {@link Double#MIN_NORMAL} in magnitude are recorded as zeros.
+ */
+public class LogLinearHistogram extends Histogram implements Metric {
+  private static final int DEFAULT_PRECISION_BITS = 7;
+  private static final int MAX_PRECISION_BITS = 12;
+  private static final int MAX_BINS = 10;
+  private static final int EXPONENTS = 2047; // 2047 is reserved for infinities and NaN
+  private static final int MANTISSA_BITS = 52;
+  /**
+   * Lower bound for the compression of digests built from buckets. Compression is always set to
+   * at least the total count, so digests never merge bucket centroids.
+   */
+  private static final int MIN_COMPRESSION = 32;
+
+  private final int precisionBits;
+  private final LongSupplier millis;
+  private final AtomicReferenceArray<Sketch> ring;
+  /**
+   * Sketch for the current minute, so that updates don't have to look it up in the ring.
+   */
+  private volatile Sketch current;
+
+  private LogLinearHistogram(LogLinearSample sample, int precisionBits, LongSupplier millis) {
+    super(sample);
+    this.precisionBits = precisionBits;
+    this.millis = millis;
+    this.ring = new AtomicReferenceArray<>(MAX_BINS);
+  }
+
+  public static LogLinearHistogram get(MetricName metricName) {
+    return get(Metrics.defaultRegistry(), metricName);
+  }
+
+  public static LogLinearHistogram get(MetricsRegistry registry, MetricName metricName) {
+    return get(registry, metricName, DEFAULT_PRECISION_BITS);
+  }
+
+  /**
+   * Get or create a log-linear histogram.
+   *
+   * @param registry      metrics registry.
+   * @param metricName    metric name.
+   * @param precisionBits number of mantissa bits used to select a bucket (1-12). Relative
+   *                      error is {@code 2^-(precisionBits + 1)}, memory use per binary order
+   *                      of magnitude is {@code 2^precisionBits} counters.
+   * @return histogram
+   */
+  public static LogLinearHistogram get(MetricsRegistry registry, MetricName metricName,
+                                       int precisionBits) {
+    return get(registry, metricName, precisionBits, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  public static LogLinearHistogram get(MetricsRegistry registry,
+                                       MetricName metricName,
+                                       int precisionBits,
+                                       LongSupplier clock) {
+    if (precisionBits < 1 || precisionBits > MAX_PRECISION_BITS) {
+      throw new IllegalArgumentException("precisionBits must be between 1 and " +
+          MAX_PRECISION_BITS);
+    }
+    LogLinearSample sample = new LogLinearSample();
+    LogLinearHistogram histogram = new LogLinearHistogram(sample, precisionBits, clock);
+    sample.set(histogram);
+    return registry.getOrAdd(metricName, histogram);
+  }
+
+  /**
+   * @return maximum relative error of reported values.
+   */
+  public double getRelativeAccuracy() {
+    return Math.scalb(1.0, -(precisionBits + 1));
+  }
+
+  public int getPrecisionBits() {
+    return precisionBits;
+  }
+
+  private long minMillis() {
+    return (millis.getAsLong() / 60000L) * 60000L;
+  }
+
+  /**
+   * Get or create the sketch for the specified minute. Returns null if the minute is too old
+   * to be retained (a newer sketch already occupies its slot).
+   */
+  private Sketch getSketch(long minMillis) {
+    int slot = (int) Math.floorMod(minMillis / 60000L, (long) MAX_BINS);
+    while (true) {
+      Sketch sketch = ring.get(slot);
+      if (sketch != null && sketch.minMillis == minMillis) {
+        return sketch;
+      } else if (sketch != null && sketch.minMillis > minMillis) {
+        return null;
+      }
+      Sketch newSketch = new Sketch(minMillis, precisionBits);
+      if (ring.compareAndSet(slot, sketch, newSketch)) {
+        return newSketch;
+      }
+    }
+  }
+
+  @Override
+  public void update(int value) {
+    update((double) value);
+  }
+
+  @Override
+  public void update(long value) {
+    update((double) value);
+  }
+
+  public void update(double value) {
+    long currMillis = millis.getAsLong();
+    Sketch sketch = current;
+    if (sketch == null || currMillis < sketch.minMillis ||
+        currMillis >= sketch.minMillis + 60000L) {
+      sketch = getSketch((currMillis / 60000L) * 60000L);
+      if (sketch == null) return;
+      current = sketch;
+    }
+    sketch.add(value, 1);
+  }
+
+  /**
+   * Merge all bins of another log-linear histogram into this one, minute by minute. Both
+   * histograms must have the same precision.
+   *
+   * @param other histogram to merge.
+   */
+  public void merge(LogLinearHistogram other) {
+    if (other.precisionBits != precisionBits) {
+      throw new IllegalArgumentException("Can't merge histograms with different precision: " +
+          precisionBits + " and " + other.precisionBits);
+    }
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch source = other.ring.get(i);
+      if (source == null) continue;
+      Sketch target = getSketch(source.minMillis);
+      if (target != null) {
+        target.add(source);
+      }
+    }
+  }
+
+  /**
+   * Converts all bins prior to the current minute to centroids, one centroid per non-empty
+   * bucket (the current minute is excluded, as it's still being updated).
+   *
+   * @param clear if set to true, will clear the older bins
+   * @return bins with exact (not merged) centroids
+   */
+  public List<WavefrontHistogram.MinuteBin> bins(boolean clear) {
+    long cutoffMillis = minMillis();
+    List<WavefrontHistogram.MinuteBin> result = new ArrayList<>();
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch sketch = ring.get(i);
+      if (sketch == null || sketch.minMillis >= cutoffMillis) continue;
+      if (clear && !ring.compareAndSet(i, sketch, null)) continue;
+      List<Centroid> centroids = sketch.toCentroids();
+      if (centroids.isEmpty()) continue;
+      long count = sketch.count();
+      WavefrontHistogram.MinuteBin bin = new WavefrontHistogram.MinuteBin(sketch.minMillis,
+          new AVLTreeDigest(Math.max(MIN_COMPRESSION, count)));
+      for (Centroid centroid : centroids) {
+        bin.add(centroid.mean(), centroid.count());
+      }
+      result.add(bin);
+    }
+    return result;
+  }
+
+  /**
+   * @return centroids for all bins including the current minute, one per non-empty bucket,
+   *         in ascending order.
+   */
+  public List<Centroid> toCentroids() {
+    return merged().toCentroids();
+  }
+
+  private Sketch merged() {
+    Sketch merged = new Sketch(0, precisionBits);
+    if (ring == null) {
+      return merged;
+    }
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch sketch = ring.get(i);
+      if (sketch != null) {
+        merged.add(sketch);
+      }
+    }
+    return merged;
+  }
+
+  @Override
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch sketch = ring.get(i);
+      if (sketch != null) {
+        count += sketch.count();
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public double mean() {
+    long count = 0;
+    double sum = 0;
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch sketch = ring.get(i);
+      if (sketch != null) {
+        count += sketch.count();
+        sum += sketch.sum.sum();
+      }
+    }
+    return count == 0 ? NaN : sum / count;
+  }
+
+  /**
+   * @return the lowest recorded value (within relative accuracy).
+   */
+  @Override
+  public double min() {
+    return merged().quantile(0);
+  }
+
+  /**
+   * @return the highest recorded value (within relative accuracy).
+   */
+  @Override
+  public double max() {
+    return merged().quantile(1);
+  }
+
+  @Override
+  public double sum() {
+    return NaN;
+  }
+
+  @Override
+  public double stdDev() {
+    return NaN;
+  }
+
+  /**
+   * Same as {@link WavefrontHistogram#clear()}, only clears bins prior to the current minute.
+   */
+  @Override
+  public void clear() {
+    if (ring == null) {
+      // invoked from the super() constructor
+      return;
+    }
+    long cutoffMillis = minMillis();
+    for (int i = 0; i < MAX_BINS; i++) {
+      Sketch sketch = ring.get(i);
+      if (sketch != null && sketch.minMillis < cutoffMillis) {
+        ring.compareAndSet(i, sketch, null);
+      }
+    }
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    final Sketch snapshot = merged();
+    final long count = snapshot.count();
+
+    return new Snapshot(new double[0]) {
+      @Override
+      public double get75thPercentile() {
+        return getValue(.75);
+      }
+
+      @Override
+      public double get95thPercentile() {
+        return getValue(.95);
+      }
+
+      @Override
+      public double get98thPercentile() {
+        return getValue(.98);
+      }
+
+      @Override
+      public double get999thPercentile() {
+        return getValue(.999);
+      }
+
+      @Override
+      public double get99thPercentile() {
+        return getValue(.99);
+      }
+
+      @Override
+      public double getMedian() {
+        return getValue(.50);
+      }
+
+      @Override
+      public double getValue(double quantile) {
+        return snapshot.quantile(quantile);
+      }
+
+      @Override
+      public double[] getValues() {
+        return new double[0];
+      }
+
+      @Override
+      public int size() {
+        return (int) count;
+      }
+    };
+  }
+
+  @Override
+  public <T> void processWith(MetricProcessor<T> metricProcessor, MetricName metricName, T t)
+      throws Exception {
+    metricProcessor.processHistogram(metricName, this, t);
+  }
+
+  /**
+   * Bucket counts for a single minute. Buckets for positive and negative values are stored
+   * separately, in pages of {@code 2^precisionBits} counters per exponent (see {@link Pages}).
+   */
+  private static class Sketch {
+    private final long minMillis;
+    private final int precisionBits;
+    private final int shift;
+    private final int subBucketMask;
+    private final Pages positive;
+    private final Pages negative;
+    private final LongAdder zeros = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Sketch(long minMillis, int precisionBits) {
+      this.minMillis = minMillis;
+      this.precisionBits = precisionBits;
+      this.shift = MANTISSA_BITS - precisionBits;
+      this.subBucketMask = (1 << precisionBits) - 1;
+      this.positive = new Pages(1 << precisionBits);
+      this.negative = new Pages(1 << precisionBits);
+    }
+
+    void add(double value, long count) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) return;
+      sum.add(value * count);
+      if (Math.abs(value) < Double.MIN_NORMAL) {
+        zeros.add(count);
+        return;
+      }
+      long index = Double.doubleToRawLongBits(Math.abs(value)) >>> shift;
+      (value > 0 ? positive : negative).getOrCreate((int) (index >>> precisionBits)).
+          getAndAdd((int) index & subBucketMask, count);
+    }
+
+    void add(Sketch other) {
+      sum.add(other.sum.sum());
+      zeros.add(other.zeros.sum());
+      addPages(positive, other.positive);
+      addPages(negative, other.negative);
+    }
+
+    private static void addPages(Pages target, Pages source) {
+      for (int exponent = source.lowest(); exponent <= source.highest(); exponent++) {
+        AtomicLongArray sourcePage = source.get(exponent);
+        if (sourcePage == null) continue;
+        AtomicLongArray targetPage = null;
+        for (int i = 0; i < sourcePage.length(); i++) {
+          long count = sourcePage.get(i);
+          if (count == 0) continue;
+          if (targetPage == null) {
+            targetPage = target.getOrCreate(exponent);
+          }
+          targetPage.getAndAdd(i, count);
+        }
+      }
+    }
+
+    /**
+     * Representative value for a bucket: the midpoint between its boundaries, i.e. its lower
+     * boundary with the next mantissa bit set (doesn't overflow for the topmost bucket).
+     */
+    private double value(int exponent, int subBucket, boolean negative) {
+      long index = ((long) exponent << precisionBits) | subBucket;
+      double mid = Double.longBitsToDouble((index << shift) | (1L << (shift - 1)));
+      return negative ? -mid : mid;
+    }
+
+    long count() {
+      long count = zeros.sum();
+      count += countPages(positive);
+      count += countPages(negative);
+      return count;
+    }
+
+    private static long countPages(Pages pages) {
+      long count = 0;
+      for (int exponent = pages.lowest(); exponent <= pages.highest(); exponent++) {
+        AtomicLongArray page = pages.get(exponent);
+        if (page == null) continue;
+        for (int i = 0; i < page.length(); i++) {
+          count += page.get(i);
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Visit non-empty buckets in ascending order of values.
+     */
+    private void forEachBucket(BucketConsumer consumer) {
+      for (int exponent = negative.highest(); exponent >= negative.lowest(); exponent--) {
+        AtomicLongArray page = negative.get(exponent);
+        if (page == null) continue;
+        for (int i = page.length() - 1; i >= 0; i--) {
+          long count = page.get(i);
+          if (count > 0 && !consumer.accept(value(exponent, i, true), count)) return;
+        }
+      }
+      long zeroCount = zeros.sum();
+      if (zeroCount > 0 && !consumer.accept(0.0, zeroCount)) return;
+      for (int exponent = positive.lowest(); exponent <= positive.highest(); exponent++) {
+        AtomicLongArray page = positive.get(exponent);
+        if (page == null) continue;
+        for (int i = 0; i < page.length(); i++) {
+          long count = page.get(i);
+          if (count > 0 && !consumer.accept(value(exponent, i, false), count)) return;
+        }
+      }
+    }
+
+    List<Centroid> toCentroids() {
+      List<Centroid> result = new ArrayList<>();
+      forEachBucket((value, count) -> {
+        // centroid weights are ints
+        while (count > Integer.MAX_VALUE) {
+          result.add(new Centroid(value, Integer.MAX_VALUE));
+          count -= Integer.MAX_VALUE;
+        }
+        result.add(new Centroid(value, (int) count));
+        return true;
+      });
+      return result;
+    }
+
+    /**
+     * Nearest-rank quantile.
+     */
+    double quantile(double quantile) {
+      long count = count();
+      if (count == 0) return NaN;
+      long rank = Math.max(1, Math.min(count, (long) Math.ceil(quantile * count)));
+      double[] result = new double[] {NaN};
+      long[] seen = new long[1];
+      forEachBucket((value, bucketCount) -> {
+        seen[0] += bucketCount;
+        if (seen[0] >= rank) {
+          result[0] = value;
+          return false;
+        }
+        return true;
+      });
+      return result[0];
+    }
+  }
+
+  /**
+   * Bucket pages for one sign, indexed by exponent. Only the range of exponents seen so far is
+   * allocated (an empty sketch holds no pages at all), and it is widened when a value falls
+   * outside of it. Lookups of existing pages are lock-free; creating a page or widening the range
+   * is rare (at most once per exponent per minute), so it's serialized.
+   */
+  private static final class Pages {
+    /**
+     * Extra exponents allocated on either side of the observed range, so that values near its
+     * edges don't widen it one exponent at a time.
+     */
+    private static final int PADDING = 4;
+
+    private final int pageSize;
+    @Nullable
+    private volatile Range range;
+
+    Pages(int pageSize) {
+      this.pageSize = pageSize;
+    }
+
+    /**
+     * @return page for the exponent, or null if nothing has been recorded for it.
+     */
+    @Nullable
+    AtomicLongArray get(int exponent) {
+      Range range = this.range;
+      return range == null ? null : range.get(exponent);
+    }
+
+    AtomicLongArray getOrCreate(int exponent) {
+      AtomicLongArray page = get(exponent);
+      return page == null ? create(exponent) : page;
+    }
+
+    /**
+     * @return lowest exponent that may have a page.
+     */
+    int lowest() {
+      Range range = this.range;
+      return range == null ? 0 : range.offset;
+    }
+
+    /**
+     * @return highest exponent that may have a page, or -1 if there are none.
+     */
+    int highest() {
+      Range range = this.range;
+      return range == null ? -1 : range.offset + range.pages.length() - 1;
+    }
+
+    private synchronized AtomicLongArray create(int exponent) {
+      Range range = this.range;
+      if (range == null || exponent < range.offset ||
+          exponent >= range.offset + range.pages.length()) {
+        int from = Math.max(0, exponent - PADDING);
+        int to = Math.min(EXPONENTS, exponent + PADDING + 1);
+        if (range != null) {
+          from = Math.min(from, range.offset);
+          to = Math.max(to, range.offset + range.pages.length());
+        }
+        Range widened = new Range(from, to - from);
+        if (range != null) {
+          // pages are only ever set under this lock, so the copy can't miss any
+          for (int i = 0; i < range.pages.length(); i++) {
+            widened.pages.set(range.offset - from + i, range.pages.get(i));
+          }
+        }
+        this.range = range = widened;
+      }
+      AtomicLongArray page = range.get(exponent);
+      if (page == null) {
+        page = new AtomicLongArray(pageSize);
+        range.pages.set(exponent - range.offset, page);
+      }
+      return page;
+    }
+
+    private static final class Range {
+      private final int offset;
+      private final AtomicReferenceArray<AtomicLongArray> pages;
+
+      Range(int offset, int length) {
+        this.offset = offset;
+        this.pages = new AtomicReferenceArray<>(length);
+      }
+
+      @Nullable
+      AtomicLongArray get(int exponent) {
+        int i = exponent - offset;
+        return i < 0 || i >= pages.length() ? null : pages.get(i);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface BucketConsumer {
+    /**
+     * @return false to stop iterating.
+     */
+    boolean accept(double value, long count);
+  }
+
+  private static class LogLinearSample implements Sample {
+
+    private LogLinearHistogram histogram;
+
+    void set(LogLinearHistogram histogram) {
+      this.histogram = histogram;
+    }
+
+    @Override
+    public void clear() {
+      histogram.clear();
+    }
+
+    @Override
+    public int size() {
+      return (int) histogram.count();
+    }
+
+    @Override
+    public void update(long l) {
+      histogram.update(l);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return histogram.getSnapshot();
+    }
+  }
+}
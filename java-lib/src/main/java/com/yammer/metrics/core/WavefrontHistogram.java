@@ -10,33 +10,93 @@ import com.yammer.metrics.stats.Snapshot;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
 
 import static java.lang.Double.NaN;
 
 /**
  * Wavefront implementation of {@link Histogram}.
  *
+ * By default, each recording thread gets its own list of minute bins. Histograms created with
+ * {@link #getStriped} instead use a fixed number of cells (stripes), selected by thread id hash
+ * and re-selected on contention, similar to {@link java.util.concurrent.atomic.LongAdder}, so
+ * memory stays bounded regardless of how many threads record values (which matters with
+ * churning thread pools or virtual threads). Each cell holds a fixed-size ring of minute bins,
+ * installed with a CAS. A t-digest is not thread-safe, so each bin is guarded by a try-lock for
+ * the duration of an update (i.e. this is a striped spinlock): a recording thread that finds
+ * its bin busy moves on to another cell instead of waiting, so updates never block on a monitor.
+ * Readers don't wait for bins that are being updated either: stats are read without claiming
+ * bins, and snapshots skip bins that stay busy (and are not cached in that case).
+ *
+ * Minute bins can optionally be rolled up into hour and day bins (see {@link #setGranularities}).
+ * Roll-ups are merged locally as minute bins are reported, and an hour or day bin is reported
+ * once, after its period ends, so a histogram that reports only coarse granularities sends up
+ * to 60 (or 1440) times fewer distributions.
+ *
  * @author Tim Schmidt (tim@wavefront.com).
  */
 public class WavefrontHistogram extends Histogram implements Metric {
   private static final int DEFAULT_COMPRESSION = 32;
   private static final double RECOMPRESSION_THRESHOLD_FACTOR = 2.0;
   private static final int MAX_BINS = 10;
+  private static final int DEFAULT_STRIPES =
+      Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
   private final int compression;
   private final Supplier<Long> millis;
 
-  private final ConcurrentMap<Long, LinkedList<MinuteBin>> perThreadHistogramBins = new ConcurrentHashMap<>();
+  private final BinStore binStore;
+  private volatile Set<Granularity> granularities = EnumSet.of(Granularity.MINUTE);
+  /**
+   * Pending hour and day bins, guarded by itself.
+   */
+  private final Map<Granularity, TreeMap<Long, MinuteBin>> rollups =
+      new EnumMap<>(Granularity.class);
+  /**
+   * Latest minute rolled up so far, to avoid rolling up minutes twice when bins are not cleared.
+   */
+  private long lastRolledUpMillis = Long.MIN_VALUE;
+  /**
+   * Cutoff of the last roll-up: hour and day bins that ended before it have been reported,
+   * so minutes that arrive late for these periods are not rolled up again.
+   */
+  private long lastRollupCutoffMillis = Long.MIN_VALUE;
+  /**
+   * Minutes before this one have been drained (reported and cleared), so late values for them
+   * are discarded instead of creating new bins that would report these minutes again.
+   */
+  private final AtomicLong drainedMillis = new AtomicLong(Long.MIN_VALUE);
+  /**
+   * Incremented every time a bin is added or removed.
+   */
+  private final AtomicLong structureVersion = new AtomicLong();
+  private volatile CachedSnapshot cachedSnapshot = null;
 
-  private WavefrontHistogram(TDigestSample sample, int compression, Supplier<Long> millis) {
+  private WavefrontHistogram(TDigestSample sample, int compression, Supplier<Long> millis,
+                             int stripes) {
     super(sample);
     this.compression = compression;
     this.millis = millis;
+    this.binStore = stripes > 0 ? new StripedBinStore(stripes) : new PerThreadBinStore();
   }
 
   public static WavefrontHistogram get(MetricName metricName) {
@@ -64,35 +124,102 @@ public class WavefrontHistogram extends Histogram implements Metric {
                                        MetricName metricName,
                                        int accuracy,
                                        Supplier<Long> clock) {
+    return get(registry, metricName, accuracy, clock, 0);
+  }
+
+  /**
+   * Get or create a histogram that records into a fixed number of striped cells
+   * (see class description).
+   *
+   * @param registry   metrics registry.
+   * @param metricName metric name.
+   * @return histogram
+   */
+  public static WavefrontHistogram getStriped(MetricsRegistry registry, MetricName metricName) {
+    return getStriped(registry, metricName, DEFAULT_COMPRESSION, System::currentTimeMillis,
+        DEFAULT_STRIPES);
+  }
+
+  /**
+   * Get or create a histogram that records into a fixed number of striped cells
+   * (see class description).
+   *
+   * @param registry   metrics registry.
+   * @param metricName metric name.
+   * @param accuracy   t-digest compression.
+   * @param clock      clock (millis).
+   * @param stripes    number of cells, rounded up to a power of 2.
+   * @return histogram
+   */
+  public static WavefrontHistogram getStriped(MetricsRegistry registry,
+                                              MetricName metricName,
+                                              int accuracy,
+                                              Supplier<Long> clock,
+                                              int stripes) {
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("Number of stripes must be positive");
+    }
+    return get(registry, metricName, accuracy, clock, stripes);
+  }
+
+  private static WavefrontHistogram get(MetricsRegistry registry,
+                                        MetricName metricName,
+                                        int accuracy,
+                                        Supplier<Long> clock,
+                                        int stripes) {
     // Awkward construction trying to fit in with Yammer Histograms
     TDigestSample sample = new TDigestSample();
-    WavefrontHistogram tDigestHistogram = new WavefrontHistogram(sample, accuracy, clock);
+    WavefrontHistogram tDigestHistogram = new WavefrontHistogram(sample, accuracy, clock, stripes);
     sample.set(tDigestHistogram);
     return registry.getOrAdd(metricName, tDigestHistogram);
   }
 
+  /**
+   * Set granularities to report. Minute bins are reported by default. When hour or day
+   * granularity is enabled, minute bins are merged into hour/day bins as they are reported
+   * (see {@link #bins}), and completed hour/day bins are reported once their period ends.
+   * Bins are aligned to UTC hours and days.
+   *
+   * @param granularities granularities to report, e.g. only {@link Granularity#HOUR} to report
+   *                      only hourly distributions.
+   */
+  public void setGranularities(Set<Granularity> granularities) {
+    if (granularities.isEmpty()) {
+      throw new IllegalArgumentException("At least one granularity is required");
+    }
+    this.granularities = Collections.unmodifiableSet(EnumSet.copyOf(granularities));
+  }
+
+  public Set<Granularity> getGranularities() {
+    return granularities;
+  }
+
   /**
    * Aggregates all the bins prior to the current minute
    * This is because threads might be updating the current minute bin while the bins() method is invoked
    *
+   * If hour or day granularity is enabled, these minute bins are also rolled up, and any hour
+   * or day bins that are complete as of the current minute are returned as well (regardless of
+   * the {@code clear} flag, these are only returned once). When bins are not cleared, only
+   * minutes newer than the ones already rolled up are merged into hour and day bins.
+   *
    * @param clear if set to true, will clear the older bins
    * @return returns aggregated collection of all the bins prior to the current minute
    */
   public List<MinuteBin> bins(boolean clear) {
     final long cutoffMillis = minMillis();
-    List<MinuteBin> result =
-        new ArrayList<>(perThreadHistogramBins.values().stream().flatMap(List::stream).
-        filter(i -> i.getMinMillis() < cutoffMillis).
-        collect(Collectors.groupingBy(MinuteBin::getMinMillis,
-            Collectors.reducing(null, (a, b) -> {
-              MinuteBin minuteBin = a == null ? new MinuteBin(b.getMinMillis(), compression) : a;
-              minuteBin.getDist().add(b.getDist());
-              return minuteBin;
-            }))).values());
-
     if (clear) {
-      clearPriorCurrentMinuteBin(cutoffMillis);
+      drainedMillis.accumulateAndGet(cutoffMillis, Math::max);
+    }
+    Map<Long, MinuteBin> merged = new HashMap<>();
+    binStore.drain(cutoffMillis, clear, b -> merged.computeIfAbsent(b.getMinMillis(),
+        x -> new MinuteBin(x, compression)).add(b));
+    Set<Granularity> granularities = this.granularities;
+    List<MinuteBin> result = new ArrayList<>();
+    if (granularities.contains(Granularity.MINUTE)) {
+      result.addAll(merged.values());
     }
+    rollup(merged.values(), cutoffMillis, clear, granularities, result);
     result.forEach(bin -> {
       if (bin.getDist().centroidCount() > compression * RECOMPRESSION_THRESHOLD_FACTOR) {
         bin.getDist().compress();
@@ -102,6 +229,35 @@ public class WavefrontHistogram extends Histogram implements Metric {
     return result;
   }
 
+  private void rollup(Collection<MinuteBin> minuteBins, long cutoffMillis, boolean clear,
+                      Set<Granularity> granularities, List<MinuteBin> result) {
+    synchronized (rollups) {
+      rollups.keySet().retainAll(granularities);
+      long watermark = lastRolledUpMillis;
+      for (Granularity granularity : granularities) {
+        if (granularity == Granularity.MINUTE) continue;
+        TreeMap<Long, MinuteBin> pending = rollups.computeIfAbsent(granularity,
+            x -> new TreeMap<>());
+        for (MinuteBin minuteBin : minuteBins) {
+          if (!clear && minuteBin.minMillis <= watermark) continue;
+          long startMillis = granularity.startOf(minuteBin.minMillis);
+          if (startMillis + granularity.getMillis() <= lastRollupCutoffMillis) continue;
+          pending.computeIfAbsent(startMillis,
+              x -> new MinuteBin(x, granularity, compression)).add(minuteBin);
+          lastRolledUpMillis = Math.max(lastRolledUpMillis, minuteBin.minMillis);
+        }
+        Iterator<MinuteBin> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+          MinuteBin bin = iterator.next();
+          if (bin.minMillis + bin.getDurationMillis() > cutoffMillis) break;
+          result.add(bin);
+          iterator.remove();
+        }
+      }
+      lastRollupCutoffMillis = Math.max(lastRollupCutoffMillis, cutoffMillis);
+    }
+  }
+
   private long minMillis() {
     long currMillis;
     if (millis == null) {
@@ -111,35 +267,32 @@ public class WavefrontHistogram extends Histogram implements Metric {
     } else {
       currMillis = millis.get();
     }
-    return (currMillis / 60000L) * 60000L;
+    return minMillisOf(currMillis);
   }
 
-  @Override
-  public void update(int value) {
-    update((double) value);
+  private static long minMillisOf(long timestampMillis) {
+    return (timestampMillis / 60000L) * 60000L;
   }
 
   /**
-   * Helper to retrieve the current bin. Will be invoked per thread.
+   * Apply an update to the bin for the specified minute, unless it's older than the last
+   * {@link #MAX_BINS} minutes (bins for such minutes would have already been evicted), or
+   * has already been reported. Updates for future minutes are applied to the current minute,
+   * so they can't take the place of bins that haven't been reported yet.
    */
-  private MinuteBin getCurrent() {
-    long key = Thread.currentThread().getId();
-    LinkedList<MinuteBin> bins = perThreadHistogramBins.computeIfAbsent(key,
-        x -> new LinkedList<>());
-
-    long currMinMillis = minMillis();
-
-    // bins with clear == true flag will drain (CONSUMER) the list,
-    // so synchronize the access to the respective 'bins' list
-    synchronized (bins) {
-      if (bins.isEmpty() || bins.getLast().minMillis != currMinMillis) {
-        bins.add(new MinuteBin(currMinMillis, compression));
-        if (bins.size() > MAX_BINS) {
-          bins.removeFirst();
-        }
-      }
-      return bins.getLast();
+  private void recordAt(long minMillis, Consumer<MinuteBin> updater) {
+    long currentMinMillis = minMillis();
+    if (minMillis > currentMinMillis) {
+      minMillis = currentMinMillis;
+    } else if (minMillis <= currentMinMillis - MAX_BINS * 60000L) {
+      return;
     }
+    binStore.record(minMillis, updater);
+  }
+
+  @Override
+  public void update(int value) {
+    update((double) value);
   }
 
   /**
@@ -149,17 +302,99 @@ public class WavefrontHistogram extends Histogram implements Metric {
    * @param counts the centroid weights/sample counts
    */
   public void bulkUpdate(List<Double> means, List<Integer> counts) {
+    bulkUpdate(minMillis(), means, counts);
+  }
+
+  private void bulkUpdate(long minMillis, List<Double> means, List<Integer> counts) {
     if (means != null && counts != null) {
       int n = Math.min(means.size(), counts.size());
-      MinuteBin current = getCurrent();
-      for (int i = 0; i < n; ++i) {
-        current.dist.add(means.get(i), counts.get(i));
-      }
+      recordAt(minMillis, bin -> {
+        for (int i = 0; i < n; ++i) {
+          bin.add(means.get(i), counts.get(i));
+        }
+      });
+    }
+  }
+
+  /**
+   * Bulk-update the current minute bin with a set of centroids.
+   *
+   * @param means  the centroid values
+   * @param counts the centroid weights/sample counts
+   * @param length number of centroids to add
+   */
+  public void bulkUpdate(double[] means, int[] counts, int length) {
+    bulkUpdate(means, counts, length, millis.get());
+  }
+
+  /**
+   * Bulk-update the minute bin for the specified timestamp with a set of centroids. Values for
+   * minutes that are no longer retained or have already been reported are discarded, values for
+   * future minutes are added to the current minute.
+   *
+   * @param means           the centroid values
+   * @param counts          the centroid weights/sample counts
+   * @param length          number of centroids to add
+   * @param timestampMillis timestamp that determines the minute bin to update
+   */
+  public void bulkUpdate(double[] means, int[] counts, int length, long timestampMillis) {
+    if (length > means.length || length > counts.length) {
+      throw new IllegalArgumentException("length exceeds array size");
     }
+    recordAt(minMillisOf(timestampMillis), bin -> {
+      for (int i = 0; i < length; ++i) {
+        bin.add(means[i], counts[i]);
+      }
+    });
+  }
+
+  /**
+   * Merge a digest into the current minute bin.
+   *
+   * @param digest digest to merge
+   */
+  public void merge(TDigest digest) {
+    merge(digest, millis.get());
+  }
+
+  /**
+   * Merge a digest into the minute bin for the specified timestamp. Values for minutes that are
+   * no longer retained or have already been reported are discarded, values for future minutes
+   * are added to the current minute.
+   *
+   * @param digest          digest to merge
+   * @param timestampMillis timestamp that determines the minute bin to update
+   */
+  public void merge(TDigest digest, long timestampMillis) {
+    if (digest.size() == 0) return;
+    recordAt(minMillisOf(timestampMillis), bin -> bin.add(digest));
+  }
+
+  /**
+   * Merge a decoded histogram (for example, the value of a
+   * {@link wavefront.report.ReportHistogram}) into the current minute bin.
+   *
+   * @param histogram histogram to merge
+   */
+  public void merge(wavefront.report.Histogram histogram) {
+    merge(histogram, millis.get());
+  }
+
+  /**
+   * Merge a decoded histogram (for example, the value of a
+   * {@link wavefront.report.ReportHistogram}) into the minute bin for the specified timestamp.
+   * Values for minutes that are no longer retained or have already been reported are discarded,
+   * values for future minutes are added to the current minute.
+   *
+   * @param histogram       histogram to merge
+   * @param timestampMillis timestamp that determines the minute bin to update
+   */
+  public void merge(wavefront.report.Histogram histogram, long timestampMillis) {
+    bulkUpdate(minMillisOf(timestampMillis), histogram.getBins(), histogram.getCounts());
   }
 
   public void update(double value) {
-    getCurrent().dist.add(value);
+    binStore.record(minMillis(), bin -> bin.add(value));
   }
 
   @Override
@@ -169,25 +404,23 @@ public class WavefrontHistogram extends Histogram implements Metric {
 
   @Override
   public double mean() {
-    Collection<Centroid> centroids = snapshot().centroids();
-    Centroid mean = centroids.stream().
-        reduce((x, y) -> new Centroid(x.mean() + (y.mean() * y.count()), x.count() + y.count())).orElse(null);
-    return mean == null || centroids.size() == 0 ? Double.NaN : mean.mean() / mean.count();
+    Stats stats = stats();
+    return stats.count == 0 ? Double.NaN : stats.sum / stats.count;
   }
 
   public double min() {
-    return perThreadHistogramBins.values().stream().flatMap(List::stream).
-        mapToDouble(b -> b.dist.getMin()).min().orElse(NaN);
+    Stats stats = stats();
+    return stats.count == 0 ? NaN : stats.min;
   }
 
   public double max() {
-    return perThreadHistogramBins.values().stream().flatMap(List::stream).
-        mapToDouble(b -> b.dist.getMax()).max().orElse(NaN);
+    Stats stats = stats();
+    return stats.count == 0 ? NaN : stats.max;
   }
 
   @Override
   public long count() {
-    return perThreadHistogramBins.values().stream().flatMap(List::stream).mapToLong(bin -> bin.dist.size()).sum();
+    return stats().count;
   }
 
   @Override
@@ -211,27 +444,47 @@ public class WavefrontHistogram extends Histogram implements Metric {
   }
 
   private void clearPriorCurrentMinuteBin(long cutoffMillis) {
-    if (perThreadHistogramBins == null) {
+    if (binStore == null) {
       // will happen if WavefrontHistogram.super() constructor will be invoked
       // before WavefrontHistogram object is fully instantiated,
       // which will be invoke clear() method
       return;
     }
-    for (LinkedList<MinuteBin> bins : perThreadHistogramBins.values()) {
-      // getCurrent() method will add (PRODUCER) item to the bins list, so synchronize the access
-      synchronized (bins) {
-        bins.removeIf(minuteBin -> minuteBin.getMinMillis() < cutoffMillis);
-      }
-    }
+    drainedMillis.accumulateAndGet(cutoffMillis, Math::max);
+    binStore.drain(cutoffMillis, true, bin -> {});
   }
 
-  // TODO - how to ensure thread safety? do we care?
+  /**
+   * Running stats of all bins, maintained on the recording path, so no digests are merged.
+   */
+  private Stats stats() {
+    Stats stats = new Stats();
+    binStore.forEach(stats::add);
+    return stats;
+  }
+
+  /**
+   * Merged digest of all bins. The result is cached and reused until there are new updates
+   * or the set of bins changes, so multiple stats derived from it per reporting cycle don't
+   * merge digests again.
+   */
   private TDigest snapshot() {
+    long version = structureVersion.get();
+    long count = count();
+    CachedSnapshot cached = cachedSnapshot;
+    if (cached != null && cached.version == version && cached.count == count) {
+      return cached.digest;
+    }
     final TDigest snapshot = new AVLTreeDigest(compression);
-    perThreadHistogramBins.values().stream().flatMap(List::stream).forEach(bin -> snapshot.add(bin.dist));
+    boolean complete = binStore.forEachDigest(bin -> snapshot.add(bin.dist));
     if (snapshot.centroidCount() > compression * RECOMPRESSION_THRESHOLD_FACTOR) {
       snapshot.compress();
     }
+    // if there were concurrent updates, the count is lower than the digest's size, and
+    // the snapshot will be rebuilt next time
+    if (complete) {
+      cachedSnapshot = new CachedSnapshot(version, count, snapshot);
+    }
     return snapshot;
   }
 
@@ -292,22 +545,437 @@ public class WavefrontHistogram extends Histogram implements Metric {
     metricProcessor.processHistogram(metricName, this, t);
   }
 
+  /**
+   * Histogram granularity.
+   */
+  public enum Granularity {
+    MINUTE(60000L, "!M"),
+    HOUR(3600000L, "!H"),
+    DAY(86400000L, "!D");
+
+    private final long millis;
+    private final String identifier;
+
+    Granularity(long millis, String identifier) {
+      this.millis = millis;
+      this.identifier = identifier;
+    }
+
+    /**
+     * @return bin type identifier used in the Wavefront histogram format.
+     */
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    /**
+     * @return bin duration in milliseconds.
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    long startOf(long timestampMillis) {
+      return timestampMillis - Math.floorMod(timestampMillis, millis);
+    }
+  }
+
+  /**
+   * A digest for a minute, or for an hour or a day if rolled up
+   * (see {@link #getDurationMillis()}).
+   */
   public static class MinuteBin {
     private final TDigest dist;
     private final long minMillis;
+    private final Granularity granularity;
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
 
     MinuteBin(long minMillis, int accuracy) {
-      dist = new AVLTreeDigest(accuracy);
+      this(minMillis, new AVLTreeDigest(accuracy));
+    }
+
+    MinuteBin(long minMillis, Granularity granularity, int accuracy) {
+      this.dist = new AVLTreeDigest(accuracy);
       this.minMillis = minMillis;
+      this.granularity = granularity;
+    }
+
+    MinuteBin(long minMillis, TDigest dist) {
+      this.dist = dist;
+      this.minMillis = minMillis;
+      this.granularity = Granularity.MINUTE;
+    }
+
+    void add(double value) {
+      add(value, 1);
+    }
+
+    void add(double mean, int weight) {
+      dist.add(mean, weight);
+      count += weight;
+      sum += mean * weight;
+      min = Math.min(min, mean);
+      max = Math.max(max, mean);
+    }
+
+    void add(TDigest digest) {
+      for (Centroid centroid : digest.centroids()) {
+        count += centroid.count();
+        sum += centroid.mean() * centroid.count();
+        min = Math.min(min, centroid.mean());
+        max = Math.max(max, centroid.mean());
+      }
+      dist.add(digest);
+    }
+
+    void add(MinuteBin other) {
+      dist.add(other.dist);
+      count += other.count;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
     }
 
     public TDigest getDist() {
       return dist;
     }
 
+    /**
+     * @return start of the bin.
+     */
     public long getMinMillis() {
       return minMillis;
     }
+
+    /**
+     * @return bin duration: a minute, an hour or a day.
+     */
+    public long getDurationMillis() {
+      return granularity.getMillis();
+    }
+
+    /**
+     * @return bin granularity: a minute, an hour or a day.
+     */
+    public Granularity getGranularity() {
+      return granularity;
+    }
+  }
+
+  /**
+   * Storage for minute bins.
+   */
+  private interface BinStore {
+    /**
+     * Apply an update to the bin for the specified minute, unless the minute has been drained
+     * (see {@link #drainedMillis}).
+     */
+    void record(long minMillis, Consumer<MinuteBin> updater);
+
+    /**
+     * Visit all bins, to read their stats. Bins may be updated concurrently, so their digests
+     * must not be accessed.
+     */
+    void forEach(Consumer<MinuteBin> consumer);
+
+    /**
+     * Visit all bins, to read their digests.
+     *
+     * @return false if some bins were skipped because they were being updated.
+     */
+    boolean forEachDigest(Consumer<MinuteBin> consumer);
+
+    /**
+     * Visit all bins older than the cutoff, optionally removing them. When removing bins,
+     * {@link #drainedMillis} must be raised to the cutoff first.
+     */
+    void drain(long cutoffMillis, boolean clear, Consumer<MinuteBin> consumer);
+  }
+
+  /**
+   * A list of bins per recording thread.
+   */
+  private class PerThreadBinStore implements BinStore {
+    private final ConcurrentMap<Long, LinkedList<MinuteBin>> perThreadHistogramBins =
+        new ConcurrentHashMap<>();
+
+    @Override
+    public void record(long minMillis, Consumer<MinuteBin> updater) {
+      long key = Thread.currentThread().getId();
+      LinkedList<MinuteBin> bins = perThreadHistogramBins.computeIfAbsent(key,
+          x -> new LinkedList<>());
+
+      // bins with clear == true flag will drain (CONSUMER) the list,
+      // so synchronize the access to the respective 'bins' list
+      synchronized (bins) {
+        if (minMillis < drainedMillis.get()) return;
+        MinuteBin bin = getBin(bins, minMillis);
+        if (bin != null) {
+          updater.accept(bin);
+        }
+      }
+    }
+
+    /**
+     * Helper to retrieve the bin for the specified minute (normally the current one) from the
+     * current thread's list. Returns null if the minute is too old to be retained.
+     */
+    @Nullable
+    private MinuteBin getBin(LinkedList<MinuteBin> bins, long minMillis) {
+      if (!bins.isEmpty() && bins.getLast().minMillis == minMillis) {
+        return bins.getLast();
+      }
+      // bins are sorted by minute, find the bin or the position to insert a new one at
+      ListIterator<MinuteBin> iterator = bins.listIterator(bins.size());
+      while (iterator.hasPrevious()) {
+        MinuteBin bin = iterator.previous();
+        if (bin.minMillis == minMillis) {
+          return bin;
+        } else if (bin.minMillis < minMillis) {
+          iterator.next();
+          break;
+        }
+      }
+      MinuteBin bin = new MinuteBin(minMillis, compression);
+      iterator.add(bin);
+      structureVersion.incrementAndGet();
+      if (bins.size() > MAX_BINS && bins.removeFirst() == bin) {
+        return null;
+      }
+      return bin;
+    }
+
+    @Override
+    public void forEach(Consumer<MinuteBin> consumer) {
+      perThreadHistogramBins.values().stream().flatMap(List::stream).forEach(consumer);
+    }
+
+    @Override
+    public boolean forEachDigest(Consumer<MinuteBin> consumer) {
+      forEach(consumer);
+      return true;
+    }
+
+    @Override
+    public void drain(long cutoffMillis, boolean clear, Consumer<MinuteBin> consumer) {
+      for (LinkedList<MinuteBin> bins : perThreadHistogramBins.values()) {
+        // record() will add (PRODUCER) items to the bins list and update them,
+        // so synchronize the access
+        synchronized (bins) {
+          Iterator<MinuteBin> iterator = bins.iterator();
+          while (iterator.hasNext()) {
+            MinuteBin bin = iterator.next();
+            if (bin.getMinMillis() >= cutoffMillis) break;
+            consumer.accept(bin);
+            if (clear) {
+              iterator.remove();
+              structureVersion.incrementAndGet();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A fixed number of cells, each holding a ring of minute bins. Bins are installed into ring
+   * slots with a CAS, and claimed with a CAS for the duration of an update. Recording threads
+   * that fail to claim a bin move on to another cell instead of waiting.
+   */
+  private class StripedBinStore implements BinStore {
+    /**
+     * How many times a snapshot tries to claim a bin that is being updated before skipping it.
+     */
+    private static final int MAX_READ_ATTEMPTS = 64;
+
+    private final Cell[] cells;
+    private final int mask;
+
+    StripedBinStore(int stripes) {
+      int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+      this.cells = new Cell[size];
+      for (int i = 0; i < size; i++) {
+        cells[i] = new Cell();
+      }
+      this.mask = size - 1;
+    }
+
+    @Override
+    public void record(long minMillis, Consumer<MinuteBin> updater) {
+      long id = Thread.currentThread().getId();
+      int probe = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+      for (int attempt = 1; ; attempt++) {
+        if (minMillis < drainedMillis.get()) return;
+        Cell cell = cells[(probe ^ (probe >>> 16)) & mask];
+        StripedBin bin = cell.getBin(minMillis);
+        if (bin == null) return;
+        if (bin.tryClaim()) {
+          try {
+            // the minute might have been drained while we were getting the bin
+            if (minMillis < drainedMillis.get()) return;
+            updater.accept(bin);
+          } finally {
+            bin.release();
+          }
+          return;
+        }
+        // contention: rehash to another cell
+        probe = ThreadLocalRandom.current().nextInt();
+        if (attempt % cells.length == 0) {
+          Thread.yield();
+        }
+      }
+    }
+
+    @Override
+    public void forEach(Consumer<MinuteBin> consumer) {
+      for (Cell cell : cells) {
+        for (int i = 0; i < MAX_BINS; i++) {
+          MinuteBin bin = cell.ring.get(i);
+          if (bin != null) {
+            consumer.accept(bin);
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean forEachDigest(Consumer<MinuteBin> consumer) {
+      boolean complete = true;
+      for (Cell cell : cells) {
+        for (int i = 0; i < MAX_BINS; i++) {
+          StripedBin bin = cell.ring.get(i);
+          if (bin == null) continue;
+          if (bin.tryClaim(MAX_READ_ATTEMPTS)) {
+            try {
+              consumer.accept(bin);
+            } finally {
+              bin.release();
+            }
+          } else {
+            complete = false;
+          }
+        }
+      }
+      return complete;
+    }
+
+    /**
+     * Only bins older than the cutoff are drained. These are only updated by late
+     * {@link #bulkUpdate}/{@link #merge} calls, so claiming them doesn't contend with
+     * the recording of current values.
+     */
+    @Override
+    public void drain(long cutoffMillis, boolean clear, Consumer<MinuteBin> consumer) {
+      for (Cell cell : cells) {
+        for (int i = 0; i < MAX_BINS; i++) {
+          StripedBin bin = cell.ring.get(i);
+          if (bin == null || bin.getMinMillis() >= cutoffMillis) continue;
+          if (clear) {
+            if (!cell.ring.compareAndSet(i, bin, null)) continue;
+            structureVersion.incrementAndGet();
+            // detached bins stay claimed, so writers that still hold a reference move on
+            bin.claim();
+            // bins created for a minute that was being drained concurrently stay empty
+            if (bin.getDist().size() > 0) {
+              consumer.accept(bin);
+            }
+          } else {
+            bin.claim();
+            try {
+              consumer.accept(bin);
+            } finally {
+              bin.release();
+            }
+          }
+        }
+      }
+    }
+
+    private class Cell {
+      private final AtomicReferenceArray<StripedBin> ring = new AtomicReferenceArray<>(MAX_BINS);
+
+      /**
+       * Get or install the bin for the specified minute. Returns null if the minute is too old
+       * to be retained (a newer bin already occupies its slot).
+       */
+      @Nullable
+      StripedBin getBin(long minMillis) {
+        int slot = (int) Math.floorMod(minMillis / 60000L, (long) MAX_BINS);
+        while (true) {
+          StripedBin bin = ring.get(slot);
+          if (bin != null && bin.getMinMillis() == minMillis) {
+            return bin;
+          } else if (bin != null && bin.getMinMillis() > minMillis) {
+            return null;
+          }
+          StripedBin newBin = new StripedBin(minMillis);
+          if (ring.compareAndSet(slot, bin, newBin)) {
+            structureVersion.incrementAndGet();
+            return newBin;
+          }
+        }
+      }
+    }
+
+    private class StripedBin extends MinuteBin {
+      private final AtomicInteger state = new AtomicInteger();
+
+      StripedBin(long minMillis) {
+        super(minMillis, compression);
+      }
+
+      boolean tryClaim() {
+        return state.get() == 0 && state.compareAndSet(0, 1);
+      }
+
+      boolean tryClaim(int attempts) {
+        for (int i = 0; i < attempts; i++) {
+          if (tryClaim()) return true;
+          Thread.yield();
+        }
+        return false;
+      }
+
+      void claim() {
+        while (!tryClaim()) {
+          Thread.yield();
+        }
+      }
+
+      void release() {
+        state.set(0);
+      }
+    }
+  }
+
+  private static class Stats {
+    long count = 0;
+    double sum = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    void add(MinuteBin bin) {
+      count += bin.count;
+      sum += bin.sum;
+      min = Math.min(min, bin.min);
+      max = Math.max(max, bin.max);
+    }
+  }
+
+  private static class CachedSnapshot {
+    final long version;
+    final long count;
+    final TDigest digest;
+
+    CachedSnapshot(long version, long count, TDigest digest) {
+      this.version = version;
+      this.count = count;
+      this.digest = digest;
+    }
   }
 
   private static class TDigestSample implements Sample {
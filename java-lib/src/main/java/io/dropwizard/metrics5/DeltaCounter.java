@@ -9,6 +9,9 @@ import com.wavefront.common.MetricConstants;
  *
  * Differs from a counter in that it is reset in the WavefrontReporter every time the value is reported.
  *
+ * {@link Counter} is already backed by a striped {@link java.util.concurrent.atomic.LongAdder},
+ * so concurrent increments don't contend with each other.
+ *
  * @author Vikram Raman (vikram@wavefront.com)
  */
 public class DeltaCounter extends Counter {
@@ -27,4 +30,16 @@ public class DeltaCounter extends Counter {
     registry.register(metricName, counter);
     return counter;
   }
+
+  /**
+   * Returns the current count and resets the counter. Only the returned amount is subtracted,
+   * so increments that happen concurrently are never lost, they are reported next time.
+   *
+   * @return the current count
+   */
+  public long sumThenReset() {
+    long sum = getCount();
+    dec(sum);
+    return sum;
+  }
 }
\ No newline at end of file
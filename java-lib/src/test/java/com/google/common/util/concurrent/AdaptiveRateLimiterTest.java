@@ -0,0 +1,135 @@
+package com.google.common.util.concurrent;
+
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.common.TaggedMetricName;
+import com.wavefront.data.ReportableEntityType;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveRateLimiterTest {
+
+  @Test
+  public void testAimd() {
+    AtomicLong clock = new AtomicLong(10_000);
+    RecyclableRateLimiter delegate = new LockFreeRecyclableRateLimiter(
+        new FakeSleepingStopwatch(), 1000, 10, 1);
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(delegate, ReportableEntityType.POINT,
+        0.1, 5000, clock::get);
+    assertEquals(1000, limiter.getCeiling(), 1e-9);
+    assertEquals(100, limiter.getFloor(), 1e-9);
+
+    limiter.onResponse(429, 100);
+    assertEquals(500, limiter.getRate(), 1e-9);
+    // responses to requests that were in flight don't cause further adjustments
+    limiter.onResponse(503, 100);
+    limiter.onResponse(406, 100);
+    assertEquals(500, limiter.getRate(), 1e-9);
+
+    // increases are held off for a while after a decrease
+    clock.addAndGet(1000);
+    limiter.onResponse(200, 100);
+    assertEquals(500, limiter.getRate(), 1e-9);
+    clock.addAndGet(2000);
+    limiter.onResponse(200, 100);
+    assertEquals(550, limiter.getRate(), 1e-9);
+    limiter.onResponse(200, 100);
+    assertEquals(550, limiter.getRate(), 1e-9);
+    clock.addAndGet(1000);
+    limiter.onResponse(202, 10000);
+    assertEquals(495, limiter.getRate(), 1e-9);
+    clock.addAndGet(1000);
+    limiter.onResponse(400, 100);
+    assertEquals(495, limiter.getRate(), 1e-9);
+
+    for (int i = 0; i < 10; i++) {
+      clock.addAndGet(1000);
+      limiter.onFailure();
+    }
+    assertEquals(100, limiter.getRate(), 1e-9);
+    for (int i = 0; i < 30; i++) {
+      clock.addAndGet(1000);
+      limiter.onResponse(200, 100);
+    }
+    assertEquals(1000, limiter.getRate(), 1e-9);
+  }
+
+  @Test
+  public void testPartialPushback() {
+    AtomicLong clock = new AtomicLong(10_000);
+    RecyclableRateLimiter delegate = new LockFreeRecyclableRateLimiter(
+        new FakeSleepingStopwatch(), 1000, 10, 1);
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(delegate, ReportableEntityType.POINT,
+        0.1, 5000, clock::get);
+    limiter.setRate(400);
+    // a success that arrives first in the interval doesn't prevent the decrease
+    limiter.onResponse(200, 100);
+    assertEquals(450, limiter.getRate(), 1e-9);
+    limiter.onResponse(429, 100);
+    assertEquals(225, limiter.getRate(), 1e-9);
+    // with some requests still getting pushback, the rate keeps going down
+    for (int i = 0; i < 5; i++) {
+      clock.addAndGet(1000);
+      limiter.onResponse(200, 100);
+      limiter.onResponse(202, 100);
+      limiter.onResponse(429, 100);
+    }
+    assertEquals(100, limiter.getRate(), 1e-9);
+  }
+
+  @Test
+  public void testUpdateBounds() {
+    RecyclableRateLimiter delegate = new LockFreeRecyclableRateLimiter(
+        new FakeSleepingStopwatch(), 1000, 10, 1);
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(delegate, ReportableEntityType.HISTOGRAM,
+        0.5, 5000, () -> 0L);
+    AgentConfiguration config = new AgentConfiguration();
+    config.setHistogramRateLimit(400L);
+    limiter.updateBounds(config);
+    // collectorSetsRateLimit is not set
+    assertEquals(1000, limiter.getCeiling(), 1e-9);
+    assertEquals(1000, limiter.getRate(), 1e-9);
+
+    config.setCollectorSetsRateLimit(true);
+    limiter.updateBounds(config);
+    assertEquals(400, limiter.getCeiling(), 1e-9);
+    assertEquals(200, limiter.getFloor(), 1e-9);
+    assertEquals(400, limiter.getRate(), 1e-9);
+
+    config.setGlobalHistogramRateLimit(300L);
+    limiter.updateBounds(config);
+    assertEquals(300, limiter.getCeiling(), 1e-9);
+    assertEquals(300, limiter.getRate(), 1e-9);
+
+    limiter.setRate(10);
+    assertEquals(150, limiter.getRate(), 1e-9);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAdjustmentMetrics() {
+    AtomicLong clock = new AtomicLong(0);
+    RecyclableRateLimiter delegate = new RecyclableRateLimiterWithMetrics(
+        new LockFreeRecyclableRateLimiter(new FakeSleepingStopwatch(), 100, 10, 1),
+        "limiter.adaptive-test");
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(delegate, ReportableEntityType.POINT,
+        0.1, 5000, clock::get);
+    limiter.onResponse(429, 10);
+    clock.addAndGet(1000);
+    limiter.onResponse(429, 10);
+    clock.addAndGet(AdaptiveRateLimiter.INCREASE_HOLD_OFF_MILLIS);
+    limiter.onResponse(200, 10);
+    assertEquals(1, ((Counter) Metrics.defaultRegistry().allMetrics().
+        get(new TaggedMetricName("limiter.adaptive-test", "rate-increased"))).count());
+    assertEquals(2, ((Counter) Metrics.defaultRegistry().allMetrics().
+        get(new TaggedMetricName("limiter.adaptive-test", "rate-decreased"))).count());
+    assertEquals(30.0, ((Gauge<Double>) Metrics.defaultRegistry().allMetrics().
+        get(new TaggedMetricName("limiter.adaptive-test", "rate"))).value(), 1e-9);
+  }
+}
@@ -0,0 +1,22 @@
+package com.google.common.util.concurrent;
+
+/**
+ * A {@link RateLimiter.SleepingStopwatch} with manually advanced time, sleeping advances it too.
+ */
+class FakeSleepingStopwatch extends RateLimiter.SleepingStopwatch {
+  private volatile long micros = 1;
+
+  void advance(long delta) {
+    micros += delta;
+  }
+
+  @Override
+  protected long readMicros() {
+    return micros;
+  }
+
+  @Override
+  protected void sleepMicrosUninterruptibly(long delta) {
+    micros += delta;
+  }
+}
@@ -0,0 +1,129 @@
+package com.google.common.util.concurrent;
+
+import com.google.common.collect.ImmutableMap;
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.data.ReportableEntityType;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalRateLimiterTest {
+
+  @Test
+  public void testChildrenCantExceedParent() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    HierarchicalRateLimiter<String> limiter = HierarchicalRateLimiter.<String>newBuilder(ticker, 1).
+        addBucket("global", 100).
+        addBucket("a", "global", 80).
+        addBucket("b", "global", 80).
+        build();
+    RecyclableRateLimiter a = limiter.get("a");
+    RecyclableRateLimiter b = limiter.get("b");
+    ticker.advance(TimeUnit.SECONDS.toMicros(10));
+    assertTrue(a.immediatelyAvailable(80));
+    assertFalse(a.immediatelyAvailable(81));
+    assertTrue(a.tryAcquire(80));
+    assertFalse(b.immediatelyAvailable(21));
+    assertTrue(b.immediatelyAvailable(20));
+    // borrows from the future at both levels
+    assertTrue(b.tryAcquire(80));
+    assertFalse(b.tryAcquire(1));
+    assertFalse(a.tryAcquire(1));
+    // parent is 60 permits (600ms) in debt
+    assertEquals(0.6, a.acquire(1), 1e-9);
+    // a's permit from the parent is paid for by the next caller
+    assertEquals(0.01, b.acquire(1), 1e-9);
+  }
+
+  @Test
+  public void testRecyclePermits() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    HierarchicalRateLimiter<String> limiter = HierarchicalRateLimiter.<String>newBuilder(ticker, 1).
+        addBucket("global", 100).
+        addBucket("a", "global", 100).
+        addBucket("b", "global", 100).
+        build();
+    ticker.advance(TimeUnit.SECONDS.toMicros(10));
+    RecyclableRateLimiter a = limiter.get("a");
+    RecyclableRateLimiter b = limiter.get("b");
+    assertTrue(a.tryAcquire(100));
+    assertFalse(b.immediatelyAvailable(1));
+    a.recyclePermits(40);
+    assertTrue(a.immediatelyAvailable(40));
+    assertTrue(b.immediatelyAvailable(40));
+    assertFalse(b.immediatelyAvailable(41));
+  }
+
+  @Test
+  public void testSetRates() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    HierarchicalRateLimiter<String> limiter = HierarchicalRateLimiter.<String>newBuilder(ticker, 1).
+        addBucket("global", Double.POSITIVE_INFINITY).
+        addBucket("a", "global", 100).
+        build();
+    ticker.advance(TimeUnit.SECONDS.toMicros(10));
+    assertTrue(limiter.get("a").immediatelyAvailable(100));
+    limiter.setRates(ImmutableMap.of("global", 10d, "a", 50d));
+    assertEquals(10, limiter.getRate("global"), 1e-9);
+    assertEquals(50, limiter.get("a").getRate(), 1e-9);
+    assertTrue(limiter.get("a").immediatelyAvailable(10));
+    assertFalse(limiter.get("a").immediatelyAvailable(11));
+    limiter.get("a").setRate(5);
+    assertEquals(5, limiter.getRate("a"), 1e-9);
+    assertEquals(10, limiter.getRate("global"), 1e-9);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownParent() {
+    HierarchicalRateLimiter.<String>newBuilder(1).addBucket("a", "global", 100);
+  }
+
+  @Test
+  public void testEntityRateLimiters() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    EntityRateLimiters limiters = new EntityRateLimiters(ticker,
+        ImmutableMap.of(ReportableEntityType.POINT, 1000d), 1);
+    assertEquals(1000, limiters.get(ReportableEntityType.POINT).getRate(), 1e-9);
+    assertEquals(Double.POSITIVE_INFINITY,
+        limiters.get(ReportableEntityType.HISTOGRAM).getRate(), 0);
+    assertEquals(Double.POSITIVE_INFINITY,
+        limiters.getGlobalRate(ReportableEntityType.POINT), 0);
+
+    AgentConfiguration config = new AgentConfiguration();
+    config.setCollectorSetsRateLimit(true);
+    config.setCollectorRateLimit(500L);
+    config.setHistogramRateLimit(50L);
+    config.setGlobalCollectorRateLimit(200L);
+    limiters.update(config);
+    assertEquals(500, limiters.get(ReportableEntityType.POINT).getRate(), 1e-9);
+    assertEquals(500, limiters.get(ReportableEntityType.DELTA_COUNTER).getRate(), 1e-9);
+    assertEquals(50, limiters.get(ReportableEntityType.HISTOGRAM).getRate(), 1e-9);
+    assertEquals(200, limiters.getGlobalRate(ReportableEntityType.POINT), 1e-9);
+    assertEquals(200, limiters.getGlobalRate(ReportableEntityType.DELTA_COUNTER), 1e-9);
+    assertEquals(Double.POSITIVE_INFINITY,
+        limiters.getGlobalRate(ReportableEntityType.HISTOGRAM), 0);
+
+    ticker.advance(TimeUnit.SECONDS.toMicros(10));
+    RecyclableRateLimiter points = limiters.get(ReportableEntityType.POINT);
+    RecyclableRateLimiter deltas = limiters.get(ReportableEntityType.DELTA_COUNTER);
+    assertTrue(points.immediatelyAvailable(200));
+    assertFalse(points.immediatelyAvailable(201));
+    assertTrue(points.tryAcquire(150));
+    assertTrue(deltas.immediatelyAvailable(50));
+    assertFalse(deltas.immediatelyAvailable(51));
+
+    config.setCollectorSetsRateLimit(false);
+    config.setGlobalCollectorRateLimit(null);
+    limiters.update(config);
+    assertEquals(1000, limiters.get(ReportableEntityType.POINT).getRate(), 1e-9);
+    assertEquals(Double.POSITIVE_INFINITY,
+        limiters.get(ReportableEntityType.HISTOGRAM).getRate(), 0);
+    assertEquals(Double.POSITIVE_INFINITY,
+        limiters.getGlobalRate(ReportableEntityType.POINT), 0);
+  }
+}
@@ -0,0 +1,127 @@
+package com.google.common.util.concurrent;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LockFreeRecyclableRateLimiterTest {
+
+  @Test
+  public void testSameBehaviorAsRecyclableRateLimiterImpl() {
+    FakeSleepingStopwatch lockFreeTicker = new FakeSleepingStopwatch();
+    FakeSleepingStopwatch lockingTicker = new FakeSleepingStopwatch();
+    LockFreeRecyclableRateLimiter lockFree = new LockFreeRecyclableRateLimiter(lockFreeTicker,
+        100, 10, 1);
+    RecyclableRateLimiterImpl locking = new RecyclableRateLimiterImpl(lockingTicker, 100, 10);
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      long advance = random.nextInt(50_000);
+      lockFreeTicker.advance(advance);
+      lockingTicker.advance(advance);
+      int permits = 1 + random.nextInt(200);
+      switch (random.nextInt(6)) {
+        case 0:
+          assertEquals(locking.acquire(permits), lockFree.acquire(permits), 0.0);
+          break;
+        case 1:
+          assertEquals(locking.tryAcquire(permits), lockFree.tryAcquire(permits));
+          break;
+        case 2:
+          locking.recyclePermits(permits);
+          lockFree.recyclePermits(permits);
+          break;
+        case 3:
+          assertEquals(locking.immediatelyAvailable(permits),
+              lockFree.immediatelyAvailable(permits));
+          break;
+        case 4:
+          double rate = 1 + random.nextInt(1000);
+          locking.setRate(rate);
+          lockFree.setRate(rate);
+          break;
+        default:
+          assertEquals(locking.getRate(), lockFree.getRate(), 0.0);
+      }
+      assertEquals(lockingTicker.readMicros(), lockFreeTicker.readMicros());
+      assertEquals(locking.getAvailablePermits(), lockFree.getAvailablePermits(), 0.0);
+    }
+  }
+
+  @Test
+  public void testConcurrentTryAcquire() throws Exception {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    LockFreeRecyclableRateLimiter limiter = new LockFreeRecyclableRateLimiter(ticker, 100, 10, 1);
+    ticker.advance(TimeUnit.SECONDS.toMicros(30));
+    assertEquals(1000, limiter.getAvailablePermits(), 0.0);
+    AtomicInteger granted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int t = 0; t < 8; t++) {
+      executor.submit(() -> {
+        for (int i = 0; i < 1000; i++) {
+          if (limiter.tryAcquire(1)) granted.incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    // all stored permits, plus one request that borrows from the future
+    assertEquals(1001, granted.get());
+    assertFalse(limiter.tryAcquire(1));
+  }
+
+  @Test
+  public void testLeases() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    LockFreeRecyclableRateLimiter limiter = new LockFreeRecyclableRateLimiter(ticker, 100, 10, 50);
+    ticker.advance(TimeUnit.SECONDS.toMicros(1));
+    assertEquals(100, limiter.getAvailablePermits(), 0.0);
+    assertTrue(limiter.tryAcquire(10));
+    assertEquals(40, limiter.getLeasedPermits());
+    assertEquals(50, limiter.getAvailablePermits(), 0.0);
+    assertTrue(limiter.tryAcquire(30));
+    assertEquals(10, limiter.getLeasedPermits());
+    assertEquals(50, limiter.getAvailablePermits(), 0.0);
+    assertTrue(limiter.immediatelyAvailable(10));
+    assertEquals(0.0, limiter.acquire(40), 0.0);
+    assertEquals(20, limiter.getLeasedPermits());
+    assertEquals(0, limiter.getAvailablePermits(), 0.0);
+    limiter.returnLeasedPermits();
+    assertEquals(0, limiter.getLeasedPermits());
+    assertEquals(20, limiter.getAvailablePermits(), 0.0);
+  }
+
+  @Test
+  public void testLeaseExpiry() {
+    FakeSleepingStopwatch ticker = new FakeSleepingStopwatch();
+    LockFreeRecyclableRateLimiter limiter = new LockFreeRecyclableRateLimiter(ticker, 100, 1, 50);
+    ticker.advance(TimeUnit.SECONDS.toMicros(1));
+    assertTrue(limiter.tryAcquire(1));
+    assertEquals(49, limiter.getLeasedPermits());
+    assertEquals(50, limiter.getAvailablePermits(), 0.0);
+    ticker.advance(LockFreeRecyclableRateLimiter.LEASE_TTL_MICROS - 1);
+    assertEquals(49, limiter.getLeasedPermits());
+    // the bucket is full again, so expired permits don't add to the burst
+    ticker.advance(1);
+    assertEquals(0, limiter.getLeasedPermits());
+    assertEquals(100, limiter.getAvailablePermits(), 0.0);
+    assertTrue(limiter.tryAcquire(1));
+    assertEquals(49, limiter.getLeasedPermits());
+    assertEquals(50, limiter.getAvailablePermits(), 0.0);
+    // expired permits go to a bucket that isn't full yet
+    ticker.advance(LockFreeRecyclableRateLimiter.LEASE_TTL_MICROS / 2);
+    assertEquals(0.0, limiter.acquire(100), 0.0);
+    assertEquals(49, limiter.getLeasedPermits());
+    assertEquals(0, limiter.getAvailablePermits(), 0.0);
+    ticker.advance(LockFreeRecyclableRateLimiter.LEASE_TTL_MICROS / 2);
+    assertEquals(0, limiter.getLeasedPermits());
+    assertEquals(99, limiter.getAvailablePermits(), 0.0);
+  }
+}
@@ -0,0 +1,313 @@
+package com.wavefront.api.sender;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RecyclableRateLimiterImpl;
+import com.sun.net.httpserver.HttpServer;
+import com.wavefront.api.agent.AgentConfiguration;
+import com.wavefront.data.ReportableEntityType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingSenderTest {
+  private static final UUID PROXY_ID = UUID.randomUUID();
+
+  private HttpServer server;
+  private String serverUrl;
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private final Queue<Integer> responseCodes = new ConcurrentLinkedQueue<>();
+  private final List<String> authHeaders = new CopyOnWriteArrayList<>();
+  private final AtomicReference<String> token = new AtomicReference<>("token1");
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/v2/wfproxy/report", exchange -> {
+      String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      InputStream input = exchange.getRequestBody();
+      if ("gzip".equals(encoding)) {
+        input = new GZIPInputStream(input);
+      } else if ("deflate".equals(encoding)) {
+        input = new InflaterInputStream(input);
+      }
+      String body = new String(ByteStreams.toByteArray(input), StandardCharsets.UTF_8);
+      requests.add(exchange.getRequestURI().getQuery() + "|" + encoding + "|" +
+          exchange.getRequestHeaders().getFirst("X-WF-PROXY-ID") + "|" + body);
+      authHeaders.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+      Integer code = responseCodes.poll();
+      exchange.sendResponseHeaders(code == null ? 202 : code, -1);
+      exchange.close();
+    });
+    server.start();
+    serverUrl = "http://localhost:" + server.getAddress().getPort() + "/api";
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testBatchingAndCompression() {
+    BatchingSender<String> sender = newBuilder(Compression.GZIP).itemsPerBatch(3).build();
+    for (int i = 0; i < 7; i++) {
+      assertTrue(sender.offer(ReportableEntityType.POINT, "metric" + i + " 1.0 source=test"));
+    }
+    assertTrue(sender.offer(ReportableEntityType.HISTOGRAM, "!M 1533529977 #1 1.0 hist"));
+    assertEquals(7, sender.getQueuedCount(ReportableEntityType.POINT));
+    sender.flush();
+    assertEquals(0, sender.getQueuedCount(ReportableEntityType.POINT));
+    assertEquals(Arrays.asList(
+        "format=wavefront|gzip|" + PROXY_ID + "|metric0 1.0 source=test\n" +
+            "metric1 1.0 source=test\nmetric2 1.0 source=test",
+        "format=wavefront|gzip|" + PROXY_ID + "|metric3 1.0 source=test\n" +
+            "metric4 1.0 source=test\nmetric5 1.0 source=test",
+        "format=wavefront|gzip|" + PROXY_ID + "|metric6 1.0 source=test",
+        "format=histogram|gzip|" + PROXY_ID + "|!M 1533529977 #1 1.0 hist"), requests);
+    sender.close();
+  }
+
+  @Test
+  public void testBatchSizeInBytes() {
+    BatchingSender<String> sender = newBuilder(Compression.DEFLATE).maxBatchBytes(10).build();
+    sender.offer(ReportableEntityType.TRACE, "aaaa");
+    sender.offer(ReportableEntityType.TRACE, "bbbb");
+    sender.offer(ReportableEntityType.TRACE, "cccc");
+    sender.offer(ReportableEntityType.TRACE, "oversized item");
+    sender.flush();
+    assertEquals(Arrays.asList(
+        "format=trace|deflate|" + PROXY_ID + "|aaaa\nbbbb",
+        "format=trace|deflate|" + PROXY_ID + "|cccc",
+        "format=trace|deflate|" + PROXY_ID + "|oversized item"), requests);
+    sender.close();
+  }
+
+  @Test
+  public void testRetries() {
+    AtomicLong clock = new AtomicLong(0);
+    BatchingSender<String> sender = newBuilder(Compression.NONE).maxRetries(2).clock(clock::get).
+        build();
+    responseCodes.addAll(Arrays.asList(503, 429, 202, 500, 500, 500));
+    sender.offer(ReportableEntityType.POINT, "point1");
+    sender.flush();
+    assertEquals(1, requests.size());
+    assertEquals(1, sender.getQueuedCount(ReportableEntityType.POINT));
+    // backoff hasn't expired yet
+    clock.addAndGet(900);
+    sender.flush();
+    assertEquals(1, requests.size());
+    clock.addAndGet(1100);
+    sender.flush();
+    assertEquals(2, requests.size());
+    clock.addAndGet(4000);
+    sender.flush();
+    assertEquals(3, requests.size());
+    assertEquals(0, sender.getQueuedCount(ReportableEntityType.POINT));
+
+    // dropped after 3 attempts
+    sender.offer(ReportableEntityType.POINT, "point2");
+    for (int i = 0; i < 5; i++) {
+      sender.flush();
+      clock.addAndGet(10_000);
+    }
+    assertEquals(6, requests.size());
+    assertEquals(0, sender.getQueuedCount(ReportableEntityType.POINT));
+    sender.close();
+  }
+
+  @Test
+  public void testNonRetryableErrors() {
+    BatchingSender<String> sender = newBuilder(Compression.NONE).build();
+    responseCodes.add(400);
+    sender.offer(ReportableEntityType.EVENT, "event1");
+    sender.flush();
+    sender.flush();
+    assertEquals(Collections.singletonList("format=event|null|" + PROXY_ID + "|event1"),
+        requests);
+    assertEquals(0, sender.getQueuedCount(ReportableEntityType.EVENT));
+    sender.close();
+  }
+
+  @Test
+  public void testRateLimiter() {
+    BatchingSender<String> sender = newBuilder(Compression.NONE).itemsPerBatch(2).
+        rateLimiter(ReportableEntityType.POINT, RecyclableRateLimiterImpl.create(0.1, 1)).
+        build();
+    for (int i = 0; i < 4; i++) {
+      sender.offer(ReportableEntityType.POINT, "point" + i);
+    }
+    sender.flush();
+    // the first batch borrows permits from the future, the second one has to wait
+    assertEquals(1, requests.size());
+    assertEquals(2, sender.getQueuedCount(ReportableEntityType.POINT));
+    sender.close();
+  }
+
+  @Test
+  public void testQueueCapacity() {
+    BatchingSender<String> sender = newBuilder(Compression.NONE).queueCapacity(2).build();
+    assertTrue(sender.offer(ReportableEntityType.LOGS, "log1"));
+    assertTrue(sender.offer(ReportableEntityType.LOGS, "log2"));
+    assertFalse(sender.offer(ReportableEntityType.LOGS, "log3"));
+    assertTrue(sender.offer(ReportableEntityType.POINT, "point1"));
+    sender.close();
+    List<String> expected = new ArrayList<>();
+    expected.add("format=wavefront|null|" + PROXY_ID + "|point1");
+    expected.add("format=logs_json_lines|null|" + PROXY_ID + "|log1\nlog2");
+    assertEquals(expected, requests);
+  }
+
+  @Test
+  public void testSlowEndpointDoesntDelayOtherTypes() throws Exception {
+    CountDownLatch traceSent = new CountDownLatch(1);
+    CountDownLatch pointSent = new CountDownLatch(1);
+    CountDownLatch slowEndpoint = new CountDownLatch(1);
+    BatchingSender<String> sender = BatchingSender.<String>newBuilder((entityType, batch) -> {
+      if (entityType == ReportableEntityType.TRACE) {
+        traceSent.countDown();
+        try {
+          slowEndpoint.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      } else {
+        pointSent.countDown();
+      }
+      return 202;
+    }, String::length).flushIntervalMillis(10).build();
+    sender.offer(ReportableEntityType.TRACE, "span1");
+    assertTrue(traceSent.await(5, TimeUnit.SECONDS));
+    sender.offer(ReportableEntityType.POINT, "point1");
+    assertTrue(pointSent.await(5, TimeUnit.SECONDS));
+    // the trace batch is still waiting for a response
+    assertEquals(1, slowEndpoint.getCount());
+    slowEndpoint.countDown();
+    sender.close();
+  }
+
+  @Test
+  public void testAuthorization() {
+    BatchingSender<String> sender = newBuilder(Compression.GZIP).build();
+    sender.offer(ReportableEntityType.POINT, "point1");
+    sender.flush();
+    token.set("token2");
+    sender.offer(ReportableEntityType.POINT, "point2");
+    sender.flush();
+    token.set(null);
+    sender.offer(ReportableEntityType.POINT, "point3");
+    sender.flush();
+    assertEquals(Arrays.asList("Bearer token1", "Bearer token2", "null"), authHeaders);
+    sender.close();
+  }
+
+  @Test
+  public void testServerClosingIdleConnections() throws Exception {
+    List<String> received = new CopyOnWriteArrayList<>();
+    try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      // serves one request per connection, then closes it without a response as soon as the
+      // next request arrives, like a server whose idle timeout expires just then would
+      Thread thread = new Thread(() -> {
+        while (!serverSocket.isClosed()) {
+          try (Socket socket = serverSocket.accept()) {
+            received.add(readChunkedRequest(socket.getInputStream()));
+            socket.getOutputStream().write(
+                "HTTP/1.1 202 Accepted\r\nContent-Length: 0\r\n\r\n".getBytes(UTF_8));
+            socket.getOutputStream().flush();
+            readChunkedRequest(socket.getInputStream());
+          } catch (IOException e) {
+            // connection or server socket closed
+          }
+        }
+      });
+      thread.start();
+      BatchingSender<String> sender = BatchingSender.newBuilder(SenderTransports.http(
+          "http://localhost:" + serverSocket.getLocalPort() + "/api", PROXY_ID, () -> null,
+          Compression.NONE), String::length).flushIntervalMillis(3_600_000).build();
+      for (int i = 0; i < 5; i++) {
+        sender.offer(ReportableEntityType.POINT, "point" + i);
+        sender.flush();
+        assertEquals(0, sender.getQueuedCount(ReportableEntityType.POINT));
+      }
+      sender.close();
+      serverSocket.close();
+      thread.join();
+    }
+    assertEquals(Arrays.asList("point0", "point1", "point2", "point3", "point4"), received);
+  }
+
+  @Test
+  public void testUpdateConfiguration() {
+    BatchingSender<String> sender = newBuilder(Compression.NONE).build();
+    AgentConfiguration config = new AgentConfiguration();
+    config.setPointsPerBatch(1000);
+    config.setRetryBackoffBaseSeconds(4.0);
+    sender.updateConfiguration(config);
+    assertEquals(40_000, sender.getItemsPerBatch());
+    assertEquals(2.0, sender.getRetryBackoffBaseSeconds(), 1e-9);
+    config.setCollectorSetsPointsPerBatch(true);
+    config.setCollectorSetsRetryBackoff(true);
+    sender.updateConfiguration(config);
+    assertEquals(1000, sender.getItemsPerBatch());
+    assertEquals(4.0, sender.getRetryBackoffBaseSeconds(), 1e-9);
+    sender.close();
+  }
+
+  private static String readChunkedRequest(InputStream input) throws IOException {
+    //noinspection StatementWithEmptyBody
+    while (!readLine(input).isEmpty()) {
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int chunkSize;
+    while ((chunkSize = Integer.parseInt(readLine(input), 16)) > 0) {
+      body.write(ByteStreams.toByteArray(ByteStreams.limit(input, chunkSize)));
+      readLine(input);
+    }
+    readLine(input);
+    return new String(body.toByteArray(), UTF_8);
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != '\n') {
+      if (c == -1) throw new EOFException();
+      if (c != '\r') line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  private BatchingSender.Builder<String> newBuilder(Compression compression) {
+    return BatchingSender.newBuilder(SenderTransports.http(serverUrl, PROXY_ID, token::get,
+        compression), String::length).flushIntervalMillis(3_600_000);
+  }
+}
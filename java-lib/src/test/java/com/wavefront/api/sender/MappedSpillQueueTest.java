@@ -0,0 +1,226 @@
+package com.wavefront.api.sender;
+
+import com.wavefront.metrics.ExpectedAgentMetric;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedSpillQueueTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testFifoAcrossSegments() throws Exception {
+    try (MappedSpillQueue queue = new MappedSpillQueue(folder.getRoot(), 128, 4)) {
+      assertTrue(queue.isEmpty());
+      assertNull(queue.peek());
+      assertNull(queue.poll());
+      for (int i = 0; i < 20; i++) {
+        assertTrue(queue.add(bytes("record" + i)));
+      }
+      assertEquals(20, queue.size());
+      assertEquals(3, queue.getSegmentCount());
+      assertEquals("record0", string(queue.peek()));
+      for (int i = 0; i < 20; i++) {
+        assertEquals("record" + i, string(queue.poll()));
+      }
+      assertTrue(queue.isEmpty());
+      assertNull(queue.poll());
+      assertEquals(1, queue.getSegmentCount());
+    }
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    try (MappedSpillQueue queue = new MappedSpillQueue(folder.getRoot(), 64, 2)) {
+      // 8 bytes segment header, 4 bytes end marker => 52 bytes per segment: 3 * (8 + 9)
+      long bytesLeft = queue.getBytesLeft();
+      assertEquals(104, bytesLeft);
+      int added = 0;
+      while (queue.add(bytes("123456789"))) {
+        added++;
+      }
+      assertEquals(6, added);
+      assertFalse(queue.add(bytes("1")));
+      assertEquals("123456789", string(queue.poll()));
+      // space is only reclaimed when the whole segment is consumed
+      assertFalse(queue.add(bytes("1")));
+      queue.poll();
+      queue.poll();
+      assertTrue(queue.add(bytes("1")));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRecordTooLarge() throws Exception {
+    try (MappedSpillQueue queue = new MappedSpillQueue(folder.getRoot(), 64, 2)) {
+      queue.add(new byte[64]);
+    }
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    File dir = folder.getRoot();
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 128, 10)) {
+      for (int i = 0; i < 20; i++) {
+        queue.add(bytes("record" + i));
+      }
+      for (int i = 0; i < 8; i++) {
+        queue.poll();
+      }
+    }
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 128, 10)) {
+      assertEquals(12, queue.size());
+      for (int i = 8; i < 15; i++) {
+        assertEquals("record" + i, string(queue.poll()));
+      }
+      queue.add(bytes("record20"));
+    }
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 128, 10)) {
+      assertEquals(6, queue.size());
+      for (int i = 15; i <= 20; i++) {
+        assertEquals("record" + i, string(queue.poll()));
+      }
+      assertNull(queue.poll());
+    }
+  }
+
+  @Test
+  public void testRecoveryWithEmptyRecords() throws Exception {
+    File dir = folder.getRoot();
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 1024, 10)) {
+      queue.add(bytes("a"));
+      queue.add(new byte[0]);
+      queue.add(bytes("b"));
+      assertEquals("a", string(queue.poll()));
+      assertArrayEquals(new byte[0], queue.poll());
+      queue.add(new byte[0]);
+      queue.add(bytes("c"));
+    }
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 1024, 10)) {
+      assertEquals(3, queue.size());
+      queue.add(bytes("d"));
+      assertEquals("b", string(queue.poll()));
+      assertArrayEquals(new byte[0], queue.poll());
+      assertEquals("c", string(queue.poll()));
+      assertEquals("d", string(queue.poll()));
+      assertNull(queue.poll());
+    }
+  }
+
+  @Test
+  public void testCorruptedRecordIsDiscarded() throws Exception {
+    File dir = folder.getRoot();
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 1024, 10)) {
+      for (int i = 0; i < 5; i++) {
+        queue.add(bytes("record" + i));
+      }
+    }
+    File segment = dir.listFiles((d, name) -> name.startsWith("segment-"))[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      // flip a byte in the payload of the 4th record (8 byte header, 15 bytes per record)
+      file.seek(8 + 3 * 15 + 8 + 2);
+      file.write('X');
+    }
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 1024, 10)) {
+      assertEquals(3, queue.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("record" + i, string(queue.poll()));
+      }
+      assertNull(queue.poll());
+      // appends continue after the last valid record
+      queue.add(bytes("record5"));
+      assertEquals("record5", string(queue.poll()));
+    }
+  }
+
+  @Test
+  public void testSegmentRecycling() throws Exception {
+    File dir = folder.getRoot();
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 64, 10)) {
+      for (int round = 0; round < 10; round++) {
+        for (int i = 0; i < 6; i++) {
+          queue.add(bytes("123456789"));
+        }
+        for (int i = 0; i < 6; i++) {
+          queue.poll();
+        }
+      }
+      // checkpoint, the current segment and at most one spare
+      assertTrue(dir.list().length <= 4);
+    }
+  }
+
+  @Test
+  public void testConsumedSegmentsAreReusedUntilReopened() throws Exception {
+    File dir = folder.getRoot();
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 64, 10)) {
+      for (int i = 0; i < 12; i++) {
+        queue.add(bytes("123456789"));
+      }
+      assertEquals(4, queue.getSegmentCount());
+      for (int i = 0; i < 11; i++) {
+        queue.poll();
+      }
+      assertEquals(1, queue.getSegmentCount());
+      // consumed segments are still mapped, so they are kept for reuse rather than deleted
+      assertEquals(4, segmentFiles(dir));
+      for (int i = 0; i < 8; i++) {
+        queue.add(bytes("123456789"));
+      }
+      assertEquals(4, queue.getSegmentCount());
+      assertEquals(4, segmentFiles(dir));
+      for (int i = 0; i < 6; i++) {
+        queue.poll();
+      }
+    }
+    try (MappedSpillQueue queue = new MappedSpillQueue(dir, 64, 10)) {
+      assertEquals(3, queue.size());
+      assertEquals(2, segmentFiles(dir));
+      for (int i = 0; i < 3; i++) {
+        assertEquals("123456789", string(queue.poll()));
+      }
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testMetrics() throws Exception {
+    try (MappedSpillQueue queue = new MappedSpillQueue(folder.getRoot(), 64, 2)) {
+      queue.registerMetrics();
+      queue.add(bytes("123456789"));
+      Gauge<Long> bytesLeft = (Gauge<Long>) Metrics.defaultRegistry().allMetrics().
+          get(ExpectedAgentMetric.BUFFER_BYTES_LEFT.metricName);
+      Gauge<Integer> queueSize = (Gauge<Integer>) Metrics.defaultRegistry().allMetrics().
+          get(ExpectedAgentMetric.CURRENT_QUEUE_SIZE.metricName);
+      assertEquals(87, (long) bytesLeft.value());
+      assertEquals(1, (int) queueSize.value());
+    }
+  }
+
+  private static int segmentFiles(File dir) {
+    return dir.list((d, name) -> name.startsWith("segment-")).length;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,114 @@
+package com.wavefront.api.sender;
+
+import com.wavefront.ingester.ReportMetricSerializer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportMetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportMetricArenaTest {
+
+  @Test
+  public void testRoundTrip() {
+    ReportMetricArena arena = new ReportMetricArena(1024, 2);
+    ReportMetric metric = metric("cpu.\"usage\"", 1.5, "host-ü", "env", "prod", "emoji", "😀");
+    assertTrue(arena.add(metric));
+    assertEquals(1, arena.size());
+    List<ReportMetric> result = new ArrayList<>();
+    assertEquals(1, arena.drain(10, view -> {
+      assertEquals("cpu.\"usage\"", view.getMetric());
+      assertEquals(1533529977000L, view.getTimestamp());
+      assertEquals(1.5, view.getValue(), 1e-9);
+      assertEquals("host-ü", view.getHost());
+      assertEquals("customer", view.getCustomer());
+      assertEquals(2, view.getAnnotationCount());
+      assertEquals("emoji", view.getAnnotationKey(1));
+      assertEquals("😀", view.getAnnotationValue(1));
+      result.add(view.toReportMetric());
+    }));
+    assertEquals(Collections.singletonList(metric), result);
+    assertEquals(0, arena.size());
+    assertEquals(0, arena.getUsedBytes());
+  }
+
+  @Test
+  public void testWriteToMatchesSerializer() {
+    ReportMetricArena arena = new ReportMetricArena(1024, 1);
+    List<ReportMetric> metrics = Arrays.asList(
+        metric("metric1", 1.0, "host1"),
+        metric("metric\"2\"", -0.25, "ho\"st", "k\"1", "v\"1", "k2", "värde"),
+        metric("metric3", 1e20, "host3", "source", "x"));
+    for (ReportMetric metric : metrics) {
+      assertTrue(arena.add(metric));
+    }
+    List<String> lines = new ArrayList<>();
+    arena.drain(10, view -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+        view.writeTo(out);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      lines.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    });
+    for (int i = 0; i < metrics.size(); i++) {
+      assertEquals(ReportMetricSerializer.metricToString(metrics.get(i)), lines.get(i));
+    }
+  }
+
+  @Test
+  public void testCapacityAndSlabReuse() {
+    ReportMetricArena arena = new ReportMetricArena(128, 2);
+    ReportMetric metric = metric("metric", 1.0, "host", "key", "value");
+    // 20 + 8 + 6 + 10 + 2 + 5 + 7 = 58 bytes per entity => 2 per slab
+    int added = 0;
+    while (arena.add(metric)) {
+      added++;
+    }
+    assertEquals(4, added);
+    assertEquals(232, arena.getUsedBytes());
+    assertEquals(256, arena.getAllocatedBytes());
+    assertEquals(1, arena.drain(1, view -> {}));
+    // space is only reclaimed when the whole slab is consumed
+    assertFalse(arena.add(metric));
+    assertEquals(1, arena.drain(1, view -> {}));
+    assertTrue(arena.add(metric));
+    assertEquals(3, arena.drain(10, view -> assertEquals("metric", view.getMetric())));
+    assertEquals(0, arena.size());
+    assertEquals(256, arena.getAllocatedBytes());
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(arena.add(metric));
+      }
+      assertEquals(4, arena.drain(10, view -> {}));
+    }
+    assertEquals(256, arena.getAllocatedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEntityTooLarge() {
+    ReportMetricArena arena = new ReportMetricArena(64, 1);
+    arena.add(metric("metric", 1.0, "host", "key", "a very long annotation value"));
+  }
+
+  private static ReportMetric metric(String name, double value, String host, String... tags) {
+    List<Annotation> annotations = new ArrayList<>();
+    for (int i = 0; i < tags.length; i += 2) {
+      annotations.add(new Annotation(tags[i], tags[i + 1]));
+    }
+    return ReportMetric.newBuilder().setMetric(name).setTimestamp(1533529977000L).
+        setValue(value).setHost(host).setCustomer("customer").setAnnotations(annotations).build();
+  }
+}
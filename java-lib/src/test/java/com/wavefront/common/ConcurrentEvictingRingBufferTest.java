@@ -0,0 +1,62 @@
+package com.wavefront.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentEvictingRingBufferTest {
+
+  @Test
+  public void testEviction() {
+    ConcurrentEvictingRingBuffer<Integer> buf = new ConcurrentEvictingRingBuffer<>(3);
+    assertEquals(3, buf.capacity());
+    assertTrue(buf.toList().isEmpty());
+    buf.add(1);
+    buf.add(2);
+    assertEquals(ImmutableList.of(1, 2), buf.toList());
+    for (int i = 3; i <= 10; i++) {
+      buf.add(i);
+    }
+    assertEquals(3, buf.size());
+    assertEquals(10, buf.getAddedCount());
+    assertEquals(ImmutableList.of(8, 9, 10), buf.toList());
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    ConcurrentEvictingRingBuffer<long[]> buf = new ConcurrentEvictingRingBuffer<>(16);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int t = 0; t < 8; t++) {
+      final int producer = t;
+      executor.submit(() -> {
+        for (long i = 0; i < 100_000; i++) {
+          buf.add(new long[] {producer, i});
+        }
+      });
+    }
+    executor.shutdown();
+    while (!executor.isTerminated()) {
+      // values from each producer must appear in order
+      List<long[]> snapshot = buf.toList();
+      assertTrue(snapshot.size() <= 16);
+      long[] last = new long[8];
+      Arrays.fill(last, -1);
+      for (long[] value : snapshot) {
+        assertTrue(value[1] > last[(int) value[0]]);
+        last[(int) value[0]] = value[1];
+      }
+    }
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(800_000, buf.getAddedCount());
+    assertEquals(16, buf.toList().size());
+  }
+}
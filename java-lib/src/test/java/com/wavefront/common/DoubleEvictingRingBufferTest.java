@@ -0,0 +1,138 @@
+package com.wavefront.common;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for DoubleEvictingRingBuffer.
+ */
+public class DoubleEvictingRingBufferTest {
+
+  @Test
+  public void testRingBufferWithAutoEvict() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(3);
+    assertEquals(3, buf.capacity());
+    assertTrue(buf.isEmpty());
+    assertArrayEquals(new double[0], buf.toArray(), 1e-12);
+    for (int i = 1; i <= 5; i++) {
+      buf.add(i / 2.0);
+    }
+    assertEquals(3, buf.size());
+    assertArrayEquals(new double[] {1.5, 2.0, 2.5}, buf.toArray(), 1e-12);
+    assertEquals(6.0, buf.sum(), 1e-12);
+    assertEquals(4.5, buf.sumOfLast(2), 1e-12);
+    assertEquals(2.0, buf.get(1), 1e-12);
+    assertEquals(2.5, buf.sum(2, 3), 1e-12);
+    double[] sum = new double[1];
+    buf.forEach(x -> sum[0] += x);
+    assertEquals(6.0, sum[0], 1e-12);
+    PrimitiveIterator.OfDouble iterator = buf.iterator();
+    for (int i = 3; i <= 5; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(i / 2.0, iterator.nextDouble(), 1e-12);
+    }
+    assertFalse(iterator.hasNext());
+    assertEquals(1.5, buf.remove(), 1e-12);
+    buf.clear();
+    assertTrue(buf.isEmpty());
+    try {
+      buf.remove();
+      fail();
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testWraparound() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(5);
+    for (int i = 1; i <= 23; i++) {
+      buf.add(i);
+      int size = Math.min(i, 5);
+      assertEquals(size, buf.size());
+      assertEquals(i, buf.get(size - 1), 1e-12);
+      assertEquals(i - size + 1, buf.get(0), 1e-12);
+    }
+    // head is at index 3 of the backing array now
+    assertArrayEquals(new double[] {19, 20, 21, 22, 23}, buf.toArray(), 1e-12);
+    assertEquals(19, buf.remove(), 1e-12);
+    assertEquals(20, buf.remove(), 1e-12);
+    buf.add(24);
+    assertArrayEquals(new double[] {21, 22, 23, 24}, buf.toArray(), 1e-12);
+  }
+
+  @Test
+  public void testSumAcrossTheSeam() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(5);
+    for (int i = 1; i <= 8; i++) {
+      buf.add(i);
+    }
+    // backing array is {6, 7, 8, 4, 5}, head is at index 3
+    assertEquals(4 + 5 + 6 + 7 + 8, buf.sum(), 1e-12);
+    for (int from = 0; from <= 5; from++) {
+      for (int to = from; to <= 5; to++) {
+        double expected = 0;
+        for (int i = from; i < to; i++) {
+          expected += 4 + i;
+        }
+        assertEquals("[" + from + "; " + to + ")", expected, buf.sum(from, to), 1e-12);
+      }
+    }
+    assertEquals(5 + 6 + 7, buf.sum(1, 4), 1e-12);
+    assertEquals(7 + 8, buf.sumOfLast(2), 1e-12);
+    assertEquals(0, buf.sumOfLast(0), 1e-12);
+  }
+
+  @Test
+  public void testRingBufferWithoutAutoEvict() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(2, true);
+    buf.add(1.5);
+    assertTrue(buf.offer(2.5));
+    assertFalse(buf.offer(3.5));
+    try {
+      buf.add(3.5);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertArrayEquals(new double[] {1.5, 2.5}, buf.toArray(), 1e-12);
+    // space freed up by remove() can be reused, even across the seam
+    assertEquals(1.5, buf.remove(), 1e-12);
+    assertTrue(buf.offer(3.5));
+    assertFalse(buf.offer(4.5));
+    assertArrayEquals(new double[] {2.5, 3.5}, buf.toArray(), 1e-12);
+    assertEquals(6.0, buf.sum(), 1e-12);
+  }
+
+  @Test
+  public void testPreFilledBuffer() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(3, false, 0.5);
+    assertEquals(3, buf.size());
+    assertEquals(1.5, buf.sum(), 1e-12);
+    buf.add(1);
+    assertArrayEquals(new double[] {0.5, 0.5, 1}, buf.toArray(), 1e-12);
+    assertFalse(new DoubleEvictingRingBuffer(3, true, 0.5).offer(1));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testSumOutOfBounds() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(3);
+    buf.add(1);
+    buf.sum(0, 2);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetOutOfBounds() {
+    DoubleEvictingRingBuffer buf = new DoubleEvictingRingBuffer(3);
+    buf.add(1);
+    buf.get(1);
+  }
+}
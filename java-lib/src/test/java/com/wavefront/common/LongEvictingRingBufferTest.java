@@ -0,0 +1,91 @@
+package com.wavefront.common;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for LongEvictingRingBuffer.
+ */
+public class LongEvictingRingBufferTest {
+
+  @Test
+  public void testRingBufferWithAutoEvict() {
+    LongEvictingRingBuffer buf = new LongEvictingRingBuffer(5);
+    assertEquals(5, buf.capacity());
+    assertTrue(buf.isEmpty());
+    assertArrayEquals(new long[0], buf.toArray());
+    for (long i = 1; i <= 3; i++) {
+      buf.add(i);
+    }
+    assertArrayEquals(new long[] {1, 2, 3}, buf.toArray());
+    assertEquals(1, buf.remove());
+    for (long i = 4; i <= 8; i++) {
+      buf.add(i);
+    }
+    // capacity reached, oldest values evicted
+    assertEquals(5, buf.size());
+    assertArrayEquals(new long[] {4, 5, 6, 7, 8}, buf.toArray());
+    assertEquals(4, buf.get(0));
+    assertEquals(8, buf.get(4));
+    assertEquals(30, buf.sum());
+    assertEquals(5 + 6 + 7, buf.sum(1, 4));
+    assertEquals(15, buf.sumOfLast(2));
+    assertEquals(0, buf.sum(2, 2));
+    long[] sum = new long[1];
+    buf.forEach(x -> sum[0] += x);
+    assertEquals(30, sum[0]);
+    PrimitiveIterator.OfLong iterator = buf.iterator();
+    for (long i = 4; i <= 8; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(i, iterator.nextLong());
+    }
+    assertFalse(iterator.hasNext());
+    buf.clear();
+    assertEquals(0, buf.size());
+    try {
+      buf.remove();
+      fail();
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRingBufferWithoutAutoEvict() {
+    LongEvictingRingBuffer buf = new LongEvictingRingBuffer(2, true);
+    buf.add(1);
+    assertTrue(buf.offer(2));
+    assertFalse(buf.offer(3));
+    try {
+      buf.add(3);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertArrayEquals(new long[] {1, 2}, buf.toArray());
+  }
+
+  @Test
+  public void testPreFilledBuffer() {
+    LongEvictingRingBuffer buf = new LongEvictingRingBuffer(3, false, 7);
+    assertEquals(3, buf.size());
+    assertEquals(21, buf.sum());
+    buf.add(1);
+    assertArrayEquals(new long[] {7, 7, 1}, buf.toArray());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testSumOutOfBounds() {
+    LongEvictingRingBuffer buf = new LongEvictingRingBuffer(3);
+    buf.add(1);
+    buf.sum(0, 2);
+  }
+}
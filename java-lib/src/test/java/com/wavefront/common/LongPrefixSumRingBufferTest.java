@@ -0,0 +1,71 @@
+package com.wavefront.common;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongPrefixSumRingBufferTest {
+
+  @Test
+  public void testWindowedSums() {
+    LongPrefixSumRingBuffer buffer = new LongPrefixSumRingBuffer(5);
+    assertEquals(5, buffer.capacity());
+    assertEquals(0, buffer.sum());
+    assertEquals(0, buffer.getLast());
+    buffer.add(1);
+    buffer.add(2);
+    assertEquals(3, buffer.sum());
+    assertEquals(3, buffer.sum(5));
+    assertEquals(2, buffer.getLast());
+    for (int i = 3; i <= 100; i++) {
+      buffer.add(i);
+      assertEquals(i, buffer.getLast());
+      assertEquals(i + (i - 1) + (i - 2), buffer.sum(3));
+    }
+    assertEquals(100 + 99 + 98 + 97 + 96, buffer.sum());
+    assertEquals(0, buffer.sum(0));
+  }
+
+  @Test
+  public void testFullCapacity() {
+    for (int capacity = 1; capacity <= 16; capacity++) {
+      LongPrefixSumRingBuffer buffer = new LongPrefixSumRingBuffer(capacity);
+      for (int i = 1; i <= 100; i++) {
+        buffer.add(i);
+      }
+      assertEquals(capacity * (201 - capacity) / 2, buffer.sum());
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testCountExceedsCapacity() {
+    new LongPrefixSumRingBuffer(5).sum(6);
+  }
+
+  @Test
+  public void testConcurrentReaders() throws Exception {
+    LongPrefixSumRingBuffer buffer = new LongPrefixSumRingBuffer(4);
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<String> error = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        // writer adds 1, 2, 3, ..., so any 4 consecutive values sum to 4 * last - 6
+        long sum = buffer.sum();
+        if (sum > 10 && (sum + 6) % 4 != 0) {
+          error.set("Inconsistent sum: " + sum);
+        }
+      }
+    });
+    reader.start();
+    for (int i = 1; i <= 1_000_000; i++) {
+      buffer.add(i);
+    }
+    done.set(true);
+    reader.join();
+    assertNull(error.get());
+  }
+}
@@ -0,0 +1,67 @@
+package com.wavefront.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PatternSetTest {
+
+  private static final List<String> PATTERNS = ImmutableList.of("test", "*test", "test*",
+      "*test*", "hello*world*hello*world", "*auth*prod*", "cpu.*.idle", "*");
+  private static final List<String> INPUTS = ImmutableList.of("", "test", "Test", "tesT",
+      "atest", "aTest", "testa", "tesTa", "helloworldhelloworld", "helloworworldldhelloworld",
+      "helloworld", "helloworldhelloworl", "2helloworldhelloworld", "authprod",
+      "authaskdfkkl.auth.2490349prod.prod", "prod.auth.auth", "cpu.0.idle", "cpu..idle",
+      "CPU.1.IDLE", "cpu.idle", "тест");
+
+  @Test
+  public void testMatchesSameAsPatternMatchPredicate() {
+    for (boolean caseInsensitive : new boolean[] {false, true}) {
+      PatternSet patternSet = new PatternSet(PATTERNS, caseInsensitive);
+      for (String input : INPUTS) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < PATTERNS.size(); i++) {
+          Predicate<String> predicate = PatternMatchPredicate.buildPredicate(PATTERNS.get(i),
+              caseInsensitive);
+          if (predicate.test(input)) {
+            expected.add(i);
+          }
+        }
+        assertArrayEquals(input, expected.stream().mapToInt(x -> x).toArray(),
+            patternSet.allMatches(input));
+        assertEquals(input, expected.get(0).intValue(), patternSet.firstMatch(input));
+      }
+    }
+  }
+
+  @Test
+  public void testNoMatch() {
+    PatternSet patternSet = new PatternSet(ImmutableList.of("foo.*", "*.bar"), false);
+    assertTrue(patternSet.test("foo.baz"));
+    assertTrue(patternSet.test("baz.bar"));
+    assertFalse(patternSet.test("baz.baz"));
+    assertFalse(patternSet.test(null));
+    assertEquals(-1, patternSet.firstMatch("baz.baz"));
+    assertEquals(0, patternSet.allMatches("baz.baz").length);
+    assertFalse(new PatternSet(ImmutableList.of(), false).test("foo"));
+  }
+
+  @Test
+  public void testStateLimit() {
+    PatternSet patternSet = new PatternSet(PATTERNS, true, 2);
+    for (String input : INPUTS) {
+      assertTrue(patternSet.test(input));
+    }
+    assertEquals(2, patternSet.getStateCount());
+    assertArrayEquals(new int[] {0, 1, 2, 3, 7}, patternSet.allMatches("TEST"));
+  }
+}
@@ -0,0 +1,187 @@
+package com.wavefront.data;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import wavefront.report.Histogram;
+import wavefront.report.HistogramType;
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PointAggregatorTest {
+  private final List<ReportPoint> output = new CopyOnWriteArrayList<>();
+  private final AtomicLong clock = new AtomicLong(100_000);
+
+  @Test
+  public void testDeltaCountersAreSummed() {
+    PointAggregator aggregator = newBuilder().build();
+    aggregator.report(point("∆requests", 100_000, 1.0, "env", "prod"));
+    ReportPoint longValue = point("∆requests", 100_200, 0.0, "env", "prod");
+    longValue.setValue(2L);
+    aggregator.report(longValue);
+    aggregator.report(point("Δrequests", 100_300, 5.0, "env", "prod"));
+    aggregator.report(point("Δrequests", 100_400, 5.0, "env", "prod"));
+    assertEquals(2, aggregator.getPendingCount());
+    aggregator.flush();
+    assertTrue(output.isEmpty());
+    clock.set(101_000);
+    aggregator.flush();
+    assertEquals(0, aggregator.getPendingCount());
+    output.sort(Comparator.comparing(ReportPoint::getMetric));
+    assertEquals(2, output.size());
+    assertEquals(10.0, (double) output.get(0).getValue(), 1e-9);
+    assertEquals(100_400, (long) output.get(0).getTimestamp());
+    assertEquals("∆requests", output.get(1).getMetric());
+    assertEquals(3.0, (double) output.get(1).getValue(), 1e-9);
+    assertEquals(100_200, (long) output.get(1).getTimestamp());
+    assertEquals(ImmutableMap.of("env", "prod"), output.get(1).getAnnotations());
+    aggregator.close();
+  }
+
+  @Test
+  public void testGaugeAggregations() {
+    assertEquals(2.0, aggregate(PointAggregator.GaugeAggregation.LAST), 1e-9);
+    assertEquals(-1.0, aggregate(PointAggregator.GaugeAggregation.MIN), 1e-9);
+    assertEquals(7.0, aggregate(PointAggregator.GaugeAggregation.MAX), 1e-9);
+    assertEquals(2.25, aggregate(PointAggregator.GaugeAggregation.AVG), 1e-9);
+    assertEquals(4.0, aggregate(PointAggregator.GaugeAggregation.COUNT), 1e-9);
+  }
+
+  @Test
+  public void testSeriesIdentity() {
+    PointAggregator aggregator = newBuilder().windowMillis(10_000).build();
+    aggregator.report(point("cpu", 100_000, 1.0, "a", "1", "b", "2"));
+    aggregator.report(point("cpu", 100_001, 1.0, "b", "2", "a", "1"));
+    aggregator.report(point("cpu", 100_002, 1.0, "a", "1"));
+    aggregator.report(point("cpu", 100_003, 1.0, "a", "2"));
+    aggregator.report(point("mem", 100_004, 1.0, "a", "1"));
+    ReportPoint otherHost = point("cpu", 100_005, 1.0, "a", "1");
+    otherHost.setHost("host2");
+    aggregator.report(otherHost);
+    // same series, next window
+    aggregator.report(point("cpu", 110_000, 1.0, "a", "1"));
+    assertEquals(6, aggregator.getPendingCount());
+    clock.set(110_000);
+    aggregator.flush();
+    assertEquals(5, output.size());
+    aggregator.close();
+    assertEquals(6, output.size());
+    assertEquals(0, aggregator.getPendingCount());
+  }
+
+  @Test
+  public void testAllowedLateness() {
+    PointAggregator aggregator = newBuilder().allowedLatenessMillis(500).build();
+    aggregator.report(point("cpu", 100_000, 1.0));
+    clock.set(101_000);
+    aggregator.flush();
+    assertTrue(output.isEmpty());
+    aggregator.report(point("cpu", 100_900, 3.0));
+    clock.set(101_500);
+    aggregator.flush();
+    assertEquals(1, output.size());
+    assertEquals(3.0, (double) output.get(0).getValue(), 1e-9);
+    aggregator.close();
+  }
+
+  @Test
+  public void testLateAndFuturePoints() {
+    PointAggregator aggregator = newBuilder().build();
+    aggregator.report(point("cpu", 100_000, 1.0));
+    clock.set(101_000);
+    aggregator.flush();
+    assertEquals(1, output.size());
+    // the window is closed and has been emitted already, so the point is emitted as is
+    aggregator.report(point("cpu", 100_500, 2.0));
+    assertEquals(0, aggregator.getPendingCount());
+    assertEquals(2, output.size());
+    assertEquals(100_500, (long) output.get(1).getTimestamp());
+    assertEquals(2.0, (double) output.get(1).getValue(), 1e-9);
+    // too far in the future
+    aggregator.report(point("cpu", 102_001, 3.0));
+    assertEquals(0, aggregator.getPendingCount());
+    assertEquals(3, output.size());
+    aggregator.report(point("cpu", 102_000, 4.0));
+    assertEquals(1, aggregator.getPendingCount());
+    aggregator.close();
+    assertEquals(4, output.size());
+  }
+
+  @Test
+  public void testPassThrough() {
+    PointAggregator aggregator = newBuilder().maxPendingSeries(2).build();
+    ReportPoint histogram = point("hist", 100_000, 0.0);
+    histogram.setValue(Histogram.newBuilder().setType(HistogramType.TDIGEST).setDuration(60000).
+        setBins(Collections.singletonList(1.0)).
+        setCounts(Collections.singletonList(1)).build());
+    aggregator.report(histogram);
+    aggregator.report(point("metric1", 100_000, 1.0));
+    aggregator.report(point("metric2", 100_000, 1.0));
+    aggregator.report(point("metric3", 100_000, 1.0));
+    aggregator.report(point("metric1", 100_001, 2.0));
+    assertEquals(2, output.size());
+    assertEquals(histogram, output.get(0));
+    assertEquals("metric3", output.get(1).getMetric());
+    aggregator.close();
+    assertEquals(4, output.size());
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    PointAggregator aggregator = newBuilder().windowMillis(60_000).build();
+    List<Thread> threads = IntStream.range(0, 4).mapToObj(t -> new Thread(() -> {
+      for (int i = 0; i < 10_000; i++) {
+        aggregator.report(point("∆counter", 100_000 + i % 1000, 1.0,
+            "series", String.valueOf(i % 10)));
+      }
+    })).collect(Collectors.toList());
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    aggregator.close();
+    assertEquals(10, output.size());
+    Map<String, Double> values = output.stream().collect(Collectors.toMap(
+        p -> p.getAnnotations().get("series"), p -> (Double) p.getValue()));
+    for (double value : values.values()) {
+      assertEquals(4000.0, value, 1e-9);
+    }
+  }
+
+  private double aggregate(PointAggregator.GaugeAggregation gaugeAggregation) {
+    output.clear();
+    PointAggregator aggregator = newBuilder().gaugeAggregation(gaugeAggregation).build();
+    aggregator.report(point("gauge", 100_000, 1.0));
+    aggregator.report(point("gauge", 100_500, 2.0));
+    aggregator.report(point("gauge", 100_300, 7.0));
+    aggregator.report(point("gauge", 100_100, -1.0));
+    aggregator.close();
+    assertEquals(1, output.size());
+    return (double) output.get(0).getValue();
+  }
+
+  private PointAggregator.Builder newBuilder() {
+    return PointAggregator.newBuilder(output::add).clock(clock::get);
+  }
+
+  private static ReportPoint point(String metric, long timestamp, double value, String... tags) {
+    ImmutableMap.Builder<String, String> annotations = ImmutableMap.builder();
+    for (int i = 0; i < tags.length; i += 2) {
+      annotations.put(tags[i], tags[i + 1]);
+    }
+    return ReportPoint.newBuilder().setMetric(metric).setTimestamp(timestamp).setValue(value).
+        setHost("host").setTable("dummy").setAnnotations(annotations.build()).build();
+  }
+}
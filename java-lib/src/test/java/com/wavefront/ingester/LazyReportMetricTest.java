@@ -0,0 +1,130 @@
+package com.wavefront.ingester;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.wavefront.data.ParseException;
+
+import wavefront.report.ReportMetric;
+
+import static com.wavefront.data.AnnotationUtils.getValue;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LazyReportMetricTest {
+
+  @Test
+  public void testHeaderOnly() {
+    ReportMetricDecoder decoder = new ReportMetricDecoder(() -> "default", emptyList());
+    String line = "\"metric.name\" 93 1592837162 source=\"host-1\" env=prod tag=x";
+    LazyReportMetric point = decoder.decodeLazy(line, "customer");
+    assertEquals("metric.name", point.getMetric());
+    assertEquals(93.0, point.getValue(), 1e-12);
+    assertEquals(1592837162000L, point.getTimestamp());
+    assertEquals("customer", point.getCustomer());
+    assertEquals("host-1", point.getHost());
+    assertFalse(point.isMaterialized());
+    assertSame(line, point.toLine());
+    assertFalse(point.isMaterialized());
+  }
+
+  @Test
+  public void testMatchesFullDecoding() {
+    List<String> customSourceTags = ImmutableList.of("fqdn", "hostname");
+    ReportMetricDecoder decoder = new ReportMetricDecoder(() -> "default", customSourceTags);
+    List<String> lines = ImmutableList.of(
+        "metric 1 1592837162 source=src host=hst tag=abc",
+        "metric 1 1592837162 host=hst",
+        "metric 1 1592837162 hostname=h1 fqdn=f1 fqdn=f2",
+        "metric 1 1592837162 hostname=h1",
+        "metric 1 1592837162 env=prod",
+        "metric 1 env=prod",
+        "metric 1");
+    for (String line : lines) {
+      List<ReportMetric> out = new ArrayList<>();
+      decoder.decode(line, out, "customer");
+      ReportMetric expected = out.get(0);
+      LazyReportMetric point = decoder.decodeLazy(line, "customer");
+      assertEquals(line, expected.getHost(), point.getHost());
+      assertEquals(line, expected.getMetric(), point.getMetric());
+      ReportMetric actual = point.toReportMetric();
+      // timestamp may differ if it's assigned when decoding
+      actual.setTimestamp(expected.getTimestamp());
+      assertEquals(line, expected, actual);
+    }
+  }
+
+  @Test
+  public void testToLine() {
+    ReportMetricDecoder decoder = new ReportMetricDecoder(() -> "default",
+        ImmutableList.of("fqdn"));
+    // no timestamp
+    assertEquals("\"metric\" 1.0 1592837162 source=\"default\"",
+        toLine(decoder, "metric 1", 1592837162000L));
+    // no explicit source
+    assertEquals("\"metric\" 1.0 1592837162 source=\"f1\" \"fqdn\"=\"f1\"",
+        toLine(decoder, "metric 1 1592837162 fqdn=f1", null));
+    // modified
+    LazyReportMetric point = decoder.decodeLazy("metric 1 1592837162 source=s", "customer");
+    point.setValue(2);
+    assertTrue(point.isModified());
+    assertFalse(point.isMaterialized());
+    assertEquals("\"metric\" 2.0 1592837162 source=\"s\"", point.toLine());
+    point = decoder.decodeLazy("metric 1 1592837162 source=s env=prod", "customer");
+    point.getAnnotations().clear();
+    assertEquals("\"metric\" 1.0 1592837162 source=\"s\"", point.toLine());
+    point = decoder.decodeLazy("metric 1 1592837162 source=s", "customer");
+    point.setHost("other");
+    assertEquals("\"metric\" 1.0 1592837162 source=\"other\"", point.toLine());
+    assertEquals("other", point.toReportMetric().getHost());
+  }
+
+  @Test
+  public void testLazyTagParsing() {
+    ReportMetricDecoder decoder = new ReportMetricDecoder(null, emptyList());
+    LazyReportMetric point = decoder.decodeLazy("metric 1 1592837162 source=s env=prod",
+        "customer");
+    assertEquals("prod", getValue(point.getAnnotations(), "env"));
+    assertTrue(point.isMaterialized());
+    // malformed tags are only reported when tags are needed
+    point = decoder.decodeLazy("metric 1 1592837162 source", "customer");
+    assertEquals("metric", point.getMetric());
+    try {
+      point.getHost();
+    } catch (ParseException e) {
+      return;
+    }
+    throw new AssertionError("ParseException expected");
+  }
+
+  @Test(expected = ParseException.class)
+  public void testInvalidValue() {
+    new ReportMetricDecoder(null, emptyList()).decodeLazy("metric abc", "customer");
+  }
+
+  @Test
+  public void testEarlyFilter() {
+    EarlyFilter filter = new EarlyFilter(x -> !x.startsWith("blocked."),
+        x -> !x.equals("blockedHost"));
+    ReportMetricDecoder decoder = new ReportMetricDecoder(null, emptyList(), filter);
+    assertNull(decoder.decodeLazy("blocked.metric 1 invalid", "customer"));
+    assertNull(decoder.decodeLazy("metric 1 source=blockedHost", "customer"));
+    assertEquals("host", decoder.decodeLazy("metric 1 source=host", "customer").getHost());
+    assertEquals(2, filter.getRejectedCount());
+  }
+
+  private static String toLine(ReportMetricDecoder decoder, String line, Long timestamp) {
+    LazyReportMetric point = decoder.decodeLazy(line, "customer");
+    if (timestamp != null) {
+      point.setTimestamp(timestamp);
+    }
+    return point.toLine();
+  }
+}
@@ -402,4 +402,22 @@ public class ReportHistogramDecoderTest {
     // Verify we have less centroids after compression.
     assertThat(centroidsLimit).isGreaterThan(h.getBins().size());
   }
+
+  @Test
+  public void testEarlyFilter() {
+    EarlyFilter filter = new EarlyFilter(x -> !x.equals("BlockedMetric"),
+        x -> !x.equals("BlockedSource"));
+    ReportHistogramDecoder decoder = new ReportHistogramDecoder(() -> "unknown", filter);
+    List<ReportHistogram> out = new ArrayList<>();
+    decoder.decode("!M 1471988653 #3 123.237 TestMetric source=Test key=value", out,
+        "customer");
+    assertThat(out).hasSize(1);
+    decoder.decode("!M 1471988653 #3 123.237 BlockedMetric invalid", out, "customer");
+    assertThat(out).hasSize(1);
+    assertThat(filter.getRejectedCount()).isEqualTo(1);
+    decoder.decode("!M 1471988653 #3 123.237 TestMetric source=BlockedSource", out,
+        "customer");
+    assertThat(out).hasSize(1);
+    assertThat(filter.getRejectedCount()).isEqualTo(2);
+  }
 }
@@ -287,4 +287,22 @@ public class ReportMetricDecoderTest {
       fail("should not throw");
     }
   }
+
+  @Test
+  public void testEarlyFilter() throws Exception {
+    EarlyFilter filter = new EarlyFilter(x -> !x.startsWith("blocked."),
+        x -> !x.equals("blockedHost"));
+    ReportMetricDecoder decoder = new ReportMetricDecoder(null, emptyList(), filter);
+    List<ReportMetric> out = Lists.newArrayList();
+    decoder.decode("allowed.metric 93 host=vehicle_2554", out, "customer");
+    assertEquals(1, out.size());
+    assertEquals(0, filter.getRejectedCount());
+    // rejected by name, the rest of the line (including invalid tags) is not parsed
+    decoder.decode("blocked.metric 93 invalid_tag", out, "customer");
+    assertEquals(1, out.size());
+    assertEquals(1, filter.getRejectedCount());
+    decoder.decode("allowed.metric 93 host=blockedHost", out, "customer");
+    assertEquals(1, out.size());
+    assertEquals(2, filter.getRejectedCount());
+  }
 }
@@ -237,4 +237,23 @@ public class SpanDecoderTest {
     assertEquals(expectedTimeUnit.convert(duration/ 1000, TimeUnit.SECONDS), (long) out.get(0).getDuration());
     out.clear();
   }
+
+  @Test
+  public void testEarlyFilter() {
+    EarlyFilter filter = new EarlyFilter(x -> !x.equals("blockedSpan"),
+        x -> !x.equals("blockedSource"));
+    SpanDecoder decoder = new SpanDecoder(() -> "unitTest", filter);
+    List<Span> out = new ArrayList<>();
+    decoder.decode("testSpanName source=spanSource spanId=spanid traceId=traceid 1532012145 1",
+        out);
+    assertEquals(1, out.size());
+    // rejected by name, the rest of the line (including invalid tags) is not parsed
+    decoder.decode("blockedSpan invalid 1532012145 1", out);
+    assertEquals(1, out.size());
+    assertEquals(1, filter.getRejectedCount());
+    decoder.decode("testSpanName source=blockedSource spanId=spanid traceId=traceid " +
+        "1532012145 1", out);
+    assertEquals(1, out.size());
+    assertEquals(2, filter.getRejectedCount());
+  }
 }
@@ -0,0 +1,79 @@
+package com.wavefront.predicates;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AnnotationIndexTest {
+  private final List<Annotation> annotations = ImmutableList.of(
+      new Annotation("a", "1"), new Annotation("b", "2"), new Annotation("a", "3"));
+
+  @Test
+  public void testLookups() {
+    AnnotationIndex index = new AnnotationIndex(annotations);
+    assertEquals("1", index.get("a"));
+    assertFalse(index.isIndexed());
+    assertEquals("2", index.get("b"));
+    assertTrue(index.isIndexed());
+    assertEquals("1", index.get("a"));
+    assertNull(index.get("c"));
+    assertNull(new AnnotationIndex(annotations).get("c"));
+  }
+
+  @Test
+  public void testSharedWithinScope() {
+    Object entity = new Object();
+    assertNotSame(AnnotationIndex.of(entity, annotations),
+        AnnotationIndex.of(entity, annotations));
+    AnnotationIndex.Scope previous = AnnotationIndex.openScope(entity);
+    try {
+      AnnotationIndex index = AnnotationIndex.of(entity, annotations);
+      assertSame(index, AnnotationIndex.of(entity, annotations));
+      assertNotSame(index, AnnotationIndex.of(new Object(), annotations));
+      // nested scopes for the same entity keep the index
+      AnnotationIndex.Scope nested = AnnotationIndex.openScope(entity);
+      assertSame(index, AnnotationIndex.of(entity, annotations));
+      AnnotationIndex.closeScope(nested);
+      assertSame(index, AnnotationIndex.of(entity, annotations));
+    } finally {
+      AnnotationIndex.closeScope(previous);
+    }
+    assertNull(previous);
+    assertNotSame(AnnotationIndex.of(entity, annotations),
+        AnnotationIndex.of(entity, annotations));
+  }
+
+  @Test
+  public void testTemplatesShareIndex() {
+    Span span = Span.newBuilder().setCustomer("test").setName("span").setSource("source").
+        setSpanId("4217104a-690d-4927-baff-d9aa779414c2").
+        setTraceId("d5355bf7-fc8d-48d1-b761-75b170f396e0").
+        setStartMillis(1532012145123L).setDuration(1111).
+        setAnnotations(ImmutableList.of(new Annotation("env", "prod"),
+            new Annotation("dc", "dc1"))).build();
+    PredicateEvalExpression exp = Predicates.parsePredicateEvalExpression(
+        "{{env}} = 'prod' and {{dc}} = 'dc1'");
+    AnnotationIndex.Scope previous = AnnotationIndex.openScope(span);
+    try {
+      assertEquals(1, exp.getValue(span), 1e-12);
+      // one lookup per template, but two lookups against the shared index
+      assertTrue(AnnotationIndex.of(span, span.getAnnotations()).isIndexed());
+    } finally {
+      AnnotationIndex.closeScope(previous);
+    }
+    assertTrue(Predicates.<Span>fromPredicateEvalExpression(
+        "{{env}} = 'prod' and {{dc}} = 'dc1'").test(span));
+  }
+}
@@ -0,0 +1,77 @@
+package com.wavefront.predicates;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportMetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchExpressionPredicateTest {
+
+  private static List<ReportMetric> batch(int size) {
+    List<ReportMetric> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(ReportMetric.newBuilder().
+          setCustomer("test").
+          setValue(i).
+          setTimestamp(1592837162000L + i).
+          setMetric("metric." + (i % 7)).
+          setHost("host" + (i % 5)).
+          setAnnotations(ImmutableList.of(new Annotation("env", i % 3 == 0 ? "prod" : "dev"),
+              new Annotation("dc", "dc" + (i % 4)))).
+          build());
+    }
+    return result;
+  }
+
+  @Test
+  public void testMatchesPerEntityEvaluation() {
+    List<ReportMetric> batch = batch(1000);
+    List<String> expressions = ImmutableList.of(
+        "1",
+        "0",
+        "{{env}} = 'prod'",
+        "{{env}} = 'prod' and $value > 500",
+        "{{env}} = 'prod' or $value % 10 = 3",
+        "($value + 1) * 2 >= 100 and ($value - 1) / 2 < 300 and {{dc}} in ('dc1', 'dc2')",
+        "$value & 1 = 1 or {{sourceName}} startsWith 'host3' or not {{metricName}} = 'metric.0'",
+        "($value > 10) + ($value > 20) = 1",
+        "{{env}} = 'dev' and ($value < 100 or $value > 900) and not {{dc}} = 'dc0'",
+        "$value >> 2 = 3 or $value << 1 = 10 or $value != $value",
+        "not ({{env}} = 'prod' or $value > 500) and if($value > 100, not {{dc}} = 'dc1', 1)");
+    for (String expression : expressions) {
+      Predicate<ReportMetric> predicate = Predicates.fromPredicateEvalExpression(expression);
+      BitSet expected = new BitSet();
+      for (int i = 0; i < batch.size(); i++) {
+        if (predicate.test(batch.get(i))) expected.set(i);
+      }
+      assertEquals(expression, expected,
+          Predicates.<ReportMetric>fromPredicateEvalExpressionBatch(expression).test(batch));
+    }
+  }
+
+  @Test
+  public void testSelection() {
+    List<ReportMetric> batch = batch(100);
+    BatchExpressionPredicate<ReportMetric> predicate =
+        Predicates.fromPredicateEvalExpressionBatch("$value >= 50");
+    BitSet selection = new BitSet();
+    selection.set(40, 60);
+    BitSet result = predicate.test(batch, selection);
+    BitSet expected = new BitSet();
+    expected.set(50, 60);
+    assertEquals(expected, result);
+    assertEquals(20, selection.cardinality());
+    assertTrue(predicate.test(batch, new BitSet()).isEmpty());
+    assertTrue(predicate.test(ImmutableList.of()).isEmpty());
+  }
+}
@@ -0,0 +1,41 @@
+package com.wavefront.predicates;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.wavefront.api.agent.SpanSamplingPolicy;
+
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledSpanSamplingPoliciesTest {
+
+  @Test
+  public void testUpdate() {
+    Span span = Span.newBuilder().setCustomer("test").setName("spanName").setSource("source").
+        setSpanId("spanId").setTraceId("traceId").setStartMillis(0).setDuration(1).
+        setAnnotations(ImmutableList.of()).build();
+    SpanSamplingPolicy policy1 = new SpanSamplingPolicy("p1", "{{sourceName}} = 'source'", 10);
+    SpanSamplingPolicy policy2 = new SpanSamplingPolicy("p2", "$duration > 100", 50);
+    SpanSamplingPolicy invalid = new SpanSamplingPolicy("p3", "{{sourceName}} = ", 50);
+    CompiledSpanSamplingPolicies policies = new CompiledSpanSamplingPolicies();
+    assertTrue(policies.getPolicies().isEmpty());
+    assertTrue(policies.update(ImmutableList.of(policy1, invalid)));
+    assertEquals(1, policies.getPolicies().size());
+    CompiledSpanSamplingPolicies.CompiledPolicy compiled1 = policies.getPolicies().get(0);
+    assertTrue(compiled1.getPredicate().test(span));
+    assertFalse(policies.update(ImmutableList.of(policy1, invalid)));
+    assertTrue(policies.update(ImmutableList.of(policy2,
+        new SpanSamplingPolicy("p1", "{{sourceName}} = 'source'", 10))));
+    assertEquals(2, policies.getPolicies().size());
+    assertFalse(policies.getPolicies().get(0).getPredicate().test(span));
+    // unchanged policy is not recompiled
+    assertSame(compiled1, policies.getPolicies().get(1));
+    assertTrue(policies.update(null));
+    assertTrue(policies.getPolicies().isEmpty());
+  }
+}
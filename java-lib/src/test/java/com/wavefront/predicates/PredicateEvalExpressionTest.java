@@ -385,6 +385,51 @@ public class PredicateEvalExpressionTest {
     parseAndAssertEq(1, "{{doesNotExist}}.isEmpty()", log);
   }
 
+  @Test
+  public void testTemplateStrings() {
+    for (Object entity : ImmutableList.of(point, metric, histogram, log)) {
+      assertEquals("prod:us-west-2:tagv1:",
+          new TemplateStringExpression("{{env}}:{{dc}}:{{tagk1}}:{{none}}").getString(entity));
+      assertEquals("{{}}testHost{{",
+          new TemplateStringExpression("{{}}{{sourceName}}{{").getString(entity));
+      assertEquals("{{x\n}}testHost",
+          new TemplateStringExpression("{{x\n}}{{sourceName}}").getString(entity));
+    }
+    assertEquals("bar1-baz/testSpanName",
+        new TemplateStringExpression("{{foo}}/{{spanName}}").getString(span));
+    assertEquals("{{foo}}", new TemplateStringExpression("{{foo}}").getString(null));
+  }
+
+  @Test
+  public void testLinearTimeRegex() {
+    assertEquals(1, parsePredicateEvalExpression("{{foo}} all regexMatch '^.*ar.*$'",
+        System::currentTimeMillis, true).getValue(span), 1e-12);
+    assertEquals(0, parsePredicateEvalExpression("{{foo}} any regexMatch '^.*q.*$'",
+        System::currentTimeMillis, true).getValue(span), 1e-12);
+    assertEquals(1, parsePredicateEvalExpression("{{spanName}} regexMatchIgnoreCase 'TEST.*'",
+        System::currentTimeMillis, true).getValue(span), 1e-12);
+    assertEquals(1, parsePredicateEvalExpression("'aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!' regexMatch " +
+        "'(a|aa)+!'", System::currentTimeMillis, true).getValue(null), 1e-12);
+    // non-constant regex
+    assertEquals(1, parsePredicateEvalExpression("{{sourceName}} regexMatch " +
+        "{{sourceName}}.replace('Name', '.*')", System::currentTimeMillis, true).
+        getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testConstantRegexIsPrecompiled() {
+    assertTrue(((StringComparisonExpression) parsePredicateEvalExpression(
+        "{{sourceName}} regexMatch '^span.*$'")).isPrecompiled());
+    assertFalse(((StringComparisonExpression) parsePredicateEvalExpression(
+        "{{sourceName}} regexMatch {{foo}}")).isPrecompiled());
+  }
+
+  @Test(expected = ExpressionSyntaxException.class)
+  public void testUnsupportedLinearTimeRegexThrows() {
+    parsePredicateEvalExpression("{{sourceName}} regexMatch '(?=a)a'",
+        System::currentTimeMillis, true);
+  }
+
   @Test(expected = ExpressionSyntaxException.class)
   public void testTimeWithInvalidStringThrows() {
     parsePredicateEvalExpression("$timestamp > time('NotAValidString')").getValue(point);
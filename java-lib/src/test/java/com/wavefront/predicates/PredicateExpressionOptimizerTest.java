@@ -0,0 +1,152 @@
+package com.wavefront.predicates;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static com.wavefront.predicates.Predicates.parsePredicateEvalExpression;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PredicateExpressionOptimizerTest {
+
+  private final Span span = Span.newBuilder().
+      setCustomer("test").
+      setName("testSpanName").
+      setSource("spanSourceName").
+      setSpanId("4217104a-690d-4927-baff-d9aa779414c2").
+      setTraceId("d5355bf7-fc8d-48d1-b761-75b170f396e0").
+      setAnnotations(ImmutableList.of(
+          new Annotation("application", "beachshirts"),
+          new Annotation("http.status_code", "404"))).
+      setStartMillis(1532012145123L).
+      setDuration(1111).
+      build();
+
+  @Test
+  public void testConstantFolding() {
+    assertTrue(parsePredicateEvalExpression("2 + 2 * 2") instanceof ConstantExpression);
+    assertTrue(parsePredicateEvalExpression("'abc' startsWith 'ab'") instanceof
+        ConstantExpression);
+    assertTrue(parsePredicateEvalExpression("'bc' in ('ab', 'bc')") instanceof
+        ConstantExpression);
+    assertTrue(parsePredicateEvalExpression("'abcde' matches 'a*e'") instanceof
+        ConstantExpression);
+    assertEquals(1, parsePredicateEvalExpression("1 = 1 and 2 = 2").getValue(null), 1e-12);
+    // random() is never folded
+    assertTrue(parsePredicateEvalExpression("random() < 2") instanceof MathExpression);
+    // placeholders depend on the entity
+    assertTrue(parsePredicateEvalExpression("{{sourceName}} = 'a'") instanceof
+        StringComparisonExpression);
+  }
+
+  @Test
+  public void testShortCircuitConstants() {
+    PredicateEvalExpression exp = parsePredicateEvalExpression(
+        "{{application}} = 'beachshirts' and 1 = 2");
+    assertTrue(exp instanceof ConstantExpression);
+    assertEquals(0, exp.getValue(span), 1e-12);
+    exp = parsePredicateEvalExpression("{{application}} = 'beachshirts' or 1 = 1");
+    assertTrue(exp instanceof ConstantExpression);
+    assertEquals(1, exp.getValue(span), 1e-12);
+    exp = parsePredicateEvalExpression("{{application}} = 'beachshirts' and 1 = 1");
+    assertTrue(exp instanceof LogicalExpression);
+    assertEquals(1, ((LogicalExpression) exp).getOperands().length);
+    assertEquals(1, exp.getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testHashedInList() {
+    PredicateEvalExpression exp =
+        parsePredicateEvalExpression("{{http.status_code}} in ('400', '404', '500')");
+    assertTrue(exp instanceof StringInExpression);
+    assertTrue(((StringInExpression) exp).isHashed());
+    assertEquals(1, exp.getValue(span), 1e-12);
+    assertEquals(0, parsePredicateEvalExpression("{{http.status_code}} in ('400', '500')").
+        getValue(span), 1e-12);
+    exp = parsePredicateEvalExpression("{{http.status_code}} in ('400', {{application}})");
+    assertTrue(exp instanceof StringInExpression);
+    assertTrue(!((StringInExpression) exp).isHashed());
+    assertEquals(0, exp.getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testNotAndConditionals() {
+    PredicateEvalExpression exp =
+        parsePredicateEvalExpression("not ({{http.status_code}} in ('400', '404', '500'))");
+    assertTrue(exp instanceof NotExpression);
+    assertTrue(((StringInExpression) ((NotExpression) exp).getOperand()).isHashed());
+    assertEquals(0, exp.getValue(span), 1e-12);
+    assertTrue(parsePredicateEvalExpression("not (1 = 2)") instanceof ConstantExpression);
+    // constant condition selects the branch
+    exp = parsePredicateEvalExpression("if(1 = 1, $duration > 1000, {{application}} = 'a')");
+    assertTrue(exp instanceof MathExpression);
+    assertEquals(1, exp.getValue(span), 1e-12);
+    exp = parsePredicateEvalExpression("(1 = 2) ? $duration : 2 * 3");
+    assertTrue(exp instanceof ConstantExpression);
+    assertEquals(6, exp.getValue(span), 1e-12);
+    exp = parsePredicateEvalExpression("if($duration > 1000, " +
+        "{{application}} in ('beachshirts', 'other') and 1 = 1, 2 + 2)");
+    assertTrue(exp instanceof IffExpression);
+    IffExpression iff = (IffExpression) exp;
+    assertTrue(iff.getThen() instanceof LogicalExpression);
+    assertTrue(((StringInExpression) ((LogicalExpression) iff.getThen()).getOperands()[0]).
+        isHashed());
+    assertTrue(iff.getElse() instanceof ConstantExpression);
+    assertEquals(1, exp.getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testOperandOrdering() {
+    PredicateEvalExpression exp = parsePredicateEvalExpression(
+        "{{sourceName}} regexMatch '^span.*$' and ({{spanName}} matches 'test*' and " +
+            "$duration > 1000)");
+    assertTrue(exp instanceof LogicalExpression);
+    PredicateEvalExpression[] operands = ((LogicalExpression) exp).getOperands();
+    assertEquals(3, operands.length);
+    assertTrue(operands[0] instanceof MathExpression);
+    assertEquals("matches", ((StringComparisonExpression) operands[1]).getOp());
+    assertEquals("regexMatch", ((StringComparisonExpression) operands[2]).getOp());
+    assertEquals(1, exp.getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testGuardedOperandsKeepSourceOrder() {
+    // left(20) throws unless the (more expensive) length check runs first
+    String expression = "{{application}} = 'beachshirts' and " +
+        "\"{{application}}\".length() >= $duration / 100 and " +
+        "\"{{application}}\".left(20) = 'abc' and $duration > 1000";
+    LogicalExpression exp = (LogicalExpression) PredicateExpressionOptimizer.optimize(
+        Predicates.parsePredicateEvalExpression(expression), true);
+    PredicateEvalExpression[] operands = exp.getOperands();
+    assertEquals(4, operands.length);
+    assertEquals("=", ((StringComparisonExpression) operands[0]).getOp());
+    assertEquals(">=", ((MathExpression) operands[1]).getOp());
+    assertTrue(operands[2] instanceof StringComparisonExpression);
+    // cheaper, but never moved ahead of operands that may throw
+    assertEquals(">", ((MathExpression) operands[3]).getOp());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(0, exp.getValue(span), 1e-12);
+    }
+    exp.reorder();
+    assertArrayEquals(operands, exp.getOperands());
+    assertEquals(0, exp.getValue(span), 1e-12);
+  }
+
+  @Test
+  public void testSelectivityTracking() {
+    // the first operand is cheaper but never short-circuits
+    LogicalExpression exp = (LogicalExpression) Predicates.parsePredicateEvalExpression(
+        "$duration > 1000 and {{application}} = 'none'", Predicates.SYSTEM_TIME, false, true);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(0, exp.getValue(span), 1e-12);
+    }
+    exp.reorder();
+    assertTrue(exp.getOperands()[0] instanceof StringComparisonExpression);
+    assertEquals(0, exp.getValue(span), 1e-12);
+  }
+}
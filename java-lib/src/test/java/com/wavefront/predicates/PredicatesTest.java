@@ -0,0 +1,51 @@
+package com.wavefront.predicates;
+
+import org.junit.Test;
+
+import com.wavefront.common.TimeProvider;
+
+import static com.wavefront.predicates.Predicates.parsePredicateEvalExpression;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PredicatesTest {
+
+  @Test
+  public void testExpressionCache() {
+    PredicateEvalExpression exp = parsePredicateEvalExpression("{{sourceName}} = 'cached'");
+    assertSame(exp, parsePredicateEvalExpression("{{sourceName}} = 'cached'"));
+    PredicateEvalExpression linearTime = parsePredicateEvalExpression(
+        "{{sourceName}} = 'cached'", Predicates.SYSTEM_TIME, true);
+    assertNotSame(exp, linearTime);
+    assertSame(linearTime, parsePredicateEvalExpression("{{sourceName}} = 'cached'",
+        Predicates.SYSTEM_TIME, true));
+    String logical = "{{sourceName}} = 'cached' and {{spanName}} = 'cached'";
+    PredicateEvalExpression tracked = parsePredicateEvalExpression(logical,
+        Predicates.SYSTEM_TIME, false, true);
+    assertNotSame(parsePredicateEvalExpression(logical), tracked);
+    assertSame(tracked, parsePredicateEvalExpression(logical, Predicates.SYSTEM_TIME, false,
+        true));
+    // expressions with custom time providers are not cached
+    TimeProvider timeProvider = () -> 1000L;
+    PredicateEvalExpression time = parsePredicateEvalExpression("time('now')", timeProvider);
+    assertEquals(1000, time.getValue(null), 1e-12);
+    assertNotSame(time, parsePredicateEvalExpression("time('now')", timeProvider));
+    assertNotSame(exp, parsePredicateEvalExpression("{{sourceName}} = 'cached'",
+        System::currentTimeMillis, true));
+    assertEquals(2000, parsePredicateEvalExpression("time('now')", () -> 2000L).
+        getValue(null), 1e-12);
+    Predicates.invalidateCache();
+    assertNotSame(exp, parsePredicateEvalExpression("{{sourceName}} = 'cached'"));
+  }
+
+  @Test(expected = ExpressionSyntaxException.class)
+  public void testSyntaxErrorsAreNotCached() {
+    try {
+      parsePredicateEvalExpression("{{sourceName}} = ");
+    } catch (ExpressionSyntaxException e) {
+      // expected
+    }
+    parsePredicateEvalExpression("{{sourceName}} = ");
+  }
+}
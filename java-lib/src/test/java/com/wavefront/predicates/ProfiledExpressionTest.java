@@ -0,0 +1,90 @@
+package com.wavefront.predicates;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProfiledExpressionTest {
+  private final ReportPoint point = ReportPoint.newBuilder().
+      setTable("test").
+      setValue(1234.5).
+      setTimestamp(1592837162000L).
+      setMetric("testMetric").
+      setHost("testHost").
+      setAnnotations(ImmutableMap.of("env", "prod", "dc", "us-west-2")).
+      build();
+
+  @Test
+  public void testProfiledEvaluation() {
+    ProfiledExpression expression = ProfiledExpression.parse(
+        "{{env}} = 'prod' and ($value > 1000 or {{dc}} startsWith 'us-')");
+    PredicateEvalExpression original = Predicates.parsePredicateEvalExpression(
+        "{{env}} = 'prod' and ($value > 1000 or {{dc}} startsWith 'us-')");
+    for (int i = 0; i < 10; i++) {
+      assertEquals(original.getValue(point), expression.getValue(point), 1e-12);
+    }
+    String dump = expression.dump();
+    String[] lines = dump.split("\n");
+    assertTrue(lines[0], lines[0].startsWith("and [invocations=10,"));
+    assertTrue(lines[0], lines[0].endsWith("trueRatio=1.000]"));
+    assertTrue(dump, dump.contains("\"{{env}}\" = \"prod\" [invocations=10,"));
+    assertTrue(dump, dump.contains("  or [invocations=10,"));
+    assertTrue(dump, dump.contains("$value [invocations=10,"));
+    // short-circuit: the second operand of "or" is never evaluated
+    assertTrue(dump, dump.contains("\"{{dc}}\" startsWith \"us-\" [invocations=0,"));
+
+    expression.reset();
+    assertTrue(expression.dump().startsWith("and [invocations=0,"));
+  }
+
+  @Test
+  public void testPublishMetrics() {
+    ProfiledExpression expression = ProfiledExpression.parse("{{env}} = 'dev' or $value > 1");
+    expression.getValue(point);
+    expression.getValue(point);
+    expression.publishMetrics("rule1");
+    Gauge<?> invocations = (Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+        new TaggedMetricName("predicates", "profile.invocations", "expression", "rule1",
+            "node", "0"));
+    assertEquals(2L, invocations.value());
+    Gauge<?> trueRatio = (Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+        new TaggedMetricName("predicates", "profile.true-ratio", "expression", "rule1",
+            "node", "0"));
+    assertEquals(1.0, (Double) trueRatio.value(), 1e-12);
+    // another instance can't publish under the same name
+    ProfiledExpression other = ProfiledExpression.parse("$value > 2");
+    try {
+      other.publishMetrics("rule1");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    other.unpublishMetrics();
+    assertEquals(2L, invocations.value());
+    // re-publishing under the same name from the same instance is fine
+    expression.publishMetrics("rule1");
+    expression.unpublishMetrics();
+    other.publishMetrics("rule1");
+    expression.unpublishMetrics();
+    assertEquals(0L, ((Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+        new TaggedMetricName("predicates", "profile.invocations", "expression", "rule1",
+            "node", "0"))).value());
+    other.unpublishMetrics();
+    assertNull(Metrics.defaultRegistry().allMetrics().get(
+        new TaggedMetricName("predicates", "profile.invocations", "expression", "rule1",
+            "node", "0")));
+    assertFalse(Metrics.defaultRegistry().allMetrics().keySet().stream().
+        anyMatch(x -> x.getName().startsWith("profile.")));
+  }
+}
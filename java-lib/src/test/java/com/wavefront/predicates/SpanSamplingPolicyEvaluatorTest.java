@@ -0,0 +1,75 @@
+package com.wavefront.predicates;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.wavefront.api.agent.SpanSamplingPolicy;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SpanSamplingPolicyEvaluatorTest {
+
+  private static final List<SpanSamplingPolicy> POLICIES = ImmutableList.of(
+      new SpanSamplingPolicy("p1", "{{application}} = 'app1' and {{service}} = 'svc1'", 10),
+      new SpanSamplingPolicy("p2", "{{application}} = 'app1' and {{service}} in ('svc2', " +
+          "'svc3')", 20),
+      new SpanSamplingPolicy("p3", "{{application}} = 'app2' and $duration > 1000", 50),
+      new SpanSamplingPolicy("p4", "{{application}} = 'app1' and {{error}} = 'true'", 100),
+      new SpanSamplingPolicy("p5", "{{application}} = 'app1' and {{service}} = 'svc1'", 10),
+      new SpanSamplingPolicy("p6", "{{spanName}} startsWith 'get' or {{missing}} = ''", 5),
+      new SpanSamplingPolicy("p7", "1 = 2", 100));
+
+  @Test
+  public void testEvaluate() {
+    CompiledSpanSamplingPolicies policies = new CompiledSpanSamplingPolicies();
+    policies.update(POLICIES);
+    SpanSamplingPolicyEvaluator evaluator = policies.getEvaluator();
+    // "{{application}} = 'app1'" is shared, p5 is identical to p1
+    assertEquals(7, evaluator.getConditionCount());
+    assertEquals(3, evaluator.getTagCount());
+
+    assertEquals("p1", evaluator.evaluate(span("app1", "svc1", "false", 1)).getPolicyId());
+    assertEquals("p2", evaluator.evaluate(span("app1", "svc3", "false", 1)).getPolicyId());
+    assertEquals("p4", evaluator.evaluate(span("app1", "svc1", "true", 1)).getPolicyId());
+    assertEquals("p3", evaluator.evaluate(span("app2", "svc1", "true", 2000)).getPolicyId());
+    assertEquals("p6", evaluator.evaluate(span("app2", "svc1", "true", 1)).getPolicyId());
+
+    // same result as evaluating every policy and picking the highest sampling percent
+    for (String app : ImmutableList.of("app1", "app2", "app3")) {
+      for (String service : ImmutableList.of("svc1", "svc2", "svc3")) {
+        for (String error : ImmutableList.of("true", "false")) {
+          for (long duration : new long[] {1, 2000}) {
+            Span span = span(app, service, error, duration);
+            SpanSamplingPolicy expected = null;
+            for (CompiledSpanSamplingPolicies.CompiledPolicy policy : policies.getPolicies()) {
+              if (policy.getPredicate().test(span) && (expected == null ||
+                  policy.getPolicy().getSamplingPercent() > expected.getSamplingPercent())) {
+                expected = policy.getPolicy();
+              }
+            }
+            assertEquals(expected, evaluator.evaluate(span));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNoPolicies() {
+    CompiledSpanSamplingPolicies policies = new CompiledSpanSamplingPolicies();
+    assertNull(policies.getEvaluator().evaluate(span("app1", "svc1", "true", 1)));
+  }
+
+  private static Span span(String application, String service, String error, long duration) {
+    return Span.newBuilder().setCustomer("test").setName("spanName").setSource("source").
+        setSpanId("spanId").setTraceId("traceId").setStartMillis(0).setDuration(duration).
+        setAnnotations(ImmutableList.of(new Annotation("application", application),
+            new Annotation("service", service), new Annotation("error", error))).build();
+  }
+}
@@ -0,0 +1,54 @@
+package com.yammer.metrics.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.wavefront.common.MetricConstants;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaCounterTest {
+
+  @Test
+  public void testSumThenReset() {
+    MetricsRegistry registry = new MetricsRegistry();
+    DeltaCounter counter = DeltaCounter.get(registry, new MetricName("test", "test", "delta"));
+    assertTrue(registry.allMetrics().containsKey(
+        new MetricName("test", "test", MetricConstants.DELTA_PREFIX + "delta")));
+    counter.inc();
+    counter.inc(10);
+    counter.dec();
+    assertEquals(10, counter.count());
+    assertEquals(10, DeltaCounter.processDeltaCounter(counter));
+    assertEquals(0, counter.count());
+    counter.inc(5);
+    counter.clear();
+    assertEquals(0, counter.sumThenReset());
+  }
+
+  @Test
+  public void testConcurrentIncrementsAreNotLost() throws Exception {
+    DeltaCounter counter = DeltaCounter.get(new MetricsRegistry(),
+        new MetricName("test", "test", "concurrent"));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int t = 0; t < 8; t++) {
+      executor.submit(() -> {
+        for (int i = 0; i < 100_000; i++) {
+          counter.inc();
+        }
+      });
+    }
+    executor.shutdown();
+    long reported = 0;
+    while (!executor.isTerminated()) {
+      reported += counter.sumThenReset();
+    }
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    reported += counter.sumThenReset();
+    assertEquals(800_000, reported);
+  }
+}
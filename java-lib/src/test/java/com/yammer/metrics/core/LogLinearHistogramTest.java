@@ -0,0 +1,161 @@
+package com.yammer.metrics.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.tdunning.math.stats.Centroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogLinearHistogramTest {
+
+  @Test
+  public void testRelativeAccuracy() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    LogLinearHistogram histogram = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "accuracy"), 7, clock::get);
+    double accuracy = histogram.getRelativeAccuracy();
+    assertEquals(1 / 256.0, accuracy, 1e-12);
+    Random random = new Random(42);
+    for (int i = 0; i < 10_000; i++) {
+      double value = Math.exp(random.nextDouble() * 40 - 20);
+      if (i % 2 == 0) value = -value;
+      histogram.update(value);
+    }
+    for (int i = 0; i < 1000; i++) {
+      double value = Math.exp(random.nextDouble() * 40 - 20);
+      LogLinearHistogram single = LogLinearHistogram.get(new MetricsRegistry(),
+          new MetricName("test", "test", "single"), 7, clock::get);
+      single.update(value);
+      single.update(-value);
+      List<Centroid> centroids = single.toCentroids();
+      assertEquals(2, centroids.size());
+      assertEquals(-value, centroids.get(0).mean(), value * accuracy);
+      assertEquals(value, centroids.get(1).mean(), value * accuracy);
+    }
+    assertEquals(10_000, histogram.count());
+    List<Centroid> centroids = histogram.toCentroids();
+    for (int i = 1; i < centroids.size(); i++) {
+      assertTrue(centroids.get(i - 1).mean() < centroids.get(i).mean());
+    }
+  }
+
+  @Test
+  public void testStatsAndSnapshot() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    LogLinearHistogram histogram = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "stats"), 7, clock::get);
+    assertEquals(0, histogram.count());
+    assertTrue(Double.isNaN(histogram.mean()));
+    assertTrue(Double.isNaN(histogram.max()));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.update(i);
+    }
+    histogram.update(Double.NaN);
+    histogram.update(Double.POSITIVE_INFINITY);
+    assertEquals(1000, histogram.count());
+    assertEquals(500.5, histogram.mean(), 1e-9);
+    assertEquals(1, histogram.min(), 1 / 256.0);
+    assertEquals(1000, histogram.max(), 1000 / 256.0);
+    assertEquals(500, histogram.getSnapshot().getMedian(), 500 / 256.0);
+    assertEquals(990, histogram.getSnapshot().get99thPercentile(), 990 / 256.0);
+    assertEquals(1000, histogram.getSnapshot().size());
+  }
+
+  @Test
+  public void testBins() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    LogLinearHistogram histogram = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "bins"), 7, clock::get);
+    for (int i = 0; i < 100; i++) {
+      histogram.update(5);
+    }
+    histogram.update(0);
+    // current minute is not reported yet
+    assertTrue(histogram.bins(false).isEmpty());
+    clock.addAndGet(60_000L);
+    histogram.update(10);
+    List<WavefrontHistogram.MinuteBin> bins = histogram.bins(false);
+    assertEquals(1, bins.size());
+    assertEquals(60_000L * 1000, bins.get(0).getMinMillis());
+    assertEquals(101, bins.get(0).getDist().size());
+    // one centroid per bucket
+    assertEquals(2, bins.get(0).getDist().centroidCount());
+    assertEquals(102, histogram.count());
+    assertEquals(1, histogram.bins(true).size());
+    assertTrue(histogram.bins(true).isEmpty());
+    assertEquals(1, histogram.count());
+  }
+
+  @Test
+  public void testMerge() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    LogLinearHistogram first = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "first"), 7, clock::get);
+    LogLinearHistogram second = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "second"), 7, clock::get);
+    LogLinearHistogram combined = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "combined"), 7, clock::get);
+    for (int minute = 0; minute < 3; minute++) {
+      for (int i = 0; i < 100; i++) {
+        first.update(i);
+        combined.update(i);
+        second.update(i * 10);
+        combined.update(i * 10);
+      }
+      clock.addAndGet(60_000L);
+    }
+    first.merge(second);
+    assertEquals(combined.count(), first.count());
+    assertEquals(combined.mean(), first.mean(), 1e-9);
+    assertEquals(centroidsOf(combined), centroidsOf(first));
+    assertEquals(3, first.bins(false).size());
+  }
+
+  @Test
+  public void testExponentRangeGrowth() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    LogLinearHistogram histogram = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "range"), 7, clock::get);
+    LogLinearHistogram merged = LogLinearHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "merged"), 7, clock::get);
+    // start in the middle, then widen the directory downwards and upwards
+    double[] values = {100, 1, 1e-5, Double.MIN_NORMAL, 1e4, 1e100, Double.MAX_VALUE, 0.5,
+        -3, -Double.MAX_VALUE};
+    for (double value : values) {
+      histogram.update(value);
+    }
+    merged.update(42);
+    merged.merge(histogram);
+    assertEquals(values.length, histogram.count());
+    assertEquals(values.length + 1, merged.count());
+    double accuracy = histogram.getRelativeAccuracy();
+    List<Centroid> centroids = histogram.toCentroids();
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    assertEquals(values.length, centroids.size());
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals(sorted[i], centroids.get(i).mean(), Math.abs(sorted[i]) * accuracy);
+    }
+    assertEquals(values.length + 1, merged.toCentroids().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentPrecision() {
+    LogLinearHistogram.get(new MetricsRegistry(), new MetricName("test", "test", "p7"), 7).
+        merge(LogLinearHistogram.get(new MetricsRegistry(),
+            new MetricName("test", "test", "p8"), 8));
+  }
+
+  private static String centroidsOf(LogLinearHistogram histogram) {
+    StringBuilder sb = new StringBuilder();
+    histogram.toCentroids().forEach(c -> sb.append(c.mean()).append('#').append(c.count()).
+        append(' '));
+    return sb.toString();
+  }
+}
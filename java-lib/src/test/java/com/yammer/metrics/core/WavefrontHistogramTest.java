@@ -0,0 +1,316 @@
+package com.yammer.metrics.core;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.TDigest;
+
+import wavefront.report.Histogram;
+import wavefront.report.HistogramType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WavefrontHistogramTest {
+
+  @Test
+  public void testStripedRecording() throws Exception {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    WavefrontHistogram histogram = WavefrontHistogram.getStriped(new MetricsRegistry(),
+        new MetricName("test", "test", "striped"), 32, clock::get, 4);
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    for (int t = 0; t < 64; t++) {
+      // new short-lived tasks, more threads than stripes
+      executor.submit(() -> {
+        for (int i = 1; i <= 1000; i++) {
+          histogram.update(i);
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(64_000, histogram.count());
+    assertEquals(1, histogram.min(), 1e-12);
+    assertEquals(1000, histogram.max(), 1e-12);
+    assertEquals(500.5, histogram.mean(), 1);
+    assertEquals(500, histogram.getSnapshot().getMedian(), 10);
+
+    // current minute is not reported yet
+    assertTrue(histogram.bins(false).isEmpty());
+    clock.addAndGet(60_000L);
+    histogram.update(5);
+    List<WavefrontHistogram.MinuteBin> bins = histogram.bins(true);
+    assertEquals(1, bins.size());
+    assertEquals(60_000L * 1000, bins.get(0).getMinMillis());
+    assertEquals(64_000, bins.get(0).getDist().size());
+    assertEquals(1, histogram.count());
+    assertTrue(histogram.bins(true).isEmpty());
+  }
+
+  @Test
+  public void testStripedReadersDontWaitForWriters() throws Exception {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    WavefrontHistogram histogram = WavefrontHistogram.getStriped(new MetricsRegistry(),
+        new MetricName("test", "test", "stripedReaders"), 32, clock::get, 1);
+    histogram.update(1);
+    clock.addAndGet(60_000L);
+    histogram.update(2);
+    CountDownLatch updating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // a writer that holds the current minute's bin until released
+    List<Double> means = new AbstractList<Double>() {
+      @Override
+      public Double get(int index) {
+        updating.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return 3.0;
+      }
+
+      @Override
+      public int size() {
+        return 1;
+      }
+    };
+    Thread writer = new Thread(() -> histogram.bulkUpdate(means, ImmutableList.of(1)));
+    writer.start();
+    assertTrue(updating.await(10, TimeUnit.SECONDS));
+    try {
+      assertEquals(2, histogram.count());
+      assertEquals(1.5, histogram.mean(), 1e-12);
+      // the busy bin is skipped
+      assertEquals(1, histogram.getSnapshot().size());
+      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(true);
+      assertEquals(1, bins.size());
+      assertEquals(1, bins.get(0).getDist().size());
+    } finally {
+      release.countDown();
+    }
+    writer.join();
+    assertEquals(2, histogram.count());
+    assertEquals(2, histogram.getSnapshot().size());
+  }
+
+  @Test
+  public void testStripedAndPerThreadAreEquivalent() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    WavefrontHistogram perThread = WavefrontHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "perThread"), 32, clock::get);
+    WavefrontHistogram striped = WavefrontHistogram.getStriped(new MetricsRegistry(),
+        new MetricName("test", "test", "striped"), 32, clock::get, 8);
+    for (int minute = 0; minute < 15; minute++) {
+      for (int i = 0; i < 100; i++) {
+        perThread.update(minute * 100 + i);
+        striped.update(minute * 100 + i);
+      }
+      clock.addAndGet(60_000L);
+    }
+    List<Long> expected = minutes(perThread.bins(false));
+    List<Long> actual = minutes(striped.bins(false));
+    // only the last 10 minutes are retained
+    assertEquals(10, expected.size());
+    assertEquals(expected, actual);
+    assertEquals(perThread.count(), striped.count());
+    assertEquals(perThread.min(), striped.min(), 1e-12);
+    assertEquals(perThread.max(), striped.max(), 1e-12);
+  }
+
+  @Test
+  public void testStatsAndCachedSnapshot() {
+    AtomicLong clock = new AtomicLong(60_000L * 1000);
+    WavefrontHistogram histogram = WavefrontHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "stats"), 32, clock::get);
+    assertTrue(Double.isNaN(histogram.mean()));
+    assertTrue(Double.isNaN(histogram.min()));
+    assertEquals(0, histogram.count());
+    histogram.update(10);
+    histogram.bulkUpdate(ImmutableList.of(1.0, 100.0), ImmutableList.of(3, 1));
+    assertEquals(5, histogram.count());
+    assertEquals(1, histogram.min(), 1e-12);
+    assertEquals(100, histogram.max(), 1e-12);
+    assertEquals(113 / 5.0, histogram.mean(), 1e-12);
+    assertEquals(5, histogram.getSnapshot().size());
+    assertEquals(100, histogram.getSnapshot().getValue(1.0), 1e-12);
+    // new updates invalidate the snapshot
+    histogram.update(1000);
+    assertEquals(6, histogram.getSnapshot().size());
+    assertEquals(1000, histogram.getSnapshot().getValue(1.0), 1e-12);
+    // so does removing bins
+    clock.addAndGet(60_000L);
+    histogram.bins(true);
+    assertEquals(0, histogram.getSnapshot().size());
+    assertTrue(Double.isNaN(histogram.max()));
+  }
+
+  @Test
+  public void testBulkUpdateAndMerge() {
+    for (int stripes : new int[] {0, 4}) {
+      AtomicLong clock = new AtomicLong(60_000L * 1000);
+      WavefrontHistogram histogram = stripes == 0 ?
+          WavefrontHistogram.get(new MetricsRegistry(), new MetricName("test", "test", "bulk"),
+              32, clock::get) :
+          WavefrontHistogram.getStriped(new MetricsRegistry(),
+              new MetricName("test", "test", "bulk"), 32, clock::get, stripes);
+      histogram.bulkUpdate(new double[] {1, 2, 3, 4}, new int[] {1, 2, 3, 4}, 3);
+      TDigest digest = new AVLTreeDigest(32);
+      digest.add(10, 5);
+      digest.add(20, 5);
+      histogram.merge(digest);
+      histogram.merge(new Histogram(60_000, HistogramType.TDIGEST, ImmutableList.of(100.0, 200.0),
+          ImmutableList.of(1, 1)));
+      assertEquals(18, histogram.count());
+      assertEquals(1, histogram.min(), 1e-12);
+      assertEquals(200, histogram.max(), 1e-12);
+      assertEquals((1 + 4 + 9 + 50 + 100 + 300) / 18.0, histogram.mean(), 1e-12);
+
+      // target older minutes, out of order
+      long now = clock.get();
+      histogram.bulkUpdate(new double[] {5}, new int[] {1}, 1, now - 120_000L);
+      histogram.merge(digest, now - 60_000L + 1);
+      histogram.merge(new Histogram(60_000, HistogramType.TDIGEST, ImmutableList.of(7.0),
+          ImmutableList.of(3)), now - 120_000L);
+      // too old to be retained
+      histogram.bulkUpdate(new double[] {5}, new int[] {1}, 1, now - 3_600_000L);
+      histogram.update(1000);
+      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(true);
+      bins.sort(Comparator.comparingLong(WavefrontHistogram.MinuteBin::getMinMillis));
+      assertEquals(2, bins.size());
+      assertEquals(now - 120_000L, bins.get(0).getMinMillis());
+      assertEquals(4, bins.get(0).getDist().size());
+      assertEquals(now - 60_000L, bins.get(1).getMinMillis());
+      assertEquals(10, bins.get(1).getDist().size());
+      assertEquals(19, histogram.count());
+    }
+  }
+
+  @Test
+  public void testFutureAndAlreadyReportedMinutes() {
+    for (int stripes : new int[] {0, 4}) {
+      AtomicLong clock = new AtomicLong(60_000L * 1000);
+      WavefrontHistogram histogram = stripes == 0 ?
+          WavefrontHistogram.get(new MetricsRegistry(), new MetricName("test", "test", "late"),
+              32, clock::get) :
+          WavefrontHistogram.getStriped(new MetricsRegistry(),
+              new MetricName("test", "test", "late"), 32, clock::get, stripes);
+      long start = clock.get();
+      for (int minute = 0; minute < 9; minute++) {
+        histogram.update(minute);
+        clock.addAndGet(60_000L);
+      }
+      long now = clock.get();
+      // future minutes go to the current minute, and don't evict any of the unreported bins
+      histogram.bulkUpdate(new double[] {100}, new int[] {1}, 1, now + 60_000L);
+      histogram.merge(new Histogram(60_000, HistogramType.TDIGEST, ImmutableList.of(200.0),
+          ImmutableList.of(1)), now + 600_000L);
+      clock.addAndGet(60_000L);
+      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(true);
+      bins.sort(Comparator.comparingLong(WavefrontHistogram.MinuteBin::getMinMillis));
+      assertEquals(10, bins.size());
+      assertEquals(start, bins.get(0).getMinMillis());
+      assertEquals(now, bins.get(9).getMinMillis());
+      assertEquals(2, bins.get(9).getDist().size());
+
+      // late values for minutes that have already been reported are discarded
+      histogram.bulkUpdate(new double[] {5}, new int[] {1}, 1, now);
+      histogram.merge(new Histogram(60_000, HistogramType.TDIGEST, ImmutableList.of(7.0),
+          ImmutableList.of(3)), start + 60_000L);
+      assertEquals(0, histogram.count());
+      clock.addAndGet(60_000L);
+      assertTrue(histogram.bins(true).isEmpty());
+    }
+  }
+
+  @Test
+  public void testHourAndDayRollups() {
+    // 23:00 UTC
+    long start = 86_400_000L * 100 + 3_600_000L * 23;
+    AtomicLong clock = new AtomicLong(start);
+    WavefrontHistogram histogram = WavefrontHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "rollup"), 32, clock::get);
+    assertEquals(EnumSet.of(WavefrontHistogram.Granularity.MINUTE),
+        histogram.getGranularities());
+    histogram.setGranularities(EnumSet.of(WavefrontHistogram.Granularity.HOUR,
+        WavefrontHistogram.Granularity.DAY));
+    for (int minute = 0; minute < 60; minute++) {
+      histogram.update(minute);
+      histogram.update(minute + 0.5);
+      clock.addAndGet(60_000L);
+      // hour isn't complete until the next hour starts
+      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(true);
+      if (minute < 59) {
+        assertTrue(bins.isEmpty());
+      } else {
+        assertEquals(2, bins.size());
+        bins.sort(Comparator.comparingLong(WavefrontHistogram.MinuteBin::getDurationMillis));
+        assertEquals(3_600_000L, bins.get(0).getDurationMillis());
+        assertEquals(start, bins.get(0).getMinMillis());
+        assertEquals(120, bins.get(0).getDist().size());
+        assertEquals(86_400_000L, bins.get(1).getDurationMillis());
+        assertEquals(86_400_000L * 100, bins.get(1).getMinMillis());
+        assertEquals(120, bins.get(1).getDist().size());
+      }
+    }
+    // completed bins are only reported once
+    assertTrue(histogram.bins(true).isEmpty());
+
+    // without clearing, minutes are only rolled up once
+    histogram.setGranularities(EnumSet.allOf(WavefrontHistogram.Granularity.class));
+    for (int minute = 0; minute < 60; minute++) {
+      histogram.update(minute);
+      clock.addAndGet(60_000L);
+      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(false);
+      // last 10 minute bins, plus the hour bin once it's complete
+      assertEquals(minute == 59 ? 11 : Math.min(10, minute + 1), bins.size());
+      if (minute == 59) {
+        bins.sort(Comparator.comparingLong(WavefrontHistogram.MinuteBin::getDurationMillis));
+        assertEquals(3_600_000L, bins.get(10).getDurationMillis());
+        assertEquals(60, bins.get(10).getDist().size());
+      }
+    }
+  }
+
+  @Test
+  public void testLateMinutesForReportedRollups() {
+    // 23:50 UTC
+    long start = 86_400_000L * 100 + 3_600_000L * 23 + 60_000L * 50;
+    AtomicLong clock = new AtomicLong(start);
+    WavefrontHistogram histogram = WavefrontHistogram.get(new MetricsRegistry(),
+        new MetricName("test", "test", "lateRollup"), 32, clock::get);
+    histogram.setGranularities(EnumSet.of(WavefrontHistogram.Granularity.HOUR));
+    histogram.update(1);
+    clock.addAndGet(600_000L);
+    List<WavefrontHistogram.MinuteBin> bins = histogram.bins(false);
+    assertEquals(1, bins.size());
+    assertEquals(WavefrontHistogram.Granularity.HOUR, bins.get(0).getGranularity());
+    assertEquals("!H", bins.get(0).getGranularity().getIdentifier());
+    assertEquals(1, bins.get(0).getDist().size());
+    // a minute that arrives after its hour has been reported doesn't report the hour again
+    histogram.bulkUpdate(new double[] {2}, new int[] {1}, 1, start + 300_000L);
+    clock.addAndGet(60_000L);
+    assertTrue(histogram.bins(false).isEmpty());
+    clock.addAndGet(3_600_000L);
+    assertTrue(histogram.bins(false).isEmpty());
+  }
+
+  private static List<Long> minutes(List<WavefrontHistogram.MinuteBin> bins) {
+    List<Long> result = new ArrayList<>();
+    bins.forEach(b -> result.add(b.getMinMillis()));
+    result.sort(Long::compare);
+    return result;
+  }
+}
@@ -13,7 +13,6 @@ import com.yammer.metrics.core.WavefrontHistogram;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -160,19 +159,18 @@ public class HttpMetricsProcessor extends WavefrontMetricsProcessor {
   }
 
   @Override
-  void writeHistogram(MetricName name, WavefrontHistogram histogram, Void context) {
+  void writeHistogram(MetricName name, List<WavefrontHistogram.MinuteBin> bins, Void context) {
     try {
       Map<String, String> tags = Collections.emptyMap();
       if (name instanceof TaggedMetricName) {
         tags = ((TaggedMetricName) name).getTags();
       }
-      List<WavefrontHistogram.MinuteBin> bins = histogram.bins(clear);
       if (bins.isEmpty()) return;
 
-      Set<HistogramGranularity> granularities = new HashSet<>();
-      granularities.add(HistogramGranularity.MINUTE);
       long timestamp;
       for (WavefrontHistogram.MinuteBin bin : bins) {
+        Set<HistogramGranularity> granularities = Collections.singleton(
+            HistogramGranularity.valueOf(bin.getGranularity().name()));
         List<Pair<Double, Integer>> centroids = new ArrayList<>();
         timestamp = bin.getMinMillis() / 1000;
         Centroid accumulator = null;
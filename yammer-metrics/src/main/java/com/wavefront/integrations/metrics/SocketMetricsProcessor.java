@@ -70,8 +70,9 @@ public class SocketMetricsProcessor extends WavefrontMetricsProcessor {
   }
 
   @Override
-  protected void writeHistogram(MetricName name, WavefrontHistogram histogram, Void context) throws Exception {
-    List<String> histogramLines = toWavefrontHistogramLines(name, histogram);
+  protected void writeHistogram(MetricName name, List<WavefrontHistogram.MinuteBin> bins, Void context)
+      throws Exception {
+    List<String> histogramLines = toWavefrontHistogramLines(name, bins);
     for (String histogramLine : histogramLines) {
       histogramsSocket.write(histogramLine);
     }
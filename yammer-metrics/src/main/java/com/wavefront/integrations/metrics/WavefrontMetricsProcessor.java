@@ -8,7 +8,9 @@ import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.DeltaCounter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.LogLinearHistogram;
 import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricProcessor;
 import com.yammer.metrics.core.Sampling;
@@ -55,11 +57,21 @@ abstract class WavefrontMetricsProcessor implements MetricProcessor<Void> {
 
   /**
    * @param name      The MetricName to write
-   * @param histogram the Histogram data to write
+   * @param bins      the Histogram data to write (minute bins of a {@link WavefrontHistogram}
+   *                  or a {@link LogLinearHistogram})
    * @param context   Unused
    * @throws Exception If the histogram fails to write to the MetricsProcess it will throw an exception.
    */
-  abstract void writeHistogram(MetricName name, WavefrontHistogram histogram, Void context) throws Exception;
+  abstract void writeHistogram(MetricName name, List<WavefrontHistogram.MinuteBin> bins, Void context)
+      throws Exception;
+
+  /**
+   * @param metric metric to check.
+   * @return true if the metric is reported as a Wavefront histogram (as opposed to stats).
+   */
+  static boolean isWavefrontHistogram(Metric metric) {
+    return metric instanceof WavefrontHistogram || metric instanceof LogLinearHistogram;
+  }
 
   abstract void flush() throws Exception;
 
@@ -86,16 +98,15 @@ abstract class WavefrontMetricsProcessor implements MetricProcessor<Void> {
 
   /**
    * @param name       The name of the histogram.
-   * @param histogram  The histogram data.
+   * @param bins       The histogram data.
    * @return           A list of new line terminated strings in the wavefront line format.
    */
-  List<String> toWavefrontHistogramLines(MetricName name, WavefrontHistogram histogram) {
-    List<WavefrontHistogram.MinuteBin> bins = histogram.bins(clear);
+  List<String> toWavefrontHistogramLines(MetricName name, List<WavefrontHistogram.MinuteBin> bins) {
     if (bins.isEmpty()) return Collections.emptyList();
     List<String> histogramLines = new ArrayList<>();
     for (WavefrontHistogram.MinuteBin minuteBin : bins) {
       StringBuilder sb = new StringBuilder();
-      sb.append("!M ").append(minuteBin.getMinMillis() / 1000);
+      sb.append(minuteBin.getGranularity().getIdentifier()).append(" ").append(minuteBin.getMinMillis() / 1000);
       appendCompactedCentroids(sb, minuteBin.getDist().centroids());
       sb.append(" \"").append(getName(name)).append("\"");
       if (name instanceof TaggedMetricName) {
@@ -109,11 +120,11 @@ abstract class WavefrontMetricsProcessor implements MetricProcessor<Void> {
 
   /**
    * @param name       The name of the histogram.
-   * @param histogram  The histogram data.
+   * @param bins       The histogram data.
    * @return           A single string entity containing all of the wavefront histogram data.
    */
-  String toBatchedWavefrontHistogramLines(MetricName name, WavefrontHistogram histogram) {
-    return String.join("\n", toWavefrontHistogramLines(name, histogram));
+  String toBatchedWavefrontHistogramLines(MetricName name, List<WavefrontHistogram.MinuteBin> bins) {
+    return String.join("\n", toWavefrontHistogramLines(name, bins));
   }
 
   private static void appendCompactedCentroids(StringBuilder sb, Collection<Centroid> centroids) {
@@ -191,7 +202,9 @@ abstract class WavefrontMetricsProcessor implements MetricProcessor<Void> {
   @Override
   public void processHistogram(MetricName name, Histogram histogram, Void context) throws Exception {
     if (histogram instanceof WavefrontHistogram) {
-      writeHistogram(name, (WavefrontHistogram) histogram, context);
+      writeHistogram(name, ((WavefrontHistogram) histogram).bins(clear), context);
+    } else if (histogram instanceof LogLinearHistogram) {
+      writeHistogram(name, ((LogLinearHistogram) histogram).bins(clear), context);
     } else {
       if (!sendEmptyHistograms && histogram.count() == 0) {
         writeMetric(name, "count", 0);
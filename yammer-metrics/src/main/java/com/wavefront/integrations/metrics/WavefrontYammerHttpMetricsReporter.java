@@ -12,7 +12,6 @@ import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.core.SafeVirtualMachineMetrics;
 import com.yammer.metrics.core.VirtualMachineMetrics;
-import com.yammer.metrics.core.WavefrontHistogram;
 import com.yammer.metrics.reporting.AbstractReporter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.nio.reactor.IOReactorException;
@@ -319,10 +318,10 @@ public class WavefrontYammerHttpMetricsReporter extends AbstractReporter impleme
       if (includeJvmMetrics) upsertJavaMetrics();
       if (includeReporterMetrics) upsertReporterMetrics();
       // non-histograms go first
-      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> !(m.getValue() instanceof WavefrontHistogram)).
+      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> !WavefrontMetricsProcessor.isWavefrontHistogram(m.getValue())).
           forEach(this::processEntry);
       // histograms go last
-      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> m.getValue() instanceof WavefrontHistogram).
+      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> WavefrontMetricsProcessor.isWavefrontHistogram(m.getValue())).
           forEach(this::processEntry);
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Cannot report point to Wavefront! Trying again next iteration.", e);
@@ -340,7 +339,7 @@ public class WavefrontYammerHttpMetricsReporter extends AbstractReporter impleme
     }
     try {
       metric.processWith(httpMetricsProcessor, metricName, null);
-      if (!(metric instanceof WavefrontHistogram)) {
+      if (!WavefrontMetricsProcessor.isWavefrontHistogram(metric)) {
         metricsGenerated.incrementAndGet();
       } else {
         histogramsGenerated.incrementAndGet();
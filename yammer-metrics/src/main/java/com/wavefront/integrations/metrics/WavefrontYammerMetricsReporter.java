@@ -11,7 +11,6 @@ import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.core.SafeVirtualMachineMetrics;
 import com.yammer.metrics.core.VirtualMachineMetrics;
-import com.yammer.metrics.core.WavefrontHistogram;
 import com.yammer.metrics.reporting.AbstractReporter;
 
 import javax.annotation.Nullable;
@@ -220,10 +219,10 @@ public class WavefrontYammerMetricsReporter extends AbstractReporter implements
       if (includeJvmMetrics) upsertJavaMetrics();
 
       // non-histograms go first
-      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> !(m.getValue() instanceof WavefrontHistogram)).
+      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> !WavefrontMetricsProcessor.isWavefrontHistogram(m.getValue())).
           forEach(this::processEntry);
       // histograms go last
-      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> m.getValue() instanceof WavefrontHistogram).
+      getMetricsRegistry().allMetrics().entrySet().stream().filter(m -> WavefrontMetricsProcessor.isWavefrontHistogram(m.getValue())).
           forEach(this::processEntry);
       socketMetricProcessor.flush();
     } catch (Exception e) {
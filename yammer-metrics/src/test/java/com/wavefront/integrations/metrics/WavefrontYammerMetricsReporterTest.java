@@ -7,6 +7,7 @@ import com.wavefront.metrics.MetricTranslator;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.LogLinearHistogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
@@ -23,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -227,6 +229,41 @@ public class WavefrontYammerMetricsReporterTest {
         "\"tag1\"=\"value1\" \"tag2\"=\"value2\"")));
   }
 
+  @Test(timeout = 1000)
+  public void testWavefrontHistogramHourlyRollup() throws Exception {
+    AtomicLong clock = new AtomicLong(3_600_000L * 400000);
+    WavefrontHistogram wavefrontHistogram = WavefrontHistogram.get(metricsRegistry, new TaggedMetricName(
+        "group", "myhisto", "tag1", "value1"), 32, clock::get);
+    wavefrontHistogram.setGranularities(EnumSet.of(WavefrontHistogram.Granularity.HOUR));
+    for (int minute = 0; minute < 60; minute++) {
+      wavefrontHistogram.update(minute % 2 == 0 ? 1 : 2);
+      clock.addAndGet(60_000L);
+      wavefrontYammerMetricsReporter.run();
+    }
+    assertThat(receiveFromSocket(1, fromHistograms), contains(equalTo("!H 1440000000 #30 1.0 #30 2.0 " +
+        "\"myhisto\" \"tag1\"=\"value1\"")));
+  }
+
+  @Test(timeout = 1000)
+  public void testLogLinearHistogram() throws Exception {
+    AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    long timeBin = (clock.get() / 60000 * 60);
+    LogLinearHistogram histogram = LogLinearHistogram.get(metricsRegistry, new TaggedMetricName(
+        "group", "myhisto", "tag1", "value1"), 7, clock::get);
+    for (int i = 0; i < 10; i++) {
+      histogram.update(1);
+      histogram.update(100);
+    }
+    histogram.update(0);
+    histogram.update(-1);
+    // Advance the clock by 1 min ...
+    clock.addAndGet(60000L + 1);
+    wavefrontYammerMetricsReporter.run();
+    // reported values are bucket midpoints
+    assertThat(receiveFromSocket(1, fromHistograms), contains(equalTo("!M " + timeBin +
+        " #1 -1.00390625 #1 0.0 #10 1.00390625 #10 100.25 \"myhisto\" \"tag1\"=\"value1\"")));
+  }
+
   @Test(timeout = 1000)
   public void testPlainMeter() throws Exception {
     Meter meter = metricsRegistry.newMeter(WavefrontYammerMetricsReporterTest.class, "mymeter", "requests",